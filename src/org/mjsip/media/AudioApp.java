@@ -48,6 +48,8 @@ public class AudioApp {
 		println("   --be              uses Bandwidth-Efficient mode");
 		println("   --sqn-check       receiver discards out-of-sequence and duplicated packets");
 		println("   --silence-pad     receiver fills silence periods with void audio");
+		println("   --jitter-buffer   receiver uses an adaptive jitter buffer");
+		println("   --media-clock     file and tone senders are paced by the shared media clock");
 		println("");
 		println("   --debug-drop-rate <time> sender drops packets every <time> millisecs");
 		println("   --debug-drop-time <time> sender drops packets for a duration of <time> millisecs");
@@ -178,6 +180,16 @@ public class AudioApp {
 					continue;
 				}
 				// else
+				if (args[i].startsWith("--jitter-buffer"))  {
+					AudioStreamer.JITTER_BUFFER=true;
+					continue;
+				}
+				// else
+				if (args[i].startsWith("--media-clock"))  {
+					AudioStreamer.MEDIA_CLOCK=true;
+					continue;
+				}
+				// else
 				if (args[i].startsWith("--be"))  {
 					AudioStreamer.RTP_BANDWIDTH_EFFICIENT_MODE=true;
 					continue;
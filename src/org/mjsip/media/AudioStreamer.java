@@ -30,12 +30,16 @@ import javax.sound.sampled.AudioSystem;
 
 import org.mjsip.rtp.AmrRtpPayloadFormat;
 import org.mjsip.rtp.RtpControl;
+import org.mjsip.rtp.RtpStreamQuality;
+import org.mjsip.rtp.TelephoneEventRtpPayloadFormat;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpSocket;
 import org.zoolu.sound.AudioOutputStream;
 import org.zoolu.sound.CodecType;
 import org.zoolu.sound.ConvertingAudioSystem;
 import org.zoolu.sound.SimpleAudioSystem;
+import org.zoolu.sound.codec.G711;
+import org.zoolu.sound.codec.g711.G711ToPcmEncoder;
 import org.zoolu.util.Encoder;
 import org.zoolu.util.ExceptionPrinter;
 import org.zoolu.util.LoggerLevel;
@@ -65,9 +69,24 @@ public class AudioStreamer implements MediaStreamer {
 	/** Whether filling silence intervals with (silence-equivalent) void data */
 	public static boolean SILENCE_PADDING=false;
 
+	/** Whether using an adaptive jitter buffer for audio playout */
+	public static boolean JITTER_BUFFER=false;
+
+	/** Whether pacing audio file and tone senders with the shared media clock, instead of a dedicated thread each */
+	public static boolean MEDIA_CLOCK=false;
+
 	/** Unknown payload type */
 	public static final int UNKNOWN_PAYLOAD_TYPE=111;
 
+	/** Payload type of RFC 4733 telephone events */
+	public static int TELEPHONE_EVENT_PAYLOAD_TYPE=101;
+
+	/** Duration of sent DTMF digits [millisecs] */
+	public static int DTMF_DURATION=100;
+
+	/** Whether detecting in-band DTMF digits within the received audio (only for G.711 codecs) */
+	public static boolean INBAND_DTMF=false;
+
 
 	/** Default codec */
 	public static final String DEFAULT_CODEC_NAME="ULAW";
@@ -139,6 +158,12 @@ public class AudioStreamer implements MediaStreamer {
 	
 	/** RTCP */
 	RtpControl rtp_control=null;
+
+	/** Whether in-band DTMF detection is supported by the current codec */
+	boolean inband_dtmf=false;
+
+	/** Decoder from the received media to PCM, used for in-band DTMF detection */
+	Encoder dtmf_pcm_decoder=null;
 	
 	/** RTP stream sender listener */
 	RtpStreamSenderListener this_rtp_stream_sender_listener=new RtpStreamSenderListener(){
@@ -330,11 +355,13 @@ public class AudioStreamer implements MediaStreamer {
 					ToneInputStream tone=new ToneInputStream(TONE_FREQ,TONE_AMPL,sample_rate,TONE_SAMPLE_SIZE,ToneInputStream.PCM_LINEAR_UNSIGNED,DEFAULT_BIG_ENDIAN);
 					// sender
 					rtp_sender=new RtpStreamSender(tone,true,payload_type,sample_rate,channels,packet_time,packet_size,additional_encoder,udp_socket,remote_addr,remote_port,this_rtp_stream_sender_listener);
+					if (MEDIA_CLOCK) rtp_sender.setMediaClock(MediaClock.getDefaultClock());
 				}
 				else
 				if (audiofile_in!=null) {
 					AudioInputStream audio_input_stream=AudioFile.getAudioFileInputStream(audiofile_in,audio_format);
 					rtp_sender=new RtpStreamSender(audio_input_stream,true,payload_type,sample_rate,channels,packet_time,packet_size,additional_encoder,udp_socket,remote_addr,remote_port,this_rtp_stream_sender_listener);
+					if (MEDIA_CLOCK) rtp_sender.setMediaClock(MediaClock.getDefaultClock());
 				}
 				else {
 					// javax sound
@@ -377,6 +404,16 @@ public class AudioStreamer implements MediaStreamer {
 					// receiver
 					rtp_receiver=new RtpStreamReceiver(audio_output_stream,additional_decoder,udp_socket,this_rtp_stream_receiver_listener);
 					if (random_early_drop>0) rtp_receiver.setRED(random_early_drop);
+					if (JITTER_BUFFER) {
+						// silence value of the media written to the audio output
+						byte silence=0;
+						if (additional_decoder==null) {
+							if (codec.equals(CodecType.G711_ULAW)) silence=(byte)G711.linear2ulaw(0);
+							else
+							if (codec.equals(CodecType.G711_ALAW)) silence=(byte)G711.linear2alaw(0);
+						}
+						rtp_receiver.setJitterBuffer(JitterBuffer.DEFAULT_MIN_DELAY,JitterBuffer.DEFAULT_MAX_DELAY,silence);
+					}
 					audio_output=true;
 				}
 			}
@@ -384,12 +421,24 @@ public class AudioStreamer implements MediaStreamer {
 			if (rtcp) {
 				rtp_control=new RtpControl(null,udp_socket.getLocalPort()+1,remote_addr,remote_port+1);
 				if (rtp_sender!=null) rtp_sender.setControl(rtp_control);
+				if (rtp_receiver!=null) rtp_receiver.setControl(rtp_control);
 			}
+			// CLOCK RATE
+			if (rtp_receiver!=null) rtp_receiver.setClockRate(sample_rate);
 			// SEQUENCE CHECK
 			if (rtp_receiver!=null) rtp_receiver.setSequenceCheck(SEQUENCE_CHECK);
 			
 			// SILENCE PADDING
 			if (rtp_receiver!=null) rtp_receiver.setSilencePadding(SILENCE_PADDING);
+
+			// TELEPHONE EVENTS
+			if (rtp_sender!=null) rtp_sender.setTelephoneEventPayloadType(TELEPHONE_EVENT_PAYLOAD_TYPE);
+			if (additional_decoder==null) {
+				if (codec.equals(CodecType.G711_ULAW)) dtmf_pcm_decoder=new G711ToPcmEncoder.ULAW();
+				else
+				if (codec.equals(CodecType.G711_ALAW)) dtmf_pcm_decoder=new G711ToPcmEncoder.ALAW();
+				inband_dtmf=dtmf_pcm_decoder!=null;
+			}
 		}
 		catch (Exception e) {  log(LoggerLevel.INFO,e);  }
 		if (VERBOSE_DEBUG) println("DEBUG: Codec: "+codec);
@@ -486,6 +535,34 @@ public class AudioStreamer implements MediaStreamer {
 	}
 
 
+	/** Gets a snapshot of the reception quality of the received stream.
+	  * @return the stream quality, or <i>null</i> if no packet has been received */
+	public RtpStreamQuality getReceiverQuality() {
+		return (rtp_receiver!=null)? rtp_receiver.getQuality() : null;
+	}
+
+
+	/** Sets the listener of DTMF digits received from the remote party.
+	  * Digits are received as RFC 4733 telephone events and, if {@link #INBAND_DTMF} is set, also detected within the received audio.
+	  * @param listener the listener of received digits */
+	public void setTelephoneEventListener(TelephoneEventListener listener) {
+		if (rtp_receiver==null) return;
+		// else
+		rtp_receiver.setTelephoneEventListener(TELEPHONE_EVENT_PAYLOAD_TYPE,listener);
+		if (INBAND_DTMF && inband_dtmf) rtp_receiver.setInbandDtmfDetection(dtmf_pcm_decoder,listener);
+	}
+
+
+	/** Sends a DTMF digit as RFC 4733 telephone event.
+	  * @param digit the digit ('0'-'9', '*', '#', 'A'-'D')
+	  * @return true if the digit has been queued for sending */
+	public boolean sendDtmf(char digit) {
+		if (rtp_sender==null) return false;
+		// else
+		return rtp_sender.sendTelephoneEvent(TelephoneEventRtpPayloadFormat.getEventCode(digit),DTMF_DURATION);
+	}
+
+
 	/** Sets the receiver packet random early drop (RED) value; if greater than 0, it is the inverse of the packet drop rate.
 	  * @param random_early_drop the number of packets that separates two drops at receiver; a value of 0 means no drop. */
 	public void setRED(int random_early_drop) {
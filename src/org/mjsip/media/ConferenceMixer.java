@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.zoolu.util.Encoder;
+
+
+/** ConferenceMixer mixes the audio of the participants of a conference room.
+  * <p>
+  * The media received from each participant is decoded into 16-bit linear PCM and buffered.
+  * Every {@link #FRAME_TIME} milliseconds (driven by a {@link MediaClock}) one frame of all participants
+  * is summed into a total mix, and each participant receives the total mix minus its own contribution
+  * (N-1 mix), saturated to 16 bits and re-encoded with the codec of that participant.
+  * In this way the mix costs one addition and one subtraction per sample and participant,
+  * regardless of the number of participants.
+  * Participants without buffered media (e.g. silence suppression) do not contribute,
+  * and all share the same total mix.
+  * <p>
+  * The received media is written to the {@link OutputStream} of the participant (e.g. by a {@link RtpStreamReceiver}),
+  * while the mixed media is read from its {@link InputStream} (e.g. by a {@link RtpStreamSender}).
+  * <p>
+  * The mixer also tracks the active speaker, i.e. the participant with the highest smoothed level
+  * above {@link #SPEAKER_LEVEL}; a different participant becomes the active speaker only when its level
+  * exceeds the level of the current speaker by {@link #SPEAKER_HYSTERESIS} percent, and not before
+  * {@link #SPEAKER_HOLD_TIME} milliseconds from the last change.
+  */
+public class ConferenceMixer implements MediaClock.Task {
+	
+	/** Sample rate [samples/sec] */
+	public static final int SAMPLE_RATE=8000;
+
+	/** Frame time [millisecs] */
+	public static final int FRAME_TIME=20;
+
+	/** Number of samples per frame */
+	public static final int FRAME_SAMPLES=SAMPLE_RATE*FRAME_TIME/1000;
+
+	/** Number of frames that are buffered before starting to mix the media of a participant */
+	public static int PREBUFFER_FRAMES=2;
+
+	/** Maximum number of frames buffered for each participant (older frames are dropped) */
+	public static int MAX_BUFFER_FRAMES=8;
+
+	/** Maximum number of mixed frames waiting to be read by each participant (older frames are dropped) */
+	public static int MAX_OUTPUT_FRAMES=4;
+
+	/** Minimum level (average absolute sample value) of an active speaker */
+	public static int SPEAKER_LEVEL=300;
+
+	/** Percentage by which the level of a participant has to exceed the level of the current speaker in order to become the active speaker */
+	public static int SPEAKER_HYSTERESIS=25;
+
+	/** Minimum time between two changes of the active speaker [millisecs] */
+	public static int SPEAKER_HOLD_TIME=500;
+
+
+	/** A participant of the conference. */
+	public static class Participant {
+		/** Participant identifier */
+		Object id;
+		/** Encoder from linear PCM */
+		Encoder encoder;
+		/** Decoder to linear PCM */
+		Encoder decoder;
+
+		/** Buffer of the received PCM samples */
+		short[] in_buffer=new short[MAX_BUFFER_FRAMES*FRAME_SAMPLES];
+		/** Index of the first received sample */
+		int in_head=0;
+		/** Number of received samples */
+		int in_len=0;
+		/** Whether it is pre-buffering */
+		boolean prebuffering=true;
+		/** Buffer for decoding the received media */
+		byte[] decode_buffer=new byte[0];
+		/** Buffer for encoding the mixed media (used by the mixer only) */
+		byte[] encode_buffer=new byte[2*FRAME_SAMPLES];
+
+		/** Mixed frames, encoded */
+		byte[][] out_frames=new byte[MAX_OUTPUT_FRAMES][];
+		/** Lengths of the mixed frames */
+		int[] out_lens=new int[MAX_OUTPUT_FRAMES];
+		/** Index of the first mixed frame */
+		int out_head=0;
+		/** Number of mixed frames */
+		int out_count=0;
+		/** Whether it has been closed */
+		boolean closed=false;
+		/** Lock of the mixed frames (a lock is used instead of a monitor, since readers may block on it) */
+		ReentrantLock out_lock=new ReentrantLock();
+		/** Condition signaled when a mixed frame is available or the participant is closed */
+		Condition out_available=out_lock.newCondition();
+
+		/** Current frame (used by the mixer only) */
+		short[] frame=new short[FRAME_SAMPLES];
+		/** Whether it contributes to the current mix (used by the mixer only) */
+		boolean active=false;
+		/** Smoothed level */
+		volatile int level=0;
+
+		/** Stream of the received media */
+		OutputStream output_stream=new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[]{ (byte)b },0,1);
+			}
+			public void write(byte[] buf, int off, int len) throws IOException {
+				receive(buf,off,len);
+			}
+		};
+
+		/** Stream of the mixed media */
+		InputStream input_stream=new InputStream() {
+			public int read() throws IOException {
+				byte[] b=new byte[1];
+				return (read(b,0,1)==1)? (b[0]&0xff) : -1;
+			}
+			public int read(byte[] buf, int off, int len) throws IOException {
+				return readMixedFrame(buf,off,len);
+			}
+			public void close() {
+				Participant.this.close();
+			}
+		};
+
+		/** Creates a new Participant. */
+		Participant(Object id, Codec codec) {
+			this.id=id;
+			encoder=codec.getEncoder();
+			decoder=codec.getDecoder();
+			for (int i=0; i<MAX_OUTPUT_FRAMES; i++) out_frames[i]=new byte[2*FRAME_SAMPLES];
+		}
+
+		/** Gets the participant identifier. */
+		public Object getId() {
+			return id;
+		}
+
+		/** Gets the output stream where the media received from this participant have to be written. */
+		public OutputStream getOutputStream() {
+			return output_stream;
+		}
+
+		/** Gets the input stream from which the media to be sent to this participant can be read.
+		  * Each read returns one mixed frame, and blocks until a frame is available. */
+		public InputStream getInputStream() {
+			return input_stream;
+		}
+
+		/** Gets the smoothed level of this participant. */
+		public int getLevel() {
+			return level;
+		}
+
+		/** Decodes and buffers received media. */
+		private void receive(byte[] buf, int off, int len) {
+			if (decode_buffer.length<16*len) decode_buffer=new byte[16*len];
+			int pcm_len=decoder.encode(buf,off,len,decode_buffer,0)/2;
+			synchronized (this) {
+				int size=in_buffer.length;
+				if (pcm_len>size) pcm_len=size;
+				// drop the oldest samples
+				int drop=in_len+pcm_len-size;
+				if (drop>0) {
+					in_head=(in_head+drop)%size;
+					in_len-=drop;
+				}
+				int index=(in_head+in_len)%size;
+				for (int i=0; i<pcm_len; i++) {
+					in_buffer[index]=(short)((decode_buffer[2*i]&0xff)|(decode_buffer[2*i+1]<<8));
+					if (++index==size) index=0;
+				}
+				in_len+=pcm_len;
+			}
+		}
+
+		/** Gets the next received frame.
+		  * @return true if a frame has been read, false in case of buffer underrun */
+		synchronized boolean readFrame(short[] frame) {
+			if (prebuffering) {
+				if (in_len<PREBUFFER_FRAMES*FRAME_SAMPLES) return false;
+				// else
+				prebuffering=false;
+			}
+			if (in_len<FRAME_SAMPLES) {
+				prebuffering=true;
+				return false;
+			}
+			// else
+			int size=in_buffer.length;
+			int n=Math.min(FRAME_SAMPLES,size-in_head);
+			System.arraycopy(in_buffer,in_head,frame,0,n);
+			if (n<FRAME_SAMPLES) System.arraycopy(in_buffer,0,frame,n,FRAME_SAMPLES-n);
+			in_head=(in_head+FRAME_SAMPLES)%size;
+			in_len-=FRAME_SAMPLES;
+			return true;
+		}
+
+		/** Encodes and queues a mixed frame.
+		  * @param pcm the mixed frame (16-bit little-endian) */
+		void writeMixedFrame(byte[] pcm) {
+			int len=encoder.encode(pcm,0,2*FRAME_SAMPLES,encode_buffer,0);
+			out_lock.lock();
+			try {
+				if (closed) return;
+				// else
+				if (out_count==MAX_OUTPUT_FRAMES) {
+					// drop the oldest frame
+					out_head=(out_head+1)%MAX_OUTPUT_FRAMES;
+					out_count--;
+				}
+				int index=(out_head+out_count)%MAX_OUTPUT_FRAMES;
+				System.arraycopy(encode_buffer,0,out_frames[index],0,len);
+				out_lens[index]=len;
+				out_count++;
+				out_available.signalAll();
+			}
+			finally {
+				out_lock.unlock();
+			}
+		}
+
+		/** Reads the next mixed frame, waiting until it is available.
+		  * @return the number of read bytes, or -1 if the participant has been closed */
+		int readMixedFrame(byte[] buf, int off, int len) {
+			out_lock.lock();
+			try {
+				while (out_count==0 && !closed) {
+					try {  out_available.await();  } catch (InterruptedException e) {  return -1;  }
+				}
+				if (closed) return -1;
+				// else
+				int n=Math.min(len,out_lens[out_head]);
+				System.arraycopy(out_frames[out_head],0,buf,off,n);
+				out_head=(out_head+1)%MAX_OUTPUT_FRAMES;
+				out_count--;
+				return n;
+			}
+			finally {
+				out_lock.unlock();
+			}
+		}
+
+		/** Closes the participant, unblocking possible readers. */
+		void close() {
+			out_lock.lock();
+			try {
+				closed=true;
+				out_available.signalAll();
+			}
+			finally {
+				out_lock.unlock();
+			}
+		}
+
+		/** Gets a String representation of the Object */
+		public String toString() {
+			return String.valueOf(id);
+		}
+	}
+
+
+	/** Room name */
+	String name;
+
+	/** Listener */
+	ConferenceMixerListener listener;
+
+	/** Current participants */
+	volatile Participant[] participants=new Participant[0];
+
+	/** Total mix */
+	int[] mix=new int[FRAME_SAMPLES];
+
+	/** Total mix as 16-bit little-endian PCM */
+	byte[] total_pcm=new byte[2*FRAME_SAMPLES];
+
+	/** N-1 mix as 16-bit little-endian PCM */
+	byte[] pcm=new byte[2*FRAME_SAMPLES];
+
+	/** Active speaker */
+	volatile Participant speaker=null;
+
+	/** Number of mixed frames since the last change of the active speaker */
+	int speaker_frames=0;
+
+	/** Schedule within the media clock, or <i>null</i> */
+	MediaClock.Schedule schedule=null;
+
+	/** Number of mixed frames */
+	long mix_counter=0;
+
+	/** Total mixing time [nanosecs] */
+	long mix_time=0;
+
+	/** Whether it is running */
+	volatile boolean running=true;
+
+
+
+	/** Creates a new ConferenceMixer.
+	  * @param name the room name
+	  * @param media_clock the media clock that drives the mixer, or <i>null</i> if {@link #mix()} is called explicitly
+	  * @param listener the mixer listener (optional) */
+	public ConferenceMixer(String name, MediaClock media_clock, ConferenceMixerListener listener) {
+		this.name=name;
+		this.listener=listener;
+		if (media_clock!=null) schedule=media_clock.add(this,FRAME_TIME*1000000L);
+	}
+
+
+	/** Adds a new participant.
+	  * @param id the participant identifier
+	  * @param codec the codec of the participant, with encoder from and decoder to 16-bit little-endian linear PCM
+	  * @return the new participant */
+	public synchronized Participant add(Object id, Codec codec) {
+		Participant p=new Participant(id,codec);
+		Participant[] ps=new Participant[participants.length+1];
+		System.arraycopy(participants,0,ps,0,participants.length);
+		ps[participants.length]=p;
+		participants=ps;
+		return p;
+	}
+
+
+	/** Removes a participant.
+	  * @param p the participant */
+	public synchronized void remove(Participant p) {
+		Participant[] ps=participants;
+		for (int i=0; i<ps.length; i++) {
+			if (ps[i]==p) {
+				Participant[] aux=new Participant[ps.length-1];
+				System.arraycopy(ps,0,aux,0,i);
+				System.arraycopy(ps,i+1,aux,i,ps.length-i-1);
+				participants=aux;
+				break;
+			}
+		}
+		if (speaker==p) speaker=null;
+		p.close();
+	}
+
+
+	/** Gets the room name. */
+	public String getName() {
+		return name;
+	}
+
+
+	/** Gets the current participants. */
+	public Participant[] getParticipants() {
+		return participants;
+	}
+
+
+	/** Gets the number of participants. */
+	public int size() {
+		return participants.length;
+	}
+
+
+	/** Gets the active speaker.
+	  * @return the active speaker, or <i>null</i> */
+	public Participant getActiveSpeaker() {
+		return speaker;
+	}
+
+
+	/** Gets the number of mixed frames. */
+	public long getMixCounter() {
+		return mix_counter;
+	}
+
+
+	/** Gets the total mixing time [nanosecs]. */
+	public long getMixTime() {
+		return mix_time;
+	}
+
+
+	/** Whether it is running. */
+	public boolean isRunning() {
+		return running;
+	}
+
+
+	/** Stops mixing and closes all participants. */
+	public synchronized void halt() {
+		running=false;
+		if (schedule!=null) schedule.cancel();
+		Participant[] ps=participants;
+		for (int i=0; i<ps.length; i++) ps[i].close();
+		participants=new Participant[0];
+	}
+
+
+	/** From MediaClock.Task. When the next frame has to be mixed. */
+	public boolean onClockTick(MediaClock.Schedule schedule) {
+		if (!running) return false;
+		// else
+		mix();
+		return true;
+	}
+
+
+	/** From MediaClock.Task. When the media clock has been halted. */
+	public void onClockHalted(MediaClock.Schedule schedule) {
+		halt();
+	}
+
+
+	/** Mixes one frame. */
+	public void mix() {
+		long start=System.nanoTime();
+		Participant[] ps=participants;
+		int[] mix=this.mix;
+		boolean first=true;
+		for (int k=0; k<ps.length; k++) {
+			Participant p=ps[k];
+			p.active=p.readFrame(p.frame);
+			if (!p.active) {
+				p.level-=p.level>>2;
+				continue;
+			}
+			// else
+			short[] frame=p.frame;
+			int sum=0;
+			if (first) {
+				for (int i=0; i<FRAME_SAMPLES; i++) {
+					int s=frame[i];
+					mix[i]=s;
+					sum+=(s<0)? -s : s;
+				}
+				first=false;
+			}
+			else {
+				for (int i=0; i<FRAME_SAMPLES; i++) {
+					int s=frame[i];
+					mix[i]+=s;
+					sum+=(s<0)? -s : s;
+				}
+			}
+			p.level+=(sum/FRAME_SAMPLES-p.level)>>2;
+		}
+		if (first) Arrays.fill(mix,0);
+		// total mix, for participants that do not contribute
+		toPcm(mix,null,total_pcm);
+		// N-1 mixes
+		for (int k=0; k<ps.length; k++) {
+			Participant p=ps[k];
+			if (p.active) {
+				toPcm(mix,p.frame,pcm);
+				p.writeMixedFrame(pcm);
+			}
+			else p.writeMixedFrame(total_pcm);
+		}
+		mix_counter++;
+		mix_time+=System.nanoTime()-start;
+		updateActiveSpeaker(ps);
+	}
+
+
+	/** Subtracts a frame from the total mix, saturating the result to 16 bits.
+	  * @param mix the total mix
+	  * @param frame the frame to subtract, or <i>null</i>
+	  * @param pcm buffer for the result, as 16-bit little-endian PCM */
+	private static void toPcm(int[] mix, short[] frame, byte[] pcm) {
+		for (int i=0, j=0; i<FRAME_SAMPLES; i++) {
+			int s=(frame!=null)? mix[i]-frame[i] : mix[i];
+			if (s>32767) s=32767;
+			else
+			if (s<-32768) s=-32768;
+			pcm[j++]=(byte)s;
+			pcm[j++]=(byte)(s>>8);
+		}
+	}
+
+
+	/** Updates the active speaker. */
+	private void updateActiveSpeaker(Participant[] ps) {
+		speaker_frames++;
+		Participant loudest=null;
+		for (int k=0; k<ps.length; k++) {
+			if (loudest==null || ps[k].level>loudest.level) loudest=ps[k];
+		}
+		if (loudest==null || loudest==speaker || loudest.level<SPEAKER_LEVEL) return;
+		// else
+		if (speaker!=null && speaker_frames*FRAME_TIME<SPEAKER_HOLD_TIME) return;
+		// else
+		if (speaker!=null && loudest.level*100<speaker.level*(100+SPEAKER_HYSTERESIS)) return;
+		// else
+		speaker=loudest;
+		speaker_frames=0;
+		if (listener!=null) listener.onActiveSpeakerChanged(this,speaker);
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return name+" ("+participants.length+" participants)";
+	}
+
+}
@@ -0,0 +1,15 @@
+package org.mjsip.media;
+
+
+
+
+/** Listens for ConferenceMixer events.
+ */
+public interface ConferenceMixerListener {
+	
+	/** When the active speaker changes.
+	  * @param mixer the conference mixer
+	  * @param speaker the new active speaker */
+	public void onActiveSpeakerChanged(ConferenceMixer mixer, ConferenceMixer.Participant speaker);
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import org.mjsip.rtp.TelephoneEventRtpPayloadFormat;
+
+
+/** DtmfDetector detects DTMF digits within a stream of 16-bit linear PCM samples.
+  * <p>
+  * Samples are processed in blocks of {@link #BLOCK_SIZE} samples (at 8000 Hz; proportionally more at higher rates).
+  * For each block, the power of the eight DTMF frequencies is computed through the Goertzel algorithm,
+  * i.e. one multiplication and two additions per frequency and sample.
+  * A block contains a digit when the strongest row and column tones are both above {@link #MIN_TONE_POWER},
+  * the twist between them is within {@link #MAX_NORMAL_TWIST} and {@link #MAX_REVERSE_TWIST},
+  * the other tones of the same groups are weaker by at least {@link #MIN_RELATIVE_PEAK},
+  * and the two tones account for at least {@link #MIN_ENERGY_RATIO} of the block energy.
+  * A digit is reported when it is found in {@link #MIN_BLOCKS} consecutive blocks, and it is not reported again
+  * until it disappears for {@link #MIN_BLOCKS} blocks.
+  * <p>
+  * The detector does not allocate memory while processing samples.
+  */
+public class DtmfDetector {
+	
+	/** Block size at 8000 Hz [samples] */
+	public static final int BLOCK_SIZE=205;
+
+	/** Minimum mean power of each of the two tones (i.e. A^2/2, where A is the tone amplitude) */
+	public static double MIN_TONE_POWER=1.0e5;
+
+	/** Maximum ratio between row and column tone powers (normal twist, 8 dB) */
+	public static double MAX_NORMAL_TWIST=6.3;
+
+	/** Maximum ratio between column and row tone powers (reverse twist, 4 dB) */
+	public static double MAX_REVERSE_TWIST=2.5;
+
+	/** Minimum ratio between the strongest tone of a group and the other tones of the same group (6 dB) */
+	public static double MIN_RELATIVE_PEAK=4.0;
+
+	/** Minimum fraction of the block energy carried by the two tones */
+	public static double MIN_ENERGY_RATIO=0.6;
+
+	/** Number of consecutive blocks required for detecting a digit, or its end */
+	public static int MIN_BLOCKS=2;
+
+	/** DTMF frequencies (rows and columns) [Hz] */
+	static final int[] FREQS={ 697, 770, 852, 941, 1209, 1336, 1477, 1633 };
+
+	/** DTMF keypad, indexed by row and column */
+	static final String DTMF_KEYPAD="123A456B789C*0#D";
+
+
+	/** Listener */
+	TelephoneEventListener listener;
+
+	/** Block size [samples] */
+	int block_size;
+
+	/** Goertzel coefficients */
+	double[] coefs=new double[8];
+
+	/** Goertzel state (previous output) */
+	double[] q1=new double[8];
+
+	/** Goertzel state (second previous output) */
+	double[] q2=new double[8];
+
+	/** Tone powers of the last block */
+	double[] powers=new double[8];
+
+	/** Energy of the current block */
+	double energy=0;
+
+	/** Number of samples of the current block */
+	int n=0;
+
+	/** Event found in the last blocks, or -1 */
+	int candidate=-1;
+
+	/** Number of consecutive blocks with the same candidate */
+	int candidate_blocks=0;
+
+	/** Currently reported event, or -1 */
+	int current=-1;
+
+	/** Number of detected events */
+	long event_counter=0;
+
+
+
+	/** Creates a new DtmfDetector.
+	  * @param sample_rate the sample rate [samples/sec]
+	  * @param listener the listener of detected digits (optional) */
+	public DtmfDetector(int sample_rate, TelephoneEventListener listener) {
+		this.listener=listener;
+		block_size=BLOCK_SIZE*sample_rate/8000;
+		for (int k=0; k<8; k++) coefs[k]=2*Math.cos(2*Math.PI*FREQS[k]/sample_rate);
+	}
+
+
+	/** Gets the number of detected events. */
+	public long getEventCounter() {
+		return event_counter;
+	}
+
+
+	/** Gets the currently detected event.
+	  * @return the event code, or -1 if no digit is present */
+	public int getCurrentEvent() {
+		return current;
+	}
+
+
+	/** Resets the detector state. */
+	public void reset() {
+		for (int k=0; k<8; k++) q1[k]=q2[k]=0;
+		energy=0;
+		n=0;
+		candidate=current=-1;
+		candidate_blocks=0;
+	}
+
+
+	/** Processes 16-bit PCM samples.
+	  * @param buf the buffer
+	  * @param off the offset within the buffer
+	  * @param len the number of bytes
+	  * @param big_endian whether the samples use big-endian byte order
+	  * @return the code of the last new detected event, or -1 */
+	public int process(byte[] buf, int off, int len, boolean big_endian) {
+		int event=-1;
+		int end=off+len-1;
+		for (int i=off; i<end; i+=2) {
+			int s=(big_endian)? (buf[i]<<8)|(buf[i+1]&0xff) : (buf[i+1]<<8)|(buf[i]&0xff);
+			int e=processSample(s);
+			if (e>=0) event=e;
+		}
+		return event;
+	}
+
+
+	/** Processes PCM samples.
+	  * @param buf the sample buffer
+	  * @param off the offset within the buffer
+	  * @param len the number of samples
+	  * @return the code of the last new detected event, or -1 */
+	public int process(short[] buf, int off, int len) {
+		int event=-1;
+		for (int i=off, end=off+len; i<end; i++) {
+			int e=processSample(buf[i]);
+			if (e>=0) event=e;
+		}
+		return event;
+	}
+
+
+	/** Processes one sample.
+	  * @return the code of a new detected event, or -1 */
+	private int processSample(int s) {
+		double x=s;
+		energy+=x*x;
+		double[] coefs=this.coefs, q1=this.q1, q2=this.q2;
+		for (int k=0; k<8; k++) {
+			double q0=coefs[k]*q1[k]-q2[k]+x;
+			q2[k]=q1[k];
+			q1[k]=q0;
+		}
+		if (++n<block_size) return -1;
+		// else
+		return processBlock();
+	}
+
+
+	/** Analyzes the current block.
+	  * @return the code of a new detected event, or -1 */
+	private int processBlock() {
+		double norm=2.0/((double)block_size*block_size);
+		int row=0, col=4;
+		for (int k=0; k<8; k++) {
+			powers[k]=(q1[k]*q1[k]+q2[k]*q2[k]-coefs[k]*q1[k]*q2[k])*norm;
+			if (k<4) {
+				if (powers[k]>powers[row]) row=k;
+			}
+			else {
+				if (powers[k]>powers[col]) col=k;
+			}
+			q1[k]=q2[k]=0;
+		}
+		double row_power=powers[row];
+		double col_power=powers[col];
+		boolean found=row_power>=MIN_TONE_POWER && col_power>=MIN_TONE_POWER;
+		found=found && row_power<=col_power*MAX_NORMAL_TWIST && col_power<=row_power*MAX_REVERSE_TWIST;
+		found=found && (row_power+col_power)*block_size>=MIN_ENERGY_RATIO*energy;
+		for (int k=0; k<8 && found; k++) {
+			if (k!=row && k!=col && powers[k]*MIN_RELATIVE_PEAK>((k<4)? row_power : col_power)) found=false;
+		}
+		energy=0;
+		n=0;
+		int event=(found)? TelephoneEventRtpPayloadFormat.getEventCode(DTMF_KEYPAD.charAt(row*4+col-4)) : -1;
+		// debounce
+		if (event==candidate) candidate_blocks++;
+		else {
+			candidate=event;
+			candidate_blocks=1;
+		}
+		if (candidate_blocks<MIN_BLOCKS || candidate==current) return -1;
+		// else
+		current=candidate;
+		if (current<0) return -1;
+		// else
+		event_counter++;
+		if (listener!=null) listener.onTelephoneEvent(this,current);
+		return current;
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import java.util.Random;
+
+import org.mjsip.rtp.TelephoneEventRtpPayloadFormat;
+import org.zoolu.util.Flags;
+
+
+/** DtmfDetectorBenchmark measures the cost of in-band DTMF detection per channel.
+  * <p>
+  * A test signal is created with a sequence of DTMF digits separated by pauses, over background noise.
+  * The signal is first processed once for checking that all the digits are detected,
+  * and then processed in 20ms frames as done by a {@link RtpStreamReceiver}, measuring the time
+  * spent per frame and the corresponding number of channels that a single core can analyze in real time.
+  */
+public class DtmfDetectorBenchmark {
+	
+	/** Duration of each digit and of each pause [ms] */
+	static final int DIGIT_TIME=80;
+
+	/** Digits of the test signal */
+	static final String DIGITS=TelephoneEventRtpPayloadFormat.DTMF_DIGITS;
+
+
+	/** Creates the test signal.
+	  * @param sample_rate the sample rate [samples/sec]
+	  * @param noise the standard deviation of the background noise
+	  * @return the samples */
+	static short[] createSignal(int sample_rate, double noise) {
+		Random random=new Random(0);
+		int digit_samples=DIGIT_TIME*sample_rate/1000;
+		short[] s=new short[2*digit_samples*DIGITS.length()];
+		for (int d=0; d<DIGITS.length(); d++) {
+			int key=DtmfDetector.DTMF_KEYPAD.indexOf(DIGITS.charAt(d));
+			double f_row=DtmfDetector.FREQS[key/4];
+			double f_col=DtmfDetector.FREQS[4+key%4];
+			int off=2*d*digit_samples;
+			for (int i=0; i<2*digit_samples; i++) {
+				double value=random.nextGaussian()*noise;
+				if (i<digit_samples) {
+					double t=(double)i/sample_rate;
+					value+=4000*Math.sin(2*Math.PI*f_row*t)+5000*Math.sin(2*Math.PI*f_col*t);
+				}
+				s[off+i]=(short)Math.max(-32768,Math.min(32767,value));
+			}
+		}
+		return s;
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n=flags.getInteger("-n",200000,"<n>","number of 20ms frames to be processed");
+		int sample_rate=flags.getInteger("--rate",8000,"<rate>","sample rate [samples/sec]");
+		double noise=flags.getDouble("--noise",300,"<sigma>","standard deviation of the background noise");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(DtmfDetectorBenchmark.class.getName()));
+			return;
+		}
+		// else
+		short[] signal=createSignal(sample_rate,noise);
+		final StringBuilder detected=new StringBuilder();
+		DtmfDetector detector=new DtmfDetector(sample_rate,new TelephoneEventListener() {
+			public void onTelephoneEvent(Object source, int event) {
+				detected.append(TelephoneEventRtpPayloadFormat.getDigit(event));
+			}
+		});
+		detector.process(signal,0,signal.length);
+		System.out.println("digits: "+DIGITS+", detected: "+detected+((detected.toString().equals(DIGITS))? " (passed)" : " (FAILED)"));
+		
+		detector=new DtmfDetector(sample_rate,null);
+		int frame_samples=sample_rate/50;
+		int frames=signal.length/frame_samples;
+		long start=0;
+		for (int f=-n/10; f<n; f++) {
+			// the first tenth of the frames is used for warm-up
+			if (f==0) start=System.nanoTime();
+			detector.process(signal,((f+n)%frames)*frame_samples,frame_samples);
+		}
+		long time=System.nanoTime()-start;
+		if (time>0) {
+			System.out.println("cost per channel: "+(time/n)+" ns per 20ms frame ("+String.format("%.4f",time/(double)n/2.0e5)+"% of a core)");
+			System.out.println("channels per core: "+((long)n*1000000000L/time/50)+" (events: "+detector.getEventCounter()+")");
+		}
+	}
+
+}
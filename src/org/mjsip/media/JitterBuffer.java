@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mjsip.rtp.RtpPayloadFormat;
+import org.zoolu.util.ThreadFactory;
+
+
+/** Adaptive jitter buffer.
+  * <p>
+  * It collects media frames (the unformatted payloads of received RTP packets),
+  * keyed by RTP timestamp, and writes them to an OutputStream according to a fixed
+  * playout clock, one frame every frame time.
+  * <p>
+  * Reordered packets are put back in timestamp order, while packets that arrive
+  * after their playout time are counted as late and discarded.
+  * Missing frames are concealed with the silence padding provided by the RTP payload format,
+  * if any, or by repeating the last played frame (at most {@link #MAX_REPETITIONS} times) and then by silence frames
+  * (see {@link #setSilence(byte)}).
+  * <p>
+  * The playout delay is adapted to the measured interarrival jitter: when the buffered
+  * media exceeds the target delay a frame is skipped, when it goes below the target delay
+  * a concealment frame is inserted.
+  */
+public class JitterBuffer implements Runnable {
+	
+	/** Default minimum playout delay [millisecs] */
+	public static int DEFAULT_MIN_DELAY=40;
+
+	/** Default maximum playout delay [millisecs] */
+	public static int DEFAULT_MAX_DELAY=300;
+
+	/** Jitter multiplier used for computing the target delay */
+	public static int JITTER_FACTOR=4;
+
+	/** Number of buffer slots */
+	static final int SLOTS=64;
+
+	/** Maximum number of consecutive repetitions of the last frame */
+	static final int MAX_REPETITIONS=3;
+
+	/** Minimum number of frames between two consecutive delay adjustments */
+	static final int ADJUSTMENT_INTERVAL=10;
+
+
+	/** A buffered frame. */
+	static class Slot {
+		/** Whether it contains a frame */
+		boolean used=false;
+		/** RTP timestamp */
+		long timestamp;
+		/** Frame data */
+		byte[] data=new byte[0];
+		/** Frame length */
+		int len;
+	}
+
+
+	/** Output stream */
+	OutputStream output_stream;
+
+	/** RTP payload format (optional) */
+	RtpPayloadFormat rtp_payload_format;
+
+	/** Clock rate [Hz] */
+	int clock_rate;
+
+	/** Frame duration in timestamp units */
+	long frame_samples;
+
+	/** Frame length in bytes, learned from the received frames */
+	volatile int frame_len=0;
+
+	/** Minimum playout delay [millisecs] */
+	int min_delay;
+
+	/** Maximum playout delay [millisecs] */
+	int max_delay;
+
+	/** Buffer slots */
+	Slot[] slots=new Slot[SLOTS];
+
+	/** Timestamp of the next frame to be played out, or -1 if playout has not started */
+	long playout_timestamp=-1;
+
+	/** Highest received timestamp */
+	long max_timestamp=-1;
+
+	/** Sequence number of the last received packet */
+	int last_sqn=-1;
+
+	/** Timestamp of the last received packet */
+	long last_timestamp=-1;
+
+	/** Arrival time of the last received packet [nanosecs] */
+	long last_arrival=0;
+
+	/** Interarrival jitter estimation [millisecs] */
+	double jitter=0;
+
+	/** Last played frame */
+	byte[] last_frame=new byte[0];
+
+	/** Length of the last played frame */
+	int last_frame_len=0;
+
+	/** Number of consecutive repetitions of the last frame */
+	int repetitions=0;
+
+	/** Frames since the last delay adjustment */
+	int frames_since_adjustment=0;
+
+	/** Playout buffer */
+	byte[] frame=new byte[4000];
+
+	/** Concealment buffer (it is filled with the silence value if no RTP payload format is used) */
+	byte[] pad_buffer=new byte[4000];
+
+	/** Byte value that encodes silence in the played out media */
+	byte silence=0;
+
+	/** Whether it is running */
+	volatile boolean running=false;
+
+	/** Playout thread */
+	Thread thread=null;
+
+	// statistics:
+
+	/** Number of played frames */
+	long played=0;
+
+	/** Number of late packets */
+	long late=0;
+
+	/** Number of concealed frames */
+	long concealed=0;
+
+	/** Number of discarded frames (due to delay reduction or overflow) */
+	long discarded=0;
+
+
+
+	/** Creates a new JitterBuffer.
+	  * @param output_stream the stream where frames are played out
+	  * @param clock_rate the clock rate of RTP timestamps [Hz]
+	  * @param rtp_payload_format the RTP payload format used for silence padding (optional) */
+	public JitterBuffer(OutputStream output_stream, int clock_rate, RtpPayloadFormat rtp_payload_format) {
+		this(output_stream,clock_rate,rtp_payload_format,DEFAULT_MIN_DELAY,DEFAULT_MAX_DELAY);
+	}
+
+
+	/** Creates a new JitterBuffer.
+	  * @param output_stream the stream where frames are played out
+	  * @param clock_rate the clock rate of RTP timestamps [Hz]
+	  * @param rtp_payload_format the RTP payload format used for silence padding (optional)
+	  * @param min_delay the minimum playout delay [millisecs]
+	  * @param max_delay the maximum playout delay [millisecs] */
+	public JitterBuffer(OutputStream output_stream, int clock_rate, RtpPayloadFormat rtp_payload_format, int min_delay, int max_delay) {
+		this.output_stream=output_stream;
+		this.clock_rate=clock_rate;
+		this.rtp_payload_format=rtp_payload_format;
+		this.min_delay=min_delay;
+		this.max_delay=max_delay;
+		frame_samples=clock_rate/50; // 20ms
+		for (int i=0; i<SLOTS; i++) slots[i]=new Slot();
+	}
+
+
+	/** Starts the playout clock. */
+	public void start() {
+		running=true;
+		thread=ThreadFactory.start(this,"JitterBuffer",true);
+	}
+
+
+	/** Stops the playout clock. */
+	public void halt() {
+		running=false;
+	}
+
+
+	/** Sets the byte value that encodes silence in the played out media.
+	  * It is used for concealing missing frames when no RTP payload format is set.
+	  * The default value 0 is silence for linear PCM; use 0xFF for G.711 u-law and 0xD5 for G.711 A-law.
+	  * @param silence the silence value */
+	public synchronized void setSilence(byte silence) {
+		this.silence=silence;
+		java.util.Arrays.fill(pad_buffer,silence);
+	}
+
+
+	/** Adds a new frame.
+	  * @param sqn the RTP sequence number
+	  * @param timestamp the RTP timestamp
+	  * @param buf the buffer containing the frame
+	  * @param off the offset within the buffer
+	  * @param len the frame length */
+	public synchronized void put(int sqn, long timestamp, byte[] buf, int off, int len) {
+		long now=System.nanoTime();
+		if (last_sqn>=0) {
+			// learn the frame duration
+			if (((last_sqn+1)&0xffff)==sqn) {
+				long ts_diff=(timestamp-last_timestamp)&0xffffffffL;
+				if (ts_diff>0 && ts_diff<=clock_rate/4 && ts_diff!=frame_samples) {
+					// the slots are indexed by frame number, so buffered frames have to be dropped
+					frame_samples=ts_diff;
+					reset();
+				}
+			}
+			// interarrival jitter (RFC 3550)
+			double d=(now-last_arrival)/1000000.0-(((int)(timestamp-last_timestamp))*1000.0/clock_rate);
+			if (d<0) d=-d;
+			jitter+=(d-jitter)/16;
+		}
+		last_sqn=sqn;
+		last_timestamp=timestamp;
+		last_arrival=now;
+
+		// unwrap the timestamp near the current position
+		long ref=(max_timestamp>=0)? max_timestamp : timestamp;
+		timestamp=ref+(int)(timestamp-ref);
+		if (playout_timestamp>=0) {
+			if (timestamp<playout_timestamp) {
+				// too late
+				late++;
+				return;
+			}
+			// else
+			if (timestamp>=playout_timestamp+SLOTS*frame_samples) {
+				// overflow: skip ahead
+				long new_playout=timestamp-getTargetDelay()*clock_rate/1000;
+				for (long ts=playout_timestamp; ts<new_playout; ts+=frame_samples) {
+					Slot slot=getSlot(ts);
+					if (slot.used) { slot.used=false; discarded++; }
+				}
+				playout_timestamp=new_playout;
+			}
+		}
+		if (timestamp>max_timestamp) max_timestamp=timestamp;
+		Slot slot=getSlot(timestamp);
+		if (slot.data.length<len) slot.data=new byte[len];
+		System.arraycopy(buf,off,slot.data,0,len);
+		slot.len=len;
+		frame_len=len;
+		slot.timestamp=timestamp;
+		slot.used=true;
+		if (playout_timestamp<0) {
+			playout_timestamp=timestamp;
+			if (thread!=null) LockSupport.unpark(thread);
+		}
+	}
+
+
+	/** Drops all buffered frames and restarts the playout from the next received frame. */
+	private void reset() {
+		for (int i=0; i<SLOTS; i++) {
+			if (slots[i].used) {
+				slots[i].used=false;
+				discarded++;
+			}
+		}
+		playout_timestamp=-1;
+		max_timestamp=-1;
+		frames_since_adjustment=0;
+	}
+
+
+	/** Whether the first frame has been received. */
+	private synchronized boolean hasFirstFrame() {
+		return playout_timestamp>=0;
+	}
+
+
+	/** Gets the slot of a given timestamp. */
+	private Slot getSlot(long timestamp) {
+		return slots[(int)((timestamp/frame_samples)%SLOTS)];
+	}
+
+
+	/** Gets the current target playout delay, computed from the measured jitter.
+	  * @return the target delay [millisecs] */
+	public synchronized int getTargetDelay() {
+		int frame_time=(int)(frame_samples*1000/clock_rate);
+		int delay=(int)(JITTER_FACTOR*jitter)+frame_time;
+		if (delay<min_delay) delay=min_delay;
+		if (delay>max_delay) delay=max_delay;
+		return delay;
+	}
+
+
+	/** Gets the current buffer depth, that is the amount of buffered media.
+	  * @return the buffer depth [millisecs] */
+	public synchronized int getDepth() {
+		if (playout_timestamp<0) return 0;
+		// else
+		long depth=max_timestamp+frame_samples-playout_timestamp;
+		return (depth>0)? (int)(depth*1000/clock_rate) : 0;
+	}
+
+
+	/** Gets the measured interarrival jitter [millisecs]. */
+	public synchronized double getJitter() {
+		return jitter;
+	}
+
+	/** Gets the number of played frames. */
+	public synchronized long getPlayedFrames() {
+		return played;
+	}
+
+	/** Gets the number of packets discarded because arrived after their playout time. */
+	public synchronized long getLatePackets() {
+		return late;
+	}
+
+	/** Gets the number of concealed frames. */
+	public synchronized long getConcealedFrames() {
+		return concealed;
+	}
+
+	/** Gets the number of frames discarded for reducing the playout delay or for buffer overflow. */
+	public synchronized long getDiscardedFrames() {
+		return discarded;
+	}
+
+
+	/** Gets the next frame to be played out, copying it into the playout buffer.
+	  * @return the frame length, or -1 if the frame has to be concealed */
+	private synchronized int nextFrame() {
+		int target=getTargetDelay();
+		int depth=getDepth();
+		int frame_time=(int)(frame_samples*1000/clock_rate);
+		frames_since_adjustment++;
+		if (frames_since_adjustment>=ADJUSTMENT_INTERVAL) {
+			if (depth>target+frame_time) {
+				// reduce the delay by skipping one frame
+				Slot slot=getSlot(playout_timestamp);
+				if (slot.used && slot.timestamp==playout_timestamp) slot.used=false;
+				discarded++;
+				playout_timestamp+=frame_samples;
+				frames_since_adjustment=0;
+			}
+			else
+			if (depth<target-frame_time) {
+				// increase the delay by inserting one concealment frame
+				frames_since_adjustment=0;
+				concealed++;
+				return -1;
+			}
+		}
+		Slot slot=getSlot(playout_timestamp);
+		playout_timestamp+=frame_samples;
+		if (slot.used && slot.timestamp==playout_timestamp-frame_samples) {
+			slot.used=false;
+			if (frame.length<slot.len) frame=new byte[slot.len];
+			System.arraycopy(slot.data,0,frame,0,slot.len);
+			played++;
+			return slot.len;
+		}
+		// else
+		concealed++;
+		return -1;
+	}
+
+
+	/** Writes a concealment frame. */
+	private void conceal() throws IOException {
+		if (rtp_payload_format!=null) {
+			int len=rtp_payload_format.getSilencePad(2,2*frame_samples,pad_buffer,0);
+			if (len>0) output_stream.write(pad_buffer,0,len);
+		}
+		else
+		if (last_frame_len>0 && repetitions<MAX_REPETITIONS) {
+			repetitions++;
+			output_stream.write(last_frame,0,last_frame_len);
+		}
+		else {
+			// keep feeding the output with one frame of silence, in order to not underrun the playout clock
+			for (int len=frame_len; len>0; len-=pad_buffer.length) output_stream.write(pad_buffer,0,Math.min(len,pad_buffer.length));
+		}
+	}
+
+
+	/** Main thread. */
+	public void run() {
+		try {
+			// wait for the first frame (parking outside the monitor, so that a virtual thread doesn't pin its carrier)
+			while (running && !hasFirstFrame()) LockSupport.parkNanos(100000000L);
+			// initial playout delay
+			Thread.sleep(getTargetDelay());
+			long next_time=System.nanoTime();
+			while (running) {
+				int len=nextFrame();
+				if (len>=0) {
+					output_stream.write(frame,0,len);
+					if (last_frame.length<len) last_frame=new byte[len];
+					System.arraycopy(frame,0,last_frame,0,len);
+					last_frame_len=len;
+					repetitions=0;
+				}
+				else conceal();
+				next_time+=frame_samples*1000000000L/clock_rate;
+				long wait=next_time-System.nanoTime();
+				if (wait>0) Thread.sleep(wait/1000000,(int)(wait%1000000));
+			}
+		}
+		catch (Exception e) {
+			running=false;
+		}
+		output_stream=null;
+	}
+
+
+	/** Gets a string representation of this object. */
+	public String toString() {
+		return "depth="+getDepth()+"ms, target="+getTargetDelay()+"ms, jitter="+Math.round(getJitter())+"ms, played="+getPlayedFrames()+", late="+getLatePackets()+", concealed="+getConcealedFrames()+", discarded="+getDiscardedFrames();
+	}
+
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+
+
+/** MediaCache keeps audio resources already converted to a given audio format
+  * and split into RTP payload frames, so that they can be sent many times without
+  * being decoded and encoded again.
+  * <p>
+  * Each resource is converted once per audio format and frame size.
+  * The resulting frames are kept either in memory or in a memory-mapped file
+  * (if a cache directory is set). The total size of the cached media is bounded;
+  * when the bound is exceeded, the least recently used resources are evicted.
+  * <p>
+  * Concurrent requests of a resource that is not cached yet do not load it many times:
+  * the first request converts it, while the others wait for the result.
+  * <p>
+  * Evicted resources remain valid for the streams that are still playing them.
+  */
+public class MediaCache {
+	
+	/** Whether working in debug mode. */
+	public static boolean DEBUG=false;
+
+	/** Default maximum size of the cache [bytes] */
+	public static long DEFAULT_MAX_SIZE=64L*1024*1024;
+
+	/** Size of the buffer used for reading the source stream */
+	static final int BUFFER_SIZE=4096;
+
+
+	/** A cached media resource, i.e. a sequence of ready-to-send payload frames. */
+	public static class Media {
+		/** Resource name */
+		String name;
+		/** Frame data */
+		ByteBuffer data;
+		/** Frame size */
+		int frame_size;
+		/** Backing file, or <i>null</i> */
+		File file;
+
+		/** Creates a new Media. */
+		Media(String name, ByteBuffer data, int frame_size, File file) {
+			this.name=name;
+			this.data=data;
+			this.frame_size=frame_size;
+			this.file=file;
+		}
+
+		/** Gets the resource name. */
+		public String getName() {
+			return name;
+		}
+
+		/** Gets the frame size [bytes]. */
+		public int getFrameSize() {
+			return frame_size;
+		}
+
+		/** Gets the number of frames. The last frame may be shorter than the frame size. */
+		public int getFrameCount() {
+			return (data.limit()+frame_size-1)/frame_size;
+		}
+
+		/** Gets the total size [bytes]. */
+		public int getSize() {
+			return data.limit();
+		}
+
+		/** Whether the frames are kept in a memory-mapped file. */
+		public boolean isMapped() {
+			return file!=null;
+		}
+
+		/** Gets a new input stream that reads the frames from the beginning.
+		  * Many streams can read the same media concurrently. */
+		public InputStream getInputStream() {
+			return new MediaInputStream(data.duplicate());
+		}
+	}
+
+
+	/** InputStream reading from a cached media. */
+	static class MediaInputStream extends InputStream {
+		/** Media data */
+		ByteBuffer buffer;
+
+		/** Creates a new MediaInputStream. */
+		MediaInputStream(ByteBuffer buffer) {
+			this.buffer=buffer;
+			buffer.rewind();
+		}
+
+		/** Reads the next byte. */
+		public int read() {
+			if (!buffer.hasRemaining()) return -1;
+			// else
+			return buffer.get()&0xff;
+		}
+
+		/** Reads some bytes. */
+		public int read(byte[] buf, int off, int len) {
+			int remaining=buffer.remaining();
+			if (remaining==0) return -1;
+			// else
+			if (len>remaining) len=remaining;
+			buffer.get(buf,off,len);
+			return len;
+		}
+
+		/** Skips some bytes. */
+		public long skip(long n) {
+			int len=(int)Math.min(n,buffer.remaining());
+			buffer.position(buffer.position()+len);
+			return len;
+		}
+
+		/** Gets the number of bytes that can be read without blocking. */
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+
+	/** Cached media (key --> Media), in access order */
+	LinkedHashMap cache=new LinkedHashMap(16,0.75F,true);
+
+	/** Media that are being loaded (key --> FutureTask) */
+	Hashtable loading=new Hashtable();
+
+	/** Maximum size [bytes] */
+	long max_size;
+
+	/** Current size [bytes] */
+	long size=0;
+
+	/** Directory for memory-mapped files, or <i>null</i> for keeping media in memory */
+	File dir;
+
+	/** Number of cache hits */
+	long hits=0;
+
+	/** Number of cache misses */
+	long misses=0;
+
+
+
+	/** Creates a new in-memory MediaCache.
+	  * @param max_size maximum total size of the cached media [bytes] */
+	public MediaCache(long max_size) {
+		this(max_size,null);
+	}
+
+
+	/** Creates a new MediaCache.
+	  * @param max_size maximum total size of the cached media [bytes]
+	  * @param dir directory where the memory-mapped files are created, or <i>null</i> for keeping media in memory */
+	public MediaCache(long max_size, String dir) {
+		this.max_size=max_size;
+		if (dir!=null) {
+			this.dir=new File(dir);
+			this.dir.mkdirs();
+		}
+	}
+
+
+	/** Gets a media resource converted to the given audio format, loading it if not already cached.
+	  * @param file_name the audio file
+	  * @param audio_format the target audio format
+	  * @param frame_size the frame (RTP payload) size [bytes]
+	  * @return the media */
+	public Media get(final String file_name, final AudioFormat audio_format, final int frame_size) throws IOException, UnsupportedAudioFileException {
+		String key=file_name+"|"+audio_format+"|"+frame_size;
+		FutureTask task;
+		boolean in_flight;
+		synchronized (this) {
+			Media media=(Media)cache.get(key);
+			if (media!=null) {
+				hits++;
+				return media;
+			}
+			// else
+			task=(FutureTask)loading.get(key);
+			in_flight=(task!=null);
+			if (in_flight) hits++;
+			else {
+				misses++;
+				task=new FutureTask(new Callable() {
+					public Object call() throws Exception {
+						return convert(file_name,audio_format,frame_size);
+					}
+				});
+				loading.put(key,task);
+			}
+		}
+		// wait outside the lock for the resource being loaded by another thread
+		if (in_flight) return waitFor(task);
+		// else
+		// convert outside the lock; concurrent requests of the same resource wait for this conversion
+		task.run();
+		Media media=null;
+		try {
+			media=waitFor(task);
+		}
+		finally {
+			synchronized (this) {
+				loading.remove(key);
+				if (media!=null) {
+					cache.put(key,media);
+					size+=media.getSize();
+					evict();
+				}
+			}
+		}
+		if (DEBUG) log(LoggerLevel.DEBUG,"cached "+key+": "+media.getSize()+" bytes ("+(media.isMapped()? "mapped" : "memory")+")");
+		return media;
+	}
+
+
+	/** Waits for a media that is being loaded.
+	  * @param task the loading task
+	  * @return the media */
+	private static Media waitFor(FutureTask task) throws IOException, UnsupportedAudioFileException {
+		try {
+			return (Media)task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the media");
+		}
+		catch (ExecutionException e) {
+			Throwable cause=e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof UnsupportedAudioFileException) throw (UnsupportedAudioFileException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			// else
+			throw new IOException(cause.toString());
+		}
+	}
+
+
+	/** Converts an audio file to the given audio format and stores it. */
+	private Media convert(String file_name, AudioFormat audio_format, int frame_size) throws IOException, UnsupportedAudioFileException {
+		AudioInputStream audio_input_stream=AudioFile.getAudioFileInputStream(file_name,audio_format);
+		try {
+			return load(file_name,audio_input_stream,frame_size);
+		}
+		finally {
+			audio_input_stream.close();
+		}
+	}
+
+
+	/** Reads all the data of a stream and stores it. */
+	private Media load(String name, InputStream is, int frame_size) throws IOException {
+		ByteArrayOutputStream os=new ByteArrayOutputStream();
+		byte[] buf=new byte[BUFFER_SIZE];
+		int len;
+		while ((len=is.read(buf,0,buf.length))>=0) os.write(buf,0,len);
+		byte[] data=os.toByteArray();
+		if (dir==null) return new Media(name,ByteBuffer.wrap(data),frame_size,null);
+		// else
+		File file=File.createTempFile("media",".cache",dir);
+		file.deleteOnExit();
+		RandomAccessFile raf=new RandomAccessFile(file,"rw");
+		try {
+			raf.write(data);
+			ByteBuffer mapped=raf.getChannel().map(FileChannel.MapMode.READ_ONLY,0,data.length);
+			return new Media(name,mapped,frame_size,file);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+
+	/** Removes the least recently used media until the size bound is respected. */
+	private void evict() {
+		for (Iterator i=cache.entrySet().iterator(); size>max_size && cache.size()>1 && i.hasNext(); ) {
+			Media media=(Media)((Map.Entry)i.next()).getValue();
+			i.remove();
+			size-=media.getSize();
+			release(media);
+			if (DEBUG) log(LoggerLevel.DEBUG,"evicted "+media.getName());
+		}
+	}
+
+
+	/** Releases the resources of an evicted media.
+	  * The mapping of a deleted file remains valid for the streams that are still reading it. */
+	private static void release(Media media) {
+		if (media.file!=null) media.file.delete();
+	}
+
+
+	/** Removes all cached media. */
+	public synchronized void clear() {
+		for (Iterator i=cache.values().iterator(); i.hasNext(); ) release((Media)i.next());
+		cache.clear();
+		size=0;
+	}
+
+
+	/** Gets the number of cached media. */
+	public synchronized int getCount() {
+		return cache.size();
+	}
+
+
+	/** Gets the total size of the cached media [bytes]. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+
+	/** Gets the maximum size of the cache [bytes]. */
+	public long getMaxSize() {
+		return max_size;
+	}
+
+
+	/** Gets the number of cache hits. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+
+	/** Gets the number of cache misses. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public synchronized String toString() {
+		return "MediaCache: "+cache.size()+" media, "+size+"/"+max_size+" bytes, "+hits+" hits, "+misses+" misses";
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
+}
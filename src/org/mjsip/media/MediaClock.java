@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+
+/** MediaClock paces many periodic media tasks (e.g. RTP senders) using a small
+  * number of worker threads.
+  * <p>
+  * Each worker keeps its schedules ordered by next deadline, computed with
+  * {@link System#nanoTime()}, and parks until the earliest one. New schedules are
+  * assigned to the least loaded worker, and their first deadline is spread over
+  * {@link #STAGGER_SLOTS} sub-slots of the period, so that streams started
+  * at the same time do not send their packets in bursts.
+  * <p>
+  * For each schedule, the clock measures the send-time jitter, i.e. the smoothed
+  * variation of the delay of the actual execution time respect to the nominal deadline,
+  * computed as for the RTP interarrival jitter (RFC 3550).
+  */
+public class MediaClock {
+	
+	/** Number of sub-slots of a period used for staggering new schedules */
+	public static int STAGGER_SLOTS=8;
+
+	/** Maximum delay, as number of periods, after which a late schedule is re-aligned to the current time instead of catching up */
+	public static int MAX_LATE_PERIODS=5;
+
+	/** Default number of worker threads */
+	public static int DEFAULT_WORKERS=Math.max(1,Math.min(4,Runtime.getRuntime().availableProcessors()/2));
+
+	/** Maximum time a worker parks when there are no schedules [nanosecs] */
+	static final long IDLE_TIME=1000000000L;
+
+	/** Default clock */
+	static MediaClock default_clock=null;
+
+
+	/** A periodic task driven by a MediaClock. */
+	public static interface Task {
+		/** When the task has to be executed.
+		  * @param schedule the schedule of this task
+		  * @return false if the task has terminated and has to be removed from the clock */
+		public boolean onClockTick(Schedule schedule);
+
+		/** When the clock has been halted while the task was still scheduled.
+		  * The task has to release its resources, since it will not be executed any more.
+		  * @param schedule the schedule of this task */
+		public void onClockHalted(Schedule schedule);
+	}
+
+
+	/** The schedule of a task within a MediaClock. */
+	public static class Schedule implements Comparable {
+		/** The task */
+		Task task;
+		/** Worker that runs the task */
+		Worker worker;
+		/** Period [nanosecs] */
+		volatile long period;
+		/** Next deadline [nanosecs] */
+		long deadline;
+		/** Whether it has been cancelled */
+		volatile boolean cancelled=false;
+		/** Number of executions */
+		long ticks=0;
+		/** Delay of the last execution [nanosecs] */
+		long last_delay=-1;
+		/** Send-time jitter, scaled by 16 [nanosecs] */
+		long jitter=0;
+		/** Maximum delay [nanosecs] */
+		long max_delay=0;
+
+		/** Creates a new Schedule. */
+		Schedule(Task task, long period, long deadline) {
+			this.task=task;
+			this.period=period;
+			this.deadline=deadline;
+		}
+
+		/** Updates the statistics with the delay of an execution.
+		  * @param delay the difference between the actual execution time and the nominal deadline [nanosecs] */
+		void update(long delay) {
+			ticks++;
+			if (delay>max_delay) max_delay=delay;
+			if (last_delay>=0) {
+				long d=delay-last_delay;
+				if (d<0) d=-d;
+				jitter+=d-((jitter+8)>>4);
+			}
+			last_delay=delay;
+		}
+
+		/** Changes the period.
+		  * @param period the new period [nanosecs] */
+		public void setPeriod(long period) {
+			this.period=period;
+		}
+
+		/** Gets the period [nanosecs]. */
+		public long getPeriod() {
+			return period;
+		}
+
+		/** Gets the number of executions of the task. */
+		public long getTicks() {
+			return ticks;
+		}
+
+		/** Gets the send-time jitter [microsecs]. */
+		public long getJitter() {
+			return (jitter>>4)/1000;
+		}
+
+		/** Gets the maximum delay of an execution respect to its deadline [microsecs]. */
+		public long getMaxDelay() {
+			return max_delay/1000;
+		}
+
+		/** Whether the schedule has been cancelled. */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/** Removes the task from the clock. */
+		public void cancel() {
+			cancelled=true;
+			if (worker!=null) worker.remove(this);
+		}
+
+		/** Compares the deadlines of two schedules. */
+		public int compareTo(Object obj) {
+			long diff=deadline-((Schedule)obj).deadline;
+			return diff<0? -1 : diff>0? 1 : 0;
+		}
+	}
+
+
+	/** A worker thread. */
+	class Worker implements Runnable {
+		/** Schedules ordered by deadline */
+		PriorityQueue queue=new PriorityQueue();
+		/** The thread */
+		Thread thread;
+
+		/** Creates a new Worker. */
+		Worker(int i) {
+			thread=new Thread(this,"MediaClock-"+i);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+		}
+
+		/** Gets the number of schedules. */
+		int size() {
+			synchronized (queue) {  return queue.size();  }
+		}
+
+		/** Adds a schedule. */
+		void add(Schedule schedule) {
+			boolean first;
+			synchronized (queue) {
+				queue.add(schedule);
+				first=queue.peek()==schedule;
+			}
+			if (first) LockSupport.unpark(thread);
+		}
+
+		/** Removes a schedule. */
+		void remove(Schedule schedule) {
+			synchronized (queue) {  queue.remove(schedule);  }
+		}
+
+		/** Main thread. */
+		public void run() {
+			while (!stop) {
+				Schedule schedule;
+				long now=System.nanoTime();
+				long wait;
+				synchronized (queue) {
+					schedule=(Schedule)queue.peek();
+					wait=(schedule!=null)? schedule.deadline-now : IDLE_TIME;
+					if (wait<=0) queue.poll();
+				}
+				if (wait>0) {
+					LockSupport.parkNanos(this,wait);
+					continue;
+				}
+				// else
+				if (schedule.cancelled) continue;
+				// else
+				schedule.update(now-schedule.deadline);
+				boolean go_on;
+				try {
+					go_on=schedule.task.onClockTick(schedule);
+				}
+				catch (RuntimeException e) {
+					go_on=false;
+				}
+				if (!go_on || schedule.cancelled) {
+					schedule.cancelled=true;
+					continue;
+				}
+				// else
+				long period=schedule.period;
+				schedule.deadline+=period;
+				if (now-schedule.deadline>MAX_LATE_PERIODS*period) schedule.deadline=now+period;
+				synchronized (queue) {  queue.add(schedule);  }
+			}
+			Object[] halted;
+			synchronized (queue) {
+				halted=queue.toArray();
+				queue.clear();
+			}
+			for (int i=0; i<halted.length; i++) {
+				Schedule schedule=(Schedule)halted[i];
+				if (schedule.cancelled) continue;
+				// else
+				schedule.cancelled=true;
+				try {
+					schedule.task.onClockHalted(schedule);
+				}
+				catch (RuntimeException e) {}
+			}
+		}
+	}
+
+
+	/** Worker threads */
+	Worker[] workers;
+
+	/** Counter used for staggering new schedules */
+	int stagger_count=0;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Gets the default MediaClock, shared by all streams that don't use a specific clock. */
+	public static synchronized MediaClock getDefaultClock() {
+		if (default_clock==null || default_clock.stop) default_clock=new MediaClock(DEFAULT_WORKERS);
+		return default_clock;
+	}
+
+
+	/** Creates a new MediaClock.
+	  * @param n_workers the number of worker threads */
+	public MediaClock(int n_workers) {
+		if (n_workers<1) n_workers=1;
+		workers=new Worker[n_workers];
+		for (int i=0; i<n_workers; i++) {
+			workers[i]=new Worker(i);
+			workers[i].thread.start();
+		}
+	}
+
+
+	/** Adds a new periodic task.
+	  * The first execution is delayed by a fraction of the period, in order to spread tasks started at the same time.
+	  * @param task the task
+	  * @param period the period [nanosecs]
+	  * @return the schedule of the task */
+	public Schedule add(Task task, long period) {
+		long offset;
+		synchronized (this) {
+			offset=(stagger_count%STAGGER_SLOTS)*period/STAGGER_SLOTS;
+			stagger_count++;
+		}
+		Schedule schedule=new Schedule(task,period,System.nanoTime()+offset);
+		Worker worker=workers[0];
+		int min=worker.size();
+		for (int i=1; i<workers.length && min>0; i++) {
+			int size=workers[i].size();
+			if (size<min) {
+				worker=workers[i];
+				min=size;
+			}
+		}
+		schedule.worker=worker;
+		worker.add(schedule);
+		return schedule;
+	}
+
+
+	/** Gets the number of worker threads. */
+	public int getWorkers() {
+		return workers.length;
+	}
+
+
+	/** Gets the total number of active schedules. */
+	public int size() {
+		int size=0;
+		for (int i=0; i<workers.length; i++) size+=workers[i].size();
+		return size;
+	}
+
+
+	/** Stops the clock. All schedules are cancelled, and their tasks are notified through {@link Task#onClockHalted(Schedule)}. */
+	public void halt() {
+		stop=true;
+		for (int i=0; i<workers.length; i++) LockSupport.unpark(workers[i].thread);
+	}
+
+
+	/** Whether it is running. */
+	public boolean isRunning() {
+		return !stop;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "MediaClock: "+workers.length+" workers, "+size()+" tasks";
+	}
+
+}
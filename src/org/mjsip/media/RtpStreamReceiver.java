@@ -24,6 +24,9 @@ package org.mjsip.media;
 
 import java.io.OutputStream;
 import java.net.SocketException;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
 
 import org.mjsip.rtp.RtpControl;
 import org.mjsip.rtp.RtpControlledReceiver;
@@ -31,6 +34,9 @@ import org.mjsip.rtp.RtpPacket;
 import org.mjsip.rtp.RtpPayloadFormat;
 import org.mjsip.rtp.RtpReceiver;
 import org.mjsip.rtp.RtpReceiverListener;
+import org.mjsip.rtp.RtpReceiverStats;
+import org.mjsip.rtp.RtpStreamQuality;
+import org.mjsip.rtp.TelephoneEventRtpPayloadFormat;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpSocket;
 import org.zoolu.util.Encoder;
@@ -38,6 +44,14 @@ import org.zoolu.util.Encoder;
 
 /** RtpStreamReceiver is a generic RTP receiver.
   * It receives packets from RTP and writes media into a given OutputStream.
+  * <p>
+  * For each received RTP source (SSRC) it maintains RFC 3550 reception statistics
+  * (see {@link RtpReceiverStats}), that are used for RTCP reception reports and for
+  * monitoring the stream quality (see {@link #getQuality()}).
+  * <p>
+  * DTMF digits can be reported to a {@link TelephoneEventListener}, either received as RFC 4733
+  * telephone events (see {@link #setTelephoneEventListener(int,TelephoneEventListener)}), or detected
+  * in-band within the decoded audio (see {@link #setInbandDtmfDetection(Encoder,TelephoneEventListener)}).
   */
 public class RtpStreamReceiver implements RtpControlledReceiver {
 	
@@ -59,6 +73,15 @@ public class RtpStreamReceiver implements RtpControlledReceiver {
 	/** Long value 2^32 */
 	private static final long TWO_32=(1<<32);
 
+	/** Default clock rate of RTP timestamps [Hz] */
+	public static final int DEFAULT_CLOCK_RATE=8000;
+
+	/** Maximum number of sources for which reception statistics are kept */
+	public static int MAX_SOURCES=32;
+
+	/** Time after which a source that sent no packets is forgotten [millisecs] */
+	public static long SOURCE_TIMEOUT=30000;
+
 
 	/** Listener */
 	RtpStreamReceiverListener listener=null;
@@ -117,6 +140,45 @@ public class RtpStreamReceiver implements RtpControlledReceiver {
 	/** */
 	byte[] silence_buffer=new byte[4000];
 
+	/** Clock rate of RTP timestamps [Hz] */
+	int clock_rate=DEFAULT_CLOCK_RATE;
+
+	/** Reception statistics of all received sources (SSRC --> RtpReceiverStats) */
+	Hashtable source_stats=new Hashtable();
+
+	/** Reception statistics of the current source */
+	RtpReceiverStats stats=null;
+
+	/** Jitter buffer minimum playout delay [millisecs], or 0 if no jitter buffer is used */
+	int jitter_min_delay=0;
+
+	/** Jitter buffer maximum playout delay [millisecs] */
+	int jitter_max_delay=0;
+
+	/** Byte value that encodes silence in the output media, used by the jitter buffer */
+	byte jitter_silence=0;
+
+	/** Jitter buffer */
+	JitterBuffer jitter_buffer=null;
+
+	/** Payload type of telephone events, or -1 */
+	int telephone_event_payload_type=-1;
+
+	/** Telephone event payload format */
+	TelephoneEventRtpPayloadFormat telephone_event_format=null;
+
+	/** Listener of telephone events */
+	TelephoneEventListener telephone_event_listener=null;
+
+	/** In-band DTMF detector */
+	DtmfDetector dtmf_detector=null;
+
+	/** Decoder from the received media to 16-bit little-endian PCM, used for in-band DTMF detection */
+	Encoder pcm_decoder=null;
+
+	/** PCM buffer used for in-band DTMF detection */
+	byte[] pcm_buffer=null;
+
 
 
 	/** Creates a RTP stream receiver.
@@ -170,6 +232,11 @@ public class RtpStreamReceiver implements RtpControlledReceiver {
 			}
 		});
 		running=true;
+		if (jitter_min_delay>0) {
+			jitter_buffer=new JitterBuffer(output_stream,clock_rate,rtp_payload_format,jitter_min_delay,jitter_max_delay);
+			jitter_buffer.setSilence(jitter_silence);
+			jitter_buffer.start();
+		}
 
 		if (DEBUG) println("RTP: localhost:"+udp_socket.getLocalPort()+" <-- remotesocket");
 		try {
@@ -197,53 +264,142 @@ public class RtpStreamReceiver implements RtpControlledReceiver {
 
 
 
+	/** Sets the clock rate of RTP timestamps, used for computing the interarrival jitter.
+	  * @param clock_rate the clock rate [Hz] */
+	public void setClockRate(int clock_rate) {
+		this.clock_rate=clock_rate;
+	}
+
+
+	/** Sets the adaptive jitter buffer.
+	  * When enabled, received frames are played out at a fixed rate, reordered by RTP timestamp, and
+	  * missing frames are concealed; in this case sequence check and silence padding are not performed.
+	  * It must be set before starting the receiver.
+	  * @param min_delay the minimum playout delay [millisecs]; a value of 0 disables the jitter buffer
+	  * @param max_delay the maximum playout delay [millisecs] */
+	public void setJitterBuffer(int min_delay, int max_delay) {
+		setJitterBuffer(min_delay,max_delay,(byte)0);
+	}
+
+
+	/** Sets the adaptive jitter buffer.
+	  * It must be set before starting the receiver.
+	  * @param min_delay the minimum playout delay [millisecs]; a value of 0 disables the jitter buffer
+	  * @param max_delay the maximum playout delay [millisecs]
+	  * @param silence the byte value that encodes silence in the output media (see {@link JitterBuffer#setSilence(byte)}) */
+	public void setJitterBuffer(int min_delay, int max_delay, byte silence) {
+		jitter_min_delay=min_delay;
+		jitter_max_delay=max_delay;
+		jitter_silence=silence;
+	}
+
+
+	/** Sets the listener of RFC 4733 telephone events.
+	  * Received packets with the given payload type are passed to the listener and are not written to the output stream.
+	  * @param payload_type the payload type of telephone events
+	  * @param listener the listener of telephone events */
+	public void setTelephoneEventListener(int payload_type, TelephoneEventListener listener) {
+		telephone_event_payload_type=payload_type;
+		telephone_event_format=new TelephoneEventRtpPayloadFormat();
+		telephone_event_listener=listener;
+	}
+
+
+	/** Sets in-band DTMF detection.
+	  * DTMF digits detected within the received audio are passed to the listener, that replaces the listener of telephone events, if any.
+	  * @param pcm_decoder decoder from the received media to 16-bit little-endian PCM, or <i>null</i> if the media is already PCM
+	  * @param listener the listener of detected digits, or <i>null</i> for disabling in-band DTMF detection */
+	public void setInbandDtmfDetection(Encoder pcm_decoder, TelephoneEventListener listener) {
+		this.pcm_decoder=pcm_decoder;
+		pcm_buffer=(pcm_decoder!=null)? new byte[BUFFER_SIZE*2] : null;
+		dtmf_detector=(listener!=null)? new DtmfDetector(clock_rate,null) : null;
+		if (listener!=null) telephone_event_listener=listener;
+	}
+
+
+	/** Gets the jitter buffer.
+	  * @return the jitter buffer, or <i>null</i> if no jitter buffer is used or the receiver has not been started */
+	public JitterBuffer getJitterBuffer() {
+		return jitter_buffer;
+	}
+
+
 	/** Gets SSRC.
 	  * @return he synchronization source (SSRC) identifier of the received RTP packets */
 	public long getSSRC() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getSSRC() : 0;
 	}
 
 	/** Gets fraction lost.
+	  * Note that each call starts a new report interval.
 	  * @return the fraction of RTP data packets lost since the previous SR or RR packet was sent; the fraction loss is defined as the number of packets lost divided by the number of packets expected; it is represented by the integer part after multiplying the loss fraction by 256 (8 bit) */
 	public int getFractionLost() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getFractionLost() : 0;
 	}
 
 	/** Gets cumulative number of packets lost.
 	  * @return cumulative number of packets lost that is the total number of RTP data packets that have been lost since the beginning of reception; it is the number of packets expected less the number of packets actually received, where the number of packets received includes any which are late or duplicates */
 	public long getCumulativePacketLost() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getCumulativePacketLost() : 0;
 	}
 
 	/** Gets the extended highest sequence number received.
 	  * @return the extended highest sequence number received (32bit); the low 16 bits contain the highest sequence number received in an RTP data packet, and the most significant 16 bits extend that sequence number with the corresponding count of sequence number cycles */
 	public long getHighestSqnReceived() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getHighestSqnReceived() : 0;
 	}
 
 	/** Gets the interarrival jitter.
 	  * @return the interarrival jitter, that is an estimate of the statistical variance of the RTP data packet interarrival time, measured in timestamp units and expressed as an unsigned integer */
 	public long getInterarrivalJitter() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getInterarrivalJitter() : 0;
 	}
 
 	/** Gets last SR timestamp (LSR).
 	  * @return last SR timestamp (LSR), that is the middle 32 bits out of 64 in the NTP timestamp received as part of the most recent RTCP SR packet */
 	public long getLSR() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getLSR() : 0;
 	}
 
 	/** Gets delay since last SR (DLSR).
 	  * @return delay since last SR (DLSR), that is the delay, expressed in units of 1/65536 seconds, between receiving the last SR packet and sending this reception report block */ 
 	public long getDLSR() {
-		// to be implemented..
-		return 0;
+		RtpReceiverStats stats=this.stats;
+		return (stats!=null)? stats.getDLSR(System.currentTimeMillis()) : 0;
+	}
+
+	/** Sets the last Sender Report (SR) received from a given source.
+	  * @param ssrc the SSRC of the sender
+	  * @param lsr the middle 32 bits out of 64 in the NTP timestamp of the SR
+	  * @param time the arrival time of the SR (in milliseconds) */
+	public void setLastSenderReport(long ssrc, long lsr, long time) {
+		RtpReceiverStats stats=(RtpReceiverStats)source_stats.get(Long.valueOf(ssrc));
+		if (stats!=null) stats.setLastSenderReport(lsr,time);
+	}
+
+
+	/** Gets the reception statistics of a given source.
+	  * @param ssrc the SSRC of the source
+	  * @return the reception statistics, or <i>null</i> if no packet has been received from this source */
+	public RtpReceiverStats getStats(long ssrc) {
+		return (RtpReceiverStats)source_stats.get(Long.valueOf(ssrc));
+	}
+
+
+	/** Gets a snapshot of the reception quality of the current source.
+	  * @return the stream quality, or <i>null</i> if no packet has been received yet */
+	public RtpStreamQuality getQuality() {
+		RtpReceiverStats stats=this.stats;
+		if (stats==null) return null;
+		// else
+		long rtt=(rtp_control!=null)? rtp_control.getRoundTripTime() : -1;
+		return new RtpStreamQuality(stats.getSSRC(),stats.getPacketsReceived(),stats.getPacketsExpected(),stats.getInterarrivalJitterMillis(),rtt);
 	}
 
 
@@ -256,21 +412,73 @@ public class RtpStreamReceiver implements RtpControlledReceiver {
 	/** Stops running */
 	public void halt() {
 		rtp_receiver.halt();
+		if (jitter_buffer!=null) jitter_buffer.halt();
 		running=false;
 	}
 
 
+	/** Removes the statistics of sources that have gone quiet.
+	  * If no source has timed out, the one that has been quiet for the longest time is removed, so that
+	  * forged or rotating SSRCs cannot make the table grow beyond {@link #MAX_SOURCES}. */
+	private void purgeSources() {
+		long now=System.nanoTime();
+		long timeout=SOURCE_TIMEOUT*1000000L;
+		Long oldest_key=null;
+		long oldest_time=0;
+		synchronized (source_stats) {
+			for (Iterator i=source_stats.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry entry=(Map.Entry)i.next();
+				RtpReceiverStats stats=(RtpReceiverStats)entry.getValue();
+				long last_arrival=stats.getLastArrivalTime();
+				if (now-last_arrival>timeout) i.remove();
+				else
+				if (stats!=this.stats && (oldest_key==null || last_arrival-oldest_time<0)) {
+					oldest_key=(Long)entry.getKey();
+					oldest_time=last_arrival;
+				}
+			}
+			if (source_stats.size()>=MAX_SOURCES && oldest_key!=null) source_stats.remove(oldest_key);
+		}
+	}
+
+
 	/** Processes a received RTP packet. */
 	private void processReceivedPacket(RtpReceiver rtp_receiver, RtpPacket rtp_packet) {
 		// only if still running..
 		if (!running) return; 
+		
+		// update reception statistics
+		long ssrc=rtp_packet.getSsrc();
+		RtpReceiverStats stats=this.stats;
+		if (stats==null || stats.getSSRC()!=ssrc) {
+			// discard packets with a different SSRC
+			if (ssrc_check && stats!=null) return;
+			// else
+			Long key=Long.valueOf(ssrc);
+			stats=(RtpReceiverStats)source_stats.get(key);
+			if (stats==null) {
+				if (source_stats.size()>=MAX_SOURCES) purgeSources();
+				stats=new RtpReceiverStats(ssrc,rtp_packet.getSequenceNumber(),clock_rate);
+				source_stats.put(key,stats);
+			}
+			this.stats=stats;
+		}
+		stats.update(rtp_packet.getSequenceNumber(),rtp_packet.getTimestamp(),System.nanoTime());
 			
 		// drop the first packets in order to reduce the effect of an eventual initial packet burst
 		if (early_drop_to>0 && System.currentTimeMillis()<early_drop_to) return;
 		else early_drop_to=-1;
+
+		// telephone events
+		if (rtp_packet.getPayloadType()==telephone_event_payload_type) {
+			int event=telephone_event_format.processReceivedEvent(rtp_packet.getTimestamp(),rtp_packet.getPacketBuffer(),rtp_packet.getHeaderLength(),rtp_packet.getPayloadLength());
+			if (event>=0 && telephone_event_listener!=null) telephone_event_listener.onTelephoneEvent(this,event);
+			return;
+		}
+		// else
 		
 		try {
-			if (sequence_check) {
+			if (sequence_check && jitter_buffer==null) {
 				// discard out of sequence and duplicated packets
 				int sqn=rtp_packet.getSequenceNumber();
 				if (sqn==last_sqn) return; // discarded duplicated packet
@@ -311,8 +519,18 @@ public class RtpStreamReceiver implements RtpControlledReceiver {
 
 			if (additional_decoder!=null) unformatted_len=additional_decoder.encode(payload_buf,payload_off,unformatted_len,payload_buf,payload_off);
 
-			// write the payload data to the output_stream
-			output_stream.write(payload_buf,payload_off,unformatted_len);
+			// in-band DTMF detection
+			DtmfDetector dtmf_detector=this.dtmf_detector;
+			if (dtmf_detector!=null) {
+				int event;
+				if (pcm_decoder!=null) event=dtmf_detector.process(pcm_buffer,0,pcm_decoder.encode(payload_buf,payload_off,unformatted_len,pcm_buffer,0),false);
+				else event=dtmf_detector.process(payload_buf,payload_off,unformatted_len,false);
+				if (event>=0 && telephone_event_listener!=null) telephone_event_listener.onTelephoneEvent(this,event);
+			}
+
+			// write the payload data to the jitter buffer or directly to the output_stream
+			if (jitter_buffer!=null) jitter_buffer.put(rtp_packet.getSequenceNumber(),rtp_packet.getTimestamp(),payload_buf,payload_off,unformatted_len);
+			else output_stream.write(payload_buf,payload_off,unformatted_len);
 			
 			// check whether remote socket address is changed
 			SocketAddress source_soaddr=rtp_receiver.getRemoteSoAddress();
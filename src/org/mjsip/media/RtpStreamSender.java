@@ -25,18 +25,26 @@ package org.mjsip.media;
 import java.io.InputStream;
 
 import org.mjsip.rtp.RtpControl;
+import org.mjsip.rtp.RtpBufferPool;
 import org.mjsip.rtp.RtpControlledSender;
+import org.mjsip.rtp.RtpPacket;
 import org.mjsip.rtp.RtpPayloadFormat;
 import org.mjsip.rtp.RtpSender;
+import org.mjsip.rtp.TelephoneEventRtpPayloadFormat;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpSocket;
 import org.zoolu.util.Encoder;
+import org.zoolu.util.ThreadFactory;
 
 
 /** RtpStreamSender is a generic RTP sender.
   * It takes media from a given InputStream and sends it through RTP packets to a remote destination.
+  * <p>
+  * It can also send RFC 4733 telephone events (see {@link #sendTelephoneEvent(int,int)}).
+  * While an event is sent, the media read from the InputStream is discarded and replaced by event packets,
+  * that are sent with the same pacing of the media packets.
   */
-public class RtpStreamSender extends Thread implements RtpControlledSender {
+public class RtpStreamSender implements Runnable, RtpControlledSender, MediaClock.Task {
 	
 	/** Inter-time of RTCP Sending Report (SR) packets [millisecs]. */
 	public static long RTCP_SR_TIME=5000;
@@ -66,6 +74,9 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 	/** Duration of a packet dropping period (in number of dropped packets) */
 	public static int DEBUG_DROP_TIME=100; // drop interval duration = 2s 
 
+	/** Number of retransmissions of the final packet of a telephone event */
+	public static int TELEPHONE_EVENT_END_PACKETS=3;
+
 	/** RTP header length. */
 	private static final int RTPH_LEN=12;
 
@@ -116,6 +127,54 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 	/** Additional RTP payload encoder */
 	Encoder additional_encoder;
 
+	/** Media clock used for pacing the packets, or <i>null</i> for using a dedicated thread */
+	MediaClock media_clock=null;
+
+	/** Dedicated thread, or <i>null</i> if the packets are paced by the media clock */
+	Thread thread=null;
+
+	/** Schedule of the packets (either within the media clock or within the dedicated thread) */
+	MediaClock.Schedule schedule=null;
+
+	/** Packet buffer, borrowed from the buffer pool */
+	byte[] packet_buffer=null;
+
+	/** RTP packet view used for telephone events */
+	RtpPacket event_packet=new RtpPacket();
+
+	/** Time of the sent media [millisecs] */
+	long media_time=0;
+
+	/** Time of the next RTCP report [millisecs] */
+	long next_report_time=0;
+
+	/** Counter of dropped packets (for debug) */
+	int debug_drop_count=0;
+
+	/** Payload type of telephone events, or -1 */
+	int telephone_event_payload_type=-1;
+
+	/** Telephone event waiting to be sent, or -1 */
+	volatile int pending_event=-1;
+
+	/** Duration of the telephone event waiting to be sent [timestamp units] */
+	volatile int pending_event_duration=0;
+
+	/** Telephone event that is currently sent, or -1 */
+	int event=-1;
+
+	/** RTP timestamp of the current telephone event */
+	long event_timestamp;
+
+	/** Time elapsed since the beginning of the current telephone event [timestamp units] */
+	long event_elapsed;
+
+	/** Duration of the current telephone event [timestamp units] */
+	int event_duration;
+
+	/** Number of sent final packets of the current telephone event */
+	int event_end_packets;
+
 	
 
 	/** Creates a new RTP stream sender.
@@ -163,6 +222,14 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 	}          
 
 
+	/** Sets the media clock used for pacing the packets.
+	  * It must be called before starting the sender, and it is used only when the RtpStreamSender performs time synchronization (do_sync==true).
+	  * @param media_clock the media clock, or <i>null</i> for using a dedicated thread */
+	public void setMediaClock(MediaClock media_clock) {
+		this.media_clock=media_clock;
+	}
+
+
 	/** Sets RTCP. */
 	public void setControl(RtpControl rtp_control) {
 		this.rtp_control=rtp_control;
@@ -197,6 +264,28 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 	}
 
 
+	/** Sets the payload type of RFC 4733 telephone events.
+	  * @param payload_type the payload type, or -1 for disabling telephone events */
+	public void setTelephoneEventPayloadType(int payload_type) {
+		telephone_event_payload_type=payload_type;
+	}
+
+
+	/** Sends a RFC 4733 telephone event (e.g. a DTMF digit).
+	  * The event is sent in place of the next media packets.
+	  * @param event the event code (see {@link TelephoneEventRtpPayloadFormat#getEventCode(char)})
+	  * @param duration the event duration [millisecs]
+	  * @return true if the event has been queued, false if telephone events are not enabled */
+	public boolean sendTelephoneEvent(int event, int duration) {
+		if (telephone_event_payload_type<0 || event<0) return false;
+		// else
+		long samples=duration*sample_rate/1000;
+		pending_event_duration=(int)Math.min(samples,0xffff);
+		pending_event=event;
+		return true;
+	}
+
+
 	/** Gets the synchronization source (SSRC) identifier. */
 	public long getSSRC() {
 		return rtp_sender.getSSRC();
@@ -221,6 +310,18 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 	}
 
 
+	/** Gets the send-time jitter, that is the variation of the delay of the actual sending times respect to the nominal ones [microsecs]. */
+	public long getSendJitter() {
+		return (schedule!=null)? schedule.getJitter() : 0;
+	}
+
+
+	/** Gets the maximum delay of a packet respect to its nominal sending time [microsecs]. */
+	public long getMaxSendDelay() {
+		return (schedule!=null)? schedule.getMaxDelay() : 0;
+	}
+
+
 	/** Whether is running */
 	public boolean isRunning() {
 		return running;
@@ -233,92 +334,172 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 	}
 
 
-	/** Runs it in a new Thread. */
-	public void run() {
-		
-		if (rtp_sender==null || input_stream==null) return;
-		//else
-		
-		// number of payload bytes after RTP formatting
-		int formatted_len=(rtp_payload_format!=null)? rtp_payload_format.getRtpPayloadFormatLength(payload_size) : payload_size;		
-		byte[] packet_buffer=new byte[BUFFER_SIZE];
-
-		long time=0;
-		long time_sync=0;
-		//long timestamp=0;
-		long start_time=System.currentTimeMillis();
-		//long byte_rate=payload_size*1000/packet_time;
-		
-		// sending report counters
-		//long packet_count=0;
-		//long octect_count=0;
-		long next_report_time=0;
+	/** Starts sending. If a media clock has been set and time synchronization is performed by the RtpStreamSender,
+	  * packets are paced by the media clock, otherwise by a new dedicated thread. */
+	public synchronized void start() {
+		if (media_clock==null || !do_sync) {
+			thread=ThreadFactory.start(this,"RtpStreamSender");
+			return;
+		}
+		// else
+		if (!init()) return;
+		// else
+		schedule=media_clock.add(this,(packet_time+sync_adj)*1000000L);
+	}
 
-		running=true;
 
-		if (DEBUG) println("RTP: localhost:"+rtp_sender.getLocalPort()+" --> "+rtp_sender.getDestSoAddress());
-		if (DEBUG) println("RTP: sending RTP pkts with "+(formatted_len)+" bytes as payload");
+	/** Gets the dedicated thread, or <i>null</i> if not started or if the packets are paced by the media clock.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
 
-		// DEBUG DROP RATE
-		int debug_drop_count=0;
 
+	/** Runs it in a new Thread. */
+	public void run() {
+		if (!init()) return;
+		// else
+		long period=(packet_time+sync_adj)*1000000L;
+		long next_time=System.nanoTime();
+		schedule=new MediaClock.Schedule(null,period,next_time);
 		Exception error=null;
 		try {
 			while (running) {
-				
-				if (time>=next_report_time) {
-					//if (rtp_control!=null) rtp_control.send(new org.mjsip.net.SrRtcpPacket(rtp_packet.getSsrc(),System.currentTimeMillis(),timestamp,packet_count,octect_count));
-					if (rtp_control!=null) rtp_control.sendReport();
-					next_report_time+=RTCP_SR_TIME;
-				}
-				int len=input_stream.read(packet_buffer,0,payload_size);
-				// check running state, since the read() method may be blocking..
-				if (!running) break;
-				// else
-				if (len>0) {					
-					// apply possible RTP payload format (if required, e.g. in case of AMR)
-					formatted_len=(rtp_payload_format!=null)? rtp_payload_format.setRtpPayloadFormat(packet_buffer,RTPH_LEN,len) : len;
-
-					// do additional encoding (if defined)
-					formatted_len=(additional_encoder!=null)? additional_encoder.encode(packet_buffer,RTPH_LEN,formatted_len,packet_buffer,RTPH_LEN): formatted_len;
-
-					// packet time
-					long this_packet_time=packet_time*len/payload_size/channels;
-					long normalized_packet_time=(this_packet_time*sample_rate)/1000;
-
-					// send packet
-					rtp_sender.send(packet_buffer,0,formatted_len,normalized_packet_time);
-					
-					// wait for next departure
-					if (do_sync) {
-						time_sync+=packet_time+sync_adj;
-						// wait before next departure..
-						long sleep_time=start_time+time_sync-System.currentTimeMillis();
-						// compensate possible inter-time reduction due to the approximated time obtained by System.currentTimeMillis()
-						if (MIN_INTER_PACKET_TIME_FRACTION>1) {
-							long min_time=packet_time/MIN_INTER_PACKET_TIME_FRACTION;
-							if (sleep_time<min_time) sleep_time=min_time;
-						}
-						// sleep
-						if (sleep_time>0) try {  Thread.sleep(sleep_time);  } catch (Exception e) {}
+				if (do_sync) schedule.update(System.nanoTime()-next_time);
+				int len=sendNextPacket();
+				if (len<0) running=false;
+				// wait for next departure
+				if (running && len>0 && do_sync) {
+					next_time+=(packet_time+sync_adj)*1000000L;
+					long sleep_time=next_time-System.nanoTime();
+					// compensate possible inter-time reduction after a late departure
+					if (MIN_INTER_PACKET_TIME_FRACTION>1) {
+						long min_time=packet_time*1000000L/MIN_INTER_PACKET_TIME_FRACTION;
+						if (sleep_time<min_time) sleep_time=min_time;
 					}
-				}
-				else
-				if (len<0) {
-					if (DEBUG) println("Error reading from input stream");
-					running=false;
+					if (sleep_time>0) try {  Thread.sleep(sleep_time/1000000,(int)(sleep_time%1000000));  } catch (Exception e) {}
 				}
 			}
 		}
 		catch (Exception e) {
-			running=false;
 			error=e;
 			if (DEBUG) e.printStackTrace();
-		}     
+		}
+		terminate(error);
+	}
+
+
+	/** From MediaClock.Task. When the next packet has to be sent. */
+	public boolean onClockTick(MediaClock.Schedule schedule) {
+		Exception error=null;
+		try {
+			if (running) {
+				schedule.setPeriod((packet_time+sync_adj)*1000000L);
+				if (sendNextPacket()>=0) return true;
+			}
+		}
+		catch (Exception e) {
+			error=e;
+			if (DEBUG) e.printStackTrace();
+		}
+		terminate(error);
+		return false;
+	}
+
+
+	/** From MediaClock.Task. When the media clock has been halted. */
+	public void onClockHalted(MediaClock.Schedule schedule) {
+		terminate(null);
+	}
+
+
+	/** Initializes the sender.
+	  * @return true if it is ready to send */
+	private boolean init() {
+		if (rtp_sender==null || input_stream==null) return false;
+		//else
+		packet_buffer=RtpBufferPool.getPool(BUFFER_SIZE).borrow(this);
+		media_time=0;
+		next_report_time=0;
+		running=true;
+		if (DEBUG) println("RTP: localhost:"+rtp_sender.getLocalPort()+" --> "+rtp_sender.getDestSoAddress());
+		if (DEBUG) println("RTP: sending RTP pkts with "+((rtp_payload_format!=null)? rtp_payload_format.getRtpPayloadFormatLength(payload_size) : payload_size)+" bytes as payload");
+		return true;
+	}
 
-		//if (DEBUG) println("rtp time:  "+time);
-		//if (DEBUG) println("real time: "+(System.currentTimeMillis()-start_time));
 
+	/** Reads, formats, and sends the next packet.
+	  * @return the number of read bytes, or -1 if the end of the input stream has been reached or the sender has been halted */
+	private int sendNextPacket() throws java.io.IOException {
+		if (media_time>=next_report_time) {
+			if (rtp_control!=null) rtp_control.sendReport();
+			next_report_time+=RTCP_SR_TIME;
+		}
+		int len=input_stream.read(packet_buffer,RTPH_LEN,payload_size);
+		// check running state, since the read() method may be blocking..
+		if (!running) return -1;
+		// else
+		if (len>0) {					
+			// packet time
+			long this_packet_time=packet_time*len/payload_size/channels;
+			long normalized_packet_time=(this_packet_time*sample_rate)/1000;
+			media_time+=this_packet_time;
+
+			// send a telephone event packet in place of the media
+			if (event>=0 || pending_event>=0) {
+				sendTelephoneEventPacket(normalized_packet_time);
+				return len;
+			}
+			// else
+
+			// apply possible RTP payload format (if required, e.g. in case of AMR)
+			int formatted_len=(rtp_payload_format!=null)? rtp_payload_format.setRtpPayloadFormat(packet_buffer,RTPH_LEN,len) : len;
+
+			// do additional encoding (if defined)
+			formatted_len=(additional_encoder!=null)? additional_encoder.encode(packet_buffer,RTPH_LEN,formatted_len,packet_buffer,RTPH_LEN): formatted_len;
+
+			// send packet (the RTP header is written in front of the payload)
+			rtp_sender.sendInPlace(packet_buffer,0,formatted_len,normalized_packet_time);
+		}
+		else
+		if (len<0) {
+			if (DEBUG) println("Error reading from input stream");
+		}
+		return len;
+	}
+
+
+	/** Sends the next packet of the current telephone event, possibly starting the pending event.
+	  * All packets of an event have the timestamp of the beginning of the event, while the RTP context
+	  * keeps tracking the media time.
+	  * @param packet_time the time covered by this packet [timestamp units] */
+	private void sendTelephoneEventPacket(long packet_time) throws java.io.IOException {
+		boolean first=false;
+		if (event<0) {
+			event_duration=pending_event_duration;
+			event=pending_event;
+			pending_event=-1;
+			event_timestamp=rtp_sender.getRtpTimestamp();
+			event_elapsed=0;
+			event_end_packets=0;
+			first=true;
+		}
+		event_elapsed+=packet_time;
+		boolean end=event_elapsed>=event_duration;
+		int duration=(int)((end)? event_duration : event_elapsed);
+		int len=TelephoneEventRtpPayloadFormat.setEvent(packet_buffer,RTPH_LEN,event,end,TelephoneEventRtpPayloadFormat.DEFAULT_VOLUME,duration);
+		event_packet.setPacketBuffer(packet_buffer,0,RTPH_LEN+len);
+		event_packet.setHeader(telephone_event_payload_type,rtp_sender.getSSRC(),rtp_sender.getSequenceNumber(),event_timestamp);
+		event_packet.setMarker(first);
+		rtp_sender.send(event_packet,event_elapsed);
+		if (end && ++event_end_packets>=TELEPHONE_EVENT_END_PACKETS) event=-1;
+	}
+
+
+	/** Closes the sender and informs the listener.
+	  * @param error the exception that caused the termination, or <i>null</i> */
+	private void terminate(Exception error) {
+		running=false;
 		// close RtpSocket and local UdpSocket
 		rtp_sender.close();
 		if (socket_is_local_attribute && udp_socket!=null) udp_socket.close();
@@ -326,6 +507,12 @@ public class RtpStreamSender extends Thread implements RtpControlledSender {
 		// free all references
 		input_stream=null;
 		udp_socket=null;
+		if (packet_buffer!=null) {
+			RtpBufferPool.getPool(BUFFER_SIZE).release(packet_buffer);
+			packet_buffer=null;
+		}
+		RtpBufferPool.terminated(this);
+		event_packet.setPacketBuffer(null,0,0);
 
 		if (DEBUG) println("rtp sender terminated");
 		if (listener!=null) listener.onRtpStreamSenderTerminated(this,error);
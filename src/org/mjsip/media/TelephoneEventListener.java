@@ -0,0 +1,16 @@
+package org.mjsip.media;
+
+
+
+
+/** Listens for telephone events (e.g. DTMF digits), either received as RTP telephone-event packets (RFC 4733)
+ * or detected within the audio stream.
+ */
+public interface TelephoneEventListener {
+	
+	/** When a new telephone event is received.
+	  * @param source the object that received or detected the event
+	  * @param event the event code (for DTMF digits see {@link org.mjsip.rtp.TelephoneEventRtpPayloadFormat#getDigit(int)}) */
+	public void onTelephoneEvent(Object source, int event);
+
+}
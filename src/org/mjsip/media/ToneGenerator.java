@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.media;
+
+
+import org.mjsip.rtp.TelephoneEventRtpPayloadFormat;
+
+
+/** ToneGenerator generates single or dual tones (e.g. DTMF tones) as 16-bit linear PCM,
+  * using a wavetable and a phase accumulator for each tone.
+  * <p>
+  * The phase of each tone is a 32-bit fixed point fraction of the period, and the upper
+  * {@link #TABLE_BITS} bits are used as index of a sine table, so no trigonometric function
+  * is computed per sample and no memory is allocated.
+  */
+public class ToneGenerator {
+	
+	/** Number of bits of the sine table index */
+	public static final int TABLE_BITS=12;
+
+	/** Sine table, with amplitude 32767 */
+	static final short[] SINE=new short[1<<TABLE_BITS];
+
+	static {
+		for (int i=0; i<SINE.length; i++) SINE[i]=(short)Math.round(32767*Math.sin(2*Math.PI*i/SINE.length));
+	}
+
+	/** DTMF row frequencies [Hz] */
+	public static final int[] DTMF_ROW_FREQS={ 697, 770, 852, 941 };
+
+	/** DTMF column frequencies [Hz] */
+	public static final int[] DTMF_COL_FREQS={ 1209, 1336, 1477, 1633 };
+
+	/** DTMF keypad, indexed by row and column */
+	static final String DTMF_KEYPAD="123A456B789C*0#D";
+
+
+	/** Sample rate */
+	int sample_rate;
+
+	/** Phase of the first tone */
+	int phase1=0;
+
+	/** Phase increment of the first tone */
+	int delta1=0;
+
+	/** Amplitude of the first tone (0-32767) */
+	int ampl1=0;
+
+	/** Phase of the second tone */
+	int phase2=0;
+
+	/** Phase increment of the second tone */
+	int delta2=0;
+
+	/** Amplitude of the second tone (0-32767) */
+	int ampl2=0;
+
+
+
+	/** Creates a new ToneGenerator.
+	  * @param sample_rate the sample rate [samples/sec] */
+	public ToneGenerator(int sample_rate) {
+		this.sample_rate=sample_rate;
+	}
+
+
+	/** Gets the value of the sine wavetable for a given phase.
+	  * @param phase the phase, as 32-bit fraction of the period
+	  * @return the sine value, with amplitude 32767 */
+	public static int sine(int phase) {
+		return SINE[phase>>>(32-TABLE_BITS)];
+	}
+
+
+	/** Gets the phase increment per sample of a tone.
+	  * @param freq the tone frequency [Hz]
+	  * @param sample_rate the sample rate [samples/sec]
+	  * @return the phase increment, as 32-bit fraction of the period */
+	public static int getPhaseIncrement(double freq, int sample_rate) {
+		return (int)(long)Math.round(freq*4294967296.0/sample_rate);
+	}
+
+
+	/** Sets a single tone.
+	  * @param freq the frequency [Hz]
+	  * @param ampl the amplitude (0-32767) */
+	public void setTone(int freq, int ampl) {
+		setTone(freq,ampl,0,0);
+	}
+
+
+	/** Sets a dual tone.
+	  * @param freq1 the frequency of the first tone [Hz]
+	  * @param ampl1 the amplitude of the first tone (0-32767)
+	  * @param freq2 the frequency of the second tone [Hz]
+	  * @param ampl2 the amplitude of the second tone (0-32767) */
+	public void setTone(int freq1, int ampl1, int freq2, int ampl2) {
+		delta1=getPhaseIncrement(freq1,sample_rate);
+		this.ampl1=ampl1;
+		delta2=getPhaseIncrement(freq2,sample_rate);
+		this.ampl2=ampl2;
+		phase1=phase2=0;
+	}
+
+
+	/** Sets the DTMF tone of a telephone event.
+	  * @param event the event code (0-15)
+	  * @param ampl the amplitude of each of the two tones (0-32767)
+	  * @return true if the event is a DTMF digit */
+	public boolean setDtmf(int event, int ampl) {
+		char digit=TelephoneEventRtpPayloadFormat.getDigit(event);
+		int index=DTMF_KEYPAD.indexOf(digit);
+		if (digit==0 || index<0) {
+			setTone(0,0);
+			return false;
+		}
+		// else
+		setTone(DTMF_ROW_FREQS[index/4],ampl,DTMF_COL_FREQS[index%4],ampl);
+		return true;
+	}
+
+
+	/** Generates the next samples.
+	  * @param buf the sample buffer
+	  * @param off the offset within the buffer
+	  * @param len the number of samples */
+	public void generate(short[] buf, int off, int len) {
+		for (int i=off, end=off+len; i<end; i++) {
+			buf[i]=(short)nextSample();
+		}
+	}
+
+
+	/** Generates the next samples, as 16-bit PCM.
+	  * @param buf the buffer
+	  * @param off the offset within the buffer
+	  * @param len the number of samples
+	  * @param big_endian whether using big-endian byte order */
+	public void generate(byte[] buf, int off, int len, boolean big_endian) {
+		for (int i=0; i<len; i++) {
+			int s=nextSample();
+			if (big_endian) {
+				buf[off++]=(byte)(s>>8);
+				buf[off++]=(byte)s;
+			}
+			else {
+				buf[off++]=(byte)s;
+				buf[off++]=(byte)(s>>8);
+			}
+		}
+	}
+
+
+	/** Gets the next sample. */
+	private int nextSample() {
+		int s=(ampl1*SINE[phase1>>>(32-TABLE_BITS)]+ampl2*SINE[phase2>>>(32-TABLE_BITS)])>>15;
+		phase1+=delta1;
+		phase2+=delta2;
+		if (s>32767) return 32767;
+		if (s<-32768) return -32768;
+		// else
+		return s;
+	}
+
+}
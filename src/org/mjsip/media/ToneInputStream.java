@@ -22,6 +22,7 @@
 package org.mjsip.media;
 
 /** Generates a single tone.
+  * Samples are taken from the wavetable of {@link ToneGenerator}.
   */
 public class ToneInputStream extends java.io.InputStream {
 	
@@ -48,10 +49,10 @@ public class ToneInputStream extends java.io.InputStream {
 	/** Whether use big endian format */
 	boolean big_endian;
   
-	/** B=2*Pi*f0/fs */
-	double B;
-	/** Sample sequence number */
-	double k;
+	/** Phase increment per sample, as 32-bit fraction of the period */
+	int delta;
+	/** Current phase, as 32-bit fraction of the period */
+	int phase;
 	/** Buffer containing the current sample */
 	byte[] s_buff;
 	/** Index within s_buff */
@@ -73,12 +74,12 @@ public class ToneInputStream extends java.io.InputStream {
 		this.fs=sample_rate;
 		this.size=sample_size;
 		this.big_endian=big_endian;
-		B=(2*Math.PI*f0)/fs;
+		delta=ToneGenerator.getPhaseIncrement(f0,fs);
 		long range=((long)1)<<((sample_size*8)-1);
 		A=ampliture*range;
 		if (codec==PCM_LINEAR_SIGNED) zero=0.0F;
 		else zero=range/2;
-		k=0;
+		phase=0;
 		s_index=0;
 		s_buff=new byte[size];
 
@@ -99,7 +100,9 @@ public class ToneInputStream extends java.io.InputStream {
 
 	/** Reads the next sample. */
 	private double nextSample() {
-		return A*Math.sin(B*(k++))+zero;
+		double s=A*ToneGenerator.sine(phase)/32767.0+zero;
+		phase+=delta;
+		return s;
 	}
 
 	/** Reads the next byte of data from the input stream. */
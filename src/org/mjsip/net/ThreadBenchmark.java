@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.net;
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.mjsip.media.RtpStreamSender;
+import org.zoolu.net.IpAddress;
+import org.zoolu.net.TcpConnection;
+import org.zoolu.net.TcpConnectionListener;
+import org.zoolu.net.TcpServer;
+import org.zoolu.net.TcpServerListener;
+import org.zoolu.net.TcpSocket;
+import org.zoolu.net.UdpPacket;
+import org.zoolu.net.UdpProvider;
+import org.zoolu.net.UdpProviderListener;
+import org.zoolu.net.UdpSocket;
+import org.zoolu.util.Flags;
+import org.zoolu.util.ThreadFactory;
+
+
+/** ThreadBenchmark measures how many idle TCP connections and RTP streams one JVM can hold,
+  * using either platform threads or virtual threads (see {@link ThreadFactory}).
+  * <p>
+  * In TCP mode, it opens TCP connections toward a local {@link TcpServer};
+  * each connection is served by two {@link TcpConnection} receivers (client and server side) that remain idle.
+  * <p>
+  * In RTP mode, it creates RTP streams toward local receivers;
+  * each stream is made of one {@link RtpStreamSender} sending silence every 20ms, and one {@link UdpProvider} receiving it.
+  * <p>
+  * Connections or streams are added until the given number is reached, or until resources are exhausted
+  * (e.g. no more threads or file descriptors can be created).
+  * The number of reached connections or streams, the heap usage, the resident memory, and the number of platform threads are printed
+  * every given step.
+  * Note that the number of file descriptors is limited by the OS (e.g. see 'ulimit -n').
+  * <p>
+  * Virtual threads require Java 21 or later; on older JVMs the '--virtual' mode prints a message and exits without measuring.
+  */
+public class ThreadBenchmark {
+	
+	/** RTP packet time [millisecs] */
+	static final int PACKET_TIME=20;
+
+	/** RTP payload size (PCMU, 20ms) */
+	static final int PAYLOAD_SIZE=160;
+
+	/** Started objects, to be halted at the end */
+	static Vector objects=new Vector();
+
+	/** Idle TCP connection listener */
+	static TcpConnectionListener tcp_conn_listener=new TcpConnectionListener() {
+		public void onReceivedData(TcpConnection tcp_conn, byte[] buff, int len) {}
+		public void onConnectionTerminated(TcpConnection tcp_conn, Exception error) {}
+	};
+
+	/** UDP listener that discards all received packets */
+	static UdpProviderListener udp_listener=new UdpProviderListener() {
+		public void onReceivedPacket(UdpProvider udp, UdpPacket packet) {}
+		public void onServiceTerminated(UdpProvider udp, Exception error) {}
+	};
+
+
+	/** Stream of silence (PCMU). */
+	static class SilenceInputStream extends InputStream {
+		public int read() {
+			return 0xff;
+		}
+		public int read(byte[] buf, int off, int len) {
+			Arrays.fill(buf,off,off+len,(byte)0xff);
+			return len;
+		}
+	}
+
+
+	/** Opens idle TCP connections.
+	  * @param n maximum number of connections
+	  * @param step number of connections between two reports
+	  * @return the number of opened connections */
+	static int runTcp(int n, int step) {
+		int count=0;
+		try {
+			TcpServer server=new TcpServer(new ServerSocket(0,1024),new TcpServerListener() {
+				public void onIncomingConnection(TcpServer tcp_server, TcpSocket socket) {
+					objects.addElement(new TcpConnection(socket,tcp_conn_listener));
+				}
+				public void onServerTerminated(TcpServer tcp_server, Exception error) {}
+			});
+			objects.addElement(server);
+			IpAddress localhost=IpAddress.getByName("127.0.0.1");
+			long start=System.currentTimeMillis();
+			while (count<n) {
+				objects.addElement(new TcpConnection(new TcpSocket(localhost,server.getPort()),tcp_conn_listener));
+				count++;
+				if (count%step==0) report("tcp connections",count,start);
+			}
+		}
+		catch (Throwable e) {
+			System.out.println("stopped after "+count+" tcp connections: "+e);
+		}
+		return count;
+	}
+
+
+	/** Creates RTP streams.
+	  * @param n maximum number of streams
+	  * @param step number of streams between two reports
+	  * @return the number of created streams */
+	static int runRtp(int n, int step) {
+		int count=0;
+		try {
+			long start=System.currentTimeMillis();
+			while (count<n) {
+				UdpProvider receiver=new UdpProvider(new UdpSocket(0),udp_listener);
+				objects.addElement(receiver);
+				RtpStreamSender sender=new RtpStreamSender(new SilenceInputStream(),true,0,8000,1,PACKET_TIME,PAYLOAD_SIZE,null,new UdpSocket(0),"127.0.0.1",receiver.getUdpSocket().getLocalPort(),null);
+				objects.addElement(sender);
+				sender.start();
+				count++;
+				if (count%step==0) report("rtp streams",count,start);
+			}
+		}
+		catch (Throwable e) {
+			System.out.println("stopped after "+count+" rtp streams: "+e);
+		}
+		return count;
+	}
+
+
+	/** Prints the current resource usage. */
+	static void report(String what, int count, long start) {
+		Runtime rt=Runtime.getRuntime();
+		long heap=(rt.totalMemory()-rt.freeMemory())/1024/1024;
+		long rss=getResidentMemory();
+		int threads=ManagementFactory.getThreadMXBean().getThreadCount();
+		System.out.println(what+": "+count+", time: "+(System.currentTimeMillis()-start)+"ms, heap: "+heap+"MB"+(rss>=0? ", rss: "+rss+"MB" : "")+", platform threads: "+threads);
+	}
+
+
+	/** Gets the resident memory of the process, if available (Linux only).
+	  * @return the resident memory [MB], or -1 if not available */
+	static long getResidentMemory() {
+		BufferedReader in=null;
+		try {
+			in=new BufferedReader(new FileReader("/proc/self/status"));
+			for (String line=in.readLine(); line!=null; line=in.readLine()) {
+				if (line.startsWith("VmRSS:")) return Long.parseLong(line.substring(6).trim().split("\\s+")[0])/1024;
+			}
+		}
+		catch (Exception e) {}
+		finally {
+			if (in!=null) try {  in.close();  } catch (Exception e) {}
+		}
+		return -1;
+	}
+
+
+	/** Halts all started objects. */
+	static void haltAll() {
+		for (int i=0; i<objects.size(); i++) {
+			Object obj=objects.elementAt(i);
+			if (obj instanceof TcpConnection) ((TcpConnection)obj).halt();
+			else
+			if (obj instanceof TcpServer) ((TcpServer)obj).halt();
+			else
+			if (obj instanceof UdpProvider) ((UdpProvider)obj).halt();
+			else
+			if (obj instanceof RtpStreamSender) ((RtpStreamSender)obj).halt();
+		}
+		objects.removeAllElements();
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		boolean virtual_threads=flags.getBoolean("--virtual","uses virtual threads (Java 21 or later)");
+		int n_tcp=flags.getInteger("--tcp",0,"<n>","opens up to n idle TCP connections");
+		int n_rtp=flags.getInteger("--rtp",0,"<n>","creates up to n RTP streams");
+		int step=flags.getInteger("--step",1000,"<n>","number of connections or streams between two reports");
+		int hold_time=flags.getInteger("--hold",10,"<secs>","time the connections or streams are held before the final report");
+		
+		if (help || (n_tcp<=0 && n_rtp<=0)) {
+			System.out.println(flags.toUsageString(ThreadBenchmark.class.getName()));
+			return;
+		}
+		// else
+		if (!ThreadFactory.setVirtualThreads(virtual_threads)) {
+			System.out.println("virtual threads are not supported by this JVM ("+System.getProperty("java.version")+")");
+			return;
+		}
+		// else
+		RtpStreamSender.DEBUG=false;
+		System.out.println("mode: "+(virtual_threads? "virtual threads" : "platform threads")+", java "+System.getProperty("java.version")+", max heap: "+(Runtime.getRuntime().maxMemory()/1024/1024)+"MB");
+		if (n_tcp>0) {
+			long start=System.currentTimeMillis();
+			int count=runTcp(n_tcp,step);
+			try {  Thread.sleep(hold_time*1000L);  } catch (InterruptedException e) {}
+			report("idle tcp connections",count,start);
+			haltAll();
+		}
+		if (n_rtp>0) {
+			long start=System.currentTimeMillis();
+			int count=runRtp(n_rtp,step);
+			try {  Thread.sleep(hold_time*1000L);  } catch (InterruptedException e) {}
+			report("rtp streams",count,start);
+			haltAll();
+		}
+		System.exit(0);
+	}
+
+}
@@ -27,6 +27,7 @@ import java.util.Vector;
 
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpPacket;
+import org.zoolu.util.ThreadFactory;
 
 
 /** UdpMultiRelay implements an UDP multiple relay agent. 
@@ -45,7 +46,7 @@ import org.zoolu.net.UdpPacket;
   *   <li> filtered: packets are not sent to the same node they come from</li>
   * </ul>
   */
-public class UdpMultiRelay extends Thread {
+public class UdpMultiRelay implements Runnable {
 	
 	/** Local socket */
 	UdpConnectedSocket socket;  
@@ -67,6 +68,8 @@ public class UdpMultiRelay extends Thread {
 
 	/** Whether it is running */
 	boolean stop;
+	/** Thread running the relay, or <i>null</i> if not started yet */
+	Thread thread=null;
 	/** Maximum time that the UDP relay can remain active after been halted */
 	int socket_to=3000; // 3sec 
 
@@ -98,6 +101,17 @@ public class UdpMultiRelay extends Thread {
 		stop=false;
 	}
 
+	/** Starts the relay thread. It has no effect if the thread has been already started. */
+	public synchronized void start() {
+		if (thread==null) thread=ThreadFactory.start(this,"UdpMultiRelay");
+	}
+
+	/** Gets the thread running the relay, or <i>null</i> if not started yet.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
+
 	/** Gets the recv socket */
 	public UdpConnectedSocket getSocket() {
 		return socket;
@@ -27,13 +27,14 @@ import java.io.InterruptedIOException;
 import org.zoolu.net.IpAddress;
 import org.zoolu.net.UdpPacket;
 import org.zoolu.net.UdpSocket;
+import org.zoolu.util.ThreadFactory;
 
 
 /** UdpRelay implements a direct UDP datagram relay agent. 
   * It receives UDP packets at a local port and relays them toward a remote UDP socket
   * (destination address/port).
   */
-public class UdpRelay extends Thread {
+public class UdpRelay implements Runnable {
 	
 	// The maximum IP packet size
 	//public static final int MAX_PKT_SIZE=2000;
@@ -51,6 +52,8 @@ public class UdpRelay extends Thread {
 	int dest_port;  
 	/** Whether it is running */
 	boolean stop;
+	/** Thread running the relay, or <i>null</i> if not started yet */
+	Thread thread=null;
 	/** Maximum time that the UDP relay can remain active after been halted (in milliseconds) */
 	int socket_to=3000; // 3sec 
 	/** Maximum time that the UDP relay remains active without receiving UDP datagrams (in seconds) */
@@ -85,6 +88,17 @@ public class UdpRelay extends Thread {
 		stop=false;
 	}
 
+	/** Starts the relay thread. It has no effect if the thread has been already started. */
+	public synchronized void start() {
+		if (thread==null) thread=ThreadFactory.start(this,"UdpRelay-"+local_port);
+	}
+
+	/** Gets the thread running the relay, or <i>null</i> if not started yet.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
+
 	/** Gets the local receiver/sender port */
 	public int getLocalPort() {
 		return local_port;
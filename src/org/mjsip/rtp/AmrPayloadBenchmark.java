@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.zoolu.sound.codec.AMR;
+import org.zoolu.util.BitString;
+import org.zoolu.util.BitStringBuffer;
+import org.zoolu.util.Flags;
+
+
+/** AmrPayloadBenchmark compares the word-level bit packing of {@link AmrRtpPayloadFormat}
+  * in Bandwidth-Efficient mode with the previous packing based on {@link BitString} and {@link BitStringBuffer}.
+  * <p>
+  * It first checks, for all AMR speech modes, that both packers produce the same formatted payload
+  * and the same unformatted frame; then it measures the time of one format+unformat round trip
+  * of a single-frame payload, for both packers.
+  */
+public class AmrPayloadBenchmark {
+	
+	/** Creates a random frame in storage format (header byte followed by the speech bits, with zero padding). */
+	static byte[] createFrame(int mode, Random random) {
+		byte[] frame=new byte[AMR.frameSize(mode)];
+		random.nextBytes(frame);
+		frame[0]=(byte)((mode<<3)|0x04);
+		int bit_len=AMR.framePayloadBitSize(mode);
+		int pad=(frame.length-1)*8-bit_len;
+		if (pad>0) frame[frame.length-1]&=(byte)(0xff<<pad);
+		return frame;
+	}
+
+
+	/** Applies the Bandwidth-Efficient format using the previous BitString-based packer. */
+	static int legacySetRtpPayloadFormat(byte[] buf, int off, int len) {
+		BitStringBuffer bb=new BitStringBuffer();
+		BitString cmr=new BitString(new byte[]{(byte)AmrRtpPayloadFormat.DEFAULT_CMR},false).substring(4,8);
+		bb.append(cmr);
+		int hdr=buf[off];
+		int type=(hdr>>3)&0xf;
+		BitString toc=new BitString(new byte[]{(byte)((type<<1)|0x1)},false).substring(2,8);
+		bb.append(toc);
+		bb.append(new BitString(buf,off+1,len-1,false));
+		int frame_bit_len=AMR.framePayloadBitSize(type);
+		bb=bb.substring(0,10+frame_bit_len);
+		return bb.toBitString().getBytes(buf,off,false);
+	}
+
+
+	/** Removes the Bandwidth-Efficient format using the previous BitString-based packer. */
+	static int legacyRemoveRtpPayloadFormat(byte[] buf, int off, int len) {
+		BitStringBuffer bb=new BitStringBuffer().append(new BitString(buf,off,len,false));
+		bb.poll(4);
+		int hdr=bb.poll(6).toBitString().getBytes(false)[0];
+		int type=(hdr>>3)&0xf;
+		int frame_bit_len=AMR.framePayloadBitSize(type);
+		if (frame_bit_len==0) return 0;
+		// else
+		byte[] data=bb.poll(frame_bit_len).toBitString().getBytes(false);
+		buf[off]=(byte)hdr;
+		for (int i=0; i<data.length; i++) buf[off+1+i]=data[i];
+		return data.length+1;
+	}
+
+
+	/** Checks that the two packers give the same results for all speech modes.
+	  * @return true if the check succeeded */
+	static boolean check(Random random) throws Exception {
+		AmrRtpPayloadFormat format=new AmrRtpPayloadFormat(true);
+		boolean ok=true;
+		for (int mode=AMR.M0_0475; mode<=AMR.M7_1220; mode++) {
+			byte[] frame=createFrame(mode,random);
+			byte[] a=new byte[64];
+			byte[] b=new byte[64];
+			System.arraycopy(frame,0,a,0,frame.length);
+			System.arraycopy(frame,0,b,0,frame.length);
+			int a_len=format.setRtpPayloadFormat(a,0,frame.length);
+			int b_len=legacySetRtpPayloadFormat(b,0,frame.length);
+			boolean formatted=(a_len==b_len && Arrays.equals(Arrays.copyOf(a,a_len),Arrays.copyOf(b,b_len)));
+			a_len=format.removeRtpPayloadFormat(a,0,a_len);
+			b_len=legacyRemoveRtpPayloadFormat(b,0,b_len);
+			boolean unformatted=(a_len==frame.length && Arrays.equals(Arrays.copyOf(a,a_len),frame) && b_len==a_len && Arrays.equals(Arrays.copyOf(b,b_len),frame));
+			System.out.println("mode "+mode+" ("+frame.length+" bytes): format "+(formatted? "OK" : "FAILED")+", unformat "+(unformatted? "OK" : "FAILED"));
+			ok&=formatted && unformatted;
+		}
+		return ok;
+	}
+
+
+	/** Measures the round trip time of a packer.
+	  * @return the time per frame [nanosecs] */
+	static long run(boolean legacy, byte[] frame, int n) throws Exception {
+		AmrRtpPayloadFormat format=new AmrRtpPayloadFormat(true);
+		byte[] buf=new byte[64];
+		long start=0;
+		for (int i=-n/10; i<n; i++) {
+			// the first tenth of the frames is used for warm-up
+			if (i==0) start=System.nanoTime();
+			System.arraycopy(frame,0,buf,0,frame.length);
+			if (legacy) legacyRemoveRtpPayloadFormat(buf,0,legacySetRtpPayloadFormat(buf,0,frame.length));
+			else format.removeRtpPayloadFormat(buf,0,format.setRtpPayloadFormat(buf,0,frame.length));
+		}
+		return (System.nanoTime()-start)/n;
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) throws Exception {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n=flags.getInteger("-n",1000000,"<n>","number of frames");
+		int mode=flags.getInteger("--mode",AMR.M7_1220,"<mode>","AMR mode (0-7) of the measured frames");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(AmrPayloadBenchmark.class.getName()));
+			return;
+		}
+		// else
+		Random random=new Random(0);
+		if (!check(random)) {
+			System.out.println("the two packers give different results");
+			System.exit(1);
+		}
+		// else
+		byte[] frame=createFrame(mode,random);
+		long legacy_time=run(true,frame,n);
+		long time=run(false,frame,n);
+		System.out.println("mode "+mode+", format+unformat round trip of one frame:");
+		System.out.println("BitString packer: "+legacy_time+" ns");
+		System.out.println("word-level packer: "+time+" ns ("+(time>0? legacy_time/time : 0)+"x)");
+	}
+
+}
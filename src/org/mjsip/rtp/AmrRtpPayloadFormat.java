@@ -24,13 +24,20 @@ package org.mjsip.rtp;
 
 
 import org.zoolu.sound.codec.AMR;
-import org.zoolu.util.BitString;
-import org.zoolu.util.BitStringBuffer;
+import org.zoolu.util.BitReader;
+import org.zoolu.util.BitWriter;
 
 
 
 /** It provides methods for adding and removing AMR RTP payload format (according to RFC 4867).
   * Both Bandwidth-Efficient and Octet-Aligned format modes are supported.
+  * <p>
+  * In Bandwidth-Efficient mode, payloads with more than one frame (i.e. with a chain of ToC entries)
+  * are supported in both directions. The unformatted payload is a sequence of AMR frames
+  * in storage format, i.e. each frame is preceded by one header byte with the frame type.
+  * <p>
+  * Formatting and unformatting use separate internal buffers, so that the same AmrRtpPayloadFormat
+  * can be shared by one sender thread and one receiver thread.
   */
 public class AmrRtpPayloadFormat implements RtpPayloadFormat {
 	
@@ -45,6 +52,24 @@ public class AmrRtpPayloadFormat implements RtpPayloadFormat {
 	/** Codec mode request (CMR) field */
 	//short cmr;
 
+	/** Bit reader used for removing the RTP payload format */
+	BitReader reader=new BitReader();
+
+	/** Buffer used for removing the RTP payload format */
+	byte[] rx_buffer=new byte[64];
+
+	/** ToC entries of the received payload */
+	int[] rx_toc=new int[8];
+
+	/** Bit writer used for applying the RTP payload format */
+	BitWriter writer=new BitWriter();
+
+	/** Buffer used for applying the RTP payload format */
+	byte[] tx_buffer=new byte[64];
+
+	/** Offsets of the frames of the payload to be sent */
+	int[] tx_frames=new int[8];
+
 
 
 	/** Creates a AmrRtpPayloadFormat.
@@ -111,24 +136,42 @@ public class AmrRtpPayloadFormat implements RtpPayloadFormat {
 	  * @param off the offset within the RTP payload buffer
 	  * @param len the number of bytes of the received (formatted) RTP payload.
 	  * @return the number of bytes after removing the RTP payload format */
-	private static int removeRtpPayloadFormatBandwidthEfficient(byte[] buf, int off, int len) throws Exception {
-		BitStringBuffer bb=new BitStringBuffer().append(new BitString(buf,off,len,false));
-		int cmr=(bb.poll(4).toBitString().getBytes(false)[0]&0xf0)>>4;
-		int hdr=bb.poll(6).toBitString().getBytes(false)[0];
-		int type=(hdr>>3)&0xf;
-		int frame_bit_len=AMR.framePayloadBitSize(type);
-		if (frame_bit_len==0) return 0;
-		// else
-		byte[] data=bb.poll(frame_bit_len).toBitString().getBytes(false);
-		//int pad_len=(8-(frame_bit_len+10)%8)%8;
-		//bb.poll(pad_len);
-		//System.out.println("CMR="+cmr+", TF="+type+", pad="+pad_len+", data="+org.zoolu.util.ByteUtils.asHex(data));
-
-		//if (type>=8 || data.length==0) return 0; // AMR SID (comfort noise)
+	private int removeRtpPayloadFormatBandwidthEfficient(byte[] buf, int off, int len) throws Exception {
+		// the unformatted payload may be longer than the formatted one, so read from a copy
+		if (rx_buffer.length<len) rx_buffer=new byte[len];
+		System.arraycopy(buf,off,rx_buffer,0,len);
+		reader.init(rx_buffer,0,len);
+		if (reader.available()<10) return 0;
 		// else
-		buf[off]=(byte)hdr;
-		for (int i=0; i<data.length; i++) buf[off+1+i]=data[i];
-		return data.length+1;
+		reader.skip(4); // CMR
+		// ToC
+		int frame_count=0;
+		int toc;
+		do {
+			if (reader.available()<6) return 0;
+			// else
+			toc=reader.read(6);
+			if (frame_count==rx_toc.length) {
+				int[] aux=new int[frame_count*2];
+				System.arraycopy(rx_toc,0,aux,0,frame_count);
+				rx_toc=aux;
+			}
+			rx_toc[frame_count++]=toc;
+		}
+		while ((toc&0x20)!=0);
+		// speech frames
+		int index=off;
+		for (int i=0; i<frame_count; i++) {
+			int type=(rx_toc[i]>>1)&0xf;
+			int frame_bit_len=AMR.framePayloadBitSize(type);
+			if (frame_bit_len==0) continue; // no data
+			// else
+			if (reader.available()<frame_bit_len) break;
+			// else
+			buf[index++]=(byte)((type<<3)|((rx_toc[i]&0x1)<<2));
+			index+=reader.readBytes(buf,index,frame_bit_len);
+		}
+		return index-off;
 	}
 
 
@@ -137,19 +180,42 @@ public class AmrRtpPayloadFormat implements RtpPayloadFormat {
 	  * @param off the offset within the RTP payload buffer
 	  * @param len the number of bytes of the original (unformatted) RTP payload.
 	  * @return the number of bytes after additional RTP payload format has been applied */
-	private static int setRtpPayloadFormatBandwidthEfficient(byte[] buf, int off, int len) {
-		BitStringBuffer bb=new BitStringBuffer();
-		//BitString cmr=new BitString("1111"); // no specific mode
-		BitString cmr=new BitString(new byte[]{(byte)DEFAULT_CMR},false).substring(4,8);
-		bb.append(cmr);
-		int hdr=buf[off];
-		int type=(hdr>>3)&0xf;
-		BitString toc=new BitString(new byte[]{(byte)((type<<1)|0x1)},false).substring(2,8);
-		bb.append(toc);
-		bb.append(new BitString(buf,off+1,len-1,false));
-		int frame_bit_len=AMR.framePayloadBitSize(type);
-		bb=bb.substring(0,10+frame_bit_len);
-		return bb.toBitString().getBytes(buf,off,false);
+	private int setRtpPayloadFormatBandwidthEfficient(byte[] buf, int off, int len) {
+		// the formatted payload may be longer than the unformatted one, so read from a copy
+		if (tx_buffer.length<len) tx_buffer=new byte[len];
+		System.arraycopy(buf,off,tx_buffer,0,len);
+		// find frame boundaries
+		int frame_count=0;
+		for (int index=0; index<len; ) {
+			int frame_size=AMR.frameSize((tx_buffer[index]>>3)&0xf);
+			if (frame_count>0 && (frame_size==0 || index+frame_size>len)) break;
+			// else
+			if (frame_count==tx_frames.length) {
+				int[] aux=new int[frame_count*2];
+				System.arraycopy(tx_frames,0,aux,0,frame_count);
+				tx_frames=aux;
+			}
+			tx_frames[frame_count++]=index;
+			if (frame_size==0) break;
+			// else
+			index+=frame_size;
+		}
+		writer.init(buf,off);
+		writer.write(DEFAULT_CMR,4);
+		// ToC
+		for (int i=0; i<frame_count; i++) {
+			int type=(tx_buffer[tx_frames[i]]>>3)&0xf;
+			int follow=(i<frame_count-1)? 0x20 : 0;
+			writer.write(follow|(type<<1)|0x1,6);
+		}
+		// speech frames
+		for (int i=0; i<frame_count; i++) {
+			int type=(tx_buffer[tx_frames[i]]>>3)&0xf;
+			int frame_bit_len=AMR.framePayloadBitSize(type);
+			int available_bit_len=(len-tx_frames[i]-1)<<3;
+			writer.writeBytes(tx_buffer,tx_frames[i]+1,(frame_bit_len<available_bit_len)? frame_bit_len : available_bit_len);
+		}
+		return writer.getByteLength();
 	}
 
 
@@ -170,8 +236,16 @@ public class AmrRtpPayloadFormat implements RtpPayloadFormat {
 			case 32 : return 32; // AMR_1220: 244+10 bits / 8
 			case 6 : return 7;   // AMR_SID (comfort noise): 39+10 bits / 8
 			case 1 : return 2;   // AMR_NO_DATA: 0+10 bits / 8
-			default : return len+1;
 		}
+		// multiple frames of the same mode
+		for (int mode=AMR.M7_1220; mode>=AMR.M0_0475; mode--) {
+			int frame_size=AMR.frameSize(mode);
+			if (len%frame_size==0) {
+				int frame_count=len/frame_size;
+				return (4+frame_count*(6+AMR.framePayloadBitSize(mode))+7)/8;
+			}
+		}
+		return len+1;
 	}
 
 
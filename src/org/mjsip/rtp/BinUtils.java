@@ -40,13 +40,13 @@ class BinUtils {
 
 	/** Gets bit value. */
 	static boolean getBit(byte b, int bit) {
-		return (b>>bit)==1;
+		return ((b>>bit)&0x01)==1;
 	}
 
-	/** Sets bit value. */
-	static void setBit(boolean value, byte b, int bit) {
-		if (value) b=(byte)(b|(1<<bit));
-		else b=(byte)((b|(1<<bit))^(1<<bit));
+	/** Sets bit value of the byte at the given index. */
+	static void setBit(boolean value, byte[] data, int index, int bit) {
+		if (value) data[index]=(byte)(data[index]|(1<<bit));
+		else data[index]=(byte)(data[index]&~(1<<bit));
 	}
 
 }
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+
+
+/** Goodbye (BYE) RTCP packet, as defined in RFC 3550.
+  * It indicates that one or more sources are no longer active.
+  */
+public class ByeRtcpPacket extends RtcpPacket {
+	
+	/** Header length */
+	private static final int BYE_HDR_LEN=4;
+
+
+
+	/** Creates a new BYE RTCP packet.
+	  * @param rp the RTCP BYE packet */
+	public ByeRtcpPacket(RtcpPacket rp) {
+		super(rp.buffer,rp.offset);
+	}
+
+	/** Creates a new BYE RTCP packet.
+	  * @param buffer buffer containing the RTCP BYE packet */
+	public ByeRtcpPacket(byte[] buffer) {
+		super(buffer);
+	}
+
+	/** Creates a new BYE RTCP packet. 
+	  * @param buffer buffer containing the RTCP BYE packet
+	  * @param offset packet offset within the buffer */ 
+	public ByeRtcpPacket(byte[] buffer, int offset) {
+		super(buffer,offset);
+	}
+
+	/** Creates a new BYE RTCP packet. 
+	  * @param ssrc the SSRC identifier of the source that is leaving */
+	public ByeRtcpPacket(long ssrc) {
+		this(new long[]{ ssrc },null);
+	}
+
+	/** Creates a new BYE RTCP packet. 
+	  * @param ssrcs SSRC/CSRC identifiers of the sources that are leaving
+	  * @param reason reason for leaving (optional) */
+	public ByeRtcpPacket(long[] ssrcs, String reason) {
+		super((byte[])null);
+		byte[] reason_bytes=(reason!=null)? reason.getBytes() : null;
+		int len=BYE_HDR_LEN+4*ssrcs.length;
+		if (reason_bytes!=null) len+=((reason_bytes.length+1+3)/4)*4;
+		buffer=new byte[len];
+		offset=0;
+		setVersion(2);
+		setSourceCount(ssrcs.length);
+		setPayloadType(PT_BYE);
+		setPacketLength(len);
+		int index=BYE_HDR_LEN;
+		for (int i=0; i<ssrcs.length; i++) {
+			BinUtils.setLong(ssrcs[i],buffer,index,index+4);
+			index+=4;
+		}
+		if (reason_bytes!=null) {
+			buffer[index++]=(byte)reason_bytes.length;
+			System.arraycopy(reason_bytes,0,buffer,index,reason_bytes.length);
+		}
+	}
+
+
+	/** Gets the source count (SC). */
+	protected int getSourceCount() {
+		return (buffer[offset] & 0x1F);
+	}
+
+
+	/** Sets the source count (SC).
+	  * @param sc the number of SSRC/CSRC identifiers included in this BYE packet */
+	protected void setSourceCount(int sc) {
+		buffer[offset]=(byte)(((buffer[offset]>>5)<<5)+sc);
+	}
+
+
+	/** Gets the SSRC/CSRC identifiers.
+	  * @return the identifiers of the sources that are leaving */
+	public long[] getSSRCs() {
+		long[] ssrcs=new long[getSourceCount()];
+		int begin=offset+BYE_HDR_LEN;
+		for (int i=0; i<ssrcs.length; i++, begin+=4) ssrcs[i]=BinUtils.getLong(buffer,begin,begin+4);
+		return ssrcs;
+	}
+
+
+	/** Gets the reason for leaving.
+	  * @return the reason, or <i>null</i> if not present */
+	public String getReason() {
+		int begin=offset+BYE_HDR_LEN+4*getSourceCount();
+		int end=offset+getPacketLength()-getPaddingLength();
+		if (begin>=end) return null;
+		// else
+		int len=buffer[begin]&0xFF;
+		if (len==0 || begin+1+len>end) return null;
+		// else
+		return new String(buffer,begin+1,len);
+	}
+
+
+	/** Gets a string representation of this object.
+	  * @return a string representing this object. */
+	public String toString() {
+		StringBuffer sb=new StringBuffer();
+		long[] ssrcs=getSSRCs();
+		sb.append("ssrcs=[");
+		for (int i=0; i<ssrcs.length; i++) {
+			if (i>0) sb.append(",");
+			sb.append(ssrcs[i]);
+		}
+		sb.append("]");
+		String reason=getReason();
+		if (reason!=null) sb.append(",reason=").append(reason);
+		return sb.toString();
+	}
+
+}
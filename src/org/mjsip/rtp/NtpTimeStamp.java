@@ -106,6 +106,15 @@ public class NtpTimeStamp implements Comparable<NtpTimeStamp> {
 	}
 	
 	
+	/** Gets the compact NTP time, that is the middle 32 bits of the NTP timestamp
+	  * (the low 16 bits of the integer part and the high 16 bits of the fractional part).
+	  * It is the format used by the LSR and DLSR fields of RTCP reception reports.
+	  * @return the compact NTP time, in units of 1/65536 seconds */
+	public long getCompactNtpTime() {
+		return ((seconds&0xffffL)<<16) | ((fraction>>>16)&0xffffL);
+	}
+	
+	
 	/** Gets the timestamp time (in Java format, thati is from Java epoch time January 1, 1970).
 	  * It returns the correct time only until February 26, 2014, at 9h:42m:23s GMT;
 	  * after this date the time wraps and goes back to January 20, 1968, at 4h:14m:8s  GMT.
@@ -38,7 +38,7 @@ public class RrRtcpPacket extends RtcpPacket {
 	static final int REPORT_BLOCK_LEN=24;
 
 	/** Gets the relative reception report offset. */
-	protected static int receptionReportOffset() {
+	protected int receptionReportOffset() {
 		return HDR_LEN;
 	}
 
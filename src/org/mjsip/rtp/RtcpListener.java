@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+
+
+/** Listener for RtpControl events.
+  * It is notified of the parsed RTCP packets received from the remote end.
+  */
+public interface RtcpListener {
+	
+	/** When a new Sender Report (SR) is received. */
+	public void onReceivedSenderReport(RtpControl rtp_control, SrRtcpPacket sr_packet);
+
+	/** When a new Receiver Report (RR) is received. */
+	public void onReceivedReceiverReport(RtpControl rtp_control, RrRtcpPacket rr_packet);
+
+	/** When a new Source Description (SDES) packet is received. */
+	public void onReceivedSourceDescription(RtpControl rtp_control, SdesRtcpPacket sdes_packet);
+
+	/** When a new Goodbye (BYE) packet is received. */
+	public void onReceivedBye(RtpControl rtp_control, ByeRtcpPacket bye_packet);
+
+}
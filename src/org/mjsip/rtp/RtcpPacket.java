@@ -120,9 +120,9 @@ public class RtcpPacket {
 		if (padding_len>0)  {
 			for (int i=1; i<padding_len; i++) buffer[offset+getPacketLength()-1-i]=0;
 			buffer[offset+getPacketLength()-1]=(byte)padding_len;
-			BinUtils.setBit(true,buffer[offset],5);
+			BinUtils.setBit(true,buffer,offset,5);
 		}
-		else BinUtils.setBit(false,buffer[offset],5);
+		else BinUtils.setBit(false,buffer,offset,5);
 	}
 
 
@@ -141,13 +141,13 @@ public class RtcpPacket {
 	/** Gets the RTCP packet length.
 	  * @return the RTCP packet length including the header and any padding */   
 	public int getPacketLength() {
-		return (BinUtils.getInt(buffer,2,4)+1)*4;
+		return (BinUtils.getInt(buffer,offset+2,offset+4)+1)*4;
 	}
 
 	/** Sets the RTCP packet length.
 	  * @param len the RTCP packet length including the header and any padding */   
 	public void setPacketLength(int len) {
-		BinUtils.setInt(len/4-1,buffer,2,4);
+		BinUtils.setInt(len/4-1,buffer,offset+2,offset+4);
 	}
 
 	
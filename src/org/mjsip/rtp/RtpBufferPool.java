@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import org.zoolu.util.ExceptionPrinter;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+
+
+/** RtpBufferPool is a pool of equally sized byte buffers, used for receiving and sending RTP packets
+  * without allocating a new buffer for each packet or stream.
+  * <p>
+  * Buffers are borrowed through {@link #borrow()} and must be explicitly returned through {@link #release(byte[])}.
+  * At most {@link #MAX_FREE_BUFFERS} returned buffers are kept for later reuse.
+  * <p>
+  * In debug mode (see {@link #DEBUG}) the pool records where, when, and by which owner each buffer has been borrowed,
+  * detects buffers that are released twice, and reports buffers that have not been returned (see {@link #checkLeaks(long)}).
+  * A buffer borrowed through {@link #borrow(Object)} is reported only if it is still borrowed after its owner
+  * has declared its termination through {@link #terminated(Object)}, so buffers held by active streams are not reported.
+  * The debug mode and a periodic check of all shared pools can be enabled through {@link #startLeakCheck(long,long)}.
+  */
+public class RtpBufferPool {
+	
+	/** Whether working in debug mode (leak detection) */
+	public static boolean DEBUG=false;
+
+	/** Maximum number of free buffers kept by each pool */
+	public static int MAX_FREE_BUFFERS=256;
+
+	/** Shared pools (buffer size --> RtpBufferPool) */
+	static Hashtable pools=new Hashtable();
+
+	/** Timer of the periodic leak check, or <i>null</i> */
+	static Timer leak_check_timer=null;
+
+
+	/** Borrowing information of a buffer (debug mode only). */
+	static class Borrowing extends Exception {
+		/** Serial version UID */
+		private static final long serialVersionUID=1L;
+
+		/** Borrowing time [millisecs] */
+		long time;
+
+		/** Owner of the buffer, or <i>null</i> */
+		Object owner;
+
+		/** Termination time of the owner [millisecs], or 0 if the owner has not terminated */
+		long terminated=0;
+
+		/** Creates a new Borrowing. */
+		Borrowing(int size, Object owner) {
+			super("RTP buffer of "+size+" bytes borrowed here"+((owner!=null)? " by "+owner.getClass().getSimpleName() : ""));
+			time=System.currentTimeMillis();
+			this.owner=owner;
+		}
+	}
+
+
+	/** Buffer size */
+	int buffer_size;
+
+	/** Free buffers */
+	byte[][] free_buffers;
+
+	/** Number of free buffers */
+	int free_count=0;
+
+	/** Number of borrowed buffers that have not been returned yet */
+	int borrowed_count=0;
+
+	/** Total number of allocated buffers */
+	long alloc_count=0;
+
+	/** Total number of borrow requests */
+	long borrow_count=0;
+
+	/** Borrowed buffers (buffer --> Borrowing), in debug mode only */
+	IdentityHashMap borrowings=new IdentityHashMap();
+
+
+
+	/** Gets the shared pool of buffers of a given size.
+	  * @param buffer_size the buffer size
+	  * @return the pool */
+	public static synchronized RtpBufferPool getPool(int buffer_size) {
+		Integer key=Integer.valueOf(buffer_size);
+		RtpBufferPool pool=(RtpBufferPool)pools.get(key);
+		if (pool==null) {
+			pool=new RtpBufferPool(buffer_size,MAX_FREE_BUFFERS);
+			pools.put(key,pool);
+		}
+		return pool;
+	}
+
+
+	/** Checks all shared pools for buffers that have not been returned (see {@link #checkLeaks(long)}).
+	  * @param min_age the minimum time since the owner terminated, or since the buffers have been borrowed [millisecs]
+	  * @return the number of buffers found */
+	public static synchronized int checkAllLeaks(long min_age) {
+		int n=0;
+		for (Enumeration e=pools.elements(); e.hasMoreElements(); ) n+=((RtpBufferPool)e.nextElement()).checkLeaks(min_age);
+		return n;
+	}
+
+
+	/** Declares that the owner of some buffers has terminated (debug mode only).
+	  * Buffers of this owner that are still borrowed are then reported by the leak check.
+	  * It has to be called by the owner after releasing its buffers.
+	  * @param owner the owner passed to {@link #borrow(Object)} */
+	public static synchronized void terminated(Object owner) {
+		if (!DEBUG) return;
+		// else
+		for (Enumeration e=pools.elements(); e.hasMoreElements(); ) ((RtpBufferPool)e.nextElement()).setTerminated(owner);
+	}
+
+
+	/** Enables the debug mode and periodically checks all shared pools for buffers that have not been returned.
+	  * Only buffers borrowed after this method is called are tracked.
+	  * @param period the time between two checks [millisecs]
+	  * @param min_age the minimum time since the owner terminated, or since the buffers have been borrowed [millisecs] */
+	public static synchronized void startLeakCheck(final long period, final long min_age) {
+		stopLeakCheck();
+		DEBUG=true;
+		TimerListener listener=new TimerListener() {
+			public void onTimeout(Timer t) {
+				synchronized (RtpBufferPool.class) {
+					if (t!=leak_check_timer) return;
+					// else
+					checkAllLeaks(min_age);
+					leak_check_timer=new Timer(period,this);
+					leak_check_timer.start(true);
+				}
+			}
+		};
+		leak_check_timer=new Timer(period,listener);
+		leak_check_timer.start(true);
+	}
+
+
+	/** Stops the periodic leak check. */
+	public static synchronized void stopLeakCheck() {
+		if (leak_check_timer!=null) {
+			leak_check_timer.halt();
+			leak_check_timer=null;
+		}
+	}
+
+
+	/** Creates a new RtpBufferPool.
+	  * @param buffer_size the buffer size
+	  * @param max_free the maximum number of free buffers kept for reuse */
+	public RtpBufferPool(int buffer_size, int max_free) {
+		this.buffer_size=buffer_size;
+		free_buffers=new byte[max_free][];
+	}
+
+
+	/** Gets the buffer size. */
+	public int getBufferSize() {
+		return buffer_size;
+	}
+
+
+	/** Borrows a buffer.
+	  * The buffer has to be returned through {@link #release(byte[])}.
+	  * @return the buffer */
+	public byte[] borrow() {
+		return borrow(null);
+	}
+
+
+	/** Borrows a buffer on behalf of an owner, that is a stream or a socket that holds the buffer until it terminates.
+	  * The buffer has to be returned through {@link #release(byte[])}, and then the owner has to call {@link #terminated(Object)}.
+	  * @param owner the owner of the buffer, or <i>null</i>
+	  * @return the buffer */
+	public synchronized byte[] borrow(Object owner) {
+		byte[] buf;
+		if (free_count>0) {
+			buf=free_buffers[--free_count];
+			free_buffers[free_count]=null;
+		}
+		else {
+			buf=new byte[buffer_size];
+			alloc_count++;
+		}
+		borrow_count++;
+		borrowed_count++;
+		if (DEBUG) borrowings.put(buf,new Borrowing(buffer_size,owner));
+		return buf;
+	}
+
+
+	/** Returns a buffer to the pool.
+	  * The buffer must not be used after it has been returned.
+	  * @param buf the buffer */
+	public synchronized void release(byte[] buf) {
+		if (buf==null || buf.length!=buffer_size) throw new IllegalArgumentException("Not a buffer of this pool");
+		// else
+		if (DEBUG && borrowings.remove(buf)==null && isFree(buf)) {
+			log(LoggerLevel.WARNING,ExceptionPrinter.getStackTraceOf(new IllegalStateException("RTP buffer released twice")));
+			return;
+		}
+		// else
+		// a buffer that is not tracked may have been borrowed before the debug mode was enabled
+		// else
+		borrowed_count--;
+		if (free_count<free_buffers.length) free_buffers[free_count++]=buf;
+	}
+
+
+	/** Whether a buffer is among the free buffers. */
+	private boolean isFree(byte[] buf) {
+		for (int i=0; i<free_count; i++) if (free_buffers[i]==buf) return true;
+		// else
+		return false;
+	}
+
+
+	/** Marks the borrowings of a given owner as terminated. */
+	private synchronized void setTerminated(Object owner) {
+		long now=System.currentTimeMillis();
+		for (Iterator i=borrowings.values().iterator(); i.hasNext(); ) {
+			Borrowing borrowing=(Borrowing)i.next();
+			if (borrowing.owner==owner && borrowing.terminated==0) borrowing.terminated=now;
+		}
+	}
+
+
+	/** Gets the number of borrowed buffers that have not been returned yet. */
+	public synchronized int getBorrowedCount() {
+		return borrowed_count;
+	}
+
+
+	/** Gets the number of free buffers. */
+	public synchronized int getFreeCount() {
+		return free_count;
+	}
+
+
+	/** Gets the total number of allocated buffers.
+	  * In steady state this value does not change. */
+	public synchronized long getAllocatedCount() {
+		return alloc_count;
+	}
+
+
+	/** Gets the total number of borrow requests. */
+	public synchronized long getBorrowCounter() {
+		return borrow_count;
+	}
+
+
+	/** Reports the buffers that have been borrowed and not returned yet (debug mode only).
+	  * Buffers that have an owner are reported only if the owner terminated at least <i>min_age</i> before;
+	  * buffers without owner are reported if they have been borrowed at least <i>min_age</i> before.
+	  * For each buffer, the stack trace of the borrowing point is logged.
+	  * @param min_age the minimum time since the owner terminated, or since the buffers have been borrowed [millisecs]
+	  * @return the number of buffers found */
+	public synchronized int checkLeaks(long min_age) {
+		long now=System.currentTimeMillis();
+		int n=0;
+		for (Iterator i=borrowings.values().iterator(); i.hasNext(); ) {
+			Borrowing borrowing=(Borrowing)i.next();
+			if (borrowing.owner!=null) {
+				if (borrowing.terminated==0 || now-borrowing.terminated<min_age) continue;
+				// else
+				n++;
+				log(LoggerLevel.WARNING,"leak: buffer not returned "+(now-borrowing.terminated)+"ms after its owner terminated\n"+ExceptionPrinter.getStackTraceOf(borrowing));
+			}
+			else {
+				if (now-borrowing.time<min_age) continue;
+				// else
+				n++;
+				log(LoggerLevel.WARNING,"possible leak: buffer not returned since "+(now-borrowing.time)+"ms\n"+ExceptionPrinter.getStackTraceOf(borrowing));
+			}
+		}
+		return n;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "RtpBufferPool["+buffer_size+"B, "+borrowed_count+" borrowed, "+free_count+" free]";
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private static void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,RtpBufferPool.class,str);
+	}
+
+}
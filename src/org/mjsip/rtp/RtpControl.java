@@ -31,14 +31,20 @@ import org.zoolu.net.UdpProvider;
 import org.zoolu.net.UdpProviderListener;
 import org.zoolu.net.UdpSocket;
 import org.zoolu.util.ByteUtils;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
 
 
 /** It sends and receives RTP control (RTCP) packets.
+  * <p>
+  * Received SR, RR, SDES, and BYE packets are parsed and passed to the {@link RtcpListener}, if any.
+  * Reception report blocks that refer to the local RTP sender are aggregated into
+  * per-session counters (see {@link #getRemoteQuality(int)}).
   */
 public class RtpControl {
 	
 	/** Debug mode */
-	public static boolean DEBUG=true;
+	public static boolean DEBUG=false;
 
 	/** In case of no sender RTP stream, whether the SSRC of RR packets is set equal to the SSRC of the received RTP stream */
 	public static boolean DEBUG_RR_SSRC_SYMMETRIC=true;
@@ -70,6 +76,42 @@ public class RtpControl {
 	/** Whether outgoing RTCP packets have to be sent to the same address where incoming RTCP packets come from (symmetric RTCP mode) */
 	boolean symmetric_rtcp=false;
 
+	/** Last round-trip time estimation (in milliseconds), or -1 if not available */
+	long round_trip_time=-1;
+
+	/** RTCP listener */
+	RtcpListener listener=null;
+
+	/** Number of received SR packets */
+	long sr_count=0;
+
+	/** Number of received RR packets */
+	long rr_count=0;
+
+	/** Number of received SDES packets */
+	long sdes_count=0;
+
+	/** Number of received BYE packets */
+	long bye_count=0;
+
+	/** Number of received report blocks that refer to the local RTP sender */
+	long remote_report_count=0;
+
+	/** Fraction lost reported by the remote receiver (8 bit fixed point) */
+	int remote_fraction_lost=0;
+
+	/** Cumulative number of packets lost reported by the remote receiver */
+	long remote_packet_lost=0;
+
+	/** Interarrival jitter reported by the remote receiver, in timestamp units */
+	long remote_jitter=0;
+
+	/** Maximum interarrival jitter reported by the remote receiver, in timestamp units */
+	long remote_max_jitter=0;
+
+	/** Canonical end-point identifier (CNAME) of the remote end, if received */
+	String remote_cname=null;
+
 	/** UDP provider listener */
 	UdpProviderListener this_udp_provider_listener=new UdpProviderListener() {
 		@Override
@@ -116,7 +158,7 @@ public class RtpControl {
 	  * @param remote_addr the remote RTCP address
 	  * @param remote_port the remote RTCP port */
 	public RtpControl(String cname, UdpSocket local_socket, String remote_addr, int remote_port) {
-		if (DEBUG) System.out.println("DEBUG: RtpControl(): "+local_socket+","+remote_addr+":"+remote_port+")");
+		if (DEBUG) log(LoggerLevel.DEBUG,"RtpControl(): "+local_socket+","+remote_addr+":"+remote_port);
 		this.cname=cname;
 		this.remote_dest_soaddr=remote_addr!=null? new SocketAddress(remote_addr,remote_port) : null; 
 		udp=new UdpProvider(local_socket,this_udp_provider_listener);
@@ -143,6 +185,87 @@ public class RtpControl {
 	}
 
 
+	/** Sets the RTCP listener.
+	  * @param listener the listener that is notified of the received RTCP packets */
+	public void setListener(RtcpListener listener) {
+		this.listener=listener;
+	}
+
+
+	/** Gets the round-trip time.
+	  * It is estimated from the LSR and DLSR fields of the reception report blocks received for the local RTP sender.
+	  * @return the last round-trip time estimation (in milliseconds), or -1 if not available */
+	public long getRoundTripTime() {
+		return round_trip_time;
+	}
+
+
+	/** Gets the number of received SR packets. */
+	public long getSenderReportCount() {
+		return sr_count;
+	}
+
+	/** Gets the number of received RR packets. */
+	public long getReceiverReportCount() {
+		return rr_count;
+	}
+
+	/** Gets the number of received SDES packets. */
+	public long getSourceDescriptionCount() {
+		return sdes_count;
+	}
+
+	/** Gets the number of received BYE packets. */
+	public long getByeCount() {
+		return bye_count;
+	}
+
+	/** Gets the number of reception report blocks received for the local RTP sender. */
+	public long getRemoteReportCount() {
+		return remote_report_count;
+	}
+
+	/** Gets the last fraction lost reported by the remote receiver.
+	  * @return the fraction lost, as fixed point number with the binary point at the left edge (i.e. multiplied by 256) */
+	public int getRemoteFractionLost() {
+		return remote_fraction_lost;
+	}
+
+	/** Gets the last cumulative number of packets lost reported by the remote receiver. */
+	public long getRemotePacketLost() {
+		return remote_packet_lost;
+	}
+
+	/** Gets the last interarrival jitter reported by the remote receiver, in timestamp units. */
+	public long getRemoteJitter() {
+		return remote_jitter;
+	}
+
+	/** Gets the maximum interarrival jitter reported by the remote receiver, in timestamp units. */
+	public long getRemoteMaxJitter() {
+		return remote_max_jitter;
+	}
+
+	/** Gets the canonical end-point identifier (CNAME) of the remote end.
+	  * @return the CNAME, or <i>null</i> if no SDES CNAME has been received */
+	public String getRemoteCname() {
+		return remote_cname;
+	}
+
+
+	/** Gets the quality of the local RTP stream, as reported by the remote receiver.
+	  * @param clock_rate the clock rate of RTP timestamps [Hz], used for converting the jitter
+	  * @return the stream quality, or <i>null</i> if no report has been received for the local sender */
+	public RtpStreamQuality getRemoteQuality(int clock_rate) {
+		RtpControlledSender rtp_sender=this.rtp_sender;
+		if (rtp_sender==null || remote_report_count==0) return null;
+		// else
+		long expected=rtp_sender.getPacketCounter();
+		long received=(expected>remote_packet_lost)? expected-remote_packet_lost : 0;
+		return new RtpStreamQuality(rtp_sender.getSSRC(),received,expected,remote_jitter*1000.0/clock_rate,round_trip_time);
+	}
+
+
 	/** When a new UDP packet is received. */
 	private void processReceivedPacket(UdpProvider udp, UdpPacket udp_packet) {
 		//remote_source_soaddr=new SocketAddress(udp_packet.getIpAddress(),udp_packet.getPort());
@@ -150,9 +273,15 @@ public class RtpControl {
 		int remote_port=udp_packet.getPort();
 		if (remote_source_soaddr==null || !remote_source_soaddr.getAddress().equals(remote_ipaddr) || remote_source_soaddr.getPort()!=remote_port) remote_source_soaddr=new SocketAddress(remote_ipaddr,remote_port);
 		if (symmetric_rtcp) remote_dest_soaddr=remote_source_soaddr;
-		RtcpCompoundPacket rcomp_packet=new RtcpCompoundPacket(udp_packet);
-		RtcpPacket[] rtcp_packets=rcomp_packet.getRtcpPackets();
-		for (int i=0; i<rtcp_packets.length; i++) processReceivedPacket(rtcp_packets[i]);
+		try {
+			RtcpCompoundPacket rcomp_packet=new RtcpCompoundPacket(udp_packet);
+			RtcpPacket[] rtcp_packets=rcomp_packet.getRtcpPackets();
+			for (int i=0; i<rtcp_packets.length; i++) processReceivedPacket(rtcp_packets[i]);
+		}
+		catch (RuntimeException e) {
+			// malformed packet
+			if (DEBUG) log(LoggerLevel.DEBUG,"malformed RTCP packet from "+remote_source_soaddr+": "+e);
+		}
 	}
 
 
@@ -164,17 +293,79 @@ public class RtpControl {
 
 	/** When a new RTCP packet is received. */
 	protected void processReceivedPacket(RtcpPacket rtcp_packet) {
-		if (DEBUG) System.out.println("\nDEBUG: RtpControl: new RTCP packet received: "+rtcp_packet.getPacketLength()+"B");
-		if (DEBUG) System.out.println("DEBUG: RtpControl: bytes: "+ByteUtils.asHex(rtcp_packet.getPacketBuffer(),rtcp_packet.getPacketOffset(),rtcp_packet.getPacketLength()));
-		if (DEBUG) System.out.println("DEBUG: RtpControl: type: "+rtcp_packet.getPayloadType());
-		if (rtcp_packet.getPayloadType()==RtcpPacket.PT_SR) {
+		int type=rtcp_packet.getPayloadType();
+		if (DEBUG) log(LoggerLevel.DEBUG,"new RTCP packet received: type "+type+", "+rtcp_packet.getPacketLength()+"B: "+ByteUtils.asHex(rtcp_packet.getPacketBuffer(),rtcp_packet.getPacketOffset(),rtcp_packet.getPacketLength()));
+		RtcpListener listener=this.listener;
+		if (type==RtcpPacket.PT_SR) {
+			sr_count++;
 			SrRtcpPacket sr_packet=new SrRtcpPacket(rtcp_packet);
 			SrRtcpPacket.SenderInfo si=sr_packet.getSenderInfo();
-			if (DEBUG) System.out.println("DEBUG: RtpControl: SR: packet count: "+si.getPacketCount());
-			if (DEBUG) System.out.println("DEBUG: RtpControl: SR: octect count: "+si.getOctectCount());
 			long timestamp=si.getRtpTimestamp();
 			if (start_timestamp<0) start_timestamp=timestamp;
-			if (DEBUG) System.out.println("DEBUG: RtpControl: SR: timestamp: "+timestamp+" ("+(timestamp-start_timestamp)+")");
+			if (DEBUG) log(LoggerLevel.DEBUG,"SR: packet count: "+si.getPacketCount()+", octect count: "+si.getOctectCount()+", timestamp: "+timestamp+" ("+(timestamp-start_timestamp)+")");
+			RtpControlledReceiver rtp_receiver=this.rtp_receiver;
+			if (rtp_receiver!=null) rtp_receiver.setLastSenderReport(sr_packet.getSsrc(),si.getCompactNtpTimestamp(),System.currentTimeMillis());
+			processReportBlocks(sr_packet.getReportBlocks());
+			if (listener!=null) listener.onReceivedSenderReport(this,sr_packet);
+		}
+		else
+		if (type==RtcpPacket.PT_RR) {
+			rr_count++;
+			RrRtcpPacket rr_packet=new RrRtcpPacket(rtcp_packet);
+			processReportBlocks(rr_packet.getReportBlocks());
+			if (listener!=null) listener.onReceivedReceiverReport(this,rr_packet);
+		}
+		else
+		if (type==RtcpPacket.PT_SDES) {
+			sdes_count++;
+			SdesRtcpPacket sdes_packet=new SdesRtcpPacket(rtcp_packet);
+			if (remote_cname==null) {
+				SdesRtcpPacket.Chunk[] chunks=sdes_packet.getChunks();
+				for (int i=0; i<chunks.length && remote_cname==null; i++) {
+					SdesRtcpPacket.SdesItem[] items=chunks[i].getSdesItems();
+					for (int j=0; j<items.length; j++) {
+						if (items[j].getType()==SdesRtcpPacket.ITEM_CNAME) {
+							remote_cname=new String(items[j].getValue());
+							break;
+						}
+					}
+				}
+			}
+			if (listener!=null) listener.onReceivedSourceDescription(this,sdes_packet);
+		}
+		else
+		if (type==RtcpPacket.PT_BYE) {
+			bye_count++;
+			ByeRtcpPacket bye_packet=new ByeRtcpPacket(rtcp_packet);
+			if (DEBUG) log(LoggerLevel.DEBUG,"BYE: "+bye_packet);
+			if (listener!=null) listener.onReceivedBye(this,bye_packet);
+		}
+	}
+
+
+	/** Processes the reception report blocks of a received SR or RR packet.
+	  * The report block that refers to the local RTP sender is used to estimate the round-trip time (RFC 3550, Section 6.4.1). */
+	private void processReportBlocks(RrRtcpPacket.ReportBlock[] report_blocks) {
+		RtpControlledSender rtp_sender=this.rtp_sender;
+		if (rtp_sender==null) return;
+		// else
+		long ssrc=rtp_sender.getSSRC();
+		for (int i=0; i<report_blocks.length; i++) {
+			RrRtcpPacket.ReportBlock rb=report_blocks[i];
+			if (rb.getSSRC()!=ssrc) continue;
+			// else
+			remote_report_count++;
+			remote_fraction_lost=rb.getFractionLost();
+			remote_packet_lost=rb.getCumulativePacketLost();
+			remote_jitter=rb.getInterarrivalJitter();
+			if (remote_jitter>remote_max_jitter) remote_max_jitter=remote_jitter;
+			long lsr=rb.getLSR();
+			if (lsr==0) continue;
+			// else
+			long arrival=new NtpTimeStamp(System.currentTimeMillis()).getCompactNtpTime();
+			long rtt=(arrival-lsr-rb.getDLSR())&0xffffffffL;
+			// discard negative values (e.g. due to clock wrap or malformed reports)
+			if (rtt<0x80000000L) round_trip_time=(rtt*1000)>>16;
 		}
 	}
 
@@ -191,7 +382,7 @@ public class RtpControl {
 			udp.send(rcomp_packet.toUdpPacket(remote_dest_soaddr));
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			log(LoggerLevel.INFO,e.toString());
 		}
 	}
 
@@ -208,17 +399,16 @@ public class RtpControl {
 			udp.send(rtcp_packet.toUdpPacket(remote_dest_soaddr));
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			log(LoggerLevel.INFO,e.toString());
 		}
 	}
 
 
 	/** Sends a RTCP report (SR or RR). */
 	public void sendReport() {
-		if (DEBUG) System.out.println("DEBUG: sendReport()");
 		long ssrc=(rtp_sender!=null)? rtp_sender.getSSRC() : 0;
 		SrRtcpPacket.SenderInfo si=(rtp_sender!=null)? new SrRtcpPacket.SenderInfo(System.currentTimeMillis(),rtp_sender.getRtpTimestamp(),rtp_sender.getPacketCounter(),rtp_sender.getOctectCounter()) : null;
-		if (DEBUG) System.out.println("DEBUG: sendReport(): sender info: "+si);
+		if (DEBUG) log(LoggerLevel.DEBUG,"sendReport(): sender info: "+si);
 		RrRtcpPacket.ReportBlock rb=(rtp_receiver!=null)? new RrRtcpPacket.ReportBlock(rtp_receiver.getSSRC(),rtp_receiver.getFractionLost(),rtp_receiver.getCumulativePacketLost(),rtp_receiver.getHighestSqnReceived(),rtp_receiver.getInterarrivalJitter(),rtp_receiver.getLSR(),rtp_receiver.getDLSR()) : null;
 		
 		if (si!=null) {
@@ -251,6 +441,14 @@ public class RtpControl {
 		rtp_receiver=null;
 	}
 
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
 }
 
 
@@ -55,5 +55,11 @@ public interface RtpControlledReceiver {
 	/** Gets delay since last SR (DLSR).
 	  * @return delay since last SR (DLSR), that is the delay, expressed in units of 1/65536 seconds, between receiving the last SR packet and sending this reception report block */ 
 	public long getDLSR();
+
+	/** Sets the last Sender Report (SR) received from a given source.
+	  * @param ssrc the SSRC of the sender
+	  * @param lsr the middle 32 bits out of 64 in the NTP timestamp of the SR
+	  * @param time the arrival time of the SR (in milliseconds) */
+	public void setLastSenderReport(long ssrc, long lsr, long time);
 	
 }
@@ -25,6 +25,11 @@ import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpPacket;
 
 /** RTP packet, as defined by RFC 3550. 
+  * <p>
+  * A RtpPacket is a view over a buffer that contains the packet.
+  * The same RtpPacket can be reused for different packets (see {@link #setPacketBuffer(byte[],int,int)}),
+  * and it can use a buffer borrowed from a {@link RtpBufferPool} (see {@link #RtpPacket(RtpBufferPool)}),
+  * that has to be explicitly returned through {@link #release()}.
  */
 public class RtpPacket {
 	
@@ -44,7 +49,31 @@ public class RtpPacket {
 	/** RTP header length */   
 	//int hdr_len;
 
+	/** Pool of the buffer, if borrowed */
+	RtpBufferPool pool=null;
 
+	/** Buffer borrowed from the pool */
+	byte[] pool_buffer=null;
+
+
+
+	/** Creates a new empty RTP packet.
+	  * The packet buffer has to be set through {@link #setPacketBuffer(byte[],int,int)}. */ 
+	public RtpPacket() {
+		buffer=null;
+		offset=0;
+		length=0;
+	}
+
+	/** Creates a new RTP packet with a buffer borrowed from a pool.
+	  * The packet is initially empty; the buffer has to be returned through {@link #release()}.
+	  * @param pool the buffer pool */ 
+	public RtpPacket(RtpBufferPool pool) {
+		this.pool=pool;
+		pool_buffer=buffer=pool.borrow();
+		offset=0;
+		length=0;
+	}
 
 	/** Creates a new RTP packet.
 	  * @param buffer buffer containing the RTP packet 
@@ -141,6 +170,31 @@ public class RtpPacket {
 	}
 
 
+	/** Sets the buffer containing the RTP packet.
+	  * It lets this object be reused as a view over different packets, without creating new objects.
+	  * @param buffer buffer containing the RTP packet 
+	  * @param offset packet offset within the buffer 
+	  * @param length packet length */ 
+	public void setPacketBuffer(byte[] buffer, int offset, int length) {
+		this.buffer=buffer;
+		this.offset=offset;
+		this.length=length;
+	}
+
+	/** Returns the buffer to the pool, if it has been borrowed.
+	  * The packet must not be used after it has been released. */ 
+	public void release() {
+		if (pool!=null) {
+			pool.release(pool_buffer);
+			pool=null;
+			pool_buffer=null;
+		}
+		buffer=null;
+		offset=0;
+		length=0;
+	}
+
+
 	/** Gets the RTP packet buffer.
 	  * @return the buffer containing the RTP packet (including RTP header and payload) */   
 	public byte[] getPacketBuffer() {
@@ -236,9 +290,9 @@ public class RtpPacket {
 			int hdr_len=getHeaderLength();
 			for (int i=0; i<padding_len-1; i++) buffer[offset+hdr_len+pl_len+i]=0;
 			buffer[offset+hdr_len+pl_len+padding_len-1]=(byte)padding_len;
-			BinUtils.setBit(true,buffer[offset],5);
+			BinUtils.setBit(true,buffer,offset,5);
 		}
-		else BinUtils.setBit(false,buffer[offset],5);
+		else BinUtils.setBit(false,buffer,offset,5);
 	}
 
 	/** Whether it has extension (X).
@@ -254,7 +308,7 @@ public class RtpPacket {
 	public void setExtension(boolean x) {
 		if (length<HDR_LEN) return; // broken packet
 		// else
-		BinUtils.setBit(x,buffer[offset],4);
+		BinUtils.setBit(x,buffer,offset,4);
 	}
 
 	/** Gets the CSRC count (CC).
@@ -286,7 +340,7 @@ public class RtpPacket {
 	public void setMarker(boolean m) {
 		if (length<HDR_LEN) return; // broken packet
 		// else
-		BinUtils.setBit(m,buffer[offset+1],7);
+		BinUtils.setBit(m,buffer,offset+1,7);
 	}
 
 	/** Gets the payload type (PT).
@@ -400,8 +454,11 @@ public class RtpPacket {
 	  * @param timestamp timestamp
 	  * @param csrc array of contributing source (CSRC) identifiers */
 	public void setHeader(int pl_type, long ssrc, int seq_num, long timestamp, long[] csrc) {
-		setVersion(2);
-		setPaddingLength(0);
+		if (length<HDR_LEN) return; // broken packet
+		// else
+		// V=2, P=0, X=0, CC=0, M=0 (the buffer may be reused)
+		buffer[offset]=(byte)0x80;
+		buffer[offset+1]=0;
 		setPayloadType(pl_type);
 		setSsrc(ssrc);
 		setSequenceNumber(seq_num);
@@ -22,12 +22,16 @@
 package org.mjsip.rtp;
 
 
-import org.zoolu.net.IpAddress;
+import java.io.InterruptedIOException;
+
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpPacket;
 import org.zoolu.net.UdpProvider;
-import org.zoolu.net.UdpProviderListener;
 import org.zoolu.net.UdpSocket;
+import org.zoolu.util.ExceptionPrinter;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
 
 
 /** RTP receiver.
@@ -35,14 +39,22 @@ import org.zoolu.net.UdpSocket;
   * <p>
   * RTP packets are received according to a given RTP context
   * that specifies the SSRC and payload type of the flow and maintains the sequence number and timestamp information.
+  * <p>
+  * Packets are received into a buffer borrowed from a {@link RtpBufferPool} and passed to the listener
+  * through the same {@link RtpPacket} object, so that no new object is created for each received packet.
+  * For this reason the RtpPacket is valid only within the {@link RtpReceiverListener#onReceivedPacket(RtpReceiver,RtpPacket)}
+  * method, and the listener has to copy any data that it wants to keep.
   */
-public class RtpReceiver {
+public class RtpReceiver implements Runnable {
 	
+	/** Size of the receiver buffer */
+	public static int BUFFER_SIZE=UdpProvider.BUFFER_SIZE;
+
 	/** The RTP context */
 	RtpContext rtp_context=null;
 
-	/** The UDP provider */
-	UdpProvider udp_provider=null;
+	/** The UDP socket */
+	UdpSocket udp_socket=null;
 	
 	/** Remote source UDP socket address */
 	SocketAddress remote_source_soaddr=null;
@@ -50,6 +62,9 @@ public class RtpReceiver {
 	/** Listener */
 	RtpReceiverListener listener=null;
 
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
 
 
 	/** Creates a new RTP receiver.
@@ -57,22 +72,15 @@ public class RtpReceiver {
 	  * @param listener the RtpReceiver listener */
 	public RtpReceiver(UdpSocket udp_socket, RtpReceiverListener listener) {
 		this.listener=listener;
-		udp_provider=new UdpProvider(udp_socket, new UdpProviderListener(){
-			@Override
-			public void onReceivedPacket(UdpProvider udp, UdpPacket udp_packet) {
-				processUdpReceivedPacket(udp,udp_packet);				
-			}
-			@Override
-			public void onServiceTerminated(UdpProvider udp, Exception error) {
-				processUdpServiceTerminated(udp,error);
-			}});
+		this.udp_socket=udp_socket;
+		ThreadFactory.start(this,"RtpReceiver");
 	}
 
 
 	/** Gets the local port.
 	  * @return the local UDP port */
 	public int getLocalPort() {
-		if (udp_provider!=null) return udp_provider.getUdpSocket().getLocalPort();
+		if (udp_socket!=null) return udp_socket.getLocalPort();
 		else return 0;
 	}
 
@@ -102,25 +110,51 @@ public class RtpReceiver {
 
 	/** Stops running. */
 	public void halt() {
-		udp_provider.halt();
-	}
-
-
-	/** Processes the reception of a new UDP packet. */
-	private void processUdpReceivedPacket(UdpProvider udp, UdpPacket udp_packet) {
-		//remote_source_soaddr=new SocketAddress(udp_packet.getIpAddress(),udp_packet.getPort());
-		IpAddress remote_ipaddr=udp_packet.getIpAddress();
-		int remote_port=udp_packet.getPort();
-		if (remote_source_soaddr==null || !remote_source_soaddr.getAddress().equals(remote_ipaddr) || remote_source_soaddr.getPort()!=remote_port) remote_source_soaddr=new SocketAddress(remote_ipaddr,remote_port);
-		processRtpReceivedPacket(new RtpPacket(udp_packet));
+		stop=true;
 	}
 
 
-	/** Processes the termination of UDP provider. */
-	private void processUdpServiceTerminated(UdpProvider udp, Exception error) {
+	/** Receives packets. */
+	public void run() {
+		RtpBufferPool pool=RtpBufferPool.getPool(BUFFER_SIZE);
+		byte[] buf=pool.borrow(this);
+		UdpPacket udp_packet=new UdpPacket(buf,buf.length);
+		RtpPacket rtp_packet=new RtpPacket();
+		Exception error=null;
+		try {
+			udp_socket.setSoTimeout(UdpProvider.DEFAULT_SOCKET_TIMEOUT);
+			while (!stop) {
+				udp_packet.setLength(buf.length);
+				try {
+					udp_socket.receive(udp_packet);
+				}
+				catch (InterruptedIOException ie) {
+					continue;
+				}
+				if (stop) break;
+				// else
+				if (!udp_packet.hasSoAddress(remote_source_soaddr)) remote_source_soaddr=new SocketAddress(udp_packet.getIpAddress(),udp_packet.getPort());
+				rtp_packet.setPacketBuffer(buf,udp_packet.getOffset(),udp_packet.getLength());
+				try {
+					processRtpReceivedPacket(rtp_packet);
+				}
+				catch (Exception e) {
+					// a failure of the listener does not stop the receiver
+					log(LoggerLevel.WARNING,"error processing an RTP packet: "+ExceptionPrinter.getStackTraceOf(e));
+				}
+			}
+		}
+		catch (Exception e) {
+			error=e;
+			stop=true;
+		}
+		rtp_packet.setPacketBuffer(null,0,0);
+		pool.release(buf);
+		RtpBufferPool.terminated(this);
 		if (listener!=null) listener.onServiceTerminated(this,error);
 	}
 
+
 	/** Processes the reception of a new RTP packet. */
 	protected void processRtpReceivedPacket(RtpPacket rtp_packet) {
 		if (rtp_context==null) rtp_context=new RtpContext(rtp_packet.getPayloadType(),rtp_packet.getSsrc(),rtp_packet.getSequenceNumber(),rtp_packet.getTimestamp());
@@ -133,6 +167,12 @@ public class RtpReceiver {
 		if (listener!=null) listener.onReceivedPacket(this,rtp_packet);
 	}
 
-}
 
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
 
+}
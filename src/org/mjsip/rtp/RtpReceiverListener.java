@@ -28,7 +28,8 @@ package org.mjsip.rtp;
   */
 public interface RtpReceiverListener {
 	
-	/** When a new RTP packet is received. */
+	/** When a new RTP packet is received.
+	  * The packet (and its buffer) is reused by the RtpReceiver, and it is valid only within this method. */
 	public void onReceivedPacket(RtpReceiver rtp_receiver, RtpPacket rtp_packet);
 
 	/** When RtpReceiver terminates. */
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+
+
+/** Reception statistics of a single RTP source (SSRC), as defined in RFC 3550.
+  * <p>
+  * It implements the sequence number validation and the extended highest sequence number (RFC 3550, Appendix A.1),
+  * the computation of cumulative and fractional packet loss (Appendix A.3),
+  * and the estimation of the interarrival jitter (Appendix A.8).
+  * All values are updated incrementally for each received packet.
+  * <p>
+  * It also maintains the timing of the last received Sender Report (SR), used for computing the
+  * LSR and DLSR fields of the reception report blocks.
+  */
+public class RtpReceiverStats {
+	
+	/** Maximum sequence number dropout */
+	static final int MAX_DROPOUT=3000;
+
+	/** Maximum sequence number misorder */
+	static final int MAX_MISORDER=100;
+
+	/** Minimum number of sequential packets for a source to be valid */
+	static final int MIN_SEQUENTIAL=2;
+
+	/** Sequence number modulo */
+	static final int RTP_SEQ_MOD=1<<16;
+
+
+	/** SSRC */
+	long ssrc;
+
+	/** Clock rate of RTP timestamps [Hz] */
+	int clock_rate;
+
+	/** Highest sequence number seen */
+	int max_seq;
+
+	/** Shifted count of sequence number cycles */
+	long cycles=0;
+
+	/** Base sequence number */
+	int base_seq;
+
+	/** Last 'bad' sequence number + 1 */
+	int bad_seq;
+
+	/** Sequential packets till source is valid */
+	int probation;
+
+	/** Packets received */
+	long received=0;
+
+	/** Packets expected at last interval */
+	long expected_prior=0;
+
+	/** Packets received at last interval */
+	long received_prior=0;
+
+	/** Relative transit time for previous packet */
+	long transit=0;
+
+	/** Whether the relative transit time has been initialized */
+	boolean has_transit=false;
+
+	/** Estimated jitter, scaled by 16 */
+	long jitter=0;
+
+	/** Reference time for arrival timestamps [nanosecs] */
+	long start_time;
+
+	/** Last SR timestamp (middle 32 bits of the NTP timestamp) */
+	long lsr=0;
+
+	/** Arrival time of the last SR [millisecs] */
+	long lsr_time=0;
+
+	/** Arrival time of the last packet [nanosecs] */
+	long last_arrival;
+
+
+
+	/** Creates a new RtpReceiverStats.
+	  * @param ssrc the SSRC of the source
+	  * @param seq the sequence number of the first received packet
+	  * @param clock_rate the clock rate of RTP timestamps [Hz] */
+	public RtpReceiverStats(long ssrc, int seq, int clock_rate) {
+		this.ssrc=ssrc;
+		this.clock_rate=clock_rate;
+		start_time=System.nanoTime();
+		last_arrival=start_time;
+		initSequence(seq);
+		max_seq=(seq-1)&0xffff;
+		probation=MIN_SEQUENTIAL;
+	}
+
+
+	/** Initializes the sequence number state. */
+	private void initSequence(int seq) {
+		base_seq=seq;
+		max_seq=seq;
+		bad_seq=RTP_SEQ_MOD+1;
+		cycles=0;
+		received=0;
+		received_prior=0;
+		expected_prior=0;
+	}
+
+
+	/** Updates the statistics with a new received packet.
+	  * @param seq the packet sequence number
+	  * @param timestamp the packet RTP timestamp
+	  * @param arrival_time the packet arrival time, as returned by <i>System.nanoTime()</i>
+	  * @return true if the packet is valid; false if the source is still in probation or the sequence number made a very large jump */
+	public synchronized boolean update(int seq, long timestamp, long arrival_time) {
+		last_arrival=arrival_time;
+		if (!updateSequence(seq)) return false;
+		// else
+		// interarrival jitter
+		long arrival=((arrival_time-start_time)/1000)*clock_rate/1000000;
+		long new_transit=(arrival-timestamp)&0xffffffffL;
+		if (has_transit) {
+			long d=(int)(new_transit-transit);
+			if (d<0) d=-d;
+			jitter+=d-((jitter+8)>>4);
+		}
+		else has_transit=true;
+		transit=new_transit;
+		return true;
+	}
+
+
+	/** Updates the sequence number state (RFC 3550, Appendix A.1). */
+	private boolean updateSequence(int seq) {
+		int udelta=(seq-max_seq)&0xffff;
+		if (probation>0) {
+			// packet is in sequence
+			if (seq==((max_seq+1)&0xffff)) {
+				probation--;
+				max_seq=seq;
+				if (probation==0) {
+					initSequence(seq);
+					received++;
+					return true;
+				}
+			}
+			else {
+				probation=MIN_SEQUENTIAL-1;
+				max_seq=seq;
+			}
+			return false;
+		}
+		else
+		if (udelta<MAX_DROPOUT) {
+			// in order, with permissible gap
+			if (seq<max_seq) {
+				// sequence number wrapped
+				cycles+=RTP_SEQ_MOD;
+			}
+			max_seq=seq;
+		}
+		else
+		if (udelta<=RTP_SEQ_MOD-MAX_MISORDER) {
+			// the sequence number made a very large jump
+			if (seq==bad_seq) {
+				// two sequential packets; assume that the other side restarted without telling us
+				initSequence(seq);
+				has_transit=false;
+			}
+			else {
+				bad_seq=(seq+1)&(RTP_SEQ_MOD-1);
+				return false;
+			}
+		}
+		else {
+			// duplicate or reordered packet
+		}
+		received++;
+		return true;
+	}
+
+
+	/** Gets the arrival time of the last packet, as returned by <i>System.nanoTime()</i>. */
+	public synchronized long getLastArrivalTime() {
+		return last_arrival;
+	}
+
+
+	/** Sets the last received Sender Report.
+	  * @param lsr the middle 32 bits of the NTP timestamp of the SR
+	  * @param time the arrival time of the SR [millisecs] */
+	public synchronized void setLastSenderReport(long lsr, long time) {
+		this.lsr=lsr;
+		lsr_time=time;
+	}
+
+
+	/** Gets SSRC.
+	  * @return the synchronization source (SSRC) identifier */
+	public long getSSRC() {
+		return ssrc;
+	}
+
+	/** Gets the clock rate.
+	  * @return the clock rate of RTP timestamps [Hz] */
+	public int getClockRate() {
+		return clock_rate;
+	}
+
+	/** Gets the extended highest sequence number received.
+	  * @return the extended highest sequence number received (32bit) */
+	public synchronized long getHighestSqnReceived() {
+		return (cycles+max_seq)&0xffffffffL;
+	}
+
+	/** Gets the number of packets received.
+	  * @return the number of packets received, including late and duplicated packets */
+	public synchronized long getPacketsReceived() {
+		return received;
+	}
+
+	/** Gets the number of packets expected.
+	  * @return the number of packets expected */
+	public synchronized long getPacketsExpected() {
+		return (probation>0)? 0 : cycles+max_seq-base_seq+1;
+	}
+
+	/** Gets cumulative number of packets lost.
+	  * @return the number of packets expected less the number of packets actually received, clamped to a signed 24-bit value */
+	public synchronized long getCumulativePacketLost() {
+		long lost=getPacketsExpected()-received;
+		if (lost>0x7fffff) lost=0x7fffff;
+		else
+		if (lost<-0x800000) lost=-0x800000;
+		return lost;
+	}
+
+	/** Gets fraction lost since the previous call of this method, and starts a new report interval.
+	  * @return the fraction of packets lost in the last interval, multiplied by 256 */
+	public synchronized int getFractionLost() {
+		long expected=getPacketsExpected();
+		long expected_interval=expected-expected_prior;
+		expected_prior=expected;
+		long received_interval=received-received_prior;
+		received_prior=received;
+		long lost_interval=expected_interval-received_interval;
+		if (expected_interval==0 || lost_interval<=0) return 0;
+		// else
+		return (int)((lost_interval<<8)/expected_interval);
+	}
+
+	/** Gets the interarrival jitter.
+	  * @return the interarrival jitter, in timestamp units */
+	public synchronized long getInterarrivalJitter() {
+		return jitter>>4;
+	}
+
+	/** Gets the interarrival jitter in milliseconds.
+	  * @return the interarrival jitter [millisecs] */
+	public synchronized double getInterarrivalJitterMillis() {
+		return (clock_rate>0)? (jitter>>4)*1000.0/clock_rate : 0;
+	}
+
+	/** Gets last SR timestamp (LSR).
+	  * @return the middle 32 bits of the NTP timestamp of the last SR, or 0 if no SR has been received */
+	public synchronized long getLSR() {
+		return lsr;
+	}
+
+	/** Gets delay since last SR (DLSR).
+	  * @param time the current time [millisecs]
+	  * @return the delay since the last SR, in units of 1/65536 seconds, or 0 if no SR has been received */
+	public synchronized long getDLSR(long time) {
+		if (lsr_time==0) return 0;
+		// else
+		return ((time-lsr_time)<<16)/1000;
+	}
+
+}
@@ -23,6 +23,7 @@ package org.mjsip.rtp;
 
 
 import org.zoolu.net.SocketAddress;
+import org.zoolu.net.UdpPacket;
 import org.zoolu.net.UdpSocket;
 
 
@@ -31,9 +32,16 @@ import org.zoolu.net.UdpSocket;
   * <p>
   * RTP packets are sent according to a given RTP context
   * that specifies the SSRC and payload type of the flow and maintains the sequence number and timestamp information.
+  * <p>
+  * Packets are sent without creating new objects: the RTP header is written in place in front of the payload
+  * (see {@link #sendInPlace(byte[],int,int,long)}), or the payload is copied into a buffer borrowed from a {@link RtpBufferPool}.
+  * A RtpSender is not thread-safe, and it is meant to be used by a single sending thread.
   */
 public class RtpSender {
 	
+	/** Size of the buffer used for sending packets whose payload is not preceded by room for the RTP header */
+	public static int BUFFER_SIZE=1500;
+
 	/** The RTP context */
 	RtpContext rtp_context=null;
 
@@ -49,6 +57,15 @@ public class RtpSender {
 	/** Octect counter */
 	long octect_count=0;
 
+	/** RTP packet view, reused for all packets */
+	RtpPacket rtp_packet=new RtpPacket();
+
+	/** UDP packet, reused for all packets */
+	UdpPacket udp_packet=null;
+
+	/** Buffer borrowed from the pool, used for copying payloads */
+	byte[] send_buffer=null;
+
 
 	/** Creates a new RTP sender.
 	  * @param pt payload type
@@ -101,6 +118,12 @@ public class RtpSender {
 	}
 
 
+	/** Gets the sequence number of the next packet. */
+	public int getSequenceNumber() {
+		return rtp_context.getSequenceNumber();
+	}
+
+
 	/** Sets the timestamp.
 	  * @param timestamp RTP timestamp */
 	public void setTimestamp(long timestamp) {
@@ -141,12 +164,28 @@ public class RtpSender {
 	  * @param len payload length 
 	  * @param packet_time the normalized packet time (in sampling periods) used to calculate the next timestamp */
 	public void send(byte[] buf, int off, int len, long packet_time) throws java.io.IOException {
-		RtpPacket rtp_packet=new RtpPacket(rtp_context,buf,off,len);
-		//rtp_context.incSequenceNumber();
-		//rtp_context.incTimestamp(packet_time);
-		//packet_count++;
-		//octect_count+=len;
-		//if (rtp_socket!=null) rtp_socket.send(rtp_packet);
+		int hdr_len=RtpPacket.HDR_LEN+4*rtp_context.getCC();
+		if (hdr_len+len>BUFFER_SIZE) {
+			// too long for the pool buffer
+			send(new RtpPacket(rtp_context,buf,off,len),packet_time);
+			return;
+		}
+		// else
+		if (send_buffer==null) send_buffer=RtpBufferPool.getPool(BUFFER_SIZE).borrow(this);
+		System.arraycopy(buf,off,send_buffer,hdr_len,len);
+		sendInPlace(send_buffer,0,len,packet_time);
+	}
+
+
+	/** Sends a new RTP packet, whose payload is already placed in the buffer right after the room for the RTP header.
+	  * The RTP header is written in place, and the payload is not copied.
+	  * @param buf the buffer
+	  * @param off the offset of the RTP header; the payload starts at <i>off</i>+12 (plus 4 bytes for each CSRC of the context)
+	  * @param pl_len payload length 
+	  * @param packet_time the normalized packet time (in sampling periods) used to calculate the next timestamp */
+	public void sendInPlace(byte[] buf, int off, int pl_len, long packet_time) throws java.io.IOException {
+		rtp_packet.setPacketBuffer(buf,off,RtpPacket.HDR_LEN+4*rtp_context.getCC()+pl_len);
+		rtp_packet.setHeader(rtp_context);
 		send(rtp_packet,packet_time);
 	}
 
@@ -159,7 +198,15 @@ public class RtpSender {
 		rtp_context.setTimestamp(rtp_packet.getTimestamp()+packet_time);
 		packet_count++;
 		octect_count+=rtp_packet.getPacketLength();
-		if (udp_socket!=null) udp_socket.send(rtp_packet.toUdpPacket(dest_soaddr));
+		UdpSocket udp_socket=this.udp_socket;
+		if (udp_socket==null) return;
+		// else
+		SocketAddress dest_soaddr=this.dest_soaddr;
+		if (udp_packet==null) udp_packet=new UdpPacket(rtp_packet.getPacketBuffer(),rtp_packet.getPacketOffset(),rtp_packet.getPacketLength());
+		else udp_packet.setData(rtp_packet.getPacketBuffer(),rtp_packet.getPacketOffset(),rtp_packet.getPacketLength());
+		udp_packet.setIpAddress(dest_soaddr.getAddress());
+		udp_packet.setPort(dest_soaddr.getPort());
+		udp_socket.send(udp_packet);
 	}
 
 
@@ -167,6 +214,11 @@ public class RtpSender {
 	public void close() {
 		//udp_socket.close();
 		udp_socket=null;
+		if (send_buffer!=null) {
+			RtpBufferPool.getPool(BUFFER_SIZE).release(send_buffer);
+			send_buffer=null;
+		}
+		RtpBufferPool.terminated(this);
 	}
 
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+
+
+/** Snapshot of the reception quality of a RTP stream.
+  * <p>
+  * Besides the RFC 3550 reception statistics, it includes an estimation of the
+  * transmission rating factor R and of the corresponding Mean Opinion Score (MOS),
+  * computed with the simplified E-model of ITU-T G.107.
+  */
+public class RtpStreamQuality {
+	
+	/** Default R value, with no impairments */
+	public static double R0=93.2;
+
+	/** Equipment impairment factor of the codec (0 for G.711) */
+	public static double IE=0;
+
+	/** Packet-loss robustness factor of the codec (25.1 for G.711 with PLC) */
+	public static double BPL=25.1;
+
+
+	/** SSRC */
+	long ssrc;
+
+	/** Packets received */
+	long received;
+
+	/** Packets expected */
+	long expected;
+
+	/** Interarrival jitter [millisecs] */
+	double jitter;
+
+	/** Round-trip time [millisecs], or -1 if unknown */
+	long rtt;
+
+	/** R factor */
+	double r_factor;
+
+	/** Mean Opinion Score */
+	double mos;
+
+
+
+	/** Creates a new RtpStreamQuality.
+	  * @param ssrc the SSRC of the stream
+	  * @param received the number of packets received
+	  * @param expected the number of packets expected
+	  * @param jitter the interarrival jitter [millisecs]
+	  * @param rtt the round-trip time [millisecs], or -1 if unknown */
+	public RtpStreamQuality(long ssrc, long received, long expected, double jitter, long rtt) {
+		this.ssrc=ssrc;
+		this.received=received;
+		this.expected=expected;
+		this.jitter=jitter;
+		this.rtt=rtt;
+		// one-way delay, including a playout buffer of twice the jitter
+		double delay=((rtt>0)? rtt/2.0 : 0)+2*jitter;
+		double id=0.024*delay+((delay>177.3)? 0.11*(delay-177.3) : 0);
+		double ppl=getLossRatio()*100;
+		double ie_eff=IE+(95-IE)*ppl/(ppl+BPL);
+		r_factor=R0-id-ie_eff;
+		if (r_factor<0) r_factor=0;
+		else
+		if (r_factor>100) r_factor=100;
+		mos=1+0.035*r_factor+0.000007*r_factor*(r_factor-60)*(100-r_factor);
+	}
+
+
+	/** Gets the SSRC. */
+	public long getSSRC() {
+		return ssrc;
+	}
+
+	/** Gets the number of packets received. */
+	public long getPacketsReceived() {
+		return received;
+	}
+
+	/** Gets the number of packets expected. */
+	public long getPacketsExpected() {
+		return expected;
+	}
+
+	/** Gets the number of packets lost. */
+	public long getPacketsLost() {
+		return (expected>received)? expected-received : 0;
+	}
+
+	/** Gets the packet loss ratio.
+	  * @return the ratio of lost packets, from 0 to 1 */
+	public double getLossRatio() {
+		return (expected>0)? ((double)getPacketsLost())/expected : 0;
+	}
+
+	/** Gets the interarrival jitter [millisecs]. */
+	public double getJitter() {
+		return jitter;
+	}
+
+	/** Gets the round-trip time [millisecs].
+	  * @return the round-trip time, or -1 if unknown */
+	public long getRoundTripTime() {
+		return rtt;
+	}
+
+	/** Gets the transmission rating factor R (from 0 to 100). */
+	public double getRFactor() {
+		return r_factor;
+	}
+
+	/** Gets the Mean Opinion Score (from 1 to 4.5). */
+	public double getMOS() {
+		return mos;
+	}
+
+	/** Gets a string representation of this object. */
+	public String toString() {
+		StringBuffer sb=new StringBuffer();
+		sb.append("ssrc=").append(ssrc);
+		sb.append(", received=").append(received);
+		sb.append(", lost=").append(getPacketsLost());
+		sb.append(", jitter=").append(Math.round(jitter*10)/10.0).append("ms");
+		if (rtt>=0) sb.append(", rtt=").append(rtt).append("ms");
+		sb.append(", R=").append(Math.round(r_factor*10)/10.0);
+		sb.append(", MOS=").append(Math.round(mos*100)/100.0);
+		return sb.toString();
+	}
+
+}
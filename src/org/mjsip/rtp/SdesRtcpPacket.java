@@ -134,6 +134,7 @@ public class SdesRtcpPacket extends RtcpPacket {
 		int begin=offset+SDES_HDR_LEN;
 		for (int i=0; i<chunks.length; i++) {
 			chunks[i]=new Chunk(buffer,begin);
+			begin+=chunks[i].getLength();
 		}
 		return chunks;
 	}
@@ -40,7 +40,7 @@ public class SrRtcpPacket extends RrRtcpPacket {
 	//static final int REPORT_BLOCK_LEN=24;
 
 	/** Gets the relative reception report offset. */
-	protected static int receptionReportOffset() {
+	protected int receptionReportOffset() {
 		return HDR_LEN+SENDER_INFO_LEN;
 	}
 
@@ -184,6 +184,12 @@ public class SrRtcpPacket extends RrRtcpPacket {
 			return ts.getTime();
 		}
 
+		/** Gets compact NTP timestamp.
+		  * @return the middle 32 bits out of 64 of the NTP timestamp, that is the value to be used as LSR in reception reports */
+		public long getCompactNtpTimestamp() {
+			return BinUtils.getLong(buf,off+2,off+6);
+		}
+
 		/** Sets RTP timestamp.
 		  * @param rtp_timestamp the same time as the NTP timestamp, but in the same units and with the same random offset as the RTP timestamps in data packets */
 		public void setRtpTimestamp(long rtp_timestamp) {
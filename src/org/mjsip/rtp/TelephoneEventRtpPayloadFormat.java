@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.rtp;
+
+
+
+
+/** It provides methods for creating and parsing RTP telephone-event payloads (according to RFC 4733).
+  * <p>
+  * A telephone-event payload is 4 bytes long: event code (8 bits), end bit, reserved bit,
+  * volume (6 bits, in -dBm0), and duration (16 bits, in timestamp units).
+  * All packets that refer to the same event carry the timestamp of the beginning of the event,
+  * while the duration grows as the event goes on; the final packet (with the end bit set) is usually sent three times.
+  * <p>
+  * Since a telephone-event payload does not need any additional format,
+  * {@link #setRtpPayloadFormat(byte[],int,int)} and {@link #removeRtpPayloadFormat(byte[],int,int)} leave it unchanged,
+  * and the latter only checks its length.
+  * Received events are passed to {@link #processReceivedEvent(long,byte[],int,int)}, that
+  * reports each event only once, regardless of updates and retransmissions.
+  */
+public class TelephoneEventRtpPayloadFormat implements RtpPayloadFormat {
+	
+	/** Payload length */
+	public static final int PAYLOAD_LENGTH=4;
+
+	/** DTMF digits, in order of event code */
+	public static final String DTMF_DIGITS="0123456789*#ABCD";
+
+	/** Event code of DTMF '*' */
+	public static final int EVENT_STAR=10;
+
+	/** Event code of DTMF '#' */
+	public static final int EVENT_POUND=11;
+
+	/** Default volume [-dBm0] */
+	public static int DEFAULT_VOLUME=10;
+
+
+	/** Timestamp of the last received event, or -1 */
+	long last_timestamp=-1;
+
+
+
+	/** Creates a new TelephoneEventRtpPayloadFormat. */
+	public TelephoneEventRtpPayloadFormat() {
+	}
+
+
+	/** Gets the event code of a DTMF digit.
+	  * @param digit the digit ('0'-'9', '*', '#', 'A'-'D')
+	  * @return the event code, or -1 if the character is not a DTMF digit */
+	public static int getEventCode(char digit) {
+		return DTMF_DIGITS.indexOf(Character.toUpperCase(digit));
+	}
+
+
+	/** Gets the DTMF digit of an event code.
+	  * @param event the event code
+	  * @return the digit, or 0 if the event is not a DTMF digit */
+	public static char getDigit(int event) {
+		return (event>=0 && event<DTMF_DIGITS.length())? DTMF_DIGITS.charAt(event) : 0;
+	}
+
+
+	/** Writes a telephone-event payload.
+	  * @param buf the buffer
+	  * @param off the offset within the buffer
+	  * @param event the event code
+	  * @param end whether it is the end of the event
+	  * @param volume the volume [-dBm0]
+	  * @param duration the duration of the event so far [timestamp units]
+	  * @return the payload length */
+	public static int setEvent(byte[] buf, int off, int event, boolean end, int volume, int duration) {
+		if (duration>0xffff) duration=0xffff;
+		buf[off]=(byte)event;
+		buf[off+1]=(byte)((end? 0x80 : 0)|(volume&0x3f));
+		buf[off+2]=(byte)(duration>>8);
+		buf[off+3]=(byte)duration;
+		return PAYLOAD_LENGTH;
+	}
+
+
+	/** Gets the event code of a telephone-event payload. */
+	public static int getEvent(byte[] buf, int off) {
+		return buf[off]&0xff;
+	}
+
+
+	/** Whether a telephone-event payload has the end bit set. */
+	public static boolean isEnd(byte[] buf, int off) {
+		return (buf[off+1]&0x80)!=0;
+	}
+
+
+	/** Gets the volume of a telephone-event payload [-dBm0]. */
+	public static int getVolume(byte[] buf, int off) {
+		return buf[off+1]&0x3f;
+	}
+
+
+	/** Gets the duration of a telephone-event payload [timestamp units]. */
+	public static int getDuration(byte[] buf, int off) {
+		return ((buf[off+2]&0xff)<<8)|(buf[off+3]&0xff);
+	}
+
+
+	/** Processes a received telephone-event payload.
+	  * @param timestamp the RTP timestamp of the packet
+	  * @param buf the payload buffer
+	  * @param off the offset within the buffer
+	  * @param len the payload length
+	  * @return the event code, if it is the first received packet of a new event, or -1 */
+	public int processReceivedEvent(long timestamp, byte[] buf, int off, int len) {
+		if (len<PAYLOAD_LENGTH || timestamp==last_timestamp) return -1;
+		// else
+		last_timestamp=timestamp;
+		return getEvent(buf,off);
+	}
+
+
+	/** Gets padding data for a given silence interval.
+	  * No padding is used for telephone events. */
+	public int getSilencePad(int sqn_interval, long timestamp_interval, byte[] buf, int off) {
+		return 0;
+	}
+
+
+	/** Gets the actual payload length after the additional format is applied. */
+	public int getRtpPayloadFormatLength(int len) {
+		return len;
+	}
+
+
+	/** Applies the additional RTP payload format (none, for telephone events). */
+	public int setRtpPayloadFormat(byte[] buf, int off, int len) {
+		return len;
+	}
+
+
+	/** Removes the RTP payload format, checking the payload length. */
+	public int removeRtpPayloadFormat(byte[] buf, int off, int len) throws Exception {
+		if (len<PAYLOAD_LENGTH) throw new Exception("Invalid telephone-event payload length: "+len);
+		// else
+		return len;
+	}
+
+}
@@ -29,6 +29,9 @@ import org.mjsip.sip.header.ProxyAuthenticateHeader;
 import org.mjsip.sip.header.WwwAuthenticateHeader;
 import org.mjsip.sip.message.SipMessage;
 import org.mjsip.sip.message.SipMessageFactory;
+import org.zoolu.metrics.Counter;
+import org.zoolu.metrics.MetricFamily;
+import org.zoolu.metrics.MetricRegistry;
 import org.zoolu.util.ByteUtils;
 import org.zoolu.util.LoggerLevel;
 import org.zoolu.util.Logger;
@@ -48,6 +51,15 @@ public class AuthenticationServerImpl implements AuthenticationServer {
 	/** Proxy authentication. */
 	protected static final int PROXY_AUTHENTICATION=1;
 
+	/** Successful authentications */
+	static final Counter AUTH_SUCCESSES=MetricRegistry.getDefault().counter("sip_auth_successes_total","Successfully authenticated requests.");
+
+	/** Challenged requests (401 or 407) */
+	static final Counter AUTH_CHALLENGES=MetricRegistry.getDefault().counter("sip_auth_challenges_total","Requests challenged for credentials (401 or 407), including requests with stale nonce.");
+
+	/** Failed authentications, by reason */
+	static final MetricFamily AUTH_FAILURES=MetricRegistry.getDefault().counters("sip_auth_failures_total","Requests rejected because of failed authentication, by reason.","reason");
+
 
 	/** The repository of users's authentication data. */
 	protected AuthenticationService authentication_service;
@@ -161,10 +173,12 @@ public class AuthenticationServerImpl implements AuthenticationServer {
 						// authentication/authorization failed
 						int result=403; // response code 403 ("Forbidden")
 						err_resp=SipMessageFactory.createResponse(msg,result,null,null);
+						((Counter)AUTH_FAILURES.get("wrong_credentials")).inc();
 						log(LoggerLevel.INFO,"LOGIN ERROR: Authentication of '"+user+"' failed");
 					}
 					else {
 						// authentication/authorization successed
+						AUTH_SUCCESSES.inc();
 						log(LoggerLevel.INFO,"Authentication of '"+user+"' successed");
 					}
 				}
@@ -172,6 +186,7 @@ public class AuthenticationServerImpl implements AuthenticationServer {
 					// authentication/authorization failed
 					int result=400; // response code 400 ("Bad request")
 					err_resp=SipMessageFactory.createResponse(msg,result,null,null);
+					((Counter)AUTH_FAILURES.get("unsupported_scheme")).inc();
 					log(LoggerLevel.INFO,"Authentication method '"+scheme+"' not supported.");
 				}
 			}
@@ -179,6 +194,7 @@ public class AuthenticationServerImpl implements AuthenticationServer {
 				// no authentication credential found for this user
 				int result=404; // response code 404 ("Not Found")
 				err_resp=SipMessageFactory.createResponse(msg,result,null,null);  
+				((Counter)AUTH_FAILURES.get("unknown_user")).inc();
 			}
 		}
 		else {
@@ -195,6 +211,7 @@ public class AuthenticationServerImpl implements AuthenticationServer {
 			wah.addQopOptionsParam(qop_options);
 			wah.addNonceParam(HEX(rand));
 			err_resp.setWwwAuthenticateHeader(wah); 
+			AUTH_CHALLENGES.inc();
 		}
 		return err_resp;
 	}
@@ -0,0 +1,767 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mjsip.sip.address.GenericURI;
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.address.SipURI;
+import org.mjsip.sip.header.MultipleHeader;
+import org.mjsip.sip.header.RecordRouteHeader;
+import org.mjsip.sip.header.RouteHeader;
+import org.mjsip.sip.header.ViaHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMessageFactory;
+import org.mjsip.sip.message.SipMethods;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipStack;
+import org.zoolu.net.IpAddress;
+import org.zoolu.util.Flags;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.LoggerWriter;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** Dispatcher is a stateless SIP load balancer that spreads requests over a farm of backend servers.
+  * <p>
+  * All requests that are not addressed to the dispatcher itself (including REGISTER) are forwarded
+  * to one of the backends, leaving the request-URI unchanged.
+  * A new request is sent to a backend selected according to the configured algorithm:
+  * <br> - "hash": consistent hash of the Call-ID (weighted virtual nodes on a hash ring),
+  * <br> - "round-robin": smooth weighted round-robin,
+  * <br> - "least-outstanding": backend with the lowest number of outstanding transactions per weight unit.
+  * <p>
+  * Dialog-creating requests (INVITE, SUBSCRIBE, REFER) are record-routed with an "lb" URI parameter
+  * that identifies the selected backend, so that subsequent in-dialog requests are sent to the same backend.
+  * In-dialog requests without such parameter are sent according to the Call-ID hash.
+  * Requests that come from a backend (e.g. the BYE or re-INVITE of the callee, or the NOTIFY of a subscription)
+  * are not dispatched, but routed by request-URI as done by a {@link Proxy}.
+  * With round-robin and least-outstanding algorithms, the backends of the most recent INVITEs are remembered,
+  * so that CANCEL and ACK requests (that are not record-routed) reach the same backend of the INVITE.
+  * <p>
+  * Backends are health-checked through OPTIONS requests (e.g. answered by an {@link org.mjsip.sip.call.OptionsServer}
+  * on the far side); a backend that does not answer (or answers with 5xx) to {@link #max_failures} consecutive pings
+  * is considered down, and it is considered up again at the first answer.
+  * A backend can also be drained: it receives no new dialogs or transactions, but it still receives
+  * the in-dialog requests of the established dialogs. When a backend is down, its in-dialog requests
+  * fail over to the next backend on the hash ring; the dialogs of the other backends are not affected.
+  * <p>
+  * The selected backend and the sending time are carried as "lb" and "lbt" parameters of the Via added by the dispatcher,
+  * and they are read back from the responses for updating the per-backend latency, error, and outstanding transaction counters.
+  * The only per-transaction state is the branch of the forwarded requests that are waiting for a final response,
+  * so that retransmissions and retransmitted final responses are not counted twice; transactions that are not answered
+  * expire after the transaction timeout (Timer B/F), or, for INVITE transactions that received a provisional response,
+  * after the proxy transaction timeout (Timer C).
+  * When fast forwarding is enabled, requests that do not need to be record-routed, and their responses,
+  * are dispatched at byte level by the {@link StatelessForwarder}.
+  */
+public class Dispatcher extends Proxy {
+
+	/** Algorithm: consistent hash of the Call-ID */
+	public static final String HASH="hash";
+
+	/** Algorithm: weighted round-robin */
+	public static final String ROUND_ROBIN="round-robin";
+
+	/** Algorithm: least outstanding transactions */
+	public static final String LEAST_OUTSTANDING="least-outstanding";
+
+	/** Name of the URI and Via parameter carrying the backend index */
+	public static final String PARAM_BACKEND="lb";
+
+	/** Name of the Via parameter carrying the sending time */
+	public static final String PARAM_TIME="lbt";
+
+	/** Number of virtual nodes on the hash ring per weight unit */
+	public static int VIRTUAL_NODES=100;
+
+	/** Maximum number of INVITE transactions whose backend is remembered for the corresponding CANCEL and ACK (round-robin and least-outstanding algorithms only) */
+	public static int MAX_INVITES=10000;
+
+	/** Prefix of the Call-ID of health-check requests */
+	static final String PING_CALL_ID="lbping-";
+
+	/** Weight of a new sample in the average latency */
+	static final double SMOOTHING=0.1;
+
+
+	/** A backend server. */
+	public static class Backend {
+		/** Index */
+		int index;
+		/** Address */
+		String host;
+		/** IP address */
+		String addr;
+		/** Port */
+		int port;
+		/** Weight */
+		int weight;
+		/** Whether it answers to health checks */
+		volatile boolean alive=true;
+		/** Whether it is draining (no new dialogs or transactions) */
+		volatile boolean draining=false;
+		/** Number of consecutive failed health checks */
+		int failures=0;
+		/** Call-ID of the pending health check, or <i>null</i> */
+		volatile String ping_call_id=null;
+		/** Current weight used by the smooth weighted round-robin */
+		int current_weight=0;
+		/** Outstanding transactions */
+		AtomicInteger outstanding=new AtomicInteger(0);
+		/** Forwarded requests */
+		AtomicLong requests=new AtomicLong(0);
+		/** Received final responses */
+		AtomicLong responses=new AtomicLong(0);
+		/** Received 5xx responses */
+		AtomicLong errors=new AtomicLong(0);
+		/** Transactions expired without final response */
+		AtomicLong timeouts=new AtomicLong(0);
+		/** Failed health checks */
+		AtomicLong ping_failures=new AtomicLong(0);
+		/** Average latency [millisecs] */
+		volatile double latency=0;
+
+		/** Creates a new Backend. */
+		Backend(int index, String host, int port, int weight) {
+			this.index=index;
+			this.host=host;
+			this.port=port;
+			this.weight=weight;
+			try {
+				addr=IpAddress.getByName(host).toString();
+			}
+			catch (java.net.UnknownHostException e) {
+				addr=host;
+			}
+		}
+
+		/** Gets the address. */
+		public String getHost() {  return host;  }
+
+		/** Gets the port. */
+		public int getPort() {  return port;  }
+
+		/** Gets the weight. */
+		public int getWeight() {  return weight;  }
+
+		/** Whether it answers to health checks. */
+		public boolean isAlive() {  return alive;  }
+
+		/** Whether it is draining. */
+		public boolean isDraining() {  return draining;  }
+
+		/** Whether it can receive new dialogs or transactions. */
+		public boolean isActive() {  return alive && !draining;  }
+
+		/** Gets the number of outstanding transactions. */
+		public int getOutstanding() {  return outstanding.get();  }
+
+		/** Gets the number of forwarded requests. */
+		public long getRequests() {  return requests.get();  }
+
+		/** Gets the number of received final responses. */
+		public long getResponses() {  return responses.get();  }
+
+		/** Gets the number of received 5xx responses. */
+		public long getErrors() {  return errors.get();  }
+
+		/** Gets the number of transactions expired without final response. */
+		public long getTimeouts() {  return timeouts.get();  }
+
+		/** Gets the number of failed health checks. */
+		public long getPingFailures() {  return ping_failures.get();  }
+
+		/** Gets the average latency (time to the first response for INVITE, to the final response otherwise).
+		  * @return the latency in milliseconds */
+		public double getLatency() {  return latency;  }
+
+		/** Gets a String representation of the Object */
+		public String toString() {
+			return host+":"+port+" ("+(!alive? "down" : draining? "draining" : "active")+", w="+weight+", outstanding="+outstanding+", requests="+requests+", errors="+errors+", timeouts="+timeouts+", latency="+(long)latency+"ms)";
+		}
+	}
+
+
+	/** A forwarded request waiting for a final response. */
+	static class Transaction {
+		/** Backend */
+		Backend backend;
+		/** Expiration time [millisecs] */
+		long expire;
+
+		/** Creates a new Transaction. */
+		Transaction(Backend backend, long expire) {
+			this.backend=backend;
+			this.expire=expire;
+		}
+	}
+
+
+	/** Backends */
+	Backend[] backends;
+
+	/** Algorithm */
+	String algorithm;
+
+	/** Maximum number of consecutive failed health checks before considering a backend down */
+	int max_failures;
+
+	/** Positions of the virtual nodes on the hash ring (sorted) */
+	long[] ring_positions;
+
+	/** Backends of the virtual nodes on the hash ring */
+	Backend[] ring_backends;
+
+	/** Backends of the recent INVITEs, for the corresponding CANCEL and non-2xx ACK (Call-ID --> Backend) */
+	Map invites=new LinkedHashMap() {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size()>MAX_INVITES;
+		}
+	};
+
+	/** Transactions waiting for the first response, in order of expiration ("branch method" --> Transaction) */
+	LinkedHashMap transactions=new LinkedHashMap();
+
+	/** INVITE transactions that received a provisional response, in order of expiration ("branch method" --> Transaction);
+	  * it is synchronized together with {@link #transactions} */
+	LinkedHashMap proceeding=new LinkedHashMap();
+
+	/** Number of sent health checks */
+	long ping_counter=0;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates a new Dispatcher. */
+	public Dispatcher(SipProvider provider, ServerProfile server_profile) {
+		super(provider,server_profile);
+		algorithm=server_profile.dispatcher_algorithm;
+		max_failures=server_profile.dispatcher_max_failures;
+		String[] list=server_profile.dispatcher_backends;
+		if (list==null) list=new String[0];
+		backends=new Backend[list.length];
+		for (int i=0; i<list.length; i++) {
+			SipURI uri=new SipURI(list[i]);
+			String weight=uri.getParameter("weight");
+			backends[i]=new Backend(i,uri.getHost(),(uri.getPort()>0)? uri.getPort() : SipStack.default_port,(weight!=null)? Integer.parseInt(weight) : 1);
+		}
+		initRing();
+		log(LoggerLevel.INFO,"backends ("+algorithm+"): "+Arrays.asList(backends));
+		if (stateless_forwarder!=null) stateless_forwarder.setDispatcher(this);
+		if (server_profile.dispatcher_ping_interval>0) {
+			final long ping_interval=server_profile.dispatcher_ping_interval;
+			ThreadFactory.start(new Runnable() {
+				public void run() {
+					while (!stop) {
+						expireTransactions(System.currentTimeMillis());
+						ping();
+						try {  Thread.sleep(ping_interval);  } catch (InterruptedException e) {}
+					}
+				}
+			},"Dispatcher",true);
+		}
+	}
+
+
+	/** Gets the backends. */
+	public Backend[] getBackends() {
+		return backends;
+	}
+
+
+	/** Gets a backend.
+	  * @param host the backend address (as configured, or as IP address)
+	  * @param port the backend port
+	  * @return the backend, or <i>null</i> if not present */
+	public Backend getBackend(String host, int port) {
+		for (int i=0; i<backends.length; i++) {
+			if ((backends[i].host.equals(host) || backends[i].addr.equals(host)) && backends[i].port==port) return backends[i];
+		}
+		return null;
+	}
+
+
+	/** Drains a backend, or brings it back in service.
+	  * A draining backend receives no new dialogs or transactions, but still receives the in-dialog requests of established dialogs.
+	  * @param backend the backend
+	  * @param draining whether the backend has to be drained */
+	public void setDraining(Backend backend, boolean draining) {
+		backend.draining=draining;
+		log(LoggerLevel.INFO,"backend "+backend.host+":"+backend.port+(draining? " draining" : " active"));
+	}
+
+
+	/** Stops health checks, and unregisters the gauges of the Registrar. */
+	public void halt() {
+		stop=true;
+		super.halt();
+	}
+
+
+	// ************************ Backend selection ************************
+
+	/** Creates the hash ring. */
+	private void initRing() {
+		int size=0;
+		for (int i=0; i<backends.length; i++) size+=VIRTUAL_NODES*backends[i].weight;
+		long[][] nodes=new long[size][];
+		int n=0;
+		for (int i=0; i<backends.length; i++) {
+			for (int k=0; k<VIRTUAL_NODES*backends[i].weight; k++) nodes[n++]=new long[]{ hash(backends[i].host+":"+backends[i].port+"#"+k), i };
+		}
+		Arrays.sort(nodes,new java.util.Comparator() {
+			public int compare(Object a, Object b) {
+				return Long.compare(((long[])a)[0],((long[])b)[0]);
+			}
+		});
+		ring_positions=new long[size];
+		ring_backends=new Backend[size];
+		for (int i=0; i<size; i++) {
+			ring_positions[i]=nodes[i][0];
+			ring_backends[i]=backends[(int)nodes[i][1]];
+		}
+	}
+
+
+	/** Gets the hash of a string (FNV-1a, with final mixing). */
+	static long hash(String str) {
+		long h=StatelessForwarder.FNV_OFFSET_BASIS;
+		for (int i=0; i<str.length(); i++) {
+			h^=str.charAt(i)&0xff;
+			h*=StatelessForwarder.FNV_PRIME;
+		}
+		h^=h>>>33;
+		h*=0xff51afd7ed558ccdL;
+		h^=h>>>33;
+		return h;
+	}
+
+
+	/** Gets the first available backend on the hash ring, starting from the position of the given Call-ID.
+	  * @param call_id the Call-ID
+	  * @param in_dialog whether the request is within a dialog (draining backends are available)
+	  * @return the backend, or <i>null</i> if no backend is available */
+	Backend getHashBackend(String call_id, boolean in_dialog) {
+		if (ring_positions.length==0) return null;
+		// else
+		int i=Arrays.binarySearch(ring_positions,hash(call_id));
+		if (i<0) i=-i-1;
+		for (int k=0; k<ring_positions.length; k++) {
+			Backend backend=ring_backends[(i+k)%ring_positions.length];
+			if (in_dialog? backend.alive : backend.isActive()) return backend;
+		}
+		return null;
+	}
+
+
+	/** Selects the backend for a request.
+	  * @param call_id the Call-ID
+	  * @param method the request method
+	  * @param in_dialog whether the request is within a dialog
+	  * @param lb the value of the "lb" parameter of the Route of the dispatcher, or <i>null</i>
+	  * @return the backend, or <i>null</i> if no backend is available */
+	public Backend select(String call_id, String method, boolean in_dialog, String lb) {
+		if (lb!=null) {
+			try {
+				int index=Integer.parseInt(lb);
+				if (index>=0 && index<backends.length && backends[index].alive) return backends[index];
+			}
+			catch (NumberFormatException e) {}
+		}
+		boolean hash=algorithm.equalsIgnoreCase(HASH);
+		if (!hash && (method.equals(SipMethods.CANCEL) || method.equals(SipMethods.ACK))) {
+			Backend backend;
+			synchronized (invites) {  backend=(Backend)invites.get(call_id);  }
+			if (backend!=null && backend.alive) return backend;
+		}
+		if (in_dialog || hash) return getHashBackend(call_id,in_dialog);
+		// else
+		Backend selected=algorithm.equalsIgnoreCase(LEAST_OUTSTANDING)? getLeastOutstandingBackend() : getRoundRobinBackend();
+		if (selected!=null && method.equals(SipMethods.INVITE)) {
+			synchronized (invites) {  invites.put(call_id,selected);  }
+		}
+		return selected;
+	}
+
+
+	/** Gets the active backend with the lowest number of outstanding transactions per weight unit.
+	  * @return the backend, or <i>null</i> if no backend is available */
+	private Backend getLeastOutstandingBackend() {
+		Backend selected=null;
+		for (int i=0; i<backends.length; i++) {
+			Backend backend=backends[i];
+			if (!backend.isActive()) continue;
+			// else
+			if (selected==null || (long)backend.outstanding.get()*selected.weight<(long)selected.outstanding.get()*backend.weight) selected=backend;
+		}
+		return selected;
+	}
+
+
+	/** Gets the next active backend according to the smooth weighted round-robin.
+	  * @return the backend, or <i>null</i> if no backend is available */
+	private synchronized Backend getRoundRobinBackend() {
+		Backend selected=null;
+		int total=0;
+		for (int i=0; i<backends.length; i++) {
+			Backend backend=backends[i];
+			if (!backend.isActive()) continue;
+			// else
+			backend.current_weight+=backend.weight;
+			total+=backend.weight;
+			if (selected==null || backend.current_weight>selected.current_weight) selected=backend;
+		}
+		if (selected!=null) selected.current_weight-=total;
+		return selected;
+	}
+
+
+	/** When a request has been forwarded to a backend.
+	  * A transaction is counted as outstanding only at the first transmission of the request.
+	  * @param backend the backend
+	  * @param branch the branch of the Via added by the dispatcher
+	  * @param method the request method */
+	void onRequest(Backend backend, String branch, String method) {
+		backend.requests.incrementAndGet();
+		if (method.equals(SipMethods.ACK)) return;
+		// else
+		long now=System.currentTimeMillis();
+		String key=branch+" "+method;
+		synchronized (transactions) {
+			expireTransactions(now);
+			// retransmission
+			if (transactions.containsKey(key) || proceeding.containsKey(key)) return;
+			// else
+			transactions.put(key,new Transaction(backend,now+SipStack.transaction_timeout));
+		}
+		backend.outstanding.incrementAndGet();
+	}
+
+
+	/** When a response is received from a backend.
+	  * @param index the backend index ("lb" parameter of the Via of the dispatcher)
+	  * @param time the sending time of the request ("lbt" parameter of the Via of the dispatcher), or -1
+	  * @param code the response code
+	  * @param branch the branch of the Via of the dispatcher
+	  * @param method the CSeq method */
+	void onResponse(int index, long time, int code, String branch, String method) {
+		if (index<0 || index>=backends.length) return;
+		// else
+		Backend backend=backends[index];
+		boolean invite=method.equalsIgnoreCase(SipMethods.INVITE);
+		if ((invite && code==100) || (!invite && code>=200)) {
+			if (time>0) backend.latency+=SMOOTHING*((System.currentTimeMillis()-time)-backend.latency);
+		}
+		String key=branch+" "+method;
+		Transaction transaction;
+		synchronized (transactions) {
+			if (code<200) {
+				// a proceeding INVITE transaction lasts until Timer C
+				if (invite && (transaction=(Transaction)transactions.remove(key))!=null) {
+					transaction.expire=System.currentTimeMillis()+SipStack.proxy_transaction_timeout;
+					proceeding.put(key,transaction);
+				}
+				return;
+			}
+			// else
+			transaction=(Transaction)transactions.remove(key);
+			if (transaction==null) transaction=(Transaction)proceeding.remove(key);
+		}
+		// a retransmitted final response, or the response of an expired transaction
+		if (transaction==null) return;
+		// else
+		backend.responses.incrementAndGet();
+		if (code>=500) backend.errors.incrementAndGet();
+		if (transaction.backend.outstanding.decrementAndGet()<0) transaction.backend.outstanding.set(0);
+	}
+
+
+	/** Removes the transactions that have not been answered in time. */
+	private void expireTransactions(long now) {
+		synchronized (transactions) {
+			expireTransactions(transactions,now);
+			expireTransactions(proceeding,now);
+		}
+	}
+
+
+	/** Removes the expired transactions of a table, that is in order of expiration. */
+	private static void expireTransactions(LinkedHashMap table, long now) {
+		for (Iterator i=table.values().iterator(); i.hasNext(); ) {
+			Transaction transaction=(Transaction)i.next();
+			if (transaction.expire>now) break;
+			// else
+			i.remove();
+			transaction.backend.timeouts.incrementAndGet();
+			if (transaction.backend.outstanding.decrementAndGet()<0) transaction.backend.outstanding.set(0);
+		}
+	}
+
+
+	/** Removes all transactions of a backend. */
+	private void removeTransactions(Backend backend) {
+		synchronized (transactions) {
+			for (Iterator i=transactions.values().iterator(); i.hasNext(); ) if (((Transaction)i.next()).backend==backend) i.remove();
+			for (Iterator i=proceeding.values().iterator(); i.hasNext(); ) if (((Transaction)i.next()).backend==backend) i.remove();
+		}
+		backend.outstanding.set(0);
+	}
+
+
+	// ************************* Health checks *************************
+
+	/** Sends a health check to all backends, and updates the state of the backends that did not answer to the previous one. */
+	private void ping() {
+		for (int i=0; i<backends.length; i++) {
+			Backend backend=backends[i];
+			if (backend.ping_call_id!=null) pingFailed(backend);
+			String call_id=PING_CALL_ID+i+"-"+(ping_counter++)+"@"+sip_provider.getViaAddress();
+			SipURI uri=new SipURI(backend.host,backend.port);
+			NameAddress from=new NameAddress(new SipURI(sip_provider.getViaAddress(),sip_provider.getPort()));
+			SipMessage req=SipMessageFactory.createRequest(SipMethods.OPTIONS,uri,new NameAddress(uri),from,call_id,null,null,null);
+			backend.ping_call_id=call_id;
+			sip_provider.sendMessage(req,sip_provider.getDefaultTransport(),backend.host,backend.port,0);
+		}
+	}
+
+
+	/** When a health check has not been answered, or has been answered with 5xx. */
+	private void pingFailed(Backend backend) {
+		backend.ping_call_id=null;
+		backend.ping_failures.incrementAndGet();
+		if (++backend.failures>=max_failures && backend.alive) {
+			backend.alive=false;
+			removeTransactions(backend);
+			log(LoggerLevel.WARNING,"backend "+backend.host+":"+backend.port+" down");
+		}
+	}
+
+
+	/** Processes the response to a health check.
+	  * @return whether the response is a response to a health check */
+	private boolean processPingResponse(SipMessage resp) {
+		String call_id=resp.getCallIdHeader().getCallId();
+		if (!call_id.startsWith(PING_CALL_ID)) return false;
+		// else
+		for (int i=0; i<backends.length; i++) {
+			Backend backend=backends[i];
+			if (!call_id.equals(backend.ping_call_id)) continue;
+			// else
+			int code=resp.getStatusLine().getCode();
+			if (code<200) return true;
+			// else
+			if (code>=500) {
+				pingFailed(backend);
+				return true;
+			}
+			// else
+			backend.ping_call_id=null;
+			backend.failures=0;
+			if (!backend.alive) {
+				backend.alive=true;
+				log(LoggerLevel.WARNING,"backend "+backend.host+":"+backend.port+" up");
+			}
+			return true;
+		}
+		return true;
+	}
+
+
+	// ************************* Message processing *************************
+
+	/** When a new request is received for the local server. */
+	@Override
+	protected void processRequestToLocalServer(SipMessage msg) {
+		if (msg.isRegister()) {
+			dispatch(msg);
+			return;
+		}
+		// else
+		if (msg.isOptions()) {
+			sip_provider.sendMessage(SipMessageFactory.createResponse(msg,200,null,null));
+			return;
+		}
+		// else
+		super.processRequestToLocalServer(msg);
+	}
+
+
+	/** When a new request message is received for a local user */
+	@Override
+	protected void processRequestToLocalUser(SipMessage msg) {
+		// requests coming from a backend are routed by request-uri, since the backend would be selected again
+		if (isFromBackend(msg)) super.processRequestToLocalUser(msg);
+		else dispatch(msg);
+	}
+
+
+	/** When a new request message is received for a remote UA */
+	@Override
+	protected void processRequestToRemoteUA(SipMessage msg) {
+		// requests coming from a backend are routed by request-uri, since the backend would be selected again
+		if (isFromBackend(msg)) super.processRequestToRemoteUA(msg);
+		else dispatch(msg);
+	}
+
+
+	/** When a new response message is received */
+	@Override
+	protected void processResponse(SipMessage resp) {
+		if (processPingResponse(resp)) return;
+		// else
+		ViaHeader via=resp.getViaHeader();
+		String lb=via.getParameter(PARAM_BACKEND);
+		if (lb!=null && via.getHost().equals(sip_provider.getViaAddress())) {
+			try {
+				String lbt=via.getParameter(PARAM_TIME);
+				onResponse(Integer.parseInt(lb),(lbt!=null)? Long.parseLong(lbt) : -1,resp.getStatusLine().getCode(),via.getBranch(),resp.getCSeqHeader().getMethod());
+			}
+			catch (NumberFormatException e) {}
+		}
+		super.processResponse(resp);
+	}
+
+
+	/** Whether a request comes from a backend, i.e. its source address or the sent-by of its top Via is a backend. */
+	private boolean isFromBackend(SipMessage msg) {
+		if (getBackend(msg.getRemoteAddress(),msg.getRemotePort())!=null) return true;
+		// else
+		ViaHeader via=msg.getViaHeader();
+		return getBackend(via.getHost(),(via.getPort()>0)? via.getPort() : SipStack.default_port)!=null;
+	}
+
+
+	/** Whether a request creates a dialog that has to be record-routed. */
+	private static boolean isDialogCreating(SipMessage msg) {
+		return msg.isInvite() || msg.isSubscribe() || msg.isRefer();
+	}
+
+
+	/** Forwards a request to the selected backend. */
+	private void dispatch(SipMessage msg) {
+		log(LoggerLevel.DEBUG,"inside dispatch(msg)");
+		boolean in_dialog=msg.getToHeader().hasTag();
+		// backend of the dialog, from the Route of the dispatcher
+		String lb=null;
+		if (msg.hasRouteHeader()) {
+			GenericURI route=msg.getRouteHeader().getNameAddress().getAddress();
+			if (route.isSipURI()) {
+				SipURI sip_route=new SipURI(route);
+				if (isResponsibleFor(sip_route.getHost(),sip_route.getPort())) lb=sip_route.getParameter(PARAM_BACKEND);
+			}
+		}
+		updateProxyingRequest(msg);
+		if (msg.hasRouteHeader()) {
+			// loose routing toward the next Route
+			sip_provider.sendMessage(msg);
+			return;
+		}
+		// else
+		Backend backend=select(msg.getCallIdHeader().getCallId(),msg.getRequestLine().getMethod(),in_dialog,lb);
+		if (backend==null) {
+			log(LoggerLevel.INFO,"no backend available: request rejected");
+			if (!msg.isAck()) sip_provider.sendMessage(createThrottledResponse(msg));
+			return;
+		}
+		// else
+		if (!in_dialog && isDialogCreating(msg)) {
+			// record-route with the backend index (replacing the Record-Route added by the Proxy, if any)
+			SipURI rr_uri;
+			if (sip_provider.getPort()==SipStack.default_port) rr_uri=new SipURI(sip_provider.getViaAddress());
+			else rr_uri=new SipURI(sip_provider.getViaAddress(),sip_provider.getPort());
+			if (server_profile.on_route && msg.isInvite()) {
+				MultipleHeader rr=msg.getRecordRoutes();
+				rr.removeTop();
+				if (rr.size()>0) msg.setRecordRoutes(rr);
+				else msg.removeRecordRoutes();
+			}
+			rr_uri.addLr();
+			rr_uri.addParameter(PARAM_BACKEND,String.valueOf(backend.index));
+			msg.addRecordRouteHeader(new RecordRouteHeader(new NameAddress(rr_uri)));
+		}
+		ViaHeader via=msg.getViaHeader();
+		via.setParameter(PARAM_BACKEND,String.valueOf(backend.index));
+		via.setParameter(PARAM_TIME,String.valueOf(System.currentTimeMillis()));
+		msg.removeViaHeader();
+		msg.addViaHeader(via);
+		onRequest(backend,via.getBranch(),msg.getRequestLine().getMethod());
+		sip_provider.sendMessage(msg,via.getProtocol(),backend.host,backend.port,0);
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "Dispatcher ("+algorithm+"): "+Arrays.asList(backends);
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default Log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);  
+	}
+
+
+	// ****************************** MAIN *****************************
+
+	/** The main method. */
+	public static void main(String[] args) {
+				
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this message");
+		boolean verbose=flags.getBoolean("-v","verbose mode");
+		String file=flags.getString("-f",null,"<file>","loads configuration from the given file");
+		boolean prompt_exit=flags.getBoolean("--prompt","prompts for exit");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(Dispatcher.class.getName()));
+			return;
+		}
+		
+		if (verbose) SystemUtils.setDefaultLogger(new LoggerWriter(System.out,LoggerLevel.INFO));
+					
+		SipStack.init(file);
+		SipProvider sip_provider=new SipProvider(file);
+		ServerProfile server_profile=new ServerProfile(file);
+
+		new Dispatcher(sip_provider,server_profile);
+		
+		if (prompt_exit) {
+			System.out.println("press 'enter' to exit");
+			SystemUtils.readLine();
+			System.exit(0);
+		}
+	}
+  
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Vector;
+
+
+/** MessageQueue is a persistent, append-only queue of messages for a single user,
+  * stored in a memory-mapped file.
+  * <p>
+  * Only the offsets of the queued messages are kept in heap, while the messages themselves
+  * are read from the mapped file when they are delivered.
+  * Messages are never modified once appended: when a message is delivered (or discarded) only
+  * its status byte is changed. The space of delivered messages is reclaimed when the queue becomes
+  * empty, or when a new message does not fit the maximum size of the queue (compaction).
+  * <p>
+  * Queued messages are referred to by an identifier that is assigned when the message is appended
+  * (or loaded) and that does not change when the records are moved by a compaction.
+  * The compaction writes the queued records to a temporary file that then replaces the queue file,
+  * so that a crash during the compaction leaves either the old or the new file.
+  * <p>
+  * A file larger than the maximum size (e.g. after the maximum size has been reduced) is fully loaded,
+  * and then compacted; the newest queued messages that still don't fit are discarded.
+  * <p>
+  * The file starts with a header containing the magic number, the end of the written records,
+  * and the user name. Each record contains the record length, the status, the arrival time,
+  * and the message bytes.
+  */
+public class MessageQueue {
+	
+	/** Magic number ("MSGQ") */
+	static final int MAGIC=0x4d534751;
+
+	/** Maximum length of the user name */
+	static final int MAX_USER_LENGTH=250;
+
+	/** Header size (magic, end offset, user name) */
+	static final int HEADER_SIZE=4+4+2+MAX_USER_LENGTH;
+
+	/** Record header size (length, status, time) */
+	static final int RECORD_HEADER_SIZE=4+1+8;
+
+	/** Minimum size of the mapped region */
+	static final int MIN_MAP_SIZE=65536;
+
+	/** Extension of the temporary file used for the compaction */
+	static final String TMP_FILE_EXTENSION=".tmp";
+
+	/** Message status QUEUED */
+	public static final byte QUEUED=0;
+	/** Message status DELIVERED */
+	public static final byte DELIVERED=1;
+	/** Message status DISCARDED */
+	public static final byte DISCARDED=2;
+
+
+	/** Queue file */
+	File file;
+
+	/** User name */
+	String user;
+
+	/** Maximum size of the queue file */
+	int max_size;
+
+	/** Mapped region of the file */
+	MappedByteBuffer map;
+
+	/** End of the written records */
+	int end;
+
+	/** Queued messages, in arrival order (Vector of Record) */
+	Vector queued=new Vector();
+
+	/** Identifier of the next appended message */
+	long next_id=0;
+
+	/** Number of queued messages discarded when loading, since exceeding the maximum size */
+	int truncated=0;
+
+
+	/** A queued record. */
+	static class Record {
+		/** Message identifier */
+		long id;
+		/** Offset of the record within the file */
+		int offset;
+
+		/** Creates a new Record. */
+		Record(long id, int offset) {
+			this.id=id;
+			this.offset=offset;
+		}
+	}
+
+
+
+	/** Creates a new MessageQueue, loading the messages already present in the file.
+	  * @param file the queue file
+	  * @param user the user name, or <i>null</i> for reading it from an existing file
+	  * @param max_size maximum size of the queue file (in bytes) */
+	public MessageQueue(File file, String user, int max_size) throws IOException {
+		this.file=file;
+		this.max_size=Math.max(max_size,HEADER_SIZE+RECORD_HEADER_SIZE);
+		// a left temporary file is the result of an interrupted compaction
+		new File(file.getPath()+TMP_FILE_EXTENSION).delete();
+		boolean exists=file.exists() && file.length()>=HEADER_SIZE;
+		if (exists && file.length()>Integer.MAX_VALUE) throw new IOException("File too large: "+file);
+		// else
+		mapFile(exists? (int)file.length() : Math.min(MIN_MAP_SIZE,this.max_size));
+		if (exists && map.getInt(0)==MAGIC) {
+			end=map.getInt(4);
+			byte[] buf=new byte[map.getShort(8)];
+			for (int i=0; i<buf.length; i++) buf[i]=map.get(10+i);
+			this.user=new String(buf,"UTF-8");
+			load();
+			if (end>this.max_size || map.capacity()>this.max_size) {
+				int count=queued.size();
+				compact();
+				truncated=count-queued.size();
+			}
+		}
+		else {
+			if (user==null) throw new IOException("Not a message queue file: "+file);
+			// else
+			this.user=user;
+			byte[] buf=user.getBytes("UTF-8");
+			if (buf.length>MAX_USER_LENGTH) throw new IOException("User name too long: "+user);
+			// else
+			map.putInt(0,MAGIC);
+			map.putShort(8,(short)buf.length);
+			for (int i=0; i<buf.length; i++) map.put(10+i,buf[i]);
+			setEnd(HEADER_SIZE);
+		}
+	}
+
+
+	/** Gets the user name. */
+	public String getUser() {
+		return user;
+	}
+
+
+	/** Gets the number of queued messages. */
+	public synchronized int size() {
+		return queued.size();
+	}
+
+
+	/** Gets the number of queued messages that have been discarded when loading the file,
+	  * since exceeding the maximum size. */
+	public int getTruncated() {
+		return truncated;
+	}
+
+
+	/** Gets the number of bytes used by the queue file. */
+	public synchronized int getUsedBytes() {
+		return end;
+	}
+
+
+	/** Appends a new message.
+	  * @param data the message bytes
+	  * @param time the arrival time [millisecs]
+	  * @return true if the message has been queued, false if the queue is full */
+	public synchronized boolean add(byte[] data, long time) throws IOException {
+		int len=RECORD_HEADER_SIZE+data.length;
+		if (end+len>max_size && end>HEADER_SIZE+getQueuedBytes()) compact();
+		if (end+len>max_size) return false;
+		// else
+		if (end+len>map.capacity()) mapFile(Math.min(max_size,Math.max(map.capacity()*2,end+len)));
+		int offset=end;
+		map.putInt(offset,len);
+		map.put(offset+4,QUEUED);
+		map.putLong(offset+5,time);
+		ByteBuffer buf=map.duplicate();
+		buf.position(offset+RECORD_HEADER_SIZE);
+		buf.put(data);
+		// the record is visible only after the end offset has been updated
+		setEnd(offset+len);
+		queued.addElement(new Record(next_id++,offset));
+		return true;
+	}
+
+
+	/** Gets the identifier of the oldest queued message.
+	  * @return the identifier, or -1 if the queue is empty */
+	public synchronized long peek() {
+		return queued.size()>0? ((Record)queued.firstElement()).id : -1;
+	}
+
+
+	/** Whether a message is still queued.
+	  * @param id the message identifier */
+	public synchronized boolean contains(long id) {
+		return indexOf(id)>=0;
+	}
+
+
+	/** Gets a queued message.
+	  * @param id the message identifier
+	  * @return the message bytes, or <i>null</i> if the message is not queued */
+	public synchronized byte[] getMessage(long id) {
+		int i=indexOf(id);
+		if (i<0) return null;
+		// else
+		int offset=((Record)queued.elementAt(i)).offset;
+		byte[] data=new byte[map.getInt(offset)-RECORD_HEADER_SIZE];
+		ByteBuffer buf=map.duplicate();
+		buf.position(offset+RECORD_HEADER_SIZE);
+		buf.get(data);
+		return data;
+	}
+
+
+	/** Gets the arrival time of a queued message.
+	  * @param id the message identifier
+	  * @return the time [millisecs], or -1 if the message is not queued */
+	public synchronized long getTime(long id) {
+		int i=indexOf(id);
+		if (i<0) return -1;
+		// else
+		return map.getLong(((Record)queued.elementAt(i)).offset+5);
+	}
+
+
+	/** Removes a message from the queue, setting its final status.
+	  * Nothing is done if the message is not queued anymore (e.g. it has been already discarded).
+	  * @param id the message identifier
+	  * @param status the final status ({@link #DELIVERED} or {@link #DISCARDED}) */
+	public synchronized void remove(long id, byte status) {
+		int i=indexOf(id);
+		if (i<0) return;
+		// else
+		int offset=((Record)queued.elementAt(i)).offset;
+		queued.removeElementAt(i);
+		map.put(offset+4,status);
+		if (queued.size()==0) setEnd(HEADER_SIZE);
+	}
+
+
+	/** Discards all messages older than a given time.
+	  * @param time the time [millisecs]
+	  * @return the number of discarded messages */
+	public synchronized int removeOlderThan(long time) {
+		int count=0;
+		while (queued.size()>0) {
+			long id=((Record)queued.firstElement()).id;
+			if (getTime(id)>=time) break;
+			// else
+			remove(id,DISCARDED);
+			count++;
+		}
+		return count;
+	}
+
+
+	/** Writes the queue content to the storage device. */
+	public synchronized void flush() {
+		map.force();
+	}
+
+
+	/** Closes the queue. If no message is queued, the file is deleted.
+	  * The mapped region is released as soon as it is garbage collected, since no reference to it is kept.
+	  * The queue must not be used after it has been closed. */
+	public synchronized void close() {
+		if (map==null) return;
+		// else
+		map.force();
+		map=null;
+		if (queued.size()==0) file.delete();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return user+": "+size()+" messages ("+getUsedBytes()+" bytes)";
+	}
+
+
+	// ************************* Private methods ************************
+
+	/** Gets the index of a queued message.
+	  * @return the index within the queued messages, or -1 */
+	private int indexOf(long id) {
+		// identifiers are in increasing order, and the searched message is usually the first one
+		for (int i=0; i<queued.size(); i++) {
+			long record_id=((Record)queued.elementAt(i)).id;
+			if (record_id==id) return i;
+			if (record_id>id) break;
+		}
+		return -1;
+	}
+
+
+	/** Maps the first <i>size</i> bytes of the file (the file is extended if shorter). */
+	private void mapFile(int size) throws IOException {
+		RandomAccessFile raf=new RandomAccessFile(file,"rw");
+		try {
+			map=raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,size);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+
+	/** Sets the end of the written records. */
+	private void setEnd(int end) {
+		this.end=end;
+		map.putInt(4,end);
+	}
+
+
+	/** Rebuilds the list of queued messages. */
+	private void load() {
+		if (end<HEADER_SIZE || end>map.capacity()) setEnd(HEADER_SIZE);
+		int offset=HEADER_SIZE;
+		while (offset<end) {
+			int len=map.getInt(offset);
+			if (len<RECORD_HEADER_SIZE || offset+len>end) {
+				// truncated record
+				setEnd(offset);
+				break;
+			}
+			// else
+			if (map.get(offset+4)==QUEUED) queued.addElement(new Record(next_id++,offset));
+			offset+=len;
+		}
+		if (queued.size()==0) setEnd(HEADER_SIZE);
+	}
+
+
+	/** Gets the total size of the queued records. */
+	private int getQueuedBytes() {
+		int size=0;
+		for (int i=0; i<queued.size(); i++) size+=map.getInt(((Record)queued.elementAt(i)).offset);
+		return size;
+	}
+
+
+	/** Moves all queued records to the beginning of the file, reclaiming the space of the other records.
+	  * The queued records are written to a temporary file, that atomically replaces the queue file
+	  * only when it is complete. Queued records that don't fit the maximum size are discarded. */
+	private void compact() throws IOException {
+		File tmp_file=new File(file.getPath()+TMP_FILE_EXTENSION);
+		int[] offsets=new int[queued.size()];
+		int count=0;
+		RandomAccessFile raf=new RandomAccessFile(tmp_file,"rw");
+		try {
+			raf.setLength(0);
+			byte[] header=new byte[HEADER_SIZE];
+			ByteBuffer buf=map.duplicate();
+			buf.position(0);
+			buf.get(header);
+			raf.write(header);
+			int dst=HEADER_SIZE;
+			for (int i=0; i<queued.size(); i++) {
+				int src=((Record)queued.elementAt(i)).offset;
+				if (dst+map.getInt(src)>max_size) break;
+				// else
+				byte[] record=new byte[map.getInt(src)];
+				buf.position(src);
+				buf.get(record);
+				raf.write(record);
+				offsets[i]=dst;
+				dst+=record.length;
+				count++;
+			}
+			raf.seek(4);
+			raf.writeInt(dst);
+			raf.getFD().sync();
+		}
+		finally {
+			raf.close();
+		}
+		Files.move(tmp_file.toPath(),file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+		mapFile(Math.min(max_size,Math.max(map.capacity(),MIN_MAP_SIZE)));
+		queued.setSize(count);
+		for (int i=0; i<count; i++) ((Record)queued.elementAt(i)).offset=offsets[i];
+		end=map.getInt(4);
+	}
+
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mjsip.sip.address.SipURI;
+import org.mjsip.sip.header.DateHeader;
+import org.mjsip.sip.header.MaxForwardsHeader;
+import org.mjsip.sip.header.RequestLine;
+import org.mjsip.sip.header.ViaHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMethods;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipStack;
+import org.mjsip.sip.transaction.TransactionClient;
+import org.mjsip.sip.transaction.TransactionClientListener;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** MessageRelay is a store-and-forward relay for page-mode instant messages (MESSAGE requests, RFC 3428).
+  * <p>
+  * A MESSAGE for a local user that has no registered contact is stored in a persistent per-user
+  * {@link MessageQueue}. When the user registers again, the queued messages are delivered in arrival order
+  * to the first registered contact.
+  * <p>
+  * Deliveries are performed by one single thread. Messages of the same user are sent one at a time, in order,
+  * while at most {@link ServerProfile#message_relay_max_concurrency} users are served in parallel.
+  * A delivery that fails with a temporary error (408, 480, 503, or transaction timeout) is retried with
+  * exponential back-off up to {@link ServerProfile#message_relay_max_attempts} times; if it still fails,
+  * the messages remain queued until the next registration. A message that fails with any other error is discarded.
+  * Messages older than {@link ServerProfile#message_relay_max_age} seconds are discarded.
+  * <p>
+  * Messages are stored as they are sent, that is with the UTF-8 encoded header and the unchanged body. A queue is closed (and its file deleted) as soon as it is drained,
+  * so that only the users with queued messages have a mapped file.
+  */
+public class MessageRelay implements Runnable {
+	
+	/** Scheduler period [millisecs] */
+	public static long TICK_TIME=100;
+
+	/** Initial time between two delivery attempts of the same message [millisecs] */
+	public static long RETRY_TIME=2000;
+
+	/** Time between two checks of aged messages [millisecs] */
+	static final long AGE_CHECK_TIME=60000;
+
+	/** Queue file extension */
+	static final String QUEUE_FILE_EXTENSION=".queue";
+
+
+	/** Delivery of the queued messages of a user. */
+	static class Delivery {
+		/** Message queue */
+		MessageQueue queue;
+		/** Identifier of the message being delivered, or -1 */
+		long id=-1;
+		/** Number of failed attempts for the current message */
+		int attempts=0;
+		/** Time of the next attempt [millisecs] */
+		long next_time=0;
+
+		/** Creates a new Delivery. */
+		Delivery(MessageQueue queue) {
+			this.queue=queue;
+		}
+	}
+
+
+	/** SipProvider */
+	SipProvider sip_provider;
+
+	/** ServerProfile */
+	ServerProfile server_profile;
+
+	/** Location service */
+	LocationService location_service;
+
+	/** Directory of the queue files */
+	File dir;
+
+	/** Message queues (user --> MessageQueue) */
+	Hashtable queues=new Hashtable();
+
+	/** Ongoing deliveries (user --> Delivery) */
+	Hashtable deliveries=new Hashtable();
+
+	/** Deliveries waiting for the next attempt (Vector of Delivery) */
+	Vector waiting=new Vector();
+
+	/** Pending transactions (TransactionClient --> Delivery) */
+	Hashtable transactions=new Hashtable();
+
+	/** Number of stored messages */
+	long stored_counter=0;
+
+	/** Number of messages rejected since the queue was full */
+	long rejected_counter=0;
+
+	/** Number of delivered messages */
+	long delivered_counter=0;
+
+	/** Number of messages discarded after a delivery failure */
+	long failed_counter=0;
+
+	/** Number of messages discarded since too old */
+	long expired_counter=0;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+	/** Scheduler thread */
+	Thread thread;
+
+	/** Transaction client listener */
+	TransactionClientListener this_tc_listener=new TransactionClientListener() {
+		@Override
+		public void onTransProvisionalResponse(TransactionClient tc, SipMessage resp) {
+		}
+		@Override
+		public void onTransSuccessResponse(TransactionClient tc, SipMessage resp) {
+			processDeliveryResult(tc,resp.getStatusLine().getCode());
+		}
+		@Override
+		public void onTransFailureResponse(TransactionClient tc, SipMessage resp) {
+			processDeliveryResult(tc,resp.getStatusLine().getCode());
+		}
+		@Override
+		public void onTransTimeout(TransactionClient tc) {
+			processDeliveryResult(tc,408);
+		}
+	};
+
+
+
+	/** Creates a new MessageRelay.
+	  * Messages already stored in the queue directory are loaded, and delivered at the next registration of the user.
+	  * @param sip_provider the SIP provider used for delivering messages
+	  * @param server_profile the server configuration
+	  * @param location_service the location service used for finding the contacts of the users */
+	public MessageRelay(SipProvider sip_provider, ServerProfile server_profile, LocationService location_service) {
+		this.sip_provider=sip_provider;
+		this.server_profile=server_profile;
+		this.location_service=location_service;
+		dir=new File(server_profile.message_relay_path);
+		if (!dir.exists()) dir.mkdirs();
+		File[] files=dir.listFiles();
+		for (int i=0; files!=null && i<files.length; i++) {
+			if (!files[i].getName().endsWith(QUEUE_FILE_EXTENSION)) continue;
+			// else
+			try {
+				MessageQueue queue=new MessageQueue(files[i],null,server_profile.message_relay_max_bytes);
+				if (queue.getTruncated()>0) log(LoggerLevel.WARNING,queue.getTruncated()+" message(s) of "+queue.getUser()+" discarded, since exceeding the maximum queue size");
+				if (queue.size()==0) {
+					queue.close();
+					continue;
+				}
+				// else
+				queues.put(queue.getUser(),queue);
+				log(LoggerLevel.INFO,"loaded "+queue);
+			}
+			catch (IOException e) {
+				log(LoggerLevel.WARNING,"error loading "+files[i]+": "+e.getMessage());
+			}
+		}
+		thread=ThreadFactory.start(this,"MessageRelay",true);
+	}
+
+
+	/** Stores a message for a user that is not reachable.
+	  * @param user the user (e.g. "alice@example.com")
+	  * @param msg the MESSAGE request
+	  * @return true if the message has been stored, false if the queue of the user is full */
+	public synchronized boolean store(String user, SipMessage msg) {
+		try {
+			MessageQueue queue=getQueue(user);
+			if (queue.size()>=server_profile.message_relay_max_messages) queue.removeOlderThan(System.currentTimeMillis()-server_profile.message_relay_max_age*1000L);
+			if (queue.size()<server_profile.message_relay_max_messages && queue.add(msg.getBytes(),System.currentTimeMillis())) {
+				log(LoggerLevel.INFO,"message stored for "+user+" ("+queue.size()+" queued)");
+				stored_counter++;
+				return true;
+			}
+			// else
+			log(LoggerLevel.INFO,"queue of "+user+" is full: message refused");
+			rejected_counter++;
+			releaseQueue(queue);
+			return false;
+		}
+		catch (IOException e) {
+			log(LoggerLevel.WARNING,"error storing message for "+user+": "+e.getMessage());
+			rejected_counter++;
+			return false;
+		}
+	}
+
+
+	/** Starts the delivery of the messages queued for a user, e.g. when the user registers.
+	  * @param user the user (e.g. "alice@example.com") */
+	public synchronized void deliver(String user) {
+		MessageQueue queue=(MessageQueue)queues.get(user);
+		if (queue==null || queue.size()==0) return;
+		// else
+		Delivery delivery=(Delivery)deliveries.get(user);
+		if (delivery==null) {
+			log(LoggerLevel.INFO,"delivering "+queue.size()+" message(s) to "+user);
+			delivery=new Delivery(queue);
+			deliveries.put(user,delivery);
+			waiting.addElement(delivery);
+			wakeUp();
+		}
+		else
+		if (delivery.id<0) {
+			// retry immediately
+			delivery.attempts=0;
+			delivery.next_time=0;
+		}
+	}
+
+
+	/** Gets the number of messages queued for a user. */
+	public synchronized int getQueuedMessages(String user) {
+		MessageQueue queue=(MessageQueue)queues.get(user);
+		return (queue!=null)? queue.size() : 0;
+	}
+
+
+	/** Gets the total number of queued messages. */
+	public synchronized int getQueuedMessages() {
+		int count=0;
+		for (Enumeration e=queues.elements(); e.hasMoreElements(); ) count+=((MessageQueue)e.nextElement()).size();
+		return count;
+	}
+
+
+	/** Gets the number of stored messages. */
+	public synchronized long getStoredCount() {
+		return stored_counter;
+	}
+
+
+	/** Gets the number of messages refused since the queue was full. */
+	public synchronized long getRejectedCount() {
+		return rejected_counter;
+	}
+
+
+	/** Gets the number of delivered messages. */
+	public synchronized long getDeliveredCount() {
+		return delivered_counter;
+	}
+
+
+	/** Gets the number of messages discarded after a delivery failure. */
+	public synchronized long getFailedCount() {
+		return failed_counter;
+	}
+
+
+	/** Gets the number of messages discarded since too old. */
+	public synchronized long getExpiredCount() {
+		return expired_counter;
+	}
+
+
+	/** Stops delivering messages, and writes all queues to the storage device. */
+	public synchronized void halt() {
+		stop=true;
+		wakeUp();
+		for (Enumeration e=queues.elements(); e.hasMoreElements(); ) ((MessageQueue)e.nextElement()).flush();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public synchronized String toString() {
+		return "messages: "+getQueuedMessages()+" queued, "+stored_counter+" stored, "+delivered_counter+" delivered, "+failed_counter+" failed, "+expired_counter+" expired, "+rejected_counter+" rejected";
+	}
+
+
+	// *************************** Scheduler ****************************
+
+	/** Main thread. */
+	public void run() {
+		long last_age_check=System.currentTimeMillis();
+		while (!stop) {
+			long now=System.currentTimeMillis();
+			synchronized (this) {
+				if (now-last_age_check>=AGE_CHECK_TIME) {
+					processAgedMessages(now);
+					last_age_check=now;
+				}
+				processWaitingDeliveries(now);
+			}
+			// park outside the monitor, so that a virtual thread doesn't pin its carrier
+			LockSupport.parkNanos(TICK_TIME*1000000L);
+		}
+	}
+
+
+	/** Wakes up the scheduler thread. */
+	private void wakeUp() {
+		if (thread!=null) LockSupport.unpark(thread);
+	}
+
+
+	/** Discards all messages older than the maximum age. */
+	private void processAgedMessages(long now) {
+		long time=now-server_profile.message_relay_max_age*1000L;
+		Vector drained=new Vector();
+		for (Enumeration e=queues.elements(); e.hasMoreElements(); ) {
+			MessageQueue queue=(MessageQueue)e.nextElement();
+			Delivery delivery=(Delivery)deliveries.get(queue.getUser());
+			if (delivery!=null && delivery.id>=0) continue;
+			// else
+			int count=queue.removeOlderThan(time);
+			if (count>0) {
+				log(LoggerLevel.INFO,count+" aged message(s) of "+queue.getUser()+" discarded");
+				expired_counter+=count;
+			}
+			if (queue.size()==0) drained.addElement(queue);
+		}
+		for (int i=0; i<drained.size(); i++) releaseQueue((MessageQueue)drained.elementAt(i));
+	}
+
+
+	/** Starts the waiting deliveries, within the maximum number of parallel deliveries. */
+	private void processWaitingDeliveries(long now) {
+		int active=deliveries.size()-waiting.size();
+		for (int i=0; i<waiting.size() && active<server_profile.message_relay_max_concurrency; i++) {
+			Delivery delivery=(Delivery)waiting.elementAt(i);
+			if (delivery.next_time>now) continue;
+			// else
+			waiting.removeElementAt(i--);
+			if (sendNext(delivery,now)) active++;
+		}
+	}
+
+
+	/** When the delivery of a message completes. */
+	private synchronized void processDeliveryResult(TransactionClient tc, int code) {
+		Delivery delivery=(Delivery)transactions.remove(tc);
+		if (delivery==null) return;
+		// else
+		MessageQueue queue=delivery.queue;
+		long id=delivery.id;
+		delivery.id=-1;
+		if (code>=200 && code<300) {
+			log(LoggerLevel.DEBUG,"message delivered to "+queue.getUser());
+			queue.remove(id,MessageQueue.DELIVERED);
+			delivered_counter++;
+			delivery.attempts=0;
+			delivery.next_time=0;
+		}
+		else
+		if (code==408 || code==480 || code==503) {
+			delivery.attempts++;
+			log(LoggerLevel.INFO,"delivery to "+queue.getUser()+" failed ("+code+"), attempt "+delivery.attempts);
+			if (delivery.attempts>=server_profile.message_relay_max_attempts) {
+				// keep the messages until the next registration
+				deliveries.remove(queue.getUser());
+				return;
+			}
+			// else
+			delivery.next_time=System.currentTimeMillis()+(RETRY_TIME<<(delivery.attempts-1));
+		}
+		else {
+			log(LoggerLevel.INFO,"delivery to "+queue.getUser()+" failed ("+code+"): message discarded");
+			queue.remove(id,MessageQueue.DISCARDED);
+			failed_counter++;
+			delivery.attempts=0;
+			delivery.next_time=0;
+		}
+		waiting.addElement(delivery);
+		wakeUp();
+	}
+
+
+	// ************************* Private methods ************************
+
+	/** Sends the next queued message of a delivery.
+	  * @return true if a message has been sent, false if the delivery has been completed */
+	private boolean sendNext(Delivery delivery, long now) {
+		MessageQueue queue=delivery.queue;
+		String user=queue.getUser();
+		long min_time=now-server_profile.message_relay_max_age*1000L;
+		long id;
+		while ((id=queue.peek())>=0 && queue.getTime(id)<min_time) {
+			queue.remove(id,MessageQueue.DISCARDED);
+			expired_counter++;
+		}
+		SipURI target=(id>=0)? getTarget(user) : null;
+		if (target==null) {
+			if (id>=0) log(LoggerLevel.INFO,"no contact found for "+user+": delivery suspended");
+			deliveries.remove(user);
+			releaseQueue(queue);
+			return false;
+		}
+		// else
+		byte[] data=queue.getMessage(id);
+		SipMessage req=new SipMessage(data,0,data.length);
+		req.setRequestLine(new RequestLine(SipMethods.MESSAGE,target));
+		req.removeVias();
+		ViaHeader via=new ViaHeader(sip_provider.getDefaultTransport(),sip_provider.getViaAddress(),sip_provider.getPort());
+		if (sip_provider.isRportSet()) via.setRport();
+		via.setBranch(SipProvider.pickBranch());
+		req.addViaHeader(via);
+		req.removeRoutes();
+		req.removeRecordRoutes();
+		req.setMaxForwardsHeader(new MaxForwardsHeader(SipStack.max_forwards));
+		if (!req.hasDateHeader()) req.setDateHeader(new DateHeader(new Date(queue.getTime(id))));
+		delivery.id=id;
+		TransactionClient tc=new TransactionClient(sip_provider,req,this_tc_listener);
+		transactions.put(tc,delivery);
+		tc.request();
+		return true;
+	}
+
+
+	/** Gets the first valid contact of a user.
+	  * @return the contact URI, or <i>null</i> if the user has no valid contact */
+	private SipURI getTarget(String user) {
+		if (!location_service.hasUser(user)) return null;
+		// else
+		for (Enumeration e=location_service.getUserContactURIs(user); e.hasMoreElements(); ) {
+			String contact=(String)e.nextElement();
+			if (!location_service.isUserContactExpired(user,contact)) return new SipURI(contact);
+		}
+		return null;
+	}
+
+
+	/** Gets the message queue of a user, creating it if not present. */
+	private MessageQueue getQueue(String user) throws IOException {
+		MessageQueue queue=(MessageQueue)queues.get(user);
+		if (queue==null) {
+			String file_name=user.replaceAll("[^A-Za-z0-9@._-]","_")+QUEUE_FILE_EXTENSION;
+			queue=new MessageQueue(new File(dir,file_name),user,server_profile.message_relay_max_bytes);
+			queues.put(user,queue);
+		}
+		return queue;
+	}
+
+
+	/** Closes the queue of a user, if it is drained and no delivery is in progress. */
+	private void releaseQueue(MessageQueue queue) {
+		if (queue.size()>0 || deliveries.containsKey(queue.getUser())) return;
+		// else
+		queues.remove(queue.getUser());
+		queue.close();
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Hashtable;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.mjsip.sip.address.GenericURI;
+import org.mjsip.sip.address.SipURI;
+import org.mjsip.sip.header.RetryAfterHeader;
+import org.mjsip.sip.header.ViaHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMessageFactory;
+import org.mjsip.sip.provider.SipParser;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipStack;
+import org.zoolu.net.IpAddress;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.Random;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** OverloadControl protects a {@link ServerEngine} from overload, according to the
+  * via-based overload control defined in RFC 7339, with the default "loss" algorithm.
+  * <p>
+  * Received messages are queued and then processed by one single thread, in two priority classes:
+  * responses and requests that belong to a dialog or to an ongoing transaction (ACK, CANCEL, BYE, PRACK,
+  * and requests with a To tag) are always processed before requests that create new work
+  * (e.g. new INVITE or REGISTER).
+  * <p>
+  * The load is measured both as queueing delay (time between the reception and the processing of a message)
+  * and as utilization (CPU time spent processing messages in each control interval).
+  * At every control interval the reduction percentage is increased if the average delay exceeds the target delay
+  * or the utilization exceeds the maximum utilization, and it is decreased when the load goes back below them.
+  * <p>
+  * A new request is rejected with 503 (and Retry-After) when its expected queueing delay exceeds the admission delay,
+  * or when the queue is full.
+  * <p>
+  * The current reduction is advertised in the top Via of the messages sent back to the upstream clients
+  * that indicated the support of overload control (i.e. 'oc' Via parameter).
+  * The feedback received from downstream servers is recorded for its validity period, and the indicated
+  * percentage of new requests toward such servers is rejected with 503 instead of being forwarded.
+  */
+public class OverloadControl implements Runnable {
+
+	/** Overload control algorithm */
+	public static final String ALGORITHM="loss";
+
+	/** Increment of the reduction percentage when overloaded */
+	public static int REDUCTION_INCREASE=10;
+
+	/** Decrement of the reduction percentage when no longer overloaded */
+	public static int REDUCTION_DECREASE=5;
+
+	/** Value of the Retry-After header field of 503 responses [secs] */
+	public static int RETRY_AFTER=5;
+
+	/** Weight of a new sample in the average processing time */
+	public static double SMOOTHING=0.1;
+
+
+	/** Queued message. */
+	static class Entry {
+		/** Message */
+		SipMessage msg;
+		/** Arrival time [nanosecs] */
+		long time;
+
+		/** Creates a new Entry. */
+		Entry(SipMessage msg, long time) {
+			this.msg=msg;
+			this.time=time;
+		}
+	}
+
+
+	/** Overload control feedback received from a downstream server. */
+	static class Feedback {
+		/** Reduction percentage */
+		int reduction;
+		/** Sequence number */
+		double seq;
+		/** Expiration time [millisecs] */
+		long expire;
+
+		/** Creates a new Feedback. */
+		Feedback(int reduction, double seq, long expire) {
+			this.reduction=reduction;
+			this.seq=seq;
+			this.expire=expire;
+		}
+	}
+
+
+	/** ServerEngine */
+	ServerEngine server_engine;
+
+	/** SipProvider */
+	SipProvider sip_provider;
+
+	/** ServerProfile */
+	ServerProfile server_profile;
+
+	/** Responses and requests within dialogs or transactions */
+	ArrayDeque high_queue=new ArrayDeque();
+
+	/** New requests */
+	ArrayDeque low_queue=new ArrayDeque();
+
+	/** Lock of the queues */
+	ReentrantLock lock=new ReentrantLock();
+
+	/** Signals that a message has been queued */
+	Condition not_empty=lock.newCondition();
+
+	/** Feedbacks of downstream servers (address:port --> Feedback) */
+	Hashtable feedbacks=new Hashtable();
+
+	/** Thread CPU time meter (or <i>null</i> if not supported) */
+	ThreadMXBean thread_mx=null;
+
+	/** Current reduction percentage */
+	volatile int reduction=0;
+
+	/** Sequence number of the current reduction (RFC 7339 'oc-seq') */
+	volatile String oc_seq;
+
+	/** Average processing time of a message [nanosecs] */
+	volatile double processing_time=0;
+
+	/** Average queueing delay during the last control interval [millisecs] */
+	volatile double delay=0;
+
+	/** Utilization during the last control interval [percent] */
+	volatile double utilization=0;
+
+	/** Start of the current control interval [nanosecs] */
+	long interval_start;
+
+	/** Sum of the queueing delays during the current control interval [nanosecs] */
+	long interval_delay=0;
+
+	/** Processing time during the current control interval [nanosecs] */
+	long interval_busy=0;
+
+	/** Number of processed messages during the current control interval */
+	int interval_count=0;
+
+	/** Top Via of the request being processed, as received from the upstream client */
+	volatile ViaHeader received_via=null;
+
+	/** Number of new requests rejected with 503 */
+	volatile long rejected_counter=0;
+
+	/** Number of messages discarded because of full queue */
+	volatile long dropped_counter=0;
+
+	/** Number of new requests not forwarded because of downstream feedback */
+	volatile long throttled_counter=0;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates a new OverloadControl.
+	  * @param server_engine the server that processes the messages
+	  * @param sip_provider the SIP provider
+	  * @param server_profile the server configuration */
+	public OverloadControl(ServerEngine server_engine, SipProvider sip_provider, ServerProfile server_profile) {
+		this.server_engine=server_engine;
+		this.sip_provider=sip_provider;
+		this.server_profile=server_profile;
+		ThreadMXBean mx=ManagementFactory.getThreadMXBean();
+		if (mx.isCurrentThreadCpuTimeSupported()) {
+			if (!mx.isThreadCpuTimeEnabled()) mx.setThreadCpuTimeEnabled(true);
+			thread_mx=mx;
+		}
+		interval_start=System.nanoTime();
+		oc_seq=getSeq(System.currentTimeMillis());
+		ThreadFactory.start(this,"OverloadControl",true);
+	}
+
+
+	/** Gets the current reduction percentage. */
+	public int getReduction() {
+		return reduction;
+	}
+
+
+	/** Gets the average queueing delay during the last control interval.
+	  * @return the delay in milliseconds */
+	public double getDelay() {
+		return delay;
+	}
+
+
+	/** Gets the utilization during the last control interval.
+	  * @return the utilization in percent */
+	public double getUtilization() {
+		return utilization;
+	}
+
+
+	/** Gets the number of queued messages. */
+	public int size() {
+		lock.lock();
+		try {
+			return high_queue.size()+low_queue.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/** Gets the number of new requests rejected with 503. */
+	public long getRejectedCounter() {
+		return rejected_counter;
+	}
+
+
+	/** Gets the number of messages discarded because of full queue. */
+	public long getDroppedCounter() {
+		return dropped_counter;
+	}
+
+
+	/** Gets the number of new requests not forwarded because of downstream feedback. */
+	public long getThrottledCounter() {
+		return throttled_counter;
+	}
+
+
+	/** Stops processing messages. */
+	public void halt() {
+		stop=true;
+		lock.lock();
+		try {
+			not_empty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	// ******************************* Upstream *******************************
+
+	/** Whether a message has to be processed with high priority.
+	  * High priority messages are responses, ACK, CANCEL, BYE, PRACK, and requests within a dialog (i.e. with a To tag).
+	  * @param msg the message
+	  * @return true if high priority */
+	public static boolean isHighPriority(SipMessage msg) {
+		if (msg.isResponse()) return true;
+		// else
+		if (msg.isAck() || msg.isCancel() || msg.isBye() || msg.isPrack()) return true;
+		// else
+		return msg.hasToHeader() && msg.getToHeader().hasTag();
+	}
+
+
+	/** Queues a received message, or rejects it if it is a new request and the server is overloaded.
+	  * @param msg the received message */
+	public void receive(SipMessage msg) {
+		long now=System.nanoTime();
+		boolean high=isHighPriority(msg);
+		boolean reject=false;
+		lock.lock();
+		try {
+			int size=high_queue.size()+low_queue.size();
+			if (size>=server_profile.overload_max_queue) {
+				if (high || msg.isAck()) dropped_counter++;
+				else reject=true;
+			}
+			else
+			if (high) high_queue.addLast(new Entry(msg,now));
+			else
+			if (size*processing_time>server_profile.overload_admission_delay*1000000.0) reject=true;
+			else low_queue.addLast(new Entry(msg,now));
+			if (!reject) not_empty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		if (reject) reject(msg);
+	}
+
+
+	/** Rejects a new request with a 503 response.
+	  * @param req the request */
+	private void reject(SipMessage req) {
+		rejected_counter++;
+		SipMessage resp=SipMessageFactory.createResponse(req,503,null,null);
+		resp.setHeader(new RetryAfterHeader(RETRY_AFTER));
+		updateVia(resp);
+		sip_provider.sendMessage(resp);
+	}
+
+
+	/** Sets the current overload control parameters in the top Via of a message,
+	  * if the client indicated the support of overload control.
+	  * <p>
+	  * For a forwarded response, it has to be called after removing the Via of the local server.
+	  * <p>
+	  * A received request is updated just before being processed, so that all responses generated by the local server
+	  * carry such parameters; if the request is then forwarded, the received Via is put back by {@link #restoreVia(SipMessage)}.
+	  * @param msg the message */
+	public void updateVia(SipMessage msg) {
+		if (!msg.hasViaHeader()) return;
+		// else
+		ViaHeader via=msg.getViaHeader();
+		if (!via.hasParameter("oc")) return;
+		// else
+		via.setParameter("oc",String.valueOf(reduction));
+		via.setParameter("oc-algo","\""+ALGORITHM+"\"");
+		via.setParameter("oc-validity",String.valueOf(server_profile.overload_validity));
+		via.setParameter("oc-seq",oc_seq);
+		msg.removeViaHeader();
+		msg.addViaHeader(via);
+	}
+
+
+	/** Puts back the top Via of a request that is being forwarded, as it was received from the upstream client,
+	  * without the parameters set for the local responses.
+	  * It has to be called before adding the Via of the local server.
+	  * @param req the request being forwarded (the received request, or a copy of it) */
+	public void restoreVia(SipMessage req) {
+		ViaHeader via=received_via;
+		if (via==null || !req.hasViaHeader()) return;
+		// else
+		String branch=via.getBranch();
+		if (branch==null || !branch.equals(req.getViaHeader().getBranch())) return;
+		// else
+		req.removeViaHeader();
+		req.addViaHeader(new ViaHeader(via));
+	}
+
+
+	// ****************************** Downstream ******************************
+
+	/** Indicates the support of overload control in the Via of a forwarded request.
+	  * @param via the Via added by the local server */
+	public void addSupport(ViaHeader via) {
+		via.setParameter("oc",null);
+		via.setParameter("oc-algo","\""+ALGORITHM+"\"");
+	}
+
+
+	/** Records the overload control feedback of a downstream server.
+	  * It has to be called before removing the Via of the local server from the response.
+	  * @param resp the received response */
+	public void processFeedback(SipMessage resp) {
+		if (!resp.hasViaHeader()) return;
+		// else
+		ViaHeader via=resp.getViaHeader();
+		String oc=via.getParameter("oc");
+		if (oc==null || oc.length()==0) return;
+		// else
+		String key=resp.getRemoteAddress()+":"+resp.getRemotePort();
+		try {
+			int reduction=Integer.parseInt(oc.trim());
+			String value=via.getParameter("oc-validity");
+			long validity=(value!=null && value.length()>0)? Long.parseLong(value.trim()) : server_profile.overload_validity;
+			value=via.getParameter("oc-seq");
+			double seq=(value!=null && value.length()>0)? Double.parseDouble(value.trim()) : 0;
+			synchronized (feedbacks) {
+				Feedback feedback=(Feedback)feedbacks.get(key);
+				if (feedback!=null && seq>0 && seq<feedback.seq) return;
+				// else
+				if (reduction<=0 || validity<=0) feedbacks.remove(key);
+				else feedbacks.put(key,new Feedback(Math.min(reduction,100),seq,System.currentTimeMillis()+validity));
+			}
+		}
+		catch (NumberFormatException e) {
+			log(LoggerLevel.INFO,"invalid overload control feedback from "+key+": "+via.getParameters());
+		}
+	}
+
+
+	/** Whether a new request has not to be forwarded, according to the feedback of the next-hop server.
+	  * @param req the request, already updated for being forwarded
+	  * @return true if the request has to be rejected */
+	public boolean isThrottled(SipMessage req) {
+		if (feedbacks.size()==0 || isHighPriority(req)) return false;
+		// else
+		String key=getNextHop(req);
+		if (key==null) return false;
+		// else
+		Feedback feedback;
+		synchronized (feedbacks) {
+			feedback=(Feedback)feedbacks.get(key);
+			if (feedback==null) return false;
+			// else
+			if (System.currentTimeMillis()>feedback.expire) {
+				feedbacks.remove(key);
+				return false;
+			}
+		}
+		if (Random.nextInt(100)>=feedback.reduction) return false;
+		// else
+		throttled_counter++;
+		return true;
+	}
+
+
+	/** Gets the next-hop address and port of a request.
+	  * @return the string "address:port", or <i>null</i> */
+	private String getNextHop(SipMessage req) {
+		GenericURI uri=sip_provider.getOutboundProxy();
+		if (uri==null && req.hasRouteHeader()) uri=req.getRouteHeader().getNameAddress().getAddress();
+		if (uri==null) uri=req.getRequestLine().getAddress();
+		if (!uri.isSipURI()) return null;
+		// else
+		SipURI sip_uri=new SipURI(uri);
+		String host=sip_uri.hasMaddr()? sip_uri.getMaddr() : sip_uri.getHost();
+		int port=sip_uri.getPort();
+		if (port<=0) port=sip_uri.isSecure()? SipStack.default_tls_port : SipStack.default_port;
+		try {
+			host=IpAddress.getByName(host).toString();
+		}
+		catch (java.net.UnknownHostException e) {}
+		return host+":"+port;
+	}
+
+
+	// ******************************* Processing *******************************
+
+	/** Gets the current CPU time of the processing thread, or the current time if not supported.
+	  * @return the time in nanoseconds */
+	private long getProcessingTime() {
+		return (thread_mx!=null)? thread_mx.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+
+	/** Updates the reduction at the end of a control interval. */
+	private void updateReduction(long now) {
+		double avg_delay=(interval_count>0)? interval_delay/(interval_count*1000000.0) : 0;
+		double avg_utilization=interval_busy*100.0/(now-interval_start);
+		int old_reduction=reduction;
+		if (avg_delay>server_profile.overload_target_delay || avg_utilization>server_profile.overload_max_utilization) reduction=Math.min(old_reduction+REDUCTION_INCREASE,100);
+		else
+		if (avg_delay<server_profile.overload_target_delay/2.0) reduction=Math.max(old_reduction-REDUCTION_DECREASE,0);
+		if (reduction!=old_reduction) {
+			oc_seq=getSeq(System.currentTimeMillis());
+			log(LoggerLevel.INFO,"delay="+(long)avg_delay+"ms, utilization="+(int)avg_utilization+"%: reduction "+old_reduction+"% --> "+reduction+"%");
+		}
+		delay=avg_delay;
+		utilization=avg_utilization;
+		interval_start=now;
+		interval_delay=0;
+		interval_busy=0;
+		interval_count=0;
+	}
+
+
+	/** Main thread. */
+	public void run() {
+		long interval=server_profile.overload_control_interval*1000000L;
+		while (!stop) {
+			Entry entry=null;
+			lock.lock();
+			try {
+				if (high_queue.isEmpty() && low_queue.isEmpty()) {
+					long wait=interval_start+interval-System.nanoTime();
+					if (wait>0) not_empty.awaitNanos(wait);
+				}
+				entry=(Entry)high_queue.pollFirst();
+				if (entry==null) entry=(Entry)low_queue.pollFirst();
+			}
+			catch (InterruptedException e) {}
+			finally {
+				lock.unlock();
+			}
+			if (entry!=null) {
+				long start=System.nanoTime();
+				long cpu_start=getProcessingTime();
+				SipMessage msg=entry.msg;
+				if (msg.isRequest() && msg.hasViaHeader()) {
+					received_via=msg.getViaHeader();
+					updateVia(msg);
+				}
+				try {
+					server_engine.processReceivedMessage(sip_provider,msg);
+				}
+				catch (Exception e) {
+					log(LoggerLevel.INFO,e);
+				}
+				received_via=null;
+				long end=System.nanoTime();
+				interval_busy+=getProcessingTime()-cpu_start;
+				interval_delay+=start-entry.time;
+				interval_count++;
+				processing_time+=SMOOTHING*((end-start)-processing_time);
+			}
+			long now=System.nanoTime();
+			if (now-interval_start>=interval) updateReduction(now);
+		}
+		lock.lock();
+		try {
+			high_queue.clear();
+			low_queue.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/** Gets a RFC 7339 sequence number for the given time.
+	  * The milliseconds are zero-padded, so that the sequence number increases with the time
+	  * also when compared as a decimal number.
+	  * @param time the time in milliseconds */
+	private static String getSeq(long time) {
+		return String.format(Locale.ROOT,"%d.%03d",time/1000,time%1000);
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "reduction="+reduction+"%, delay="+(long)delay+"ms, utilization="+(int)utilization+"%, queue="+size()+", rejected="+rejected_counter+", dropped="+dropped_counter+", throttled="+throttled_counter;
+	}
+
+
+	// ******************************* Logs *******************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
+	/** Adds the exception to the default log. */
+	private void log(LoggerLevel level, Exception e) {
+		log(level,"Exception: "+e.toString());
+	}
+
+}
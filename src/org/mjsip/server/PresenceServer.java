@@ -0,0 +1,796 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+import org.mjsip.sip.address.GenericURI;
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.address.SipURI;
+import org.mjsip.sip.dialog.NotifierDialog;
+import org.mjsip.sip.dialog.NotifierDialogListener;
+import org.mjsip.sip.header.EventHeader;
+import org.mjsip.sip.header.ExpiresHeader;
+import org.mjsip.sip.header.Header;
+import org.mjsip.sip.header.SipETagHeader;
+import org.mjsip.sip.header.SubscriptionStateHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMessageFactory;
+import org.mjsip.sip.message.SipMethods;
+import org.mjsip.sip.provider.MethodId;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipProviderListener;
+import org.mjsip.sip.provider.SipStack;
+import org.mjsip.sip.transaction.TransactionServer;
+import org.zoolu.util.Flags;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.LoggerWriter;
+import org.zoolu.util.Random;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** PresenceServer is a SIP event server (RFC 6665) for presence, dialog state (e.g. BLF) and
+  * message-waiting event packages, or any other event package listed in {@link ServerProfile#presence_events}.
+  * <p>
+  * It accepts SUBSCRIBE requests for any resource, and notifies the subscribers every time the state of
+  * the resource changes. The state of a resource is set through PUBLISH requests (RFC 3903),
+  * or locally through {@link #setState(String,String,String,byte[])}.
+  * Only the last published state of a resource is kept (no composition of multiple publications).
+  * <p>
+  * Subscriptions are kept in a table indexed by expiration time, so that expired subscriptions are found
+  * without scanning the whole table. NOTIFYs are sent by one single scheduler thread, that waits until the
+  * next expiration or NOTIFY is due, or until it is woken up by a change; NOTIFYs are queued while holding the
+  * lock of the server, and sent by the scheduler thread after releasing it, in the same order:
+  * <ul>
+  * <li>a state change only marks the subscriptions of the resource as changed; the NOTIFY carries the state
+  * that is current when it is actually sent, so that intermediate states are coalesced;</li>
+  * <li>the NOTIFY rate toward each subscriber is controlled according to RFC 6446 ("max-rate", "min-rate",
+  * and "adaptive-min-rate" Event parameters), with {@link ServerProfile#presence_min_notify_interval}
+  * as minimum interval between two NOTIFYs;</li>
+  * <li>at most one NOTIFY transaction per subscription is pending at a time;</li>
+  * <li>the overall NOTIFY rate is limited to {@link ServerProfile#presence_max_notify_rate}.</li>
+  * </ul>
+  */
+public class PresenceServer implements Runnable {
+	
+	/** Time between two checks of expired publications [millisecs] */
+	static final long PUBLICATION_CHECK_TIME=1000;
+
+	/** Length of the entity-tags assigned to publications */
+	static final int ETAG_LENGTH=12;
+
+
+	/** State of a resource. */
+	static class State {
+		/** Content type */
+		String content_type;
+		/** Body */
+		byte[] body;
+		/** Entity-tag of the publication that set this state, or <i>null</i> for local state */
+		String etag;
+
+		/** Creates a new State. */
+		State(String content_type, byte[] body, String etag) {
+			this.content_type=content_type;
+			this.body=body;
+			this.etag=etag;
+		}
+	}
+
+
+	/** A publication (RFC 3903). */
+	static class Publication {
+		/** Resource key */
+		String key;
+		/** Entity-tag */
+		String etag;
+		/** Expiration time [millisecs] */
+		long expire;
+
+		/** Creates a new Publication. */
+		Publication(String key) {
+			this.key=key;
+		}
+	}
+
+
+	/** A NOTIFY to be sent. */
+	static class Notification {
+		/** Notifier dialog */
+		NotifierDialog dialog;
+		/** Subscription-State header field */
+		SubscriptionStateHeader ssh;
+		/** Content type of the state, or <i>null</i> */
+		String content_type;
+		/** State document, or <i>null</i> */
+		byte[] body;
+
+		/** Creates a new Notification. */
+		Notification(NotifierDialog dialog, SubscriptionStateHeader ssh, State state) {
+			this.dialog=dialog;
+			this.ssh=ssh;
+			if (state!=null) {
+				content_type=state.content_type;
+				body=state.body;
+			}
+		}
+	}
+
+
+	/** A subscription. */
+	static class Subscription {
+		/** Notifier dialog */
+		NotifierDialog dialog;
+		/** Resource key */
+		String key;
+		/** Sequence number, used for ordering subscriptions with the same time */
+		long seq;
+		/** Expiration time [millisecs] */
+		long expire;
+		/** Time of the next NOTIFY [millisecs], or -1 if no NOTIFY is scheduled */
+		long due=-1;
+		/** Time of the last NOTIFY [millisecs] */
+		long last_notify=0;
+		/** Whether the state has changed since the last NOTIFY */
+		boolean changed=false;
+		/** Whether a NOTIFY transaction is pending */
+		boolean in_flight=false;
+		/** Minimum time between two NOTIFYs [millisecs] */
+		long min_interval;
+		/** Maximum time between two NOTIFYs [millisecs], or 0 for no periodic NOTIFYs */
+		long max_interval=0;
+		/** Whether the maximum time between two NOTIFYs is adapted to the number of subscriptions ("adaptive-min-rate") */
+		boolean adaptive=false;
+		/** Rate control parameters to be included in the Subscription-State header field (name --> value) */
+		Hashtable rate_params=new Hashtable();
+
+		/** Creates a new Subscription. */
+		Subscription(NotifierDialog dialog, String key, long seq) {
+			this.dialog=dialog;
+			this.key=key;
+			this.seq=seq;
+		}
+	}
+
+
+	/** Orders subscriptions by expiration time. */
+	static class ExpireComparator implements Comparator {
+		public int compare(Object o1, Object o2) {
+			Subscription s1=(Subscription)o1, s2=(Subscription)o2;
+			if (s1.expire!=s2.expire) return (s1.expire<s2.expire)? -1 : 1;
+			// else
+			return (s1.seq<s2.seq)? -1 : (s1.seq==s2.seq)? 0 : 1;
+		}
+	}
+
+
+	/** Orders subscriptions by time of the next NOTIFY. */
+	static class DueComparator implements Comparator {
+		public int compare(Object o1, Object o2) {
+			Subscription s1=(Subscription)o1, s2=(Subscription)o2;
+			if (s1.due!=s2.due) return (s1.due<s2.due)? -1 : 1;
+			// else
+			return (s1.seq<s2.seq)? -1 : (s1.seq==s2.seq)? 0 : 1;
+		}
+	}
+
+
+	/** SipProvider */
+	SipProvider sip_provider;
+
+	/** ServerProfile */
+	ServerProfile server_profile;
+
+	/** Resource states (resource key --> State) */
+	Hashtable states=new Hashtable();
+
+	/** Publications (entity-tag --> Publication) */
+	Hashtable publications=new Hashtable();
+
+	/** Subscriptions (NotifierDialog --> Subscription) */
+	Hashtable subscriptions=new Hashtable();
+
+	/** Subscriptions of each resource (resource key --> HashSet of Subscription) */
+	Hashtable watchers=new Hashtable();
+
+	/** Subscriptions indexed by expiration time */
+	TreeSet expire_index=new TreeSet(new ExpireComparator());
+
+	/** Subscriptions indexed by time of the next NOTIFY */
+	TreeSet notify_index=new TreeSet(new DueComparator());
+
+	/** NOTIFYs to be sent by the scheduler thread (Notification) */
+	LinkedList outgoing=new LinkedList();
+
+	/** Subscription sequence counter */
+	long seq_counter=0;
+
+	/** Available NOTIFY budget (used only if the NOTIFY rate is limited) */
+	double notify_budget=0;
+
+	/** Number of sent NOTIFYs */
+	long notify_counter=0;
+
+	/** Number of state changes that have been coalesced with following ones */
+	long coalesced_counter=0;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+	/** SipProvider listener for SUBSCRIBE and PUBLISH requests */
+	SipProviderListener this_sip_provider_listener=new SipProviderListener() {
+		@Override
+		public void onReceivedMessage(SipProvider sip_provider, SipMessage msg) {
+			processReceivedMessage(sip_provider,msg);
+		}
+	};
+
+	/** NotifierDialog listener */
+	NotifierDialogListener this_dialog_listener=new NotifierDialogListener() {
+		@Override
+		public void onDlgSubscribe(NotifierDialog dialog, NameAddress target, NameAddress subscriber, String event, String id, SipMessage msg) {
+			processSubscribe(dialog,msg);
+		}
+		@Override
+		public void onDlgNotificationSuccess(NotifierDialog dialog, int code, String reason, SipMessage resp) {
+			processNotifyCompleted(dialog);
+		}
+		@Override
+		public void onDlgNotificationFailure(NotifierDialog dialog, int code, String reason, SipMessage resp) {
+			processNotifyCompleted(dialog);
+		}
+		@Override
+		public void onDlgNotifyTimeout(NotifierDialog dialog) {
+			processNotifyCompleted(dialog);
+		}
+		@Override
+		public void onDlgSubscriptionTerminated(NotifierDialog dialog) {
+			processSubscriptionTerminated(dialog);
+		}
+	};
+
+
+
+	/** Creates a new PresenceServer. */
+	public PresenceServer(SipProvider sip_provider, ServerProfile server_profile) {
+		this.sip_provider=sip_provider;
+		this.server_profile=server_profile;
+		sip_provider.addSelectiveListener(new MethodId(SipMethods.SUBSCRIBE),this_sip_provider_listener);
+		sip_provider.addSelectiveListener(new MethodId(SipMethods.PUBLISH),this_sip_provider_listener);
+		ThreadFactory.start(this,"PresenceServer",true);
+		log(LoggerLevel.INFO,"presence server started");
+	}
+
+
+	/** Sets the state of a resource, and notifies all its subscribers.
+	  * @param resource the resource URI (e.g. "sip:alice@example.com")
+	  * @param event the event package
+	  * @param content_type the type of the state document
+	  * @param body the state document, or <i>null</i> for removing the state */
+	public void setState(String resource, String event, String content_type, byte[] body) {
+		updateState(getResourceKey(new GenericURI(resource),event),content_type,body,null);
+	}
+
+
+	/** Gets the number of subscriptions. */
+	public synchronized int getSubscriptionCount() {
+		return subscriptions.size();
+	}
+
+
+	/** Gets the number of publications. */
+	public synchronized int getPublicationCount() {
+		return publications.size();
+	}
+
+
+	/** Gets the number of sent NOTIFYs. */
+	public synchronized long getNotifyCount() {
+		return notify_counter;
+	}
+
+
+	/** Gets the number of state changes that have not been notified since coalesced with following ones. */
+	public synchronized long getCoalescedCount() {
+		return coalesced_counter;
+	}
+
+
+	/** Stops the server. Active subscriptions are not terminated. */
+	public void halt() {
+		synchronized (this) {
+			stop=true;
+			notify();
+		}
+		sip_provider.removeSelectiveListener(new MethodId(SipMethods.SUBSCRIBE));
+		sip_provider.removeSelectiveListener(new MethodId(SipMethods.PUBLISH));
+	}
+
+
+	/** Gets a String representation of the Object */
+	public synchronized String toString() {
+		return "presence: "+subscriptions.size()+" subscriptions, "+publications.size()+" publications, "+notify_counter+" notifies, "+coalesced_counter+" coalesced";
+	}
+
+
+	// *********************** Request processing ***********************
+
+	/** When a new SUBSCRIBE or PUBLISH request is received. */
+	private void processReceivedMessage(SipProvider sip_provider, SipMessage msg) {
+		if (!msg.isRequest()) return;
+		// else
+		if (msg.isSubscribe()) {
+			if (msg.getToHeader().hasTag()) {
+				// no matching subscription
+				TransactionServer ts=new TransactionServer(sip_provider,msg,null);
+				ts.respondWith(SipMessageFactory.createResponse(msg,481,null,null));
+				return;
+			}
+			// else
+			NotifierDialog dialog=new NotifierDialog(sip_provider,msg,this_dialog_listener);
+			if (!dialog.isTerminated()) processSubscribe(dialog,msg);
+		}
+		else
+		if (msg.isPublish()) processPublish(msg);
+	}
+
+
+	/** Processes a new SUBSCRIBE request (both initial and refresh). */
+	private synchronized void processSubscribe(NotifierDialog dialog, SipMessage msg) {
+		log(LoggerLevel.DEBUG,"inside processSubscribe(dialog,msg)");
+		String event=dialog.getEvent();
+		if (!isSupportedEvent(event)) {
+			log(LoggerLevel.INFO,"unsupported event package: "+event);
+			dialog.refuse(489,null);
+			return;
+		}
+		// else
+		int expires=server_profile.presence_max_expires;
+		if (msg.hasExpiresHeader()) {
+			int requested=msg.getExpiresHeader().getDeltaSeconds();
+			if (requested>=0 && requested<expires) expires=requested;
+		}
+		Subscription sub=(Subscription)subscriptions.get(dialog);
+		if (sub==null) {
+			// the resource is identified by the request-uri (RFC 6665, section 4.1.1)
+			String key=getResourceKey(msg.getRequestLine().getAddress(),event);
+			sub=new Subscription(dialog,key,seq_counter++);
+		}
+		setRateControl(sub,msg.getEventHeader());
+		String user=null;
+		GenericURI resource=msg.getToHeader().getNameAddress().getAddress();
+		if (resource.isSipURI()) user=new SipURI(resource).getUserName();
+		dialog.accept(expires,sip_provider.getContactAddress(user));
+		long now=System.currentTimeMillis();
+		if (expires==0) {
+			// fetch or unsubscribe: send the current state and terminate the subscription
+			log(LoggerLevel.INFO,"subscription terminated: "+sub.key);
+			removeSubscription(sub);
+			SubscriptionStateHeader ssh=new SubscriptionStateHeader(SubscriptionStateHeader.TERMINATED);
+			ssh.setReason("timeout");
+			sendNotify(sub,ssh);
+			return;
+		}
+		// else
+		if (!subscriptions.containsKey(dialog)) {
+			log(LoggerLevel.INFO,"new subscription: "+sub.key);
+			subscriptions.put(dialog,sub);
+			HashSet set=(HashSet)watchers.get(sub.key);
+			if (set==null) watchers.put(sub.key,set=new HashSet());
+			set.add(sub);
+		}
+		else expire_index.remove(sub);
+		sub.expire=now+expires*1000L;
+		expire_index.add(sub);
+		notify();
+		// an immediate NOTIFY is required after accepting a SUBSCRIBE (RFC 6665, section 4.2.1)
+		if (sub.in_flight) sub.changed=true;
+		else sendNotify(sub,now);
+	}
+
+
+	/** Processes a new PUBLISH request. */
+	private void processPublish(SipMessage msg) {
+		log(LoggerLevel.DEBUG,"inside processPublish(msg)");
+		TransactionServer ts=new TransactionServer(sip_provider,msg,null);
+		if (!msg.hasEventHeader() || !isSupportedEvent(msg.getEventHeader().getEvent())) {
+			ts.respondWith(SipMessageFactory.createResponse(msg,489,null,null));
+			return;
+		}
+		// else
+		// the resource is identified by the request-uri (RFC 3903, section 4.1)
+		String key=getResourceKey(msg.getRequestLine().getAddress(),msg.getEventHeader().getEvent());
+		int expires=server_profile.presence_max_expires;
+		if (msg.hasExpiresHeader()) {
+			int requested=msg.getExpiresHeader().getDeltaSeconds();
+			if (requested>=0 && requested<expires) expires=requested;
+		}
+		Header if_match=msg.getHeader("SIP-If-Match");
+		Publication pub;
+		synchronized (this) {
+			if (if_match!=null) {
+				pub=(Publication)publications.get(if_match.getValue().trim());
+				if (pub==null || !pub.key.equals(key)) {
+					ts.respondWith(SipMessageFactory.createResponse(msg,412,null,null));
+					return;
+				}
+				// else
+				publications.remove(pub.etag);
+			}
+			else {
+				if (!msg.hasBody()) {
+					ts.respondWith(SipMessageFactory.createResponse(msg,400,"Missing body",null));
+					return;
+				}
+				// else
+				pub=new Publication(key);
+			}
+			String old_etag=pub.etag;
+			if (expires==0) {
+				log(LoggerLevel.INFO,"publication removed: "+key);
+				State state=(State)states.get(key);
+				if (state!=null && old_etag!=null && old_etag.equals(state.etag)) updateState(key,null,null,null);
+			}
+			else {
+				pub.etag=Random.nextHexString(ETAG_LENGTH);
+				pub.expire=System.currentTimeMillis()+expires*1000L;
+				publications.put(pub.etag,pub);
+				State state=(State)states.get(key);
+				if (msg.hasBody()) {
+					log(LoggerLevel.INFO,"new publication: "+key);
+					String content_type=(msg.hasContentTypeHeader())? msg.getContentTypeHeader().getContentType() : null;
+					updateState(key,content_type,msg.getBody(),pub.etag);
+				}
+				else
+				if (state!=null && old_etag!=null && old_etag.equals(state.etag)) state.etag=pub.etag;
+			}
+		}
+		SipMessage resp=SipMessageFactory.createResponse(msg,200,null,null);
+		if (expires>0) resp.setHeader(new SipETagHeader(pub.etag));
+		resp.setExpiresHeader(new ExpiresHeader(expires));
+		ts.respondWith(resp);
+	}
+
+
+	/** When a NOTIFY transaction completes. */
+	private synchronized void processNotifyCompleted(NotifierDialog dialog) {
+		Subscription sub=(Subscription)subscriptions.get(dialog);
+		if (sub==null) return;
+		// else
+		sub.in_flight=false;
+		schedule(sub);
+	}
+
+
+	/** When a subscription is terminated. */
+	private synchronized void processSubscriptionTerminated(NotifierDialog dialog) {
+		Subscription sub=(Subscription)subscriptions.get(dialog);
+		if (sub!=null) removeSubscription(sub);
+	}
+
+
+	// *************************** Scheduler ****************************
+
+	/** Main thread. */
+	public void run() {
+		long last_time=System.currentTimeMillis();
+		long last_publication_check=last_time;
+		try {
+			while (!stop) {
+				Object[] notifications;
+				synchronized (this) {
+					long now=System.currentTimeMillis();
+					processExpiredSubscriptions(now);
+					if (now-last_publication_check>=PUBLICATION_CHECK_TIME) {
+						processExpiredPublications(now);
+						last_publication_check=now;
+					}
+					processDueNotifications(now,now-last_time);
+					last_time=now;
+					if (outgoing.isEmpty() && !stop) {
+						long wait_time=getWaitTime(now,last_publication_check);
+						if (wait_time>0) wait(wait_time);
+					}
+					notifications=outgoing.toArray();
+					outgoing.clear();
+				}
+				// send outside the lock
+				for (int i=0; i<notifications.length; i++) {
+					Notification n=(Notification)notifications[i];
+					n.dialog.notify(n.ssh,n.content_type,n.body);
+				}
+			}
+		}
+		catch (InterruptedException e) {}
+	}
+
+
+	/** Gets the time until the next expiration, publication check, or NOTIFY (within the NOTIFY budget).
+	  * @return the time to wait [millisecs] */
+	private long getWaitTime(long now, long last_publication_check) {
+		long next=last_publication_check+PUBLICATION_CHECK_TIME;
+		if (expire_index.size()>0) next=Math.min(next,((Subscription)expire_index.first()).expire);
+		if (notify_index.size()>0) {
+			long due=((Subscription)notify_index.first()).due;
+			int max_rate=server_profile.presence_max_notify_rate;
+			if (max_rate>0 && notify_budget<1) due=Math.max(due,now+(long)Math.ceil((1-notify_budget)*1000/max_rate));
+			next=Math.min(next,due);
+		}
+		return next-now;
+	}
+
+
+	/** Terminates all expired subscriptions. */
+	private void processExpiredSubscriptions(long now) {
+		while (expire_index.size()>0) {
+			Subscription sub=(Subscription)expire_index.first();
+			if (sub.expire>now) break;
+			// else
+			log(LoggerLevel.INFO,"subscription expired: "+sub.key);
+			removeSubscription(sub);
+			SubscriptionStateHeader ssh=new SubscriptionStateHeader(SubscriptionStateHeader.TERMINATED);
+			ssh.setReason("timeout");
+			sendNotify(sub,ssh);
+		}
+	}
+
+
+	/** Removes all expired publications. */
+	private void processExpiredPublications(long now) {
+		for (Iterator i=publications.values().iterator(); i.hasNext(); ) {
+			Publication pub=(Publication)i.next();
+			if (pub.expire>now) continue;
+			// else
+			log(LoggerLevel.INFO,"publication expired: "+pub.key);
+			i.remove();
+			State state=(State)states.get(pub.key);
+			if (state!=null && pub.etag.equals(state.etag)) updateState(pub.key,null,null,null);
+		}
+	}
+
+
+	/** Sends the NOTIFYs that are due, within the available NOTIFY budget. */
+	private void processDueNotifications(long now, long elapsed) {
+		int max_rate=server_profile.presence_max_notify_rate;
+		if (max_rate>0) {
+			// token bucket, with a bucket size equal to 1/10 of the rate
+			double max_budget=Math.max(1.0,max_rate/10.0);
+			notify_budget=Math.min(max_budget,notify_budget+max_rate*elapsed/1000.0);
+		}
+		while (notify_index.size()>0) {
+			if (max_rate>0 && notify_budget<1) break;
+			// else
+			Subscription sub=(Subscription)notify_index.first();
+			if (sub.due>now) break;
+			// else
+			notify_index.remove(sub);
+			sub.due=-1;
+			sendNotify(sub,now);
+			if (max_rate>0) notify_budget--;
+		}
+	}
+
+
+	// ************************* Private methods ************************
+
+	/** Sets the state of a resource, and marks all its subscriptions as changed. */
+	private synchronized void updateState(String key, String content_type, byte[] body, String etag) {
+		if (body!=null) states.put(key,new State(content_type,body,etag));
+		else states.remove(key);
+		HashSet set=(HashSet)watchers.get(key);
+		if (set==null) return;
+		// else
+		for (Iterator i=set.iterator(); i.hasNext(); ) {
+			Subscription sub=(Subscription)i.next();
+			if (sub.changed) coalesced_counter++;
+			else {
+				sub.changed=true;
+				schedule(sub);
+			}
+		}
+	}
+
+
+	/** Schedules the next NOTIFY of a subscription, according to its state and rate control parameters. */
+	private void schedule(Subscription sub) {
+		long due=-1;
+		if (!sub.in_flight) {
+			if (sub.changed) due=Math.max(sub.last_notify+sub.min_interval,System.currentTimeMillis());
+			else
+			if (sub.max_interval>0) due=sub.last_notify+getMaxInterval(sub);
+		}
+		if (due==sub.due) return;
+		// else
+		if (sub.due>=0) notify_index.remove(sub);
+		sub.due=due;
+		if (due>=0) {
+			notify_index.add(sub);
+			if (notify_index.first()==sub) notify();
+		}
+	}
+
+
+	/** Gets the maximum time between two NOTIFYs of a subscription.
+	  * With "adaptive-min-rate", the interval is stretched in proportion to the number of subscriptions
+	  * when periodic NOTIFYs toward all subscribers would exceed the maximum NOTIFY rate. */
+	private long getMaxInterval(Subscription sub) {
+		long interval=sub.max_interval;
+		int max_rate=server_profile.presence_max_notify_rate;
+		if (sub.adaptive && max_rate>0) interval=Math.max(interval,subscriptions.size()*1000L/max_rate);
+		return Math.max(interval,sub.min_interval);
+	}
+
+
+	/** Sends a NOTIFY with the current state ("active" subscription state). */
+	private void sendNotify(Subscription sub, long now) {
+		SubscriptionStateHeader ssh=new SubscriptionStateHeader(SubscriptionStateHeader.ACTIVE);
+		ssh.setExpires((int)Math.max(0,(sub.expire-now)/1000));
+		for (Enumeration e=sub.rate_params.keys(); e.hasMoreElements(); ) {
+			String name=(String)e.nextElement();
+			ssh.setParameter(name,(String)sub.rate_params.get(name));
+		}
+		sub.changed=false;
+		sub.in_flight=true;
+		sub.last_notify=now;
+		if (sub.due>=0) {
+			notify_index.remove(sub);
+			sub.due=-1;
+		}
+		sendNotify(sub,ssh);
+	}
+
+
+	/** Queues a NOTIFY with the current state, to be sent by the scheduler thread. */
+	private void sendNotify(Subscription sub, SubscriptionStateHeader ssh) {
+		notify_counter++;
+		outgoing.add(new Notification(sub.dialog,ssh,(State)states.get(sub.key)));
+		notify();
+	}
+
+
+	/** Sets the rate control parameters of a subscription (RFC 6446). */
+	private void setRateControl(Subscription sub, EventHeader eh) {
+		sub.min_interval=server_profile.presence_min_notify_interval;
+		sub.max_interval=0;
+		sub.adaptive=false;
+		sub.rate_params.clear();
+		double max_rate=getRate(eh,"max-rate");
+		if (max_rate>0) {
+			sub.min_interval=Math.max(sub.min_interval,(long)(1000/max_rate));
+			sub.rate_params.put("max-rate",String.valueOf(1000.0/sub.min_interval));
+		}
+		double min_rate=getRate(eh,"min-rate");
+		double adaptive_min_rate=getRate(eh,"adaptive-min-rate");
+		if (min_rate>0) {
+			sub.max_interval=Math.max(sub.min_interval,(long)(1000/min_rate));
+			sub.rate_params.put("min-rate",String.valueOf(1000.0/sub.max_interval));
+		}
+		else
+		if (adaptive_min_rate>0) {
+			sub.max_interval=Math.max(sub.min_interval,(long)(1000/adaptive_min_rate));
+			sub.adaptive=true;
+			sub.rate_params.put("adaptive-min-rate",String.valueOf(1000.0/sub.max_interval));
+		}
+	}
+
+
+	/** Gets a rate parameter of an Event header field.
+	  * @return the rate [notifications per second], or 0 if not present or not valid */
+	private static double getRate(EventHeader eh, String name) {
+		if (!eh.hasParameter(name)) return 0;
+		// else
+		try {
+			double rate=Double.parseDouble(eh.getParameter(name));
+			return (rate>0)? rate : 0;
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+
+	/** Removes a subscription from the subscription table. */
+	private void removeSubscription(Subscription sub) {
+		if (subscriptions.remove(sub.dialog)==null) return;
+		// else
+		expire_index.remove(sub);
+		if (sub.due>=0) {
+			notify_index.remove(sub);
+			sub.due=-1;
+		}
+		HashSet set=(HashSet)watchers.get(sub.key);
+		if (set!=null) {
+			set.remove(sub);
+			if (set.isEmpty()) watchers.remove(sub.key);
+		}
+	}
+
+
+	/** Whether an event package is supported. */
+	private boolean isSupportedEvent(String event) {
+		for (int i=0; i<server_profile.presence_events.length; i++) {
+			if (server_profile.presence_events[i].equalsIgnoreCase(event)) return true;
+		}
+		return false;
+	}
+
+
+	/** Gets the key of a resource, for a given event package. */
+	private static String getResourceKey(GenericURI uri, String event) {
+		String resource;
+		if (uri.isSipURI()) {
+			SipURI sip_uri=new SipURI(uri);
+			resource=(sip_uri.hasUserName())? sip_uri.getUserName()+"@"+sip_uri.getHost() : sip_uri.getHost();
+		}
+		else resource=uri.toString();
+		return event.toLowerCase()+":"+resource;
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
+
+	// ****************************** MAIN *****************************
+
+	/** The main method. */
+	public static void main(String[] args) {
+				
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this message");
+		boolean verbose=flags.getBoolean("-v","verbose mode");
+		String file=flags.getString("-f",null,"<file>","loads configuration from the given file");
+		boolean prompt_exit=flags.getBoolean("--prompt","prompts for exit");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(PresenceServer.class.getName()));
+			return;
+		}
+		
+		if (verbose) SystemUtils.setDefaultLogger(new LoggerWriter(System.out,LoggerLevel.INFO));
+					
+		SipStack.init(file);
+		SipProvider sip_provider=new SipProvider(file);
+		ServerProfile server_profile=new ServerProfile(file);
+
+		new PresenceServer(sip_provider,server_profile);
+		
+		if (prompt_exit) {
+			System.out.println("press 'enter' to exit");
+			SystemUtils.readLine();
+			System.exit(0);
+		}
+	}
+  
+}
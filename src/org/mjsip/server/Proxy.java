@@ -33,12 +33,14 @@ import org.mjsip.sip.header.MaxForwardsHeader;
 import org.mjsip.sip.header.MultipleHeader;
 import org.mjsip.sip.header.RecordRouteHeader;
 import org.mjsip.sip.header.RequestLine;
+import org.mjsip.sip.header.RetryAfterHeader;
 import org.mjsip.sip.header.RouteHeader;
 import org.mjsip.sip.header.ViaHeader;
 import org.mjsip.sip.message.SipMessage;
 import org.mjsip.sip.message.SipMessageFactory;
 import org.mjsip.sip.provider.SipProvider;
 import org.mjsip.sip.provider.SipStack;
+import org.mjsip.sip.transaction.TransactionServer;
 import org.zoolu.util.Flags;
 import org.zoolu.util.Logger;
 import org.zoolu.util.LoggerLevel;
@@ -55,6 +57,12 @@ public class Proxy extends Registrar {
 	/** Log of processed calls */
 	CallLogger call_logger;
 
+	/** Byte-level forwarder of messages that do not need to be processed */
+	StatelessForwarder stateless_forwarder=null;
+
+	/** Store-and-forward relay of MESSAGE requests for unregistered users */
+	MessageRelay message_relay=null;
+
 
 	/** Creates a void Proxy */
 	protected Proxy() {}
@@ -64,6 +72,35 @@ public class Proxy extends Registrar {
 	public Proxy(SipProvider provider, ServerProfile server_profile) {
 		super(provider,server_profile);
 		if (server_profile.call_log) call_logger=new CallLoggerImpl(SipStack.log_path+"//"+provider.getViaAddress()+"."+provider.getPort()+"_calls.log");
+		if (server_profile.fast_forwarding && overload_control!=null) log(LoggerLevel.WARNING,"overload control enabled: fast forwarding disabled");
+		else
+		if (server_profile.fast_forwarding && !(this instanceof StatefulProxy)) {
+			stateless_forwarder=StatelessForwarder.register(this,provider,server_profile);
+			if (stateless_forwarder==null) log(LoggerLevel.WARNING,"no UDP transport: fast forwarding disabled");
+		}
+		if (server_profile.retransmission_cache_size>0 && !(this instanceof StatefulProxy)) retransmission_cache=new RetransmissionCache(server_profile.retransmission_cache_size);
+		if (server_profile.message_relay && location_service!=null) message_relay=new MessageRelay(provider,server_profile,location_service);
+	}
+
+
+	/** Gets the byte-level forwarder.
+	  * @return the forwarder, or <i>null</i> if fast forwarding is not enabled */
+	public StatelessForwarder getStatelessForwarder() {
+		return stateless_forwarder;
+	}
+
+
+	/** Gets the cache used for absorbing request retransmissions.
+	  * @return the cache, or <i>null</i> if not enabled */
+	public RetransmissionCache getRetransmissionCache() {
+		return retransmission_cache;
+	}
+
+
+	/** Gets the store-and-forward relay of MESSAGE requests.
+	  * @return the relay, or <i>null</i> if not enabled */
+	public MessageRelay getMessageRelay() {
+		return message_relay;
 	}
 
 
@@ -71,8 +108,14 @@ public class Proxy extends Registrar {
 	@Override
 	protected void processRequestToLocalServer(SipMessage msg) {
 		log(LoggerLevel.DEBUG,"inside processRequestToLocalServer(msg)");
+		String transaction_id=getTransactionId(msg);
 		if (msg.isRegister()) {
 			super.processRequestToLocalServer(msg);
+			// deliver the messages stored while the user was not registered
+			if (message_relay!=null && msg.hasToHeader()) {
+				SipURI to_uri=new SipURI(msg.getToHeader().getNameAddress().getAddress());
+				message_relay.deliver(to_uri.getUserName()+"@"+to_uri.getHost());
+			}
 		}
 		else
 		if (!msg.isAck()) {
@@ -81,6 +124,7 @@ public class Proxy extends Registrar {
 			//int result=485; // response code 485 ("Ambiguous");
 			int result=484; // response code 484 ("Address Incomplete");
 			SipMessage resp=SipMessageFactory.createResponse(msg,result,null,null);
+			cacheResponse(transaction_id,resp);
 			sip_provider.sendMessage(resp);
 		}
 	}
@@ -90,6 +134,7 @@ public class Proxy extends Registrar {
 	@Override
 	protected void processRequestToLocalUser(SipMessage msg) {
 		log(LoggerLevel.DEBUG,"inside processRequestToLocalUser(msg)");
+		String transaction_id=getTransactionId(msg);
 
 		if (server_profile.call_log) call_logger.update(msg);
 
@@ -113,13 +158,25 @@ public class Proxy extends Registrar {
 			if (new_target==null) new_target=getPrefixBasedProxyingTarget(request_uri);
 			if (new_target!=null) targets.addElement(new_target.toString());
 		}
+		if (targets.isEmpty() && msg.isMessage() && storeMessage(msg)) {
+			log(LoggerLevel.INFO,"No target found, message stored");
+			TransactionServer ts=new TransactionServer(sip_provider,msg,null);
+			ts.respondWith(SipMessageFactory.createResponse(msg,202,null,null));
+			return;
+		}
 		if (targets.isEmpty()) {
 			log(LoggerLevel.INFO,"No target found, message discarded");
-			if (!msg.isAck()) sip_provider.sendMessage(SipMessageFactory.createResponse(msg,404,null,null));
+			if (!msg.isAck()) {
+				SipMessage resp=SipMessageFactory.createResponse(msg,404,null,null);
+				cacheResponse(transaction_id,resp);
+				sip_provider.sendMessage(resp);
+			}
 			return;
 		}           
 		
 		log(LoggerLevel.DEBUG,"message will be forwarded to "+targets.size()+" user's contact(s)"); 
+		SipMessage throttled_request=null;
+		int throttled=0;
 		for (int i=0; i<targets.size(); i++)  {
 			SipURI target_uri=new SipURI((String)(targets.elementAt(i)));
 			SipMessage request=new SipMessage(msg);
@@ -127,8 +184,20 @@ public class Proxy extends Registrar {
 			request.setRequestLine(new RequestLine(msg.getRequestLine().getMethod(),target_uri));
 			
 			updateProxyingRequest(request);
+			if (isThrottled(request)) {
+				throttled_request=request;
+				throttled++;
+				continue;
+			}
+			cacheRequest(transaction_id,request);
 			sip_provider.sendMessage(request);
 		}
+		if (throttled==targets.size()) {
+			log(LoggerLevel.INFO,"next hop overloaded: request rejected");
+			SipMessage resp=createThrottledResponse(throttled_request);
+			cacheResponse(transaction_id,resp);
+			sip_provider.sendMessage(resp);
+		}
 	}
 
 	
@@ -136,6 +205,7 @@ public class Proxy extends Registrar {
 	@Override
 	protected void processRequestToRemoteUA(SipMessage msg) {
 		log(LoggerLevel.DEBUG,"inside processRequestToRemoteUA(msg)");
+		String transaction_id=getTransactionId(msg);
 	
 		if (call_logger!=null) call_logger.update(msg);
 
@@ -143,7 +213,9 @@ public class Proxy extends Registrar {
 			// check whether the caller or callee is a local user 
 			if (!isResponsibleFor(msg.getFromHeader().getNameAddress().getAddress()) && !isResponsibleFor(msg.getToHeader().getNameAddress().getAddress())) {
 				log(LoggerLevel.INFO,"both caller and callee do not belong to the local server: proxy denied.");
-				sip_provider.sendMessage(SipMessageFactory.createResponse(msg,503,null,null));
+				SipMessage resp=SipMessageFactory.createResponse(msg,503,null,null);
+				cacheResponse(transaction_id,resp);
+				sip_provider.sendMessage(resp);
 				return;
 			}
 		}
@@ -166,10 +238,77 @@ public class Proxy extends Registrar {
 		if (nexthop!=null) msg.setRequestLine(new RequestLine(rl.getMethod(),nexthop));
 		
 		updateProxyingRequest(msg); 
+		if (isThrottled(msg)) {
+			log(LoggerLevel.INFO,"next hop overloaded: request rejected");
+			SipMessage resp=createThrottledResponse(msg);
+			cacheResponse(transaction_id,resp);
+			sip_provider.sendMessage(resp);
+			return;
+		}
+		cacheRequest(transaction_id,msg);
 	  
 		sip_provider.sendMessage(msg);
 	}
 
+
+	/** Gets the transaction id used by the retransmission cache.
+	  * @return the transaction id, or <i>null</i> if the cache is not enabled or the message cannot be cached */
+	private String getTransactionId(SipMessage msg) {
+		if (retransmission_cache==null) return null;
+		// else
+		return RetransmissionCache.getTransactionId(msg);
+	}
+
+
+	/** Records a forwarded request in the retransmission cache. */
+	private void cacheRequest(String transaction_id, SipMessage req) {
+		if (transaction_id!=null) retransmission_cache.addRequest(transaction_id,req);
+	}
+
+
+	/** Records a final response in the retransmission cache. */
+	private void cacheResponse(String transaction_id, SipMessage resp) {
+		if (transaction_id!=null) retransmission_cache.addResponse(transaction_id,resp);
+	}
+
+
+	/** Whether a new request has not to be forwarded, since the next-hop server asked to reduce
+	  * the traffic through overload control feedback (RFC 7339).
+	  * @param req the request, already updated for being forwarded */
+	protected boolean isThrottled(SipMessage req) {
+		return overload_control!=null && overload_control.isThrottled(req);
+	}
+
+
+	/** Creates the 503 response to a request that has not been forwarded because of the overload of the next-hop server.
+	  * @param req the request, already updated for being forwarded */
+	protected SipMessage createThrottledResponse(SipMessage req) {
+		SipMessage resp=SipMessageFactory.createResponse(req,503,null,null);
+		// remove the Via of the local server
+		resp.removeViaHeader();
+		resp.setHeader(new RetryAfterHeader(OverloadControl.RETRY_AFTER));
+		if (overload_control!=null) overload_control.updateVia(resp);
+		return resp;
+	}
+
+
+	/** Stores a MESSAGE request for a known local user that has no registered contact.
+	  * @return true if the message has been stored by the message relay */
+	protected boolean storeMessage(SipMessage msg) {
+		if (message_relay==null) return false;
+		// else
+		GenericURI request_uri=msg.getRequestLine().getAddress();
+		if (!request_uri.isSipURI()) return false;
+		// else
+		SipURI sip_uri=new SipURI(request_uri);
+		if (sip_uri.getUserName()==null) return false;
+		// else
+		String user=sip_uri.getUserName()+"@"+sip_uri.getHost();
+		if (!location_service.hasUser(user)) return false;
+		// else
+		return message_relay.store(user,msg);
+	}
+
 	
 	/** Processes the Proxy headers of the request.
 	  * Such headers are: Via, Record-Route, Route, Max-Forwards, etc. */
@@ -223,6 +362,9 @@ public class Proxy extends Registrar {
 		}
 		if (proto==null) proto=sip_provider.getDefaultTransport();
 		
+		// the received Via has been updated only for the local responses
+		if (overload_control!=null) overload_control.restoreVia(msg);
+
 		// add Via
 		ViaHeader via=new ViaHeader(proto,sip_provider.getViaAddress(),sip_provider.getPort());
 		if (sip_provider.isRportSet()) via.setRport();
@@ -235,6 +377,7 @@ public class Proxy extends Registrar {
 			}
 		}
 		via.setBranch(branch);
+		if (overload_control!=null) overload_control.addSupport(via);
 		msg.addViaHeader(via);
 
 		// decrement Max-Forwards
@@ -259,6 +402,10 @@ public class Proxy extends Registrar {
 
 		updateProxyingResponse(resp);
 		
+		if (retransmission_cache!=null && resp.hasViaHeader() && resp.getStatusLine().getCode()>=200) {
+			String transaction_id=RetransmissionCache.getTransactionId(resp);
+			if (transaction_id!=null) retransmission_cache.updateResponse(transaction_id,resp);
+		}
 		if (resp.hasViaHeader()) sip_provider.sendMessage(resp);
 		else
 			log(LoggerLevel.WARNING,"no VIA header found: message discarded");            
@@ -269,6 +416,8 @@ public class Proxy extends Registrar {
 	  * Such headers are: Via, .. */
 	protected SipMessage updateProxyingResponse(SipMessage resp) {
 		log(LoggerLevel.DEBUG,"inside updateProxyingResponse(resp)");
+		// overload control feedback of the downstream server
+		if (overload_control!=null) overload_control.processFeedback(resp);
 		// clear transport information
 		resp.clearTransport();
 		// remove the top most via
@@ -276,6 +425,8 @@ public class Proxy extends Registrar {
 		//if (vh.getHost().equals(sip_provider.getViaAddress())) resp.removeViaHeader();
 		// remove the top most via regardless the via has been insterted by this node or not (this prevents loops)
 		resp.removeViaHeader();
+		// overload control feedback to the upstream client
+		if (overload_control!=null) overload_control.updateVia(resp);
 		return resp;
 	}
 	
@@ -39,6 +39,10 @@ import org.mjsip.sip.message.SipMessageFactory;
 import org.mjsip.sip.provider.SipProvider;
 import org.mjsip.sip.provider.SipStack;
 import org.mjsip.sip.transaction.TransactionServer;
+import org.zoolu.metrics.Counter;
+import org.zoolu.metrics.Gauge;
+import org.zoolu.metrics.MetricFamily;
+import org.zoolu.metrics.MetricRegistry;
 import org.zoolu.util.DateFormat;
 import org.zoolu.util.Flags;
 import org.zoolu.util.Logger;
@@ -51,6 +55,19 @@ import org.zoolu.util.SystemUtils;
   */
 public class Registrar extends ServerEngine {
 	
+	/** Processed registrations, by response code */
+	static final MetricFamily REGISTRATIONS=MetricRegistry.getDefault().counters("sip_registrar_registrations_total","REGISTER requests processed by the registrar, by response code.","code");
+
+
+	/** Source of the users gauge */
+	Gauge.Source users_source=null;
+
+	/** Source of the bindings gauge */
+	Gauge.Source bindings_source=null;
+
+	/** Number of bindings found at the last count */
+	long binding_count=0;
+
 	
 	/** Creates a void Registrar. */
 	protected Registrar() {}
@@ -60,6 +77,40 @@ public class Registrar extends ServerEngine {
 	//public Registrar(SipProvider provider, String db_class, String db_name)
 	public Registrar(SipProvider provider, ServerProfile profile) {
 		super(provider,profile);
+		if (server_profile.is_registrar) {
+			users_source=new Gauge.Source() {
+				public long getValue() {  return location_service.size();  }
+			};
+			bindings_source=new Gauge.Source() {
+				public long getValue() {  return countBindings();  }
+			};
+			MetricRegistry.getDefault().gauge("sip_registrar_users","Users in the location service.",users_source);
+			MetricRegistry.getDefault().gauge("sip_registrar_bindings","Contact bindings in the location service (including expired bindings not yet removed).",bindings_source);
+		}
+	}
+
+
+	/** Stops the Registrar, unregistering the gauges of the location service. */
+	public void halt() {
+		MetricRegistry.getDefault().unregister("sip_registrar_users",users_source);
+		MetricRegistry.getDefault().unregister("sip_registrar_bindings",bindings_source);
+	}
+
+
+	/** Counts the contact bindings of all users.
+	  * @return the number of bindings, or the last counted value if the location service is concurrently modified */
+	private long countBindings() {
+		try {
+			long count=0;
+			for (Enumeration u=location_service.getUsers(); u.hasMoreElements(); ) {
+				for (Enumeration c=location_service.getUserContactURIs((String)u.nextElement()); c.hasMoreElements(); c.nextElement()) count++;
+			}
+			binding_count=count;
+		}
+		catch (RuntimeException e) {
+			log(LoggerLevel.DEBUG,"bindings not counted: "+e);
+		}
+		return binding_count;
 	}
 
 
@@ -82,6 +133,7 @@ public class Registrar extends ServerEngine {
 			
 			SipMessage resp=updateRegistration(msg);
 			if (resp==null) return;
+			((Counter)REGISTRATIONS.get(resp.getStatusLine().getCode())).inc();
 			
 			if (server_profile.do_authentication) {
 				// add Authentication-Info header field
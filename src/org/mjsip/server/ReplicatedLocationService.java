@@ -0,0 +1,836 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mjsip.sip.address.NameAddress;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.Random;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** ReplicatedLocationService is a LocationService that replicates all binding changes
+  * between the nodes of an active-active registrar cluster.
+  * <p>
+  * It wraps a local LocationService (e.g. a {@link LocationServiceImpl}), that is used for all queries,
+  * and sends each change (user or contact added or removed) to all peer nodes over TCP.
+  * The cluster is a full mesh: each node has to list all the other nodes as peers.
+  * <p>
+  * Conflicts are resolved per binding (user, or user and contact URI) with a last-writer-wins rule:
+  * each change is tagged with a hybrid timestamp (wall clock in milliseconds, never lower than any
+  * timestamp already seen) and with the id of the writer node, that breaks ties.
+  * Removals are kept as tombstones for {@link #TOMBSTONE_TIME}, so that late or reordered updates
+  * cannot resurrect removed bindings.
+  * <p>
+  * Each node sends changes through one outgoing connection toward each peer, and receives changes
+  * through the connections accepted from the peers.
+  * When an outgoing connection is established (e.g. when a node joins the cluster or after a failure),
+  * the full state is sent first, and then only the changes, batched and coalesced per binding.
+  * <p>
+  * Only connections from the configured peers are accepted. If a shared secret is configured, both nodes
+  * also prove the knowledge of the secret through a HMAC-SHA256 challenge-response handshake;
+  * note that the following updates are neither encrypted nor integrity protected.
+  * Updates received from the peers are persisted (see {@link LocationService#sync()}) as the local ones.
+  * <p>
+  * Protocol: after a handshake (magic number and node id, followed, if a secret is configured,
+  * by the nonce of the connecting node, the nonce and HMAC of the accepting node, and the HMAC of the connecting node),
+  * the sender writes frames made of
+  * the number of updates followed by the updates; each update is coded as operation (1 byte),
+  * timestamp (8 bytes), node id (4 bytes), user (UTF), and, for contacts, the contact (UTF)
+  * and the expiration time (8 bytes).
+  */
+public class ReplicatedLocationService implements LocationService {
+
+	/** Magic number of the replication protocol ("mLS1") */
+	static final int MAGIC=0x6d4c5331;
+
+	/** Operation: user added */
+	static final byte ADD_USER=1;
+
+	/** Operation: user removed */
+	static final byte REMOVE_USER=2;
+
+	/** Operation: contact added or updated */
+	static final byte ADD_CONTACT=3;
+
+	/** Operation: contact removed */
+	static final byte REMOVE_CONTACT=4;
+
+	/** HMAC algorithm of the handshake */
+	static final String MAC_ALGORITHM="HmacSHA256";
+
+	/** HMAC size */
+	static final int MAC_SIZE=32;
+
+	/** Nonce size */
+	static final int NONCE_SIZE=16;
+
+	/** Role of the connecting node in the HMAC of the handshake */
+	static final byte CONNECTOR='C';
+
+	/** Role of the accepting node in the HMAC of the handshake */
+	static final byte ACCEPTOR='A';
+
+	/** Maximum number of updates in a frame */
+	public static int MAX_BATCH=1000;
+
+	/** Time between two connection attempts toward a peer [millisecs] */
+	public static long RECONNECT_TIME=2000;
+
+	/** Time a removal is remembered [millisecs] */
+	public static long TOMBSTONE_TIME=3600000;
+
+
+	/** A binding change. */
+	static class Update {
+		/** Operation */
+		byte op;
+		/** Timestamp */
+		long time;
+		/** Writer node */
+		int node;
+		/** User name */
+		String user;
+		/** Contact NameAddress (ADD_CONTACT) or contact URI (REMOVE_CONTACT) */
+		String contact;
+		/** Contact expiration time (ADD_CONTACT) [millisecs] */
+		long expire;
+
+		/** Creates a new Update. */
+		Update(byte op, long time, int node, String user, String contact, long expire) {
+			this.op=op;
+			this.time=time;
+			this.node=node;
+			this.user=user;
+			this.contact=contact;
+			this.expire=expire;
+		}
+
+		/** Gets the contact URI, or <i>null</i> for user operations. */
+		String getUri() {
+			if (op==ADD_CONTACT) return new NameAddress(contact).getAddress().toString();
+			// else
+			return (op==REMOVE_CONTACT)? contact : null;
+		}
+
+		/** Writes this update. */
+		void write(DataOutputStream out) throws IOException {
+			out.writeByte(op);
+			out.writeLong(time);
+			out.writeInt(node);
+			out.writeUTF(user);
+			if (op==ADD_CONTACT || op==REMOVE_CONTACT) out.writeUTF(contact);
+			if (op==ADD_CONTACT) out.writeLong(expire);
+		}
+
+		/** Reads an update. */
+		static Update read(DataInputStream in) throws IOException {
+			byte op=in.readByte();
+			if (op<ADD_USER || op>REMOVE_CONTACT) throw new IOException("Invalid operation: "+op);
+			// else
+			long time=in.readLong();
+			int node=in.readInt();
+			String user=in.readUTF();
+			String contact=(op==ADD_CONTACT || op==REMOVE_CONTACT)? in.readUTF() : null;
+			long expire=(op==ADD_CONTACT)? in.readLong() : 0;
+			return new Update(op,time,node,user,contact,expire);
+		}
+	}
+
+
+	/** Version of a binding. */
+	static class Version {
+		/** User name */
+		String user;
+		/** Contact URI, or <i>null</i> for the user binding */
+		String uri;
+		/** Timestamp of the last change */
+		long time;
+		/** Writer node of the last change */
+		int node;
+		/** Whether the binding has been removed */
+		boolean removed;
+
+		/** Creates a new Version. */
+		Version(String user, String uri, long time, int node, boolean removed) {
+			this.user=user;
+			this.uri=uri;
+			this.time=time;
+			this.node=node;
+			this.removed=removed;
+		}
+
+		/** Whether a change is newer than this version. */
+		boolean isOlderThan(long time, int node) {
+			return time>this.time || (time==this.time && node>this.node);
+		}
+	}
+
+
+	/** Outgoing link toward a peer node. */
+	class Peer implements Runnable {
+		/** Peer address */
+		String host;
+		/** Peer port */
+		int port;
+		/** Pending updates, coalesced per binding (key --> Update) */
+		LinkedHashMap pending=new LinkedHashMap();
+		/** Lock of the pending updates */
+		ReentrantLock lock=new ReentrantLock();
+		/** Signals that an update is pending */
+		Condition not_empty=lock.newCondition();
+		/** Whether it is connected */
+		volatile boolean connected=false;
+		/** Current connection */
+		volatile Socket socket=null;
+
+		/** Creates a new Peer. */
+		Peer(String host, int port) {
+			this.host=host;
+			this.port=port;
+		}
+
+		/** Adds a pending update. */
+		void send(Update update) {
+			if (!connected) return;
+			// else
+			lock.lock();
+			try {
+				String key=getKey(update.user,update.getUri());
+				pending.remove(key);
+				pending.put(key,update);
+				not_empty.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/** Gets and removes the pending updates, waiting for the first one (at most {@link #RECONNECT_TIME}) and then for the batch time. */
+		Vector getPending() throws InterruptedException {
+			lock.lock();
+			try {
+				if (!stop && connected && pending.isEmpty()) not_empty.await(RECONNECT_TIME,TimeUnit.MILLISECONDS);
+				if (pending.size()>0 && batch_time>0) {
+					// collect the updates of the batch window; each new update signals not_empty, so wait again until the deadline
+					long nanos=TimeUnit.MILLISECONDS.toNanos(batch_time);
+					while (!stop && connected && nanos>0 && pending.size()<MAX_BATCH) nanos=not_empty.awaitNanos(nanos);
+				}
+				Vector updates=new Vector(pending.values());
+				pending.clear();
+				return updates;
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/** Closes the current connection. */
+		void close() {
+			connected=false;
+			try {
+				if (socket!=null) socket.close();
+			}
+			catch (IOException e) {}
+			lock.lock();
+			try {
+				pending.clear();
+				not_empty.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/** Main thread. */
+		public void run() {
+			while (!stop) {
+				try {
+					socket=new Socket();
+					socket.connect(new InetSocketAddress(host,port),(int)RECONNECT_TIME);
+					socket.setTcpNoDelay(true);
+					DataOutputStream out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+					out.writeInt(MAGIC);
+					out.writeInt(node_id);
+					if (secret!=null) {
+						socket.setSoTimeout((int)RECONNECT_TIME);
+						DataInputStream in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+						byte[] nonce_c=getNonce();
+						out.write(nonce_c);
+						out.flush();
+						byte[] nonce_a=new byte[NONCE_SIZE];
+						in.readFully(nonce_a);
+						byte[] mac_a=new byte[MAC_SIZE];
+						in.readFully(mac_a);
+						if (!MessageDigest.isEqual(mac_a,getMac(ACCEPTOR,nonce_c,nonce_a))) {
+							log(LoggerLevel.WARNING,"authentication of "+this+" failed");
+							throw new IOException("Authentication failed");
+						}
+						// else
+						out.write(getMac(CONNECTOR,nonce_c,nonce_a));
+						socket.setSoTimeout(0);
+					}
+					Vector updates;
+					synchronized (ReplicatedLocationService.this) {
+						updates=getSnapshot();
+						connected=true;
+					}
+					log(LoggerLevel.INFO,"connected to "+this+": "+updates.size()+" bindings sent");
+					while (!stop && connected) {
+						// an empty frame is sent as keep-alive, for detecting a restarted peer
+						if (updates.size()==0) out.writeInt(0);
+						for (int i=0; i<updates.size(); i+=MAX_BATCH) {
+							int n=Math.min(updates.size()-i,MAX_BATCH);
+							out.writeInt(n);
+							for (int j=0; j<n; j++) ((Update)updates.elementAt(i+j)).write(out);
+						}
+						out.flush();
+						updates=getPending();
+					}
+				}
+				catch (Exception e) {
+					if (connected) log(LoggerLevel.INFO,"connection to "+this+" lost: "+e);
+				}
+				close();
+				if (!stop) try {  Thread.sleep(RECONNECT_TIME);  } catch (InterruptedException e) {}
+			}
+		}
+
+		/** Gets a String representation of the Object */
+		public String toString() {
+			return host+":"+port;
+		}
+	}
+
+
+	/** Local location service */
+	LocationService location_service;
+
+	/** Id of the local node */
+	int node_id;
+
+	/** Time waited for batching updates [millisecs] */
+	long batch_time;
+
+	/** Versions of the bindings (key --> Version) */
+	Hashtable versions=new Hashtable();
+
+	/** Last timestamp */
+	long clock=0;
+
+	/** Time of the next removal of old tombstones [millisecs] */
+	long next_purge;
+
+	/** Peer nodes */
+	Peer[] peers;
+
+	/** Server socket */
+	ServerSocket server_socket;
+
+	/** Shared secret, or <i>null</i> */
+	byte[] secret;
+
+	/** Generator of the handshake nonces */
+	SecureRandom random=new SecureRandom();
+
+	/** Accepted connections */
+	Vector connections=new Vector();
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates a new ReplicatedLocationService, bound to all interfaces and without shared secret.
+	  * @param location_service the local location service
+	  * @param port the TCP port used for receiving updates from the peers
+	  * @param peers the peer nodes, as "address:port" strings
+	  * @param batch_time the time waited for batching updates [millisecs] */
+	public ReplicatedLocationService(LocationService location_service, int port, String[] peers, long batch_time) throws IOException {
+		this(location_service,null,port,peers,null,batch_time);
+	}
+
+
+	/** Creates a new ReplicatedLocationService.
+	  * @param location_service the local location service
+	  * @param address the address the TCP port is bound to, or <i>null</i> for all interfaces
+	  * @param port the TCP port used for receiving updates from the peers
+	  * @param peers the peer nodes, as "address:port" strings
+	  * @param secret the secret shared by all nodes for authenticating the connections, or <i>null</i>
+	  * @param batch_time the time waited for batching updates [millisecs] */
+	public ReplicatedLocationService(LocationService location_service, String address, int port, String[] peers, String secret, long batch_time) throws IOException {
+		this.location_service=location_service;
+		this.batch_time=batch_time;
+		this.secret=(secret!=null && secret.length()>0)? secret.getBytes("UTF-8") : null;
+		if (this.secret==null) log(LoggerLevel.WARNING,"no shared secret: peers are authenticated by their address only");
+		node_id=Random.nextInt();
+		next_purge=System.currentTimeMillis()+TOMBSTONE_TIME;
+		// current bindings
+		for (Enumeration u=location_service.getUsers(); u.hasMoreElements(); ) {
+			String user=(String)u.nextElement();
+			versions.put(getKey(user,null),new Version(user,null,0,node_id,false));
+			Enumeration c=location_service.getUserContactURIs(user);
+			if (c!=null) while (c.hasMoreElements()) {
+				String uri=(String)c.nextElement();
+				versions.put(getKey(user,uri),new Version(user,uri,0,node_id,false));
+			}
+		}
+		if (peers==null) peers=new String[0];
+		this.peers=new Peer[peers.length];
+		for (int i=0; i<peers.length; i++) {
+			int colon=peers[i].lastIndexOf(':');
+			this.peers[i]=new Peer(peers[i].substring(0,colon),Integer.parseInt(peers[i].substring(colon+1)));
+		}
+		server_socket=new ServerSocket(port,50,(address!=null)? InetAddress.getByName(address) : null);
+		ThreadFactory.start(new Runnable() {
+			public void run() {  acceptConnections();  }
+		},"ReplicatedLocationService",true);
+		for (int i=0; i<peers.length; i++) ThreadFactory.start(this.peers[i],"ReplicatedLocationService-"+peers[i],true);
+	}
+
+
+	/** Gets the id of the local node. */
+	public int getNodeId() {
+		return node_id;
+	}
+
+
+	/** Gets the local location service. */
+	public LocationService getLocationService() {
+		return location_service;
+	}
+
+
+	/** Gets the number of peers currently connected. */
+	public int getConnectedPeers() {
+		int n=0;
+		for (int i=0; i<peers.length; i++) if (peers[i].connected) n++;
+		return n;
+	}
+
+
+	/** Stops the replication. */
+	public void halt() {
+		stop=true;
+		try {
+			server_socket.close();
+		}
+		catch (IOException e) {}
+		for (int i=0; i<peers.length; i++) peers[i].close();
+		synchronized (connections) {
+			for (int i=0; i<connections.size(); i++) {
+				try {
+					((Socket)connections.elementAt(i)).close();
+				}
+				catch (IOException e) {}
+			}
+		}
+	}
+
+
+	// **************** Methods of interface Registry ****************
+
+	/** Syncronizes the database.
+	  * <p> It also removes old tombstones. */
+	public synchronized void sync() {
+		location_service.sync();
+		long now=System.currentTimeMillis();
+		if (now<next_purge) return;
+		// else
+		next_purge=now+TOMBSTONE_TIME;
+		for (Iterator i=versions.values().iterator(); i.hasNext(); ) {
+			Version v=(Version)i.next();
+			if (v.removed && v.time<now-TOMBSTONE_TIME) i.remove();
+		}
+	}
+
+	/** Returns the numbers of users in the database.
+	  * @return the numbers of user entries */
+	public synchronized int size() {
+		return location_service.size();
+	}
+	
+	/** Returns an enumeration of the users in this database.
+	  * @return the list of user names as an Enumeration of String */
+	public synchronized Enumeration getUsers() {
+		return location_service.getUsers();
+	}
+		
+	/** Whether a user is present in the database and can be used as key.
+	  * @param user the user name
+	  * @return true if the user name is present as key */
+	public synchronized boolean hasUser(String user) {
+		return location_service.hasUser(user);
+	}
+	
+	/** Adds a new user at the database.
+	  * @param user the user name
+	  * @return this object */
+	public synchronized Repository addUser(String user) {
+		if (!location_service.hasUser(user)) update(new Update(ADD_USER,nextTime(),node_id,user,null,0));
+		return this;
+	}
+		
+	/** Removes the user from the database.
+	  * @param user the user name
+	  * @return this object */
+	public synchronized Repository removeUser(String user) {
+		if (location_service.hasUser(user)) update(new Update(REMOVE_USER,nextTime(),node_id,user,null,0));
+		return this;
+	}
+  
+	/** Removes all users from the database.
+	  * @return this object */
+	public synchronized Repository removeAllUsers() {
+		Vector users=new Vector();
+		for (Enumeration u=location_service.getUsers(); u.hasMoreElements(); ) users.addElement(u.nextElement());
+		for (int i=0; i<users.size(); i++) removeUser((String)users.elementAt(i));
+		return this;
+	}
+
+	/** Gets the String value of this Object.
+	  * @return the String value */
+	public synchronized String toString() {
+		return location_service.toString();
+	}
+
+
+	// **************** Methods of interface LocationService ****************
+
+	/** Whether the user has contact <i>uri</i>.
+	  * @param user the user name
+	  * @param uri the contact URI
+	  * @return true if is the contact present */
+	public synchronized boolean hasUserContact(String user, String uri) {
+		return location_service.hasUserContact(user,uri);
+	}
+
+	/** Adds a contact, or updates it if already present.
+	  * @param user the user name
+	  * @param contact the contact NameAddress
+	  * @param expire the contact expire Date
+	  * @return this object */
+	public synchronized LocationService addUserContact(String user, NameAddress contact, Date expire) {
+		update(new Update(ADD_CONTACT,nextTime(),node_id,user,contact.toString(),expire.getTime()));
+		return this;
+	}
+
+	/** Gets the user contacts that are not expired.
+	  * @param user the user name
+	  * @return the list of contact URIs as Enumeration of String */
+	public synchronized Enumeration getUserContactURIs(String user) {
+		return location_service.getUserContactURIs(user);
+	}
+
+	/** Removes a contact.
+	  * @param user the user name
+	  * @param uri the contact URI
+	  * @return this object */
+	public synchronized LocationService removeUserContact(String user, String uri) {
+		if (location_service.hasUserContact(user,uri)) update(new Update(REMOVE_CONTACT,nextTime(),node_id,user,uri,0));
+		return this;
+	}
+	
+	/** Gets NameAddress value of the user contact.
+	  * @param user the user name
+	  * @param uri the contact URI
+	  * @return the contact NameAddress */
+	public synchronized NameAddress getUserContactNameAddress(String user, String uri) {
+		return location_service.getUserContactNameAddress(user,uri);
+	}
+
+	/** Gets expiration date of the user contact.
+	  * @param user the user name
+	  * @param uri the contact URI
+	  * @return the contact expire Date */
+	public synchronized Date getUserContactExpirationDate(String user, String uri) {
+		return location_service.getUserContactExpirationDate(user,uri);
+	}
+	
+	/** Whether the contact is expired.
+	  * @param user the user name
+	  * @param uri the contact URI
+	  * @return true if it has expired */
+	public synchronized boolean isUserContactExpired(String user, String uri) {
+		return location_service.isUserContactExpired(user,uri);
+	}
+
+	/** Adds a 'static' contact that never expires.
+	  * A static contact is a sort of 'alias' for the user's AOR.
+	  * @param user the user name
+	  * @param name_addresss the contact NameAddress
+	  * @return this object */
+	public LocationService addUserStaticContact(String user, NameAddress name_addresss) {
+		return addUserContact(user,name_addresss,new Date(LocationServiceImpl.NEVER));
+	}
+
+	/** Whether the contact is 'static', that is it never expires.
+	  * A static contact is a sort of 'alias' for the user's AOR.
+	  * @param user the user name
+	  * @param uri the contact URI
+	  * @return true if it static */
+	public synchronized boolean isUserContactStatic(String user, String uri) {
+		return location_service.isUserContactStatic(user,uri);
+	}
+
+
+	// ***************************** Private methods *****************************
+
+	/** Gets the key of a binding. */
+	private static String getKey(String user, String uri) {
+		return (uri==null)? user : user+" "+uri;
+	}
+
+
+	/** Gets a new timestamp, greater than all timestamps already seen. */
+	private long nextTime() {
+		long now=System.currentTimeMillis();
+		clock=(now>clock)? now : clock+1;
+		return clock;
+	}
+
+
+	/** Applies a change to the local location service, if it is newer than the current version,
+	  * and sends it to the peers if it is a local change.
+	  * @return true if the change has been applied */
+	private boolean update(Update update) {
+		if (update.time>clock) clock=update.time;
+		String uri=update.getUri();
+		String key=getKey(update.user,uri);
+		Version version=(Version)versions.get(key);
+		if (version!=null && !version.isOlderThan(update.time,update.node)) return false;
+		// else
+		String user_key=getKey(update.user,null);
+		Version user_version=(Version)versions.get(user_key);
+		switch (update.op) {
+			case ADD_USER :
+				if (!location_service.hasUser(update.user)) location_service.addUser(update.user);
+				break;
+			case REMOVE_USER :
+				Vector uris=new Vector();
+				Enumeration c=location_service.getUserContactURIs(update.user);
+				if (c!=null) while (c.hasMoreElements()) uris.addElement(c.nextElement());
+				for (int i=0; i<uris.size(); i++) {
+					String contact_key=getKey(update.user,(String)uris.elementAt(i));
+					Version contact_version=(Version)versions.get(contact_key);
+					if (contact_version==null || contact_version.isOlderThan(update.time,update.node)) {
+						location_service.removeUserContact(update.user,(String)uris.elementAt(i));
+						versions.put(contact_key,new Version(update.user,(String)uris.elementAt(i),update.time,update.node,true));
+					}
+				}
+				c=location_service.getUserContactURIs(update.user);
+				if (c==null || !c.hasMoreElements()) location_service.removeUser(update.user);
+				break;
+			case ADD_CONTACT :
+				// a contact added before the removal of the user is discarded
+				if (user_version!=null && user_version.removed && !user_version.isOlderThan(update.time,update.node)) return false;
+				// else
+				location_service.removeUserContact(update.user,uri);
+				location_service.addUserContact(update.user,new NameAddress(update.contact),new Date(update.expire));
+				if (user_version==null || user_version.removed) versions.put(user_key,new Version(update.user,null,update.time,update.node,false));
+				break;
+			case REMOVE_CONTACT :
+				location_service.removeUserContact(update.user,uri);
+				break;
+		}
+		versions.put(key,new Version(update.user,uri,update.time,update.node,update.op==REMOVE_USER || update.op==REMOVE_CONTACT));
+		if (update.node==node_id) {
+			for (int i=0; i<peers.length; i++) peers[i].send(update);
+		}
+		return true;
+	}
+
+
+	/** Gets the full state, as a list of updates. */
+	private Vector getSnapshot() {
+		Vector updates=new Vector();
+		for (Enumeration e=versions.elements(); e.hasMoreElements(); ) {
+			Version v=(Version)e.nextElement();
+			if (v.uri==null) updates.addElement(new Update(v.removed? REMOVE_USER : ADD_USER,v.time,v.node,v.user,null,0));
+			else
+			if (v.removed) updates.addElement(new Update(REMOVE_CONTACT,v.time,v.node,v.user,v.uri,0));
+			else
+			if (location_service.hasUserContact(v.user,v.uri)) {
+				NameAddress contact=location_service.getUserContactNameAddress(v.user,v.uri);
+				long expire=location_service.getUserContactExpirationDate(v.user,v.uri).getTime();
+				updates.addElement(new Update(ADD_CONTACT,v.time,v.node,v.user,contact.toString(),expire));
+			}
+		}
+		return updates;
+	}
+
+
+	/** Whether an address is the address of a peer node. */
+	private boolean isPeer(InetAddress iaddr) {
+		for (int i=0; i<peers.length; i++) {
+			try {
+				InetAddress[] iaddrs=InetAddress.getAllByName(peers[i].host);
+				for (int j=0; j<iaddrs.length; j++) if (iaddrs[j].equals(iaddr)) return true;
+			}
+			catch (IOException e) {}
+		}
+		return false;
+	}
+
+
+	/** Gets a new handshake nonce. */
+	private byte[] getNonce() {
+		byte[] nonce=new byte[NONCE_SIZE];
+		synchronized (random) {
+			random.nextBytes(nonce);
+		}
+		return nonce;
+	}
+
+
+	/** Gets the HMAC of a handshake.
+	  * @param role the node that sends the HMAC ({@link #CONNECTOR} or {@link #ACCEPTOR})
+	  * @param nonce_c the nonce of the connecting node
+	  * @param nonce_a the nonce of the accepting node */
+	private byte[] getMac(byte role, byte[] nonce_c, byte[] nonce_a) throws IOException {
+		try {
+			Mac mac=Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret,MAC_ALGORITHM));
+			mac.update(role);
+			mac.update(nonce_c);
+			mac.update(nonce_a);
+			return mac.doFinal();
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException("HMAC failure: "+e);
+		}
+	}
+
+
+	/** Accepts connections from peers. */
+	private void acceptConnections() {
+		while (!stop) {
+			try {
+				final Socket socket=server_socket.accept();
+				ThreadFactory.start(new Runnable() {
+					public void run() {  receiveUpdates(socket);  }
+				},"ReplicatedLocationService-"+socket.getRemoteSocketAddress(),true);
+			}
+			catch (IOException e) {
+				if (!stop) log(LoggerLevel.WARNING,"Exception: "+e);
+			}
+		}
+	}
+
+
+	/** Receives updates from a peer. */
+	private void receiveUpdates(Socket socket) {
+		synchronized (connections) {
+			connections.addElement(socket);
+		}
+		int n=0;
+		try {
+			if (!isPeer(socket.getInetAddress())) {
+				log(LoggerLevel.WARNING,"connection from "+socket.getRemoteSocketAddress()+" refused: not a peer");
+				throw new IOException("Not a peer");
+			}
+			// else
+			socket.setSoTimeout((int)RECONNECT_TIME);
+			DataInputStream in=new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			if (in.readInt()!=MAGIC) throw new IOException("Invalid handshake");
+			// else
+			int peer_id=in.readInt();
+			if (peer_id==node_id) throw new IOException("Connection from the local node");
+			// else
+			if (secret!=null) {
+				byte[] nonce_c=new byte[NONCE_SIZE];
+				in.readFully(nonce_c);
+				byte[] nonce_a=getNonce();
+				DataOutputStream out=new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				out.write(nonce_a);
+				out.write(getMac(ACCEPTOR,nonce_c,nonce_a));
+				out.flush();
+				byte[] mac_c=new byte[MAC_SIZE];
+				in.readFully(mac_c);
+				if (!MessageDigest.isEqual(mac_c,getMac(CONNECTOR,nonce_c,nonce_a))) {
+					log(LoggerLevel.WARNING,"connection from "+socket.getRemoteSocketAddress()+" refused: authentication failed");
+					throw new IOException("Authentication failed");
+				}
+			}
+			socket.setSoTimeout(0);
+			while (!stop) {
+				int size=in.readInt();
+				if (size<0 || size>MAX_BATCH) throw new IOException("Invalid frame size: "+size);
+				// else
+				Update[] updates=new Update[size];
+				for (int i=0; i<size; i++) updates[i]=Update.read(in);
+				synchronized (this) {
+					int applied=0;
+					for (int i=0; i<size; i++) if (update(updates[i])) applied++;
+					// remote changes are persisted as the local ones
+					if (applied>0) sync();
+					n+=applied;
+				}
+			}
+		}
+		catch (IOException e) {
+			if (!stop) log(LoggerLevel.INFO,"connection from "+socket.getRemoteSocketAddress()+" closed: "+e.getMessage()+" ("+n+" updates applied)");
+		}
+		try {
+			socket.close();
+		}
+		catch (IOException e) {}
+		synchronized (connections) {
+			connections.removeElement(socket);
+		}
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+
+package org.mjsip.server;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import org.mjsip.sip.header.ViaHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.provider.SipStack;
+
+
+/** RetransmissionCache records the forwarding decisions of a stateless {@link Proxy},
+  * in order to absorb request retransmissions.
+  * <p>
+  * Entries are indexed by transaction id (top Via branch, sent-by, and method), and contain
+  * the requests that have been forwarded and the final response that has been sent back (if any).
+  * When a retransmission is received, the final response is replayed if present,
+  * otherwise the same requests are forwarded again, without processing the request again.
+  * <p>
+  * Only requests with an RFC 3261 branch (i.e. starting with the magic cookie "z9hG4bK") are cached.
+  * The cache is bounded: entries expire after a given lifetime, and the oldest entries are removed
+  * when the maximum size is reached.
+  */
+public class RetransmissionCache {
+	
+	/** Branch magic cookie */
+	static final String MAGIC_COOKIE="z9hG4bK";
+
+
+	/** Cache entry. */
+	static class Entry {
+		/** Forwarded requests */
+		Vector requests=new Vector();
+		/** Final response */
+		SipMessage response=null;
+		/** Expiration time [millisecs] */
+		long expire;
+
+		/** Creates a new Entry. */
+		Entry(long expire) {
+			this.expire=expire;
+		}
+	}
+
+
+	/** Maximum number of entries */
+	int max_size;
+
+	/** Lifetime of entries [millisecs] */
+	long lifetime;
+
+	/** Entries (transaction id --> Entry), in insertion order */
+	LinkedHashMap entries;
+
+	/** Number of absorbed retransmissions */
+	long hits=0;
+
+	/** Number of requests not found in the cache */
+	long misses=0;
+
+
+
+	/** Creates a new RetransmissionCache, with entries lasting for the transaction timeout (Timer B and F).
+	  * @param max_size the maximum number of entries */
+	public RetransmissionCache(int max_size) {
+		this(max_size,SipStack.transaction_timeout);
+	}
+
+
+	/** Creates a new RetransmissionCache.
+	  * @param max_size the maximum number of entries
+	  * @param lifetime the lifetime of the entries [millisecs] */
+	public RetransmissionCache(final int max_size, long lifetime) {
+		this.max_size=max_size;
+		this.lifetime=lifetime;
+		entries=new LinkedHashMap() {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size()>max_size;
+			}
+		};
+	}
+
+
+	/** Gets the transaction id of a request or response.
+	  * @param msg the message
+	  * @return the transaction id, or <i>null</i> if the message cannot be cached (e.g. RFC 2543 branch) */
+	public static String getTransactionId(SipMessage msg) {
+		if (!msg.hasViaHeader()) return null;
+		// else
+		ViaHeader via=msg.getViaHeader();
+		String branch=via.getBranch();
+		if (branch==null || !branch.startsWith(MAGIC_COOKIE)) return null;
+		// else
+		String method=msg.isRequest()? msg.getRequestLine().getMethod() : msg.getCSeqHeader().getMethod();
+		return branch+"|"+via.getHost()+":"+via.getPort()+"|"+method;
+	}
+
+
+	/** Looks for a retransmitted request.
+	  * @param id the transaction id
+	  * @return the messages that have to be sent again (i.e. the final response, if present, or the forwarded requests),
+	  * or <i>null</i> if the request is not in the cache */
+	public synchronized SipMessage[] lookup(String id) {
+		Entry entry=(Entry)entries.get(id);
+		if (entry!=null && entry.expire<System.currentTimeMillis()) {
+			entries.remove(id);
+			entry=null;
+		}
+		if (entry==null || (entry.response==null && entry.requests.size()==0)) {
+			misses++;
+			return null;
+		}
+		// else
+		hits++;
+		if (entry.response!=null) return new SipMessage[]{ entry.response };
+		// else
+		SipMessage[] msgs=new SipMessage[entry.requests.size()];
+		entry.requests.copyInto(msgs);
+		return msgs;
+	}
+
+
+	/** Records a forwarded request.
+	  * @param id the transaction id of the incoming request
+	  * @param req the forwarded request */
+	public synchronized void addRequest(String id, SipMessage req) {
+		getEntry(id).requests.addElement(req);
+	}
+
+
+	/** Records a final response that has been sent back for a request.
+	  * @param id the transaction id of the request
+	  * @param resp the response */
+	public synchronized void addResponse(String id, SipMessage resp) {
+		getEntry(id).response=resp;
+	}
+
+
+	/** Records a final response that has been relayed for an already recorded request.
+	  * @param id the transaction id of the request
+	  * @param resp the response
+	  * @return <i>true</i> if the request was in the cache */
+	public synchronized boolean updateResponse(String id, SipMessage resp) {
+		Entry entry=(Entry)entries.get(id);
+		if (entry==null) return false;
+		// else
+		entry.response=resp;
+		return true;
+	}
+
+
+	/** Gets an entry, creating it if not present. */
+	private Entry getEntry(String id) {
+		Entry entry=(Entry)entries.get(id);
+		long now=System.currentTimeMillis();
+		if (entry==null || entry.expire<now) {
+			entries.remove(id);
+			removeExpired(now);
+			entry=new Entry(now+lifetime);
+			entries.put(id,entry);
+		}
+		return entry;
+	}
+
+
+	/** Removes expired entries (from the oldest one). */
+	private void removeExpired(long now) {
+		for (Iterator i=entries.values().iterator(); i.hasNext(); ) {
+			if (((Entry)i.next()).expire>=now) break;
+			// else
+			i.remove();
+		}
+	}
+
+
+	/** Gets the number of entries. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+
+	/** Gets the number of absorbed retransmissions. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+
+	/** Gets the number of requests that were not found in the cache. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+
+	/** Removes all entries. */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public synchronized String toString() {
+		return "entries="+entries.size()+", hits="+hits+", misses="+misses;
+	}
+
+}
@@ -40,6 +40,8 @@ import org.mjsip.sip.provider.SipProvider;
 import org.mjsip.sip.provider.SipProviderListener;
 import org.mjsip.sip.transaction.InviteTransactionServer;
 import org.mjsip.sip.transaction.TransactionServer;
+import org.zoolu.metrics.MetricRegistry;
+import org.zoolu.metrics.MetricsServer;
 import org.zoolu.util.ExceptionPrinter;
 import org.zoolu.util.LoggerLevel;
 import org.zoolu.util.Logger;
@@ -80,6 +82,15 @@ public abstract class ServerEngine {
 
 	/** AuthenticationServer. */
 	protected AuthenticationServer as;
+
+	/** Cache of forwarding decisions, used for absorbing request retransmissions (or <i>null</i>). */
+	protected RetransmissionCache retransmission_cache=null;
+
+	/** Overload control, used for queuing and admitting received messages (or <i>null</i>). */
+	protected OverloadControl overload_control=null;
+
+	/** HTTP server exporting the metrics (or <i>null</i>). */
+	protected MetricsServer metrics_server=null;
 	
 	/** List of already supported location services */
 	protected static final String[] LOCATION_SERVICES={ "local", "ldap" };
@@ -116,7 +127,8 @@ public abstract class ServerEngine {
 	SipProviderListener this_sip_provider_listener=new SipProviderListener() {
 		@Override
 		public void onReceivedMessage(SipProvider sip_provider, SipMessage message) {
-			processReceivedMessage(sip_provider,message);
+			if (overload_control!=null) overload_control.receive(message);
+			else processReceivedMessage(sip_provider,message);
 		}		
 	};
 	
@@ -132,6 +144,7 @@ public abstract class ServerEngine {
 	public ServerEngine(SipProvider provider, ServerProfile profile) {
 		server_profile=profile;
 		sip_provider=provider;
+		if (server_profile.overload_control) overload_control=new OverloadControl(this,provider,profile);
 		sip_provider.addSelectiveListener(MethodId.ANY,this_sip_provider_listener);
 			 
 		// LOCAL DOMAINS
@@ -186,6 +199,17 @@ public abstract class ServerEngine {
 			}
 			if (changed) location_service.sync();
 		}  
+		// REPLICATION
+		if (profile.location_replication_port>0) {
+			try {
+				location_service=new ReplicatedLocationService(location_service,profile.location_replication_address,profile.location_replication_port,profile.location_replication_peers,profile.location_replication_secret,profile.location_replication_batch_time);
+				log(LoggerLevel.INFO,"LocationService replicated on port "+profile.location_replication_port);
+			}
+			catch (java.io.IOException e) {
+				log(LoggerLevel.WARNING,e);
+				log(LoggerLevel.WARNING,"Error trying to replicate the location service: replication disabled.");
+			}
+		}
 		log(LoggerLevel.DEBUG,"LocationService ("+profile.authentication_service+"): size="+location_service.size()+"\r\n"+location_service.toString());
 		log(LoggerLevel.DEBUG,"LocationService ("+profile.authentication_service+"): size="+location_service.size()+"\r\n"+location_service.toString());
 
@@ -256,19 +280,55 @@ public abstract class ServerEngine {
 				public void doSomething() {  obj_watcher.dump();  }
 			};
 		}*/
+
+		// METRICS
+		if (server_profile.metrics_port>0) {
+			try {
+				metrics_server=new MetricsServer(MetricRegistry.getDefault(),server_profile.metrics_port,null);
+			}
+			catch (java.io.IOException e) {
+				log(LoggerLevel.WARNING,e);
+				log(LoggerLevel.WARNING,"Error trying to export the metrics on port "+server_profile.metrics_port+": metrics not exported.");
+			}
+		}
 	}
 
 	
 	// **************************** public methods ****************************
 
+	/** Gets the overload control.
+	  * @return the overload control, or <i>null</i> if not enabled */
+	public OverloadControl getOverloadControl() {
+		return overload_control;
+	}
+
+
+	/** Gets the HTTP server exporting the metrics.
+	  * @return the metrics server, or <i>null</i> if the metrics are not exported */
+	public MetricsServer getMetricsServer() {
+		return metrics_server;
+	}
+
+
 	/** When a new message is received.
 	  * If the received message is a request, it checks for loops. */
-	private void processReceivedMessage(SipProvider provider, SipMessage msg) {
+	void processReceivedMessage(SipProvider provider, SipMessage msg) {
 		log(LoggerLevel.DEBUG,"message received");
 		if (msg.isRequest()) {
 			// it is a request
 			log(LoggerLevel.DEBUG,"message is a request");
 
+			// absorb retransmissions
+			if (retransmission_cache!=null) {
+				String transaction_id=RetransmissionCache.getTransactionId(msg);
+				SipMessage[] replay=(transaction_id!=null)? retransmission_cache.lookup(transaction_id) : null;
+				if (replay!=null) {
+					log(LoggerLevel.DEBUG,"request retransmission: "+replay.length+" cached message(s) sent again");
+					for (int i=0; i<replay.length; i++) sip_provider.sendMessage(replay[i]);
+					return;
+				}
+			}
+
 			// validate the message
 			SipMessage err_resp=validateRequest(msg);
 			if (err_resp!=null) {
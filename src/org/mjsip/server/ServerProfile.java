@@ -45,6 +45,16 @@ public class ServerProfile extends Configure {
 	public String location_db="users.db";
 	/** Whether location DB has to be cleaned at startup. */
 	public boolean clean_location_db=false;
+	/** TCP port used for replicating the location service between the nodes of a registrar cluster (0 means no replication). */
+	public int location_replication_port=0;
+	/** Address the replication port is bound to (<i>null</i> means all interfaces). */
+	public String location_replication_address=null;
+	/** Other nodes of the registrar cluster, as "address:port" (the replication ports of the peers). */
+	public String[] location_replication_peers=null;
+	/** Secret shared by the nodes of the registrar cluster, for authenticating the replication connections (<i>null</i> means authentication by address only). */
+	public String location_replication_secret=null;
+	/** Time waited for batching location updates sent to the peers (in milliseconds). */
+	public int location_replication_batch_time=20;
 
 	/** Whether the Server authenticates local users. */
 	public boolean do_authentication=false;
@@ -72,6 +82,61 @@ public class ServerProfile extends Configure {
 	public boolean loose_route=true;
 	/** Whether checking for loops before forwarding a request (Loop Detection). In RFC3261 it is optional. */
 	public boolean loop_detection=true;
+	/** Whether forwarding requests and responses that do not need further processing directly at byte level, without parsing them (UDP only, stateless Proxy only). */
+	public boolean fast_forwarding=false;
+	/** Maximum number of transactions recorded by the stateless Proxy for absorbing request retransmissions (0 means no cache). */
+	public int retransmission_cache_size=0;
+
+	/** Event packages accepted by the PresenceServer. */
+	public String[] presence_events={ "presence", "dialog", "message-summary" };
+	/** Maximum duration of subscriptions and publications handled by the PresenceServer (in seconds). */
+	public int presence_max_expires=3600;
+	/** Default minimum time between two NOTIFYs sent to the same subscriber (in milliseconds), used when the subscriber does not request a different rate (RFC 6446). */
+	public int presence_min_notify_interval=1000;
+	/** Maximum number of NOTIFYs sent by the PresenceServer per second (0 means no limit). */
+	public int presence_max_notify_rate=1000;
+
+	/** Whether the Proxy stores MESSAGE requests for local users that are not registered, and delivers them when the users register again. */
+	public boolean message_relay=false;
+	/** Directory of the message queues. */
+	public String message_relay_path="messages";
+	/** Maximum number of messages queued for each user. */
+	public int message_relay_max_messages=100;
+	/** Maximum size of the message queue of each user (in bytes). */
+	public int message_relay_max_bytes=1048576;
+	/** Maximum age of queued messages (in seconds). */
+	public int message_relay_max_age=604800;
+	/** Maximum number of users to which messages are delivered in parallel. */
+	public int message_relay_max_concurrency=16;
+	/** Maximum number of delivery attempts of a message after a temporary failure, before waiting for a new registration. */
+	public int message_relay_max_attempts=3;
+
+	/** Whether the server applies the via-based overload control (RFC 7339): received messages are queued with priority to responses and in-dialog requests, new requests are rejected with 503 when overloaded, and the feedback of downstream servers is honored. */
+	public boolean overload_control=false;
+	/** Target queueing delay (in milliseconds); the server is considered overloaded when the average delay exceeds this value. */
+	public int overload_target_delay=100;
+	/** Maximum expected queueing delay of a new request (in milliseconds); above this value new requests are rejected with 503. */
+	public int overload_admission_delay=500;
+	/** Maximum utilization of the message processing thread (in percent); the server is considered overloaded when it is exceeded. */
+	public int overload_max_utilization=90;
+	/** Maximum number of queued messages. */
+	public int overload_max_queue=10000;
+	/** Interval between two updates of the overload control (in milliseconds). */
+	public int overload_control_interval=1000;
+	/** Validity of the overload control feedback sent upstream (in milliseconds). */
+	public int overload_validity=2000;
+
+	/** TCP port of the embedded HTTP server that exports the metrics in Prometheus text format (0 means metrics not exported). */
+	public int metrics_port=0;
+
+	/** Backend servers of the Dispatcher, as list of host[:port][;weight=n]. */
+	public String[] dispatcher_backends=null;
+	/** Algorithm used by the Dispatcher for selecting the backend of new dialogs and transactions ("hash", "round-robin", or "least-outstanding"). */
+	public String dispatcher_algorithm="hash";
+	/** Interval between two health checks (OPTIONS) of the backends (in milliseconds; 0 means no health check). */
+	public int dispatcher_ping_interval=5000;
+	/** Number of consecutive failed health checks after which a backend is considered down. */
+	public int dispatcher_max_failures=3;
 
 	/** Array of ProxyingRules based on pairs of username or phone prefix and corresponding nexthop address.
 	  * It provides static rules for proxying number-based SIP-URI the server is responsible for.
@@ -137,6 +202,19 @@ public class ServerProfile extends Configure {
 		if (attribute.equals("location_service")) { location_service=par.getString(); return; }
 		if (attribute.equals("location_db")) { location_db=par.getString(); return; }
 		if (attribute.equals("clean_location_db")) { clean_location_db=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("location_replication_port")) { location_replication_port=par.getInt(); return; }
+		if (attribute.equals("location_replication_address")) { location_replication_address=par.getString(); return; }
+		if (attribute.equals("location_replication_secret")) { location_replication_secret=par.getString(); return; }
+		if (attribute.equals("location_replication_peers")) {
+			char[] delim={' ',','};
+			Vector aux=new Vector();
+			do aux.addElement(par.getWord(delim));
+			while (par.hasMore());
+			location_replication_peers=new String[aux.size()];
+			for (int i=0; i<aux.size(); i++) location_replication_peers[i]=(String)aux.elementAt(i);
+			return;
+		}
+		if (attribute.equals("location_replication_batch_time")) { location_replication_batch_time=par.getInt(); return; }
 
 		if (attribute.equals("do_authentication")) { do_authentication=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("do_proxy_authentication")) { do_proxy_authentication=(par.getString().toLowerCase().startsWith("y")); return; }
@@ -149,6 +227,49 @@ public class ServerProfile extends Configure {
 		if (attribute.equals("on_route")) { on_route=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("loose_route")) { loose_route=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("loop_detection")) { loop_detection=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("fast_forwarding")) { fast_forwarding=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("retransmission_cache_size")) { retransmission_cache_size=par.getInt(); return; }
+
+		if (attribute.equals("presence_events")) {
+			char[] delim={' ',','};
+			Vector aux=new Vector();
+			do aux.addElement(par.getWord(delim));
+			while (par.hasMore());
+			presence_events=new String[aux.size()];
+			for (int i=0; i<aux.size(); i++) presence_events[i]=(String)aux.elementAt(i);
+			return;
+		}
+		if (attribute.equals("presence_max_expires")) { presence_max_expires=par.getInt(); return; }
+		if (attribute.equals("presence_min_notify_interval")) { presence_min_notify_interval=par.getInt(); return; }
+		if (attribute.equals("presence_max_notify_rate")) { presence_max_notify_rate=par.getInt(); return; }
+
+		if (attribute.equals("message_relay")) { message_relay=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("message_relay_path")) { message_relay_path=par.getString(); return; }
+		if (attribute.equals("message_relay_max_messages")) { message_relay_max_messages=par.getInt(); return; }
+		if (attribute.equals("message_relay_max_bytes")) { message_relay_max_bytes=par.getInt(); return; }
+		if (attribute.equals("message_relay_max_age")) { message_relay_max_age=par.getInt(); return; }
+		if (attribute.equals("message_relay_max_concurrency")) { message_relay_max_concurrency=par.getInt(); return; }
+		if (attribute.equals("message_relay_max_attempts")) { message_relay_max_attempts=par.getInt(); return; }
+		if (attribute.equals("overload_control")) { overload_control=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("overload_target_delay")) { overload_target_delay=par.getInt(); return; }
+		if (attribute.equals("overload_admission_delay")) { overload_admission_delay=par.getInt(); return; }
+		if (attribute.equals("overload_max_utilization")) { overload_max_utilization=par.getInt(); return; }
+		if (attribute.equals("overload_max_queue")) { overload_max_queue=par.getInt(); return; }
+		if (attribute.equals("overload_control_interval")) { overload_control_interval=par.getInt(); return; }
+		if (attribute.equals("overload_validity")) { overload_validity=par.getInt(); return; }
+		if (attribute.equals("metrics_port")) { metrics_port=par.getInt(); return; }
+		if (attribute.equals("dispatcher_backends")) {
+			char[] delim={' ',','};
+			Vector aux=new Vector();
+			do aux.addElement(par.getWord(delim));
+			while (par.hasMore());
+			dispatcher_backends=new String[aux.size()];
+			for (int i=0; i<aux.size(); i++) dispatcher_backends[i]=(String)aux.elementAt(i);
+			return;
+		}
+		if (attribute.equals("dispatcher_algorithm")) { dispatcher_algorithm=par.getString(); return; }
+		if (attribute.equals("dispatcher_ping_interval")) { dispatcher_ping_interval=par.getInt(); return; }
+		if (attribute.equals("dispatcher_max_failures")) { dispatcher_max_failures=par.getInt(); return; }
 
 		if (attribute.equals("domain_port_any")) { domain_port_any=(par.getString().toLowerCase().startsWith("y")); return; }
 
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.address.SipURI;
+import org.mjsip.sip.call.Call;
+import org.mjsip.sip.call.CallListenerAdapter;
+import org.mjsip.sip.call.SipUser;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMessageFactory;
+import org.mjsip.sip.message.SipMethods;
+import org.mjsip.sip.provider.LoopbackNetwork;
+import org.mjsip.sip.provider.LoopbackTransport;
+import org.mjsip.sip.provider.MethodId;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipProviderListener;
+import org.mjsip.sip.provider.SipStack;
+import org.mjsip.sip.provider.SipTransport;
+import org.mjsip.sip.transaction.TransactionClient;
+import org.mjsip.sip.transaction.TransactionClientListener;
+import org.mjsip.sip.transaction.TransactionServer;
+import org.zoolu.metrics.Histogram;
+import org.zoolu.metrics.MetricRegistry;
+import org.zoolu.util.Flags;
+
+
+/** SipBenchmark measures the throughput and the latency of the transaction, dialog, and proxy layers,
+  * running a caller UA, a proxy, and a callee UA within the same JVM, linked by a {@link LoopbackNetwork}.
+  * <p>
+  * In transaction mode, the caller sends MESSAGE requests to the callee through the proxy,
+  * and the callee responds with 200 OK;
+  * the latency is the time between the creation of the client transaction and the final response.
+  * <p>
+  * In call mode, the caller sets up calls (INVITE, 200 OK, ACK) toward the callee through the proxy,
+  * and closes them (BYE, 200 OK) as soon as they are established;
+  * the latency is the time between the INVITE and the 200 OK for the BYE.
+  * <p>
+  * At most a given number of transactions or calls are kept in progress at the same time.
+  * Since no socket is used, the results do not depend on the OS network stack, and they are repeatable
+  * with the same network parameters (latency, loss, reordering, and seed).
+  * Note that the stateless forwarder of the proxy requires a UDP socket, so that fast forwarding is not used.
+  */
+public class SipBenchmark {
+	
+	/** Proxy address */
+	static final String PROXY_ADDR="10.0.0.1";
+
+	/** Caller address */
+	static final String CALLER_ADDR="10.0.0.2";
+
+	/** Callee address */
+	static final String CALLEE_ADDR="10.0.0.3";
+
+	/** SIP port */
+	static final int SIP_PORT=5060;
+
+	/** Session descriptor used by both UAs */
+	static final String SDP="v=0\r\no=- 0 0 IN IP4 0.0.0.0\r\ns=-\r\nc=IN IP4 0.0.0.0\r\nt=0 0\r\nm=audio 4000 RTP/AVP 0\r\na=rtpmap:0 PCMU/8000\r\n";
+
+
+	/** Loopback network */
+	LoopbackNetwork network;
+
+	/** SIP provider of the proxy */
+	SipProvider proxy_provider;
+
+	/** SIP provider of the caller */
+	SipProvider caller_provider;
+
+	/** SIP provider of the callee */
+	SipProvider callee_provider;
+
+	/** Proxy */
+	ServerEngine proxy;
+
+	/** Caller user */
+	SipUser caller;
+
+	/** Callee address */
+	NameAddress callee;
+
+	/** Transactions or calls that can be started */
+	Semaphore window;
+
+	/** Transactions or calls that have to be completed */
+	CountDownLatch pending;
+
+	/** Number of failed transactions or calls */
+	AtomicInteger failed=new AtomicInteger();
+
+	/** Latency of completed transactions or calls [nanosecs] */
+	Histogram latency;
+
+
+
+	/** Creates a new SipBenchmark.
+	  * @param network the loopback network
+	  * @param stateful whether the proxy is stateful
+	  * @param window the maximum number of transactions or calls in progress */
+	public SipBenchmark(LoopbackNetwork network, boolean stateful, int window) {
+		this.network=network;
+		this.window=new Semaphore(window);
+		proxy_provider=createSipProvider(network,PROXY_ADDR);
+		caller_provider=createSipProvider(network,CALLER_ADDR);
+		callee_provider=createSipProvider(network,CALLEE_ADDR);
+		caller_provider.setOutboundProxy(new SipURI(PROXY_ADDR,SIP_PORT));
+		ServerProfile server_profile=new ServerProfile(null);
+		server_profile.is_registrar=false;
+		server_profile.fast_forwarding=false;
+		proxy=stateful? new StatefulProxy(proxy_provider,server_profile) : new Proxy(proxy_provider,server_profile);
+		caller=new SipUser(new NameAddress(new SipURI("alice",CALLER_ADDR,SIP_PORT)));
+		callee=new NameAddress(new SipURI("bob",CALLEE_ADDR,SIP_PORT));
+		// callee: responds to MESSAGE requests and accepts all calls
+		callee_provider.addSelectiveListener(new MethodId(SipMethods.MESSAGE),new SipProviderListener() {
+			public void onReceivedMessage(SipProvider sip_provider, SipMessage msg) {
+				new TransactionServer(sip_provider,msg,null).respondWith(200);
+			}
+		});
+		final CallListenerAdapter callee_listener=new CallListenerAdapter() {
+			public void onCallInvite(Call call, NameAddress callee, NameAddress caller, String sdp, SipMessage invite) {
+				call.accept(SDP);
+			}
+		};
+		callee_provider.addSelectiveListener(new MethodId(SipMethods.INVITE),new SipProviderListener() {
+			public void onReceivedMessage(SipProvider sip_provider, SipMessage msg) {
+				new Call(sip_provider,msg,callee_listener);
+			}
+		});
+	}
+
+
+	/** Creates a SIP provider attached to the loopback network. */
+	private static SipProvider createSipProvider(LoopbackNetwork network, String addr) {
+		return new SipProvider(addr,SIP_PORT,new SipTransport[]{ new LoopbackTransport(network,addr,SIP_PORT) });
+	}
+
+
+	/** Gets the proxy. */
+	public ServerEngine getProxy() {
+		return proxy;
+	}
+
+
+	/** Runs a given number of transactions or calls.
+	  * @param n the number of transactions or calls
+	  * @param calls whether calls are set up (otherwise MESSAGE transactions are run)
+	  * @param timeout maximum time waited for the completion of the last transactions or calls [millisecs]
+	  * @return the report */
+	public String run(int n, boolean calls, long timeout) {
+		pending=new CountDownLatch(n);
+		failed.set(0);
+		latency=new MetricRegistry().histogram("sip_benchmark_latency_seconds","Latency of transactions or calls");
+		network.resetCounters();
+		long start=System.nanoTime();
+		try {
+			for (int i=0; i<n; i++) {
+				window.acquire();
+				if (calls) startCall();
+				else startTransaction();
+			}
+			pending.await(timeout,TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {}
+		long time=System.nanoTime()-start;
+		long completed=latency.getCount();
+		StringBuilder sb=new StringBuilder();
+		sb.append(calls? "calls: " : "transactions: ").append(completed).append('/').append(n);
+		sb.append(", failed: ").append(failed.get());
+		sb.append(", time: ").append(time/1000000).append("ms");
+		sb.append(", rate: ").append(time>0? completed*1000000000L/time : 0).append("/s");
+		sb.append(", latency [us]: p50=").append(latency.getPercentile(50)/1000);
+		sb.append(" p90=").append(latency.getPercentile(90)/1000);
+		sb.append(" p99=").append(latency.getPercentile(99)/1000);
+		sb.append(" p99.9=").append(latency.getPercentile(99.9)/1000);
+		sb.append(", messages: ").append(network.getDelivered());
+		return sb.toString();
+	}
+
+
+	/** Starts a MESSAGE transaction. */
+	private void startTransaction() {
+		final long start=System.nanoTime();
+		SipMessage req=SipMessageFactory.createRequest(SipMethods.MESSAGE,callee.getAddress(),callee,caller.getAddress(),caller_provider.pickCallId(),null,"text/plain","hello".getBytes());
+		new TransactionClient(caller_provider,req,new TransactionClientListener() {
+			public void onTransProvisionalResponse(TransactionClient tc, SipMessage resp) {}
+			public void onTransSuccessResponse(TransactionClient tc, SipMessage resp) {
+				completed(start,true);
+			}
+			public void onTransFailureResponse(TransactionClient tc, SipMessage resp) {
+				completed(start,false);
+			}
+			public void onTransTimeout(TransactionClient tc) {
+				completed(start,false);
+			}
+		}).request();
+	}
+
+
+	/** Starts a call, that is closed as soon as it is established. */
+	private void startCall() {
+		final long start=System.nanoTime();
+		new Call(caller_provider,caller,new CallListenerAdapter() {
+			public void onCallAccepted(Call call, String sdp, SipMessage resp) {
+				call.hangup();
+			}
+			public void onCallRefused(Call call, String reason, SipMessage resp) {
+				completed(start,false);
+			}
+			public void onCallTimeout(Call call) {
+				completed(start,false);
+			}
+			public void onCallClosed(Call call, SipMessage resp) {
+				completed(start,resp.getStatusLine().getCode()<300);
+			}
+		}).call(callee,SDP);
+	}
+
+
+	/** When a transaction or call is completed. */
+	private void completed(long start, boolean success) {
+		if (success) latency.recordSince(start);
+		else failed.incrementAndGet();
+		window.release();
+		pending.countDown();
+	}
+
+
+	/** Halts the SIP providers and the proxy. */
+	public void halt() {
+		proxy_provider.halt();
+		caller_provider.halt();
+		callee_provider.halt();
+		network.halt();
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n_transactions=flags.getInteger("--transactions",0,"<n>","runs n MESSAGE transactions");
+		int n_calls=flags.getInteger("--calls",0,"<n>","runs n calls (INVITE/ACK/BYE)");
+		int window=flags.getInteger("--window",100,"<n>","maximum number of transactions or calls in progress");
+		int warmup=flags.getInteger("--warmup",0,"<n>","number of transactions or calls run before the measurement");
+		boolean stateful=flags.getBoolean("--stateful","uses a stateful proxy");
+		long latency=flags.getLong("--latency",0,"<usecs>","one-way network latency");
+		double loss=flags.getDouble("--loss",0,"<prob>","packet loss probability");
+		double reordering=flags.getDouble("--reorder",0,"<prob>","packet reordering probability");
+		long seed=flags.getLong("--seed",LoopbackNetwork.DEFAULT_SEED,"<seed>","seed for losses and reorderings");
+		int timeout=flags.getInteger("--timeout",60,"<secs>","maximum time waited for the last transactions or calls");
+		
+		if (help || (n_transactions<=0 && n_calls<=0)) {
+			System.out.println(flags.toUsageString(SipBenchmark.class.getName()));
+			return;
+		}
+		// else
+		SipStack.init();
+		LoopbackNetwork network=new LoopbackNetwork(seed);
+		network.setLatency(latency);
+		network.setLoss(loss);
+		network.setReordering(reordering);
+		SipBenchmark benchmark=new SipBenchmark(network,stateful,window);
+		System.out.println("proxy: "+(stateful? "stateful" : "stateless")+", window: "+window+", network: latency="+latency+"us loss="+loss+" reordering="+reordering+" seed="+seed+", java "+System.getProperty("java.version"));
+		if (n_transactions>0) {
+			if (warmup>0) benchmark.run(warmup,false,timeout*1000L);
+			System.out.println(benchmark.run(n_transactions,false,timeout*1000L));
+		}
+		if (n_calls>0) {
+			if (warmup>0) benchmark.run(warmup,true,timeout*1000L);
+			System.out.println(benchmark.run(n_calls,true,timeout*1000L));
+		}
+		benchmark.halt();
+		System.exit(0);
+	}
+
+}
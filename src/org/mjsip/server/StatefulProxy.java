@@ -160,6 +160,11 @@ public class StatefulProxy extends Proxy {
 			if (new_target==null) new_target=getPrefixBasedProxyingTarget(request_uri);
 			if (new_target!=null) targets.addElement(new_target.toString());
 		}
+		if (targets.isEmpty() && msg.isMessage() && storeMessage(msg)) {
+			log(LoggerLevel.INFO,"No target found, message stored");
+			sendStatefulServerResponse(ts,SipMessageFactory.createResponse(msg,202,null,null));
+			return;
+		}
 		if (targets.isEmpty()) {
 			log(LoggerLevel.INFO,"No target found, message discarded");
 			// the msg is not an ACK (already checked)
@@ -168,6 +173,8 @@ public class StatefulProxy extends Proxy {
 		}
 
 		log(LoggerLevel.DEBUG,"message will be forwarded to "+targets.size()+" user's contact(s)"); 
+		SipMessage throttled_request=null;
+		int throttled=0;
 		for (int i=0; i<targets.size(); i++)  {
 			SipURI target_uri=new SipURI((String)(targets.elementAt(i)));
 			SipMessage request=new SipMessage(msg);
@@ -175,6 +182,11 @@ public class StatefulProxy extends Proxy {
 			request.setRequestLine(new RequestLine(msg.getRequestLine().getMethod(),target_uri));
 
 			updateProxyingRequest(request);         
+			if (isThrottled(request)) {
+				throttled_request=request;
+				throttled++;
+				continue;
+			}
 
 			TransactionClient tc;
 			if (msg.isInvite()) tc=new ProxyInviteTransactionClient(sip_provider_client,request,this_tc_listener);
@@ -182,6 +194,11 @@ public class StatefulProxy extends Proxy {
 			//printLog("DEBUG: processLocalRequest()\r\n"+tc.getRequestMessage().toString(),LoggerWriter.LEVEL_LOWER);
 			state.addClient(ts,tc);
 		}
+		if (throttled==targets.size()) {
+			log(LoggerLevel.INFO,"next hop overloaded: request rejected");
+			ts.respondWith(createThrottledResponse(throttled_request));
+			return;
+		}
 		HashSet clients=state.getClients(ts);
 		for (Iterator i=clients.iterator(); i.hasNext(); ) ((TransactionClient)i.next()).request();
 	}
@@ -228,6 +245,11 @@ public class StatefulProxy extends Proxy {
 		if (nexthop!=null) msg.setRequestLine(new RequestLine(rl.getMethod(),nexthop));
 		
 		updateProxyingRequest(msg);         
+		if (isThrottled(msg)) {
+			log(LoggerLevel.INFO,"next hop overloaded: request rejected");
+			ts.respondWith(createThrottledResponse(msg));
+			return;
+		}
 
 		TransactionClient tc;
 		if (msg.isInvite()) tc=new ProxyInviteTransactionClient(sip_provider_client,msg,this_tc_listener);
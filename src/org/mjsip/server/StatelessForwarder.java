@@ -0,0 +1,975 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+
+package org.mjsip.server;
+
+
+import java.util.Hashtable;
+
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipRawMessageFilter;
+import org.mjsip.sip.provider.SipStack;
+import org.mjsip.sip.provider.SipTransport;
+import org.mjsip.sip.provider.UdpTransport;
+import org.zoolu.net.IpAddress;
+import org.zoolu.util.Logger;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SimpleDigest;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** StatelessForwarder forwards SIP messages on behalf of a stateless {@link Proxy}
+  * by directly editing the bytes of the received UDP datagrams, without parsing them as SipMessage.
+  * <p>
+  * A request is forwarded if it is addressed to a remote UA, and it does not need any further processing
+  * (call log, proxy authentication, domain-based proxying rules, or Record-Route).
+  * When forwarding a request, the top Via header field is updated with the "received" and "rport" parameters,
+  * a new Via is inserted with a branch computed as hash of the incoming branch,
+  * the top Route is removed if it refers to this server, and Max-Forwards is decremented.
+  * If loop detection is enabled, the loop tag computed by the {@link ServerEngine} is appended to the branch,
+  * so that loops are detected also when the request comes back through the Proxy.
+  * <br>
+  * A response is forwarded if its top Via refers to this server; in this case the top Via is removed.
+  * <p>
+  * Messages that do not match the above conditions, that use folded header fields, compact forms of Route,
+  * strict routing, maddr, or non-UDP transport are passed to the Proxy and processed as usual.
+  * <p>
+  * When working on behalf of a {@link Dispatcher}, requests without further Route are forwarded to the backend
+  * selected by the Dispatcher (the backend index and the sending time are added to the new Via as "lb" and "lbt" parameters),
+  * while dialog-creating requests, that have to be record-routed, are passed to the Dispatcher.
+  * Requests coming from a backend are forwarded according to the request-URI.
+  * The per-backend counters are updated when the responses are forwarded back.
+  * <p>
+  * Host names of next hops are resolved by a background thread and cached for {@link #ADDRESS_CACHE_TIME};
+  * until a name is resolved, the messages addressed to it are passed to the Proxy.
+  * <p>
+  * Note that forwarded messages are not logged by the SipProvider.
+  */
+public class StatelessForwarder implements SipRawMessageFilter {
+	
+	/** Maximum length of forwarded messages */
+	public static int BUFFER_SIZE=65535;
+
+	/** Time a resolved host name is kept in the address cache [millisecs] */
+	public static long ADDRESS_CACHE_TIME=60000;
+
+	/** Maximum number of host names kept in the address cache */
+	public static int ADDRESS_CACHE_SIZE=1024;
+
+	/** Branch magic cookie */
+	static final byte[] MAGIC_COOKIE="z9hG4bK".getBytes();
+
+	/** CRLF */
+	static final byte[] CRLF={ '\r', '\n' };
+
+	/** Edit: appends the value of the "rport" parameter */
+	static final int EDIT_RPORT_VALUE=0;
+	/** Edit: appends "received" and/or "rport" parameters to the top Via */
+	static final int EDIT_VIA_PARAMS=1;
+	/** Edit: removes a header field or part of it */
+	static final int EDIT_REMOVE=2;
+	/** Edit: rewrites the Max-Forwards value */
+	static final int EDIT_MAX_FORWARDS=3;
+
+	/** FNV-1a 64-bit offset basis */
+	static final long FNV_OFFSET_BASIS=0xcbf29ce484222325L;
+	/** FNV-1a 64-bit prime */
+	static final long FNV_PRIME=0x100000001b3L;
+
+	/** Hex digits */
+	static final byte[] HEX_DIGITS="0123456789abcdef".getBytes();
+
+	/** Tag parameter */
+	static final byte[] TAG_PARAM=";tag=".getBytes();
+
+
+	/** Proxy */
+	Proxy proxy;
+
+	/** Dispatcher, if the proxy is a Dispatcher */
+	volatile Dispatcher dispatcher=null;
+
+	/** ServerProfile */
+	ServerProfile server_profile;
+
+	/** SipProvider */
+	SipProvider sip_provider;
+
+	/** Via address */
+	String via_addr;
+
+	/** Via address as bytes */
+	byte[] via_addr_bytes;
+
+	/** Beginning of the Via header field inserted in forwarded requests, up to the magic cookie of the branch */
+	byte[] via_prefix;
+
+	/** Hash of the local sent-by, used as seed of the branch hash */
+	long branch_seed;
+
+	/** Buffer of the forwarded message */
+	byte[] out=new byte[BUFFER_SIZE];
+
+	/** Current length of the forwarded message */
+	int out_len;
+
+	/** Positions of edits */
+	int[] edit_pos=new int[4];
+
+	/** Ends of the ranges replaced by edits */
+	int[] edit_end=new int[4];
+
+	/** Types of edits */
+	int[] edit_type=new int[4];
+
+	/** Number of edits */
+	int edit_count;
+
+	/** Host of the last parsed URI or Via */
+	String host;
+
+	/** Port of the last parsed URI or Via, or -1 */
+	int port;
+
+	/** Whether the last parsed URI has the "lr" parameter */
+	boolean lr;
+
+	/** Whether the last parsed URI can be reached through UDP without maddr */
+	boolean udp;
+
+	/** Value of the "lb" parameter of the last parsed URI, or <i>null</i> */
+	String lb;
+
+	/** Remote address of the current message */
+	String remote_addr;
+
+	/** Remote port of the current message */
+	int remote_port;
+
+	/** Whether "received" has to be added to the top Via */
+	boolean add_received;
+
+	/** Whether "rport" has to be added to the top Via */
+	boolean add_rport;
+
+	/** New Max-Forwards value */
+	int max_forwards;
+
+	/** Number of forwarded requests */
+	long forwarded_requests=0;
+
+	/** Number of forwarded responses */
+	long forwarded_responses=0;
+
+	/** Number of messages passed to the Proxy */
+	long passed_messages=0;
+
+	/** Resolved host names (host --> ResolvedAddress) */
+	Hashtable address_cache=new Hashtable();
+
+
+	/** A resolved host name. */
+	static class ResolvedAddress {
+		/** IP address, or <i>null</i> if the name is being resolved */
+		IpAddress ipaddr;
+		/** Expiration time [millisecs] */
+		long expire;
+
+		/** Creates a new ResolvedAddress. */
+		ResolvedAddress(IpAddress ipaddr, long expire) {
+			this.ipaddr=ipaddr;
+			this.expire=expire;
+		}
+	}
+
+
+
+	/** Creates a new StatelessForwarder.
+	  * @param proxy the proxy
+	  * @param sip_provider the SIP provider
+	  * @param server_profile the server configuration */
+	public StatelessForwarder(Proxy proxy, SipProvider sip_provider, ServerProfile server_profile) {
+		this.proxy=proxy;
+		this.sip_provider=sip_provider;
+		this.server_profile=server_profile;
+		via_addr=sip_provider.getViaAddress();
+		via_addr_bytes=via_addr.getBytes();
+		String sent_by=via_addr+":"+sip_provider.getPort();
+		via_prefix=("Via: SIP/2.0/UDP "+sent_by+(sip_provider.isRportSet()? ";rport" : "")+";branch=z9hG4bK").getBytes();
+		byte[] sent_by_bytes=sent_by.getBytes();
+		branch_seed=hash(FNV_OFFSET_BASIS,sent_by_bytes,0,sent_by_bytes.length);
+	}
+
+
+	/** Registers a new StatelessForwarder as filter of the UDP transport of the given SIP provider.
+	  * @param proxy the proxy
+	  * @param sip_provider the SIP provider
+	  * @param server_profile the server configuration
+	  * @return the forwarder, or <i>null</i> in case the SIP provider has no UDP transport */
+	public static StatelessForwarder register(Proxy proxy, SipProvider sip_provider, ServerProfile server_profile) {
+		SipTransport transport=sip_provider.getTransport(SipProvider.PROTO_UDP);
+		if (!(transport instanceof UdpTransport)) return null;
+		// else
+		StatelessForwarder forwarder=new StatelessForwarder(proxy,sip_provider,server_profile);
+		((UdpTransport)transport).setRawMessageFilter(forwarder);
+		return forwarder;
+	}
+
+
+	/** Sets the Dispatcher that selects the backends of the forwarded requests.
+	  * @param dispatcher the dispatcher */
+	public void setDispatcher(Dispatcher dispatcher) {
+		this.dispatcher=dispatcher;
+	}
+
+
+	/** Gets the number of forwarded requests. */
+	public synchronized long getForwardedRequests() {
+		return forwarded_requests;
+	}
+
+
+	/** Gets the number of forwarded responses. */
+	public synchronized long getForwardedResponses() {
+		return forwarded_responses;
+	}
+
+
+	/** Gets the number of messages that have been passed to the Proxy. */
+	public synchronized long getPassedMessages() {
+		return passed_messages;
+	}
+
+
+	@Override
+	public synchronized boolean onReceivedRawMessage(SipTransport transport, byte[] buf, int off, int len, IpAddress remote_ipaddr, int remote_port) {
+		boolean forwarded=false;
+		try {
+			if (!server_profile.call_log && !sip_provider.hasOutboundProxy()) {
+				int end=off+len;
+				remote_addr=remote_ipaddr.toString();
+				this.remote_port=remote_port;
+				if (startsWith(buf,off,end,"SIP/2.0 ")) {
+					if (forwardResponse(transport,buf,off,end)) { forwarded_responses++; forwarded=true; }
+				}
+				else {
+					if (forwardRequest(transport,buf,off,end)) { forwarded_requests++; forwarded=true; }
+				}
+			}
+		}
+		catch (Exception e) {
+			log(LoggerLevel.DEBUG,e);
+		}
+		if (!forwarded) passed_messages++;
+		return forwarded;
+	}
+
+
+	/** Forwards a request.
+	  * @return whether the request has been forwarded */
+	private boolean forwardRequest(SipTransport transport, byte[] buf, int off, int end) throws java.io.IOException {
+		if (server_profile.do_proxy_authentication || !server_profile.is_open_proxy) return false;
+		if (server_profile.authenticated_domain_proxying_rules.length>0 || server_profile.domain_proxying_rules.length>0) return false;
+		if (!SipProvider.PROTO_UDP.equals(sip_provider.getDefaultTransport())) return false;
+		// request-line
+		int method_end=indexOf(buf,off,end,(byte)' ');
+		if (method_end<=off) return false;
+		if (server_profile.on_route && equalsIgnoreCase(buf,off,method_end,"INVITE")) return false;
+		Dispatcher dispatcher=this.dispatcher;
+		boolean dialog_creating=dispatcher!=null && (equalsIgnoreCase(buf,off,method_end,"INVITE") || equalsIgnoreCase(buf,off,method_end,"SUBSCRIBE") || equalsIgnoreCase(buf,off,method_end,"REFER"));
+		int uri_begin=method_end+1;
+		int uri_end=indexOf(buf,uri_begin,end,(byte)' ');
+		if (uri_end<0) return false;
+		int line_end=indexOf(buf,uri_end,end,(byte)'\n');
+		if (line_end<0 || !startsWith(buf,uri_end+1,line_end,"SIP/2.0")) return false;
+		if (!parseUri(buf,uri_begin,uri_end)) return false;
+		if (proxy.isResponsibleFor(host,port)) return false;
+		// else, request for a remote UA
+		String nexthop_host=host;
+		int nexthop_port=port;
+		boolean nexthop_udp=udp;
+		int headers_begin=line_end+1;
+		// header fields
+		edit_count=0;
+		int top_via=-1;
+		int top_route=-1;
+		int second_route=-1;
+		int max_fwd=-1;
+		int call_id_begin=-1;
+		int call_id_end=-1;
+		boolean loop_detection=server_profile.loop_detection;
+		int from_tag_begin=-1;
+		int from_tag_end=-1;
+		long cseq_number=-1;
+		int route_count=0;
+		boolean to_tag=false;
+		boolean loop=false;
+		int body_begin=-1;
+		for (int i=headers_begin; i<end; ) {
+			int eol=indexOf(buf,i,end,(byte)'\n');
+			if (eol<0) return false;
+			int next=eol+1;
+			if (eol>i && buf[eol-1]=='\r') eol--;
+			if (eol==i) {  body_begin=next; break;  }
+			// else
+			if (buf[i]==' ' || buf[i]=='\t') return false; // folded line
+			int colon=indexOf(buf,i,eol,(byte)':');
+			if (colon<0) return false;
+			int name_end=trimEnd(buf,i,colon);
+			if (equalsIgnoreCase(buf,i,name_end,"Via") || equalsIgnoreCase(buf,i,name_end,"v")) {
+				if (top_via<0) top_via=i;
+				if (server_profile.loop_detection && indexOf(buf,colon,eol,via_addr_bytes)>=0) loop=true;
+			}
+			else
+			if (equalsIgnoreCase(buf,i,name_end,"Route")) {
+				if (top_route<0) top_route=i;
+				else
+				if (second_route<0) second_route=i;
+				route_count+=countValues(buf,colon+1,eol);
+			}
+			else
+			if (equalsIgnoreCase(buf,i,name_end,"Max-Forwards")) {
+				if (max_fwd>=0) return false;
+				max_fwd=i;
+			}
+			else
+			if ((dispatcher!=null || loop_detection) && (equalsIgnoreCase(buf,i,name_end,"Call-ID") || equalsIgnoreCase(buf,i,name_end,"i"))) {
+				call_id_begin=skipWhiteSpaces(buf,colon+1,eol);
+				call_id_end=trimEnd(buf,call_id_begin,eol);
+			}
+			else
+			if (dispatcher!=null && (equalsIgnoreCase(buf,i,name_end,"To") || equalsIgnoreCase(buf,i,name_end,"t"))) {
+				int params_begin=indexOf(buf,colon,eol,(byte)'>');
+				to_tag=indexOf(buf,(params_begin>=0)? params_begin : colon,eol,TAG_PARAM)>=0;
+			}
+			else
+			if (loop_detection && (equalsIgnoreCase(buf,i,name_end,"From") || equalsIgnoreCase(buf,i,name_end,"f"))) {
+				int params_begin=indexOf(buf,colon,eol,(byte)'>');
+				int tag=indexOf(buf,(params_begin>=0)? params_begin : colon,eol,TAG_PARAM);
+				if (tag>=0) {
+					from_tag_begin=tag+TAG_PARAM.length;
+					from_tag_end=from_tag_begin;
+					while (from_tag_end<eol && buf[from_tag_end]!=';' && buf[from_tag_end]!=' ' && buf[from_tag_end]!='\t') from_tag_end++;
+				}
+			}
+			else
+			if (loop_detection && equalsIgnoreCase(buf,i,name_end,"CSeq")) {
+				int number_begin=skipWhiteSpaces(buf,colon+1,eol);
+				int number_end=number_begin;
+				while (number_end<eol && buf[number_end]>='0' && buf[number_end]<='9') number_end++;
+				cseq_number=parseLong(buf,number_begin,number_end);
+			}
+			i=next;
+		}
+		if (body_begin<0 || top_via<0 || max_fwd<0) return false;
+		if (loop && top_route<0) return false; // possible loop: let the Proxy check it
+		if (dispatcher!=null && (call_id_begin<0 || (dialog_creating && !to_tag))) return false; // it has to be record-routed by the Dispatcher
+		if (loop_detection && (call_id_begin<0 || cseq_number<0)) return false;
+		// Max-Forwards
+		int value_begin=skipWhiteSpaces(buf,indexOf(buf,max_fwd,end,(byte)':')+1,end);
+		int value_end=value_begin;
+		max_forwards=0;
+		while (value_end<end && buf[value_end]>='0' && buf[value_end]<='9') max_forwards=max_forwards*10+(buf[value_end++]-'0');
+		if (value_end==value_begin || max_forwards<=0 || max_forwards>255) return false;
+		max_forwards--;
+		addEdit(value_begin,value_end,EDIT_MAX_FORWARDS);
+		// top Via
+		long branch_hash=updateTopVia(buf,top_via,end);
+		if (branch_hash==0) return false;
+		// Route
+		boolean routed=false;
+		String dialog_lb=null;
+		if (top_route>=0) {
+			int route_begin=skipWhiteSpaces(buf,indexOf(buf,top_route,end,(byte)':')+1,end);
+			int route_end=parseRoute(buf,route_begin,end);
+			if (route_end<0) return false;
+			if (proxy.isResponsibleFor(host,port)) {
+				if (!lr) return false;
+				dialog_lb=lb;
+				// remove the top Route
+				int route_line_end=lineEnd(buf,route_end,end);
+				int next_route=-1;
+				if (route_end<route_line_end && buf[route_end]==',') {
+					next_route=skipWhiteSpaces(buf,route_end+1,route_line_end);
+					addEdit(route_begin,next_route,EDIT_REMOVE);
+				}
+				else {
+					addEdit(top_route,nextLine(buf,route_end,end),EDIT_REMOVE);
+					if (second_route>=0) next_route=skipWhiteSpaces(buf,indexOf(buf,second_route,end,(byte)':')+1,end);
+				}
+				if (next_route>=0) {
+					if (parseRoute(buf,next_route,end)<0) return false;
+					if (!lr) return false; // strict route
+					nexthop_host=host;
+					nexthop_port=port;
+					nexthop_udp=udp;
+					routed=true;
+				}
+			}
+			else {
+				if (!lr) return false; // strict route
+				nexthop_host=host;
+				nexthop_port=port;
+				nexthop_udp=udp;
+				routed=true;
+			}
+		}
+		// backend (requests coming from a backend are forwarded according to the request-uri)
+		Dispatcher.Backend backend=null;
+		if (dispatcher!=null && !routed && dispatcher.getBackend(remote_addr,remote_port)==null) {
+			backend=dispatcher.select(new String(buf,call_id_begin,call_id_end-call_id_begin),new String(buf,off,method_end-off),to_tag,dialog_lb);
+			if (backend==null) return false;
+			// else
+			nexthop_host=backend.host;
+			nexthop_port=backend.port;
+			nexthop_udp=true;
+		}
+		if (!nexthop_udp) return false;
+		IpAddress dest_ipaddr=resolve(nexthop_host);
+		if (dest_ipaddr==null) return false;
+		// compose the new message
+		String loop_tag=(loop_detection)? loopTag(buf,uri_begin,uri_end,from_tag_begin,from_tag_end,call_id_begin,call_id_end,cseq_number,route_count) : null;
+		String backend_params=(backend!=null)? ";"+Dispatcher.PARAM_BACKEND+"="+backend.index+";"+Dispatcher.PARAM_TIME+"="+System.currentTimeMillis() : null;
+		if (getRequestLength(off,end,loop_tag,backend_params)>out.length) {
+			log(LoggerLevel.DEBUG,"request too large for the fast path: passed to the Proxy");
+			return false;
+		}
+		// else
+		out_len=0;
+		write(buf,off,headers_begin);
+		write(via_prefix,0,via_prefix.length);
+		int branch_begin=out_len-MAGIC_COOKIE.length;
+		for (int k=60; k>=0; k-=4) out[out_len++]=HEX_DIGITS[(int)(branch_hash>>>k)&0x0f];
+		if (loop_tag!=null) writeString(loop_tag);
+		int branch_end=out_len;
+		if (backend_params!=null) writeString(backend_params);
+		write(CRLF,0,CRLF.length);
+		int i=headers_begin;
+		for (int k=0; k<edit_count; k++) {
+			write(buf,i,edit_pos[k]);
+			switch (edit_type[k]) {
+				case EDIT_RPORT_VALUE : out[out_len++]='='; writeInt(remote_port); break;
+				case EDIT_VIA_PARAMS : 
+					if (add_received) { writeString(";received="); writeString(remote_addr); }
+					if (add_rport) { writeString(";rport="); writeInt(remote_port); }
+					break;
+				case EDIT_MAX_FORWARDS : writeInt(max_forwards); break;
+			}
+			i=edit_end[k];
+		}
+		write(buf,i,end);
+		// send
+		if (backend!=null) dispatcher.onRequest(backend,new String(out,branch_begin,branch_end-branch_begin),new String(buf,off,method_end-off));
+		((UdpTransport)transport).sendRawData(out,0,out_len,dest_ipaddr,(nexthop_port>0)? nexthop_port : SipStack.default_port);
+		return true;
+	}
+
+
+	/** Gets the length of a forwarded request, that is the length of the received request
+	  * plus the new Via, minus the ranges replaced by the edits, plus the values written by the edits. */
+	private int getRequestLength(int off, int end, String loop_tag, String backend_params) {
+		int len=end-off+via_prefix.length+16+CRLF.length;
+		if (loop_tag!=null) len+=loop_tag.length();
+		if (backend_params!=null) len+=backend_params.length();
+		for (int k=0; k<edit_count; k++) {
+			len-=edit_end[k]-edit_pos[k];
+			switch (edit_type[k]) {
+				case EDIT_RPORT_VALUE : len+=1+digits(remote_port); break;
+				case EDIT_VIA_PARAMS : 
+					if (add_received) len+=";received=".length()+remote_addr.length();
+					if (add_rport) len+=";rport=".length()+digits(remote_port);
+					break;
+				case EDIT_MAX_FORWARDS : len+=digits(max_forwards); break;
+			}
+		}
+		return len;
+	}
+
+
+	/** Forwards a response.
+	  * @return whether the response has been forwarded */
+	private boolean forwardResponse(SipTransport transport, byte[] buf, int off, int end) throws java.io.IOException {
+		Dispatcher dispatcher=this.dispatcher;
+		int top_via=-1;
+		int second_via=-1;
+		int cseq=-1;
+		for (int i=nextLine(buf,off,end); i<end; ) {
+			int eol=lineEnd(buf,i,end);
+			if (eol==i) break;
+			// else
+			if (buf[i]==' ' || buf[i]=='\t') return false; // folded line
+			int colon=indexOf(buf,i,eol,(byte)':');
+			if (colon<0) return false;
+			int name_end=trimEnd(buf,i,colon);
+			if (equalsIgnoreCase(buf,i,name_end,"Via") || equalsIgnoreCase(buf,i,name_end,"v")) {
+				if (top_via<0) top_via=i;
+				else
+				if (second_via<0) {
+					second_via=i;
+					if (dispatcher==null) break;
+				}
+			}
+			else
+			if (dispatcher!=null && equalsIgnoreCase(buf,i,name_end,"CSeq")) cseq=eol;
+			i=nextLine(buf,eol,end);
+		}
+		if (top_via<0) return false;
+		// top Via
+		int via_begin=skipWhiteSpaces(buf,indexOf(buf,top_via,end,(byte)':')+1,end);
+		int via_end=parseVia(buf,via_begin,end);
+		if (via_end<0 || !host.equals(via_addr) || port!=sip_provider.getPort()) return false;
+		int backend_index=via_lb;
+		long backend_time=via_lbt;
+		String backend_branch=(dispatcher!=null && backend_index>=0 && branch_begin>=0)? new String(buf,branch_begin,branch_end-branch_begin) : null;
+		// else, remove the top Via
+		int line_end=lineEnd(buf,via_end,end);
+		int next_via;
+		int remove_begin, remove_end;
+		if (via_end<line_end && buf[via_end]==',') {
+			remove_begin=via_begin;
+			remove_end=next_via=skipWhiteSpaces(buf,via_end+1,line_end);
+		}
+		else {
+			if (second_via<0) return false;
+			remove_begin=top_via;
+			remove_end=nextLine(buf,via_end,end);
+			next_via=skipWhiteSpaces(buf,indexOf(buf,second_via,end,(byte)':')+1,end);
+		}
+		// next Via
+		if (parseVia(buf,next_via,end)<0 || !udp) return false;
+		String dest_addr=(received_addr!=null)? received_addr : host;
+		int dest_port=(rport>0)? rport : (port>0)? port : SipStack.default_port;
+		IpAddress dest_ipaddr=resolve(dest_addr);
+		if (dest_ipaddr==null) return false;
+		// compose the new message
+		out_len=0;
+		write(buf,off,remove_begin);
+		write(buf,remove_end,end);
+		if (backend_branch!=null && cseq>=0) {
+			int code=parseInt(buf,off+8,off+11);
+			int method_end=trimEnd(buf,off,cseq);
+			int method_begin=method_end;
+			while (method_begin>off && buf[method_begin-1]!=' ' && buf[method_begin-1]!='\t' && buf[method_begin-1]!=':') method_begin--;
+			dispatcher.onResponse(backend_index,backend_time,code,backend_branch,new String(buf,method_begin,method_end-method_begin));
+		}
+		((UdpTransport)transport).sendRawData(out,0,out_len,dest_ipaddr,dest_port);
+		return true;
+	}
+
+
+	/** Gets the loop tag of a request, computed as done by the ServerEngine,
+	  * from the request-uri, the From tag, the Call-ID, the CSeq number, and the number of Route values. */
+	private static String loopTag(byte[] buf, int uri_begin, int uri_end, int from_tag_begin, int from_tag_end, int call_id_begin, int call_id_end, long cseq_number, int route_count) {
+		SimpleDigest digest=new SimpleDigest(7);
+		digest.update(buf,uri_begin,uri_end-uri_begin);
+		if (from_tag_begin>=0) digest.update(buf,from_tag_begin,from_tag_end-from_tag_begin);
+		else digest.update("null");
+		digest.update(buf,call_id_begin,call_id_end-call_id_begin);
+		digest.update(String.valueOf(cseq_number));
+		if (route_count>0) digest.update(String.valueOf(route_count));
+		return digest.asHex();
+	}
+
+
+	/** Gets the IP address of a host.
+	  * Host names are resolved by a background thread, in order not to block the forwarding of other messages,
+	  * and kept in the address cache.
+	  * @return the IP address, or <i>null</i> if the host name has not been resolved yet */
+	private IpAddress resolve(final String host) throws java.net.UnknownHostException {
+		if (isIpAddress(host)) return IpAddress.getByName(host);
+		// else
+		long now=System.currentTimeMillis();
+		ResolvedAddress resolved=(ResolvedAddress)address_cache.get(host);
+		if (resolved!=null && now<resolved.expire) return resolved.ipaddr;
+		// else
+		if (address_cache.size()>=ADDRESS_CACHE_SIZE) address_cache.clear();
+		address_cache.put(host,new ResolvedAddress(null,now+ADDRESS_CACHE_TIME));
+		ThreadFactory.start(new Runnable() {
+			public void run() {
+				try {
+					IpAddress ipaddr=IpAddress.getByName(host);
+					address_cache.put(host,new ResolvedAddress(ipaddr,System.currentTimeMillis()+ADDRESS_CACHE_TIME));
+				}
+				catch (Exception e) {
+					log(LoggerLevel.DEBUG,e);
+				}
+			}
+		},"StatelessForwarder-resolve-"+host,true);
+		return null;
+	}
+
+
+	/** Whether a host is a literal IPv4 or IPv6 address. */
+	private static boolean isIpAddress(String host) {
+		if (host.indexOf(':')>=0) return true;
+		// else
+		for (int i=0; i<host.length(); i++) {
+			char c=host.charAt(i);
+			if ((c<'0' || c>'9') && c!='.') return false;
+		}
+		return host.length()>0;
+	}
+
+
+	/** Adds "received" and "rport" to the top Via of a request, as done by the SipProvider.
+	  * @return the hash of the branch, or 0 if the Via cannot be handled */
+	private long updateTopVia(byte[] buf, int top_via, int end) {
+		int via_begin=skipWhiteSpaces(buf,indexOf(buf,top_via,end,(byte)':')+1,end);
+		int params_end=parseVia(buf,via_begin,end);
+		if (params_end<0 || branch_begin<0 || received_addr!=null || rport>0) return 0;
+		if (!startsWith(buf,branch_begin,branch_end,MAGIC_COOKIE)) return 0;
+		add_received=!host.equals(remote_addr);
+		add_rport=false;
+		if (rport_end>=0) addEdit(rport_end,rport_end,EDIT_RPORT_VALUE);
+		else add_rport=sip_provider.isForceRportSet() && ((port>0)? port : SipStack.default_port)!=remote_port;
+		if (add_received || add_rport) addEdit(params_end,params_end,EDIT_VIA_PARAMS);
+		long h=hash(branch_seed,buf,branch_begin,branch_end);
+		return (h!=0)? h : 1;
+	}
+
+
+	// **************************** Parsing ****************************
+
+	/** Beginning of the branch of the last parsed Via, or -1 */
+	int branch_begin;
+
+	/** End of the branch of the last parsed Via */
+	int branch_end;
+
+	/** Value of the "received" parameter of the last parsed Via, or <i>null</i> */
+	String received_addr;
+
+	/** Value of the "rport" parameter of the last parsed Via, 0 if it has no value, or -1 if not present */
+	int rport;
+
+	/** End of the "rport" parameter of the last parsed Via, if it has no value; otherwise -1 */
+	int rport_end;
+
+	/** Value of the "lb" parameter of the last parsed Via, or -1 */
+	int via_lb;
+
+	/** Value of the "lbt" parameter of the last parsed Via, or -1 */
+	long via_lbt;
+
+
+	/** Parses a Via value (sent-protocol, sent-by, and parameters).
+	  * It sets the fields {@link #host}, {@link #port}, {@link #udp}, {@link #branch_begin}, {@link #branch_end},
+	  * {@link #received_addr}, {@link #rport}, {@link #rport_end}, {@link #via_lb}, and {@link #via_lbt}.
+	  * @return the end of the parsed Via value, or -1 if it cannot be handled */
+	private int parseVia(byte[] buf, int begin, int end) {
+		int line_end=lineEnd(buf,begin,end);
+		int proto_end=begin;
+		while (proto_end<line_end && buf[proto_end]!=' ' && buf[proto_end]!='\t') proto_end++;
+		udp=equalsIgnoreCase(buf,begin,proto_end,"SIP/2.0/UDP");
+		int i=parseHostPort(buf,skipWhiteSpaces(buf,proto_end,line_end),line_end);
+		if (i<0) return -1;
+		branch_begin=-1;
+		received_addr=null;
+		rport=-1;
+		rport_end=-1;
+		via_lb=-1;
+		via_lbt=-1;
+		while (i<line_end && buf[i]==';') {
+			int name_begin=i+1;
+			int name_end=name_begin;
+			while (name_end<line_end && buf[name_end]!='=' && buf[name_end]!=';' && buf[name_end]!=',' && buf[name_end]!=' ') name_end++;
+			int value_begin=name_end;
+			int value_end=name_end;
+			if (name_end<line_end && buf[name_end]=='=') {
+				value_begin=value_end=name_end+1;
+				while (value_end<line_end && buf[value_end]!=';' && buf[value_end]!=',' && buf[value_end]!=' ') value_end++;
+			}
+			if (equalsIgnoreCase(buf,name_begin,name_end,"branch")) {  branch_begin=value_begin; branch_end=value_end;  }
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,"received")) received_addr=new String(buf,value_begin,value_end-value_begin);
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,"rport")) {
+				if (value_end>value_begin) rport=parseInt(buf,value_begin,value_end);
+				else {  rport=0; rport_end=name_end;  }
+				if (rport<0) return -1;
+			}
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,"maddr")) return -1;
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,Dispatcher.PARAM_BACKEND)) via_lb=parseInt(buf,value_begin,value_end);
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,Dispatcher.PARAM_TIME)) via_lbt=parseLong(buf,value_begin,value_end);
+			i=value_end;
+		}
+		i=skipWhiteSpaces(buf,i,line_end);
+		if (i<line_end && buf[i]!=',') return -1;
+		return i;
+	}
+
+
+	/** Parses the first value of a Route header field.
+	  * It sets the fields {@link #host}, {@link #port}, {@link #lr}, {@link #udp}, and {@link #lb}.
+	  * @return the end of the parsed Route value, or -1 if it cannot be handled */
+	private int parseRoute(byte[] buf, int begin, int end) {
+		int line_end=lineEnd(buf,begin,end);
+		if (begin>=line_end || buf[begin]!='<') return -1;
+		int uri_end=indexOf(buf,begin,line_end,(byte)'>');
+		if (uri_end<0 || !parseUri(buf,begin+1,uri_end)) return -1;
+		int i=uri_end+1;
+		while (i<line_end && buf[i]!=',') i++;
+		return trimEnd(buf,uri_end+1,i)==uri_end+1? i : -1;
+	}
+
+
+	/** Parses a SIP URI.
+	  * It sets the fields {@link #host}, {@link #port}, {@link #lr}, {@link #udp}, and {@link #lb}.
+	  * @return whether it is a SIP URI that can be handled */
+	private boolean parseUri(byte[] buf, int begin, int end) {
+		if (!startsWith(buf,begin,end,"sip:")) return false;
+		int i=begin+4;
+		int at=indexOf(buf,i,end,(byte)'@');
+		if (at>=0) i=at+1;
+		i=parseHostPort(buf,i,end);
+		if (i<0) return false;
+		lr=false;
+		udp=true;
+		lb=null;
+		while (i<end && buf[i]==';') {
+			int name_begin=i+1;
+			int name_end=name_begin;
+			while (name_end<end && buf[name_end]!='=' && buf[name_end]!=';' && buf[name_end]!='?') name_end++;
+			int value_end=name_end;
+			if (name_end<end && buf[name_end]=='=') {
+				value_end++;
+				while (value_end<end && buf[value_end]!=';' && buf[value_end]!='?') value_end++;
+			}
+			if (equalsIgnoreCase(buf,name_begin,name_end,"lr")) lr=true;
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,"maddr")) udp=false;
+			else
+			if (equalsIgnoreCase(buf,name_begin,name_end,"transport")) udp=equalsIgnoreCase(buf,name_end+1,value_end,SipProvider.PROTO_UDP);
+			else
+			if (value_end>name_end && equalsIgnoreCase(buf,name_begin,name_end,Dispatcher.PARAM_BACKEND)) lb=new String(buf,name_end+1,value_end-name_end-1);
+			i=value_end;
+		}
+		return i==end || buf[i]=='?';
+	}
+
+
+	/** Parses host and port.
+	  * It sets the fields {@link #host} and {@link #port}.
+	  * @return the end of host and port, or -1 if they cannot be handled (e.g. IPv6 reference) */
+	private int parseHostPort(byte[] buf, int begin, int end) {
+		int i=begin;
+		while (i<end && buf[i]!=':' && buf[i]!=';' && buf[i]!='?' && buf[i]!=',' && buf[i]!=' ' && buf[i]!='>') {
+			if (buf[i]=='[') return -1;
+			i++;
+		}
+		if (i==begin) return -1;
+		host=new String(buf,begin,i-begin);
+		port=-1;
+		if (i<end && buf[i]==':') {
+			int port_begin=++i;
+			while (i<end && buf[i]>='0' && buf[i]<='9') i++;
+			port=parseInt(buf,port_begin,i);
+			if (port<=0) return -1;
+		}
+		return i;
+	}
+
+
+	// ************************* Byte utilities *************************
+
+	/** Adds an edit, keeping the edits sorted by position. */
+	private void addEdit(int pos, int end, int type) {
+		int k=edit_count++;
+		while (k>0 && edit_pos[k-1]>pos) {
+			edit_pos[k]=edit_pos[k-1];
+			edit_end[k]=edit_end[k-1];
+			edit_type[k]=edit_type[k-1];
+			k--;
+		}
+		edit_pos[k]=pos;
+		edit_end[k]=end;
+		edit_type[k]=type;
+	}
+
+	/** Appends bytes to the output buffer. */
+	private void write(byte[] buf, int begin, int end) {
+		System.arraycopy(buf,begin,out,out_len,end-begin);
+		out_len+=end-begin;
+	}
+
+	/** Appends an ASCII string to the output buffer. */
+	private void writeString(String str) {
+		for (int i=0; i<str.length(); i++) out[out_len++]=(byte)str.charAt(i);
+	}
+
+	/** Appends the decimal representation of a non-negative integer to the output buffer. */
+	private void writeInt(int n) {
+		int digits=digits(n);
+		for (int k=out_len+digits-1; k>=out_len; k--, n/=10) out[k]=(byte)('0'+n%10);
+		out_len+=digits;
+	}
+
+	/** Gets the number of decimal digits of a non-negative integer. */
+	private static int digits(int n) {
+		int digits=1;
+		for (; n>=10; n/=10) digits++;
+		return digits;
+	}
+
+	/** Gets the FNV-1a hash of a sequence of bytes. */
+	private static long hash(long h, byte[] buf, int begin, int end) {
+		for (int i=begin; i<end; i++) {
+			h^=buf[i]&0xff;
+			h*=FNV_PRIME;
+		}
+		return h;
+	}
+
+	/** Parses a decimal non-negative integer.
+	  * @return the integer, or -1 if not valid */
+	private static int parseInt(byte[] buf, int begin, int end) {
+		if (begin>=end || end-begin>9) return -1;
+		int n=0;
+		for (int i=begin; i<end; i++) {
+			if (buf[i]<'0' || buf[i]>'9') return -1;
+			n=n*10+(buf[i]-'0');
+		}
+		return n;
+	}
+
+	/** Parses a decimal non-negative long integer.
+	  * @return the integer, or -1 if not valid */
+	private static long parseLong(byte[] buf, int begin, int end) {
+		if (begin>=end || end-begin>18) return -1;
+		long n=0;
+		for (int i=begin; i<end; i++) {
+			if (buf[i]<'0' || buf[i]>'9') return -1;
+			n=n*10+(buf[i]-'0');
+		}
+		return n;
+	}
+
+	/** Counts the comma-separated values of a header field, ignoring commas within quotes and angle brackets. */
+	private static int countValues(byte[] buf, int begin, int end) {
+		begin=skipWhiteSpaces(buf,begin,end);
+		if (begin>=trimEnd(buf,begin,end)) return 0;
+		// else
+		int n=1;
+		boolean quoted=false;
+		boolean bracketed=false;
+		for (int i=begin; i<end; i++) {
+			byte b=buf[i];
+			if (b=='"') quoted=!quoted;
+			else
+			if (!quoted && b=='<') bracketed=true;
+			else
+			if (!quoted && b=='>') bracketed=false;
+			else
+			if (!quoted && !bracketed && b==',') n++;
+		}
+		return n;
+	}
+
+	/** Gets the index of the first occurrence of a byte, or -1. */
+	private static int indexOf(byte[] buf, int begin, int end, byte b) {
+		for (int i=begin; i<end; i++) if (buf[i]==b) return i;
+		return -1;
+	}
+
+	/** Gets the index of the first occurrence of a sequence of bytes, or -1. */
+	private static int indexOf(byte[] buf, int begin, int end, byte[] pattern) {
+		for (int i=begin; i<=end-pattern.length; i++) {
+			if (startsWith(buf,i,end,pattern)) return i;
+		}
+		return -1;
+	}
+
+	/** Gets the end of the current line (CR or LF excluded). */
+	private static int lineEnd(byte[] buf, int begin, int end) {
+		int i=indexOf(buf,begin,end,(byte)'\n');
+		if (i<0) return end;
+		// else
+		return (i>begin && buf[i-1]=='\r')? i-1 : i;
+	}
+
+	/** Gets the beginning of the next line. */
+	private static int nextLine(byte[] buf, int begin, int end) {
+		int i=indexOf(buf,begin,end,(byte)'\n');
+		return (i<0)? end : i+1;
+	}
+
+	/** Skips spaces and tabs. */
+	private static int skipWhiteSpaces(byte[] buf, int begin, int end) {
+		while (begin<end && (buf[begin]==' ' || buf[begin]=='\t')) begin++;
+		return begin;
+	}
+
+	/** Gets the end of a sequence of bytes without trailing spaces and tabs. */
+	private static int trimEnd(byte[] buf, int begin, int end) {
+		while (end>begin && (buf[end-1]==' ' || buf[end-1]=='\t')) end--;
+		return end;
+	}
+
+	/** Whether a sequence of bytes starts with the given bytes. */
+	private static boolean startsWith(byte[] buf, int begin, int end, byte[] prefix) {
+		if (end-begin<prefix.length) return false;
+		for (int i=0; i<prefix.length; i++) if (buf[begin+i]!=prefix[i]) return false;
+		return true;
+	}
+
+	/** Whether a sequence of bytes starts with the given ASCII string (case-insensitive). */
+	private static boolean startsWith(byte[] buf, int begin, int end, String prefix) {
+		if (end-begin<prefix.length()) return false;
+		return equalsIgnoreCase(buf,begin,begin+prefix.length(),prefix);
+	}
+
+	/** Whether a sequence of bytes equals the given ASCII string (case-insensitive). */
+	private static boolean equalsIgnoreCase(byte[] buf, int begin, int end, String str) {
+		if (end-begin!=str.length()) return false;
+		for (int i=0; i<str.length(); i++) {
+			int c=buf[begin+i];
+			int d=str.charAt(i);
+			if (c!=d && Character.toLowerCase(c)!=Character.toLowerCase(d)) return false;
+		}
+		return true;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "forwarded="+forwarded_requests+"/"+forwarded_responses+", passed="+passed_messages;
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds the Exception message to the default Log */
+	private void log(LoggerLevel level, Exception e) {
+		log(level,e.toString());
+	}
+
+	/** Adds a new string to the default Log */
+	private void log(LoggerLevel level, String str) {
+		Logger logger=SystemUtils.getDefaultLogger();
+		if (logger!=null) logger.log(level,"StatelessForwarder: "+str);
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server;
+
+
+import java.io.IOException;
+
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipStack;
+import org.mjsip.sip.provider.UdpTransport;
+import org.zoolu.net.IpAddress;
+import org.zoolu.net.UdpSocket;
+import org.zoolu.util.Flags;
+
+
+/** StatelessForwarderBenchmark measures the time spent for forwarding a request by the
+  * {@link StatelessForwarder}, compared with the normal path of the stateless {@link Proxy}.
+  * <p>
+  * The request is an INVITE with an SDP body and a loose Route to the proxy.
+  * The normal path is measured as parsing the request into a SipMessage, validating it,
+  * updating it for proxying, and formatting it; SipProvider logging and listener dispatch are not included.
+  * <p>
+  * Both paths are measured without sending (rewriting only), and including the UDP send
+  * toward a local socket that is never read.
+  */
+public class StatelessForwarderBenchmark {
+
+	/** Address of the previous hop */
+	static final String REMOTE_ADDR="10.0.0.2";
+
+	/** Port of the previous hop */
+	static final int REMOTE_PORT=5060;
+
+
+	/** Proxy */
+	Proxy proxy;
+
+	/** Forwarder */
+	StatelessForwarder forwarder;
+
+	/** Transport that sends the forwarded requests */
+	UdpTransport transport;
+
+	/** Transport that discards the forwarded requests */
+	UdpTransport null_transport;
+
+	/** Destination address */
+	IpAddress dest_ipaddr;
+
+	/** Destination socket (never read) */
+	UdpSocket dest_socket;
+
+	/** Request */
+	byte[] request;
+
+	/** Previous hop address */
+	IpAddress remote_ipaddr;
+
+	/** Sum of the lengths of the forwarded requests, that prevents the JIT from removing the loops */
+	long sink=0;
+
+
+
+	/** Creates a new StatelessForwarderBenchmark.
+	  * @param port the port of the proxy */
+	public StatelessForwarderBenchmark(int port) throws IOException {
+		SipStack.init();
+		ServerProfile server_profile=new ServerProfile(null);
+		server_profile.is_registrar=false;
+		server_profile.fast_forwarding=false;
+		SipProvider sip_provider=new SipProvider("127.0.0.1",port);
+		proxy=new Proxy(sip_provider,server_profile);
+		forwarder=new StatelessForwarder(proxy,sip_provider,server_profile);
+		transport=new UdpTransport(0);
+		null_transport=new UdpTransport(0) {
+			public void sendRawData(byte[] buf, int off, int len, IpAddress dest_ipaddr, int dest_port) {
+				sink+=len;
+			}
+		};
+		dest_socket=new UdpSocket(0);
+		dest_ipaddr=IpAddress.getByName("127.0.0.1");
+		remote_ipaddr=IpAddress.getByName(REMOTE_ADDR);
+		String sdp="v=0\r\no=alice 2890844526 2890844526 IN IP4 "+REMOTE_ADDR+"\r\ns=-\r\nc=IN IP4 "+REMOTE_ADDR+"\r\nt=0 0\r\nm=audio 49170 RTP/AVP 0 8 101\r\na=rtpmap:0 PCMU/8000\r\na=rtpmap:8 PCMA/8000\r\na=rtpmap:101 telephone-event/8000\r\na=ptime:20\r\n";
+		String req="INVITE sip:bob@127.0.0.1:"+dest_socket.getLocalPort()+" SIP/2.0\r\n"+
+			"Via: SIP/2.0/UDP "+REMOTE_ADDR+":"+REMOTE_PORT+";rport;branch=z9hG4bK776asdhds\r\n"+
+			"Route: <sip:127.0.0.1:"+port+";lr>\r\n"+
+			"Max-Forwards: 70\r\n"+
+			"To: <sip:bob@example.net>\r\n"+
+			"From: <sip:alice@example.org>;tag=1928301774\r\n"+
+			"Call-ID: a84b4c76e66710@pc33.example.org\r\n"+
+			"CSeq: 314159 INVITE\r\n"+
+			"Contact: <sip:alice@"+REMOTE_ADDR+":"+REMOTE_PORT+">\r\n"+
+			"Content-Type: application/sdp\r\n"+
+			"Content-Length: "+sdp.length()+"\r\n\r\n"+sdp;
+		request=req.getBytes();
+	}
+
+
+	/** Forwards the request through the fast path.
+	  * @param send whether the request is sent */
+	void forwardFast(boolean send) throws IOException {
+		if (!forwarder.onReceivedRawMessage(send? transport : null_transport,request,0,request.length,remote_ipaddr,REMOTE_PORT)) throw new IOException("Request not forwarded by the fast path");
+	}
+
+
+	/** Forwards the request through the normal path of the Proxy.
+	  * @param send whether the request is sent */
+	void forwardSlow(boolean send) throws IOException {
+		SipMessage msg=new SipMessage(request,0,request.length);
+		if (proxy.validateRequest(msg)!=null) throw new IOException("Request rejected by the Proxy");
+		// else
+		msg=proxy.updateProxyingRequest(msg);
+		byte[] data=msg.getBytes();
+		if (send) transport.sendRawData(data,0,data.length,dest_ipaddr,dest_socket.getLocalPort());
+		else sink+=data.length;
+	}
+
+
+	/** Measures a path.
+	  * @return the time per request [nanosecs] */
+	long run(boolean fast, boolean send, int n) throws IOException {
+		long start=0;
+		for (int i=-n/10; i<n; i++) {
+			// the first tenth of the requests is used for warm-up
+			if (i==0) start=System.nanoTime();
+			if (fast) forwardFast(send);
+			else forwardSlow(send);
+		}
+		return (System.nanoTime()-start)/n;
+	}
+
+
+	/** Stops the benchmark. */
+	void halt() {
+		proxy.sip_provider.halt();
+		transport.halt();
+		null_transport.halt();
+		dest_socket.close();
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n=flags.getInteger("-n",100000,"<n>","number of requests per measure");
+		int port=flags.getInteger("-p",5070,"<port>","SIP port of the proxy");
+
+		if (help) {
+			System.out.println(flags.toUsageString(StatelessForwarderBenchmark.class.getName()));
+			return;
+		}
+		// else
+		try {
+			StatelessForwarderBenchmark benchmark=new StatelessForwarderBenchmark(port);
+			System.out.println("request: "+benchmark.request.length+" bytes");
+			System.out.println("path           rewriting [ns/msg]   with UDP send [ns/msg]");
+			long[] fast={ benchmark.run(true,false,n), benchmark.run(true,true,n) };
+			long[] slow={ benchmark.run(false,false,n), benchmark.run(false,true,n) };
+			for (int k=0; k<2; k++) {
+				long[] times=(k==0)? fast : slow;
+				StringBuilder sb=new StringBuilder((k==0)? "fast" : "proxy");
+				while (sb.length()<15) sb.append(' ');
+				sb.append(times[0]);
+				while (sb.length()<36) sb.append(' ');
+				sb.append(times[1]);
+				System.out.println(sb.toString());
+			}
+			System.out.println("speed-up       "+(fast[0]>0? slow[0]*10/fast[0]/10.0 : 0)+"x                 "+(fast[1]>0? slow[1]*10/fast[1]/10.0 : 0)+"x");
+			System.out.println(benchmark.forwarder);
+			benchmark.halt();
+			if (benchmark.sink==1) System.out.println();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+}
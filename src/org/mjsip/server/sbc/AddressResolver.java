@@ -22,15 +22,15 @@
 package org.mjsip.server.sbc;
 
 
-import java.util.Date;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.zoolu.net.SocketAddress;
 import org.zoolu.util.LoggerLevel;
 import org.zoolu.util.SystemUtils;
-import org.zoolu.util.Logger;
 import org.zoolu.util.Timer;
 import org.zoolu.util.TimerListener;
 
@@ -42,10 +42,33 @@ import org.zoolu.util.TimerListener;
   * to be used to reach a remote node, against to the address optained in other ways.
   * For example, it can be used to maintain correct remote address mapping
   * for symmetric NAT traversal.
+  * <p>
+  * Bindings are maintained in a concurrent table, so that they can be accessed and updated
+  * by several threads without external synchronization.
+  * In order to avoid scanning the entire table, bindings are also collected into expiry buckets,
+  * each covering a <i>refresh_time</i> interval; at each refresh only the elapsed buckets are processed.
   */
 public class AddressResolver  {
 	
 
+	/** A binding. */
+	static class Binding {
+		/** Actual socket address */
+		SocketAddress soaddr;
+		/** Expiration date [millisecs] */
+		long expire;
+		/** Expiry bucket */
+		long bucket;
+
+		/** Creates a new Binding. */
+		Binding(SocketAddress soaddr, long expire, long bucket) {
+			this.soaddr=soaddr;
+			this.expire=expire;
+			this.bucket=bucket;
+		}
+	}
+
+
 	/** Refresh time [millisecs].
 	  * When expired bindings are removed */
 	long refresh_time;
@@ -54,14 +77,20 @@ public class AddressResolver  {
 	  * The maximum time that a binding is considered active */
 	long expire_time;
 
-	/** Binding table */
-	Hashtable binding_table;
+	/** Binding table (refer_soaddr --> Binding) */
+	ConcurrentHashMap binding_table;
+
+	/** Expiry buckets (bucket index --> Set of refer_soaddr) */
+	ConcurrentHashMap bucket_table;
 
-	/** Time table */
-	Hashtable time_table;
+	/** Last processed expiry bucket */
+	long last_bucket;
 
 	/** Refresh timer */
 	Timer timer;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
 	
 	/** Timer listener */
 	TimerListener this_timer_listener=new TimerListener() {
@@ -76,8 +105,9 @@ public class AddressResolver  {
 	public AddressResolver(long refresh_time) {
 		this.refresh_time=refresh_time;
 		expire_time=refresh_time/2;
-		binding_table=new Hashtable();
-		time_table=new Hashtable();
+		binding_table=new ConcurrentHashMap();
+		bucket_table=new ConcurrentHashMap();
+		last_bucket=getBucket(System.currentTimeMillis())-1;
 		timer=new Timer(refresh_time,this_timer_listener);
 		timer.start();
 	}
@@ -91,14 +121,14 @@ public class AddressResolver  {
 
 	/** Gets list of all reference SocketAddresses. */
 	public Enumeration getAllSocketAddresses() {
-		return binding_table.keys();
+		return Collections.enumeration(binding_table.keySet());
 	}
 
 
 	/** Whether there is a mapping for the selected SocketAddress. */
 	public boolean contains(SocketAddress refer_soaddr) {
 		if (refer_soaddr!=null) {
-			return binding_table.containsKey(refer_soaddr.toString());
+			return binding_table.containsKey(refer_soaddr);
 		}
 		return false;
 	}
@@ -107,26 +137,23 @@ public class AddressResolver  {
 	/** Adds or updates a new SocketAddress mapping. */
 	public void updateBinding(SocketAddress refer_soaddr, SocketAddress actual_soaddr) {
 		if (refer_soaddr!=null) {
-			String key=refer_soaddr.toString();
-			Long expire=new Long((new Date()).getTime()+expire_time);
-			if (binding_table.containsKey(key)) {
-				if (!((SocketAddress)binding_table.get(key)).equals(actual_soaddr)) {
+			long expire=System.currentTimeMillis()+expire_time;
+			long bucket=getBucket(expire);
+			Binding binding=new Binding(actual_soaddr,expire,bucket);
+			Binding old_binding=(Binding)binding_table.put(refer_soaddr,binding);
+			if (old_binding!=null) {
+				if (!old_binding.soaddr.equals(actual_soaddr)) {
 					log(LoggerLevel.INFO,"change BINDING "+refer_soaddr+" >> "+actual_soaddr);
-					binding_table.remove(key);
-					binding_table.put(key,actual_soaddr);
 				}
 				else {
 					log(LoggerLevel.DEBUG,"update BINDING "+refer_soaddr+" >> "+actual_soaddr);
-					// do not change binding_table
 				}
-				time_table.remove(key);
-				time_table.put(key,expire);
+				if (old_binding.bucket!=bucket) removeFromBucket(old_binding.bucket,refer_soaddr);
 			}
 			else {
 				log(LoggerLevel.INFO,"add BINDING "+refer_soaddr+" >> "+actual_soaddr);
-				binding_table.put(key,actual_soaddr);
-				time_table.put(key,expire);
 			}
+			addToBucket(bucket,refer_soaddr);
 		}
 	}
 
@@ -134,11 +161,10 @@ public class AddressResolver  {
 	/** Removes a SocketAddress mapping. */
 	public void removeBinding(SocketAddress refer_soaddr) {
 		if (refer_soaddr!=null) {
-			String key=refer_soaddr.toString();
-			if (binding_table.containsKey(key)) {
+			Binding binding=(Binding)binding_table.remove(refer_soaddr);
+			if (binding!=null) {
 				log(LoggerLevel.INFO,"remove BINDING for "+refer_soaddr);
-				binding_table.remove(key);
-				time_table.remove(key);
+				removeFromBucket(binding.bucket,refer_soaddr);
 			}
 		}
 	}
@@ -147,31 +173,75 @@ public class AddressResolver  {
 	/** Gets the actual SocketAddress for the selected SocketAddress. */
 	public SocketAddress getSocketAddress(SocketAddress refer_soaddr) {
 		if (refer_soaddr!=null) {
-			String key=refer_soaddr.toString();
-			if (binding_table.containsKey(key)) return (SocketAddress)binding_table.get(key);
+			Binding binding=(Binding)binding_table.get(refer_soaddr);
+			if (binding!=null) return binding.soaddr;
 		}
 		return null;
 	}
 
 
+	/** Stops refreshing the bindings and removes all of them. */
+	public void halt() {
+		stop=true;
+		timer.halt();
+		binding_table.clear();
+		bucket_table.clear();
+	}
+
+
+	/** Gets the expiry bucket of a given expiration date. */
+	private long getBucket(long expire) {
+		return expire/refresh_time;
+	}
+
+
+	/** Adds a reference SocketAddress to an expiry bucket. */
+	private void addToBucket(long bucket, SocketAddress refer_soaddr) {
+		Long key=Long.valueOf(bucket);
+		Set set=(Set)bucket_table.get(key);
+		if (set==null) {
+			set=ConcurrentHashMap.newKeySet();
+			Set prev=(Set)bucket_table.putIfAbsent(key,set);
+			if (prev!=null) set=prev;
+		}
+		set.add(refer_soaddr);
+	}
+
+
+	/** Removes a reference SocketAddress from an expiry bucket. */
+	private void removeFromBucket(long bucket, SocketAddress refer_soaddr) {
+		Set set=(Set)bucket_table.get(Long.valueOf(bucket));
+		if (set!=null) set.remove(refer_soaddr);
+	}
+
+
+	/** When a binding expires. */
+	protected void processBindingExpired(SocketAddress refer_soaddr) {
+		log(LoggerLevel.INFO,"remove BINDING for "+refer_soaddr);
+	}
+
+
 	/** When the refresh timeout expires. */
 	protected void processTimeout(Timer t) {
-		// enumerate expired binding
+		if (stop) return;
+		// else
+		// process all elapsed buckets
 		log(LoggerLevel.DEBUG,"refresh all address bindings:");         
-		long now=(new Date()).getTime();
-		Vector aux=new Vector();
-		for (Enumeration e=time_table.keys(); e.hasMoreElements(); ) {
-			String key=(String)e.nextElement();
-			long expire=((Long)time_table.get(key)).longValue();
-			if (expire<now) aux.addElement(key);
-		}
-		// remove expired binding
-		for (int i=0; i<aux.size(); i++) {
-			String key=(String)aux.elementAt(i);
-			log(LoggerLevel.INFO,"remove BINDING for "+key);         
-			binding_table.remove(key);
-			time_table.remove(key);
+		long now=System.currentTimeMillis();
+		long now_bucket=getBucket(now);
+		for (long bucket=last_bucket+1; bucket<now_bucket; bucket++) {
+			Set set=(Set)bucket_table.remove(Long.valueOf(bucket));
+			if (set==null) continue;
+			// else
+			for (Iterator i=set.iterator(); i.hasNext(); ) {
+				SocketAddress refer_soaddr=(SocketAddress)i.next();
+				Binding binding=(Binding)binding_table.get(refer_soaddr);
+				if (binding==null) continue;
+				// else
+				if (binding.bucket==bucket && binding.expire<now && binding_table.remove(refer_soaddr,binding)) processBindingExpired(refer_soaddr);
+			}
 		}
+		last_bucket=now_bucket-1;
 		log(LoggerLevel.DEBUG,"done.");         
 
 		// start a new refresh timer
@@ -22,16 +22,10 @@
 package org.mjsip.server.sbc;
 
 
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
-
-import org.mjsip.sip.provider.SipKeepAlive;
+import org.mjsip.sip.provider.SipKeepAliveScheduler;
 import org.mjsip.sip.provider.SipProvider;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.util.LoggerLevel;
-import org.zoolu.util.Timer;
 
 
 /** Class AddressResolverKeepAlive maintains an address binding.
@@ -41,6 +35,7 @@ import org.zoolu.util.Timer;
   * to be used to reach a remote node, against to the address optained in other ways.
   * For example, it can be used to maintain correct remote address mapping
   * for symmetric NAT traversal.
+  * <p> Keepalive datagrams toward all bindings are sent by a single {@link SipKeepAliveScheduler}.
   */
 public class AddressResolverKeepAlive extends AddressResolver {
 	
@@ -48,39 +43,27 @@ public class AddressResolverKeepAlive extends AddressResolver {
 	/** Keep-alive time [millisecs] */
 	long keepalive_time;
 
-	/** Sip keep-alive daemons */
-	Hashtable keepalive_daemons=null;
-	
-	/** SipProvider */
-	SipProvider sip_provider;
+	/** Sip keep-alive scheduler */
+	SipKeepAliveScheduler keepalive_scheduler;
 	
 
 
 	/** Creates an empty AddressResolverKeepAlive. */
 	public AddressResolverKeepAlive(long refresh_time, SipProvider sip_provider, long keepalive_time) {
 		super(refresh_time);
-		this.sip_provider=sip_provider;
 		this.keepalive_time=keepalive_time;
-		keepalive_daemons=new Hashtable();
+		keepalive_scheduler=new SipKeepAliveScheduler(sip_provider,keepalive_time);
 	}
 
 	
 	/** Adds or updates a new SocketAddress mapping. */
 	public void updateBinding(SocketAddress refer_soaddr, SocketAddress actual_soaddr) {
 		if (refer_soaddr!=null) {
-			String key=refer_soaddr.toString();
-			if (keepalive_daemons.containsKey(key)) {
-				if (!((SocketAddress)binding_table.get(key)).equals(actual_soaddr)) {
-					SipKeepAlive keepalive=(SipKeepAlive)keepalive_daemons.get(key);
-					keepalive.setDestSoAddress(actual_soaddr);
-					log(LoggerLevel.DEBUG,"KeepAlive: change dest: "+actual_soaddr);
-				}
-			}
-			else {
-				SipKeepAlive keepalive=new SipKeepAlive(sip_provider,actual_soaddr,keepalive_time);
-				keepalive_daemons.put(key,keepalive);
-				log(LoggerLevel.DEBUG,"KeepAlive: start: "+actual_soaddr);
-			}
+			SocketAddress dest_soaddr=keepalive_scheduler.getDestSoAddress(refer_soaddr);
+			if (dest_soaddr==null) log(LoggerLevel.DEBUG,"KeepAlive: start: "+actual_soaddr);
+			else
+			if (!dest_soaddr.equals(actual_soaddr)) log(LoggerLevel.DEBUG,"KeepAlive: change dest: "+actual_soaddr);
+			keepalive_scheduler.add(refer_soaddr,actual_soaddr,0);
 		}
 		super.updateBinding(refer_soaddr,actual_soaddr);
 	}
@@ -88,38 +71,26 @@ public class AddressResolverKeepAlive extends AddressResolver {
 
 	/** Removes a SocketAddress mapping. */
 	public void removeBinding(SocketAddress refer_soaddr) {
-		if (refer_soaddr!=null) {
-			String key=refer_soaddr.toString();
-			if (keepalive_daemons.containsKey(key)) {
-				SipKeepAlive keepalive=(SipKeepAlive)keepalive_daemons.get(key);
-				keepalive_daemons.remove(key);
-				keepalive.halt();
-				log(LoggerLevel.DEBUG,"KeepAlive: halt: "+keepalive.getDestSoAddress().toString());
-			}
+		if (refer_soaddr!=null && keepalive_scheduler.contains(refer_soaddr)) {
+			keepalive_scheduler.remove(refer_soaddr);
+			log(LoggerLevel.DEBUG,"KeepAlive: halt: "+refer_soaddr);
 		}
 		super.removeBinding(refer_soaddr);
 	}
 
 
-	/** When the refresh timeout expires. */
-	protected void processTimeout(Timer t) {
-		// enumerate expired binding
-		long now=(new Date()).getTime();
-		Vector aux=new Vector();
-		for (Enumeration e=time_table.keys(); e.hasMoreElements(); ) {
-			String key=(String)e.nextElement();
-			long expire=((Long)time_table.get(key)).longValue();
-			if (expire<now) aux.addElement(key);
-		}
-		// remove expired binding
-		for (int i=0; i<aux.size(); i++) {
-			String key=(String)aux.elementAt(i);
-			SipKeepAlive keepalive=(SipKeepAlive)keepalive_daemons.get(key);
-			keepalive_daemons.remove(key);
-			keepalive.halt();
-			log(LoggerLevel.DEBUG,"KeepAlive: halt: "+keepalive.getDestSoAddress().toString());
-		}
-		super.processTimeout(t);
+	/** Stops refreshing the bindings and sending keep-alive tokens. */
+	public void halt() {
+		keepalive_scheduler.halt();
+		super.halt();
+	}
+
+
+	/** When a binding expires. */
+	protected void processBindingExpired(SocketAddress refer_soaddr) {
+		keepalive_scheduler.remove(refer_soaddr);
+		log(LoggerLevel.DEBUG,"KeepAlive: halt: "+refer_soaddr);
+		super.processBindingExpired(refer_soaddr);
 	}
 
 }
@@ -41,6 +41,9 @@ import org.zoolu.util.SystemUtils;
   * the source address used in the opposite direction,
   * that is the address where the messages in the opposite direction came from
   * (reverse forwarding).
+  * <p>
+  * Received messages are not serialized, since address bindings are maintained
+  * by an AddressResolver that can be safely accessed by concurrent threads.
   */
 public class ExtendedSipProvider extends org.mjsip.sip.provider.SipProvider {
 	
@@ -82,8 +85,16 @@ public class ExtendedSipProvider extends org.mjsip.sip.provider.SipProvider {
 
 	//********************** extended methods **********************
 
+	/** Stops the SipProvider and the address resolver. */
+	@Override
+	public synchronized void halt() {
+		address_resolver.halt();
+		super.halt();
+	}
+
+
 	@Override
-	protected synchronized void processReceivedMessage(SipTransport transport, SipMessage msg) {
+	protected void processReceivedMessage(SipTransport transport, SipMessage msg) {
 		
 		SocketAddress src_soaddr=new SocketAddress(msg.getRemoteAddress(),msg.getRemotePort());
 		
@@ -138,8 +149,9 @@ public class ExtendedSipProvider extends org.mjsip.sip.provider.SipProvider {
 		//for (Enumeration e=address_resolver.getAllSocketAddresses(); e.hasMoreElements(); )
 		//{  printLog("DEBUG: resolv_soaddr="+((String)e.nextElement()),LoggerWriter.LEVEL_HIGH);
 		//}
-		if (address_resolver.contains(refer_soaddr)) {
-			dest_soaddr=address_resolver.getSocketAddress(refer_soaddr);
+		SocketAddress resolved_soaddr=address_resolver.getSocketAddress(refer_soaddr);
+		if (resolved_soaddr!=null) {
+			dest_soaddr=resolved_soaddr;
 			log(LoggerLevel.INFO,"CHANGING DESTINATION "+refer_soaddr+" >> "+dest_soaddr);
 			//System.out.println("DEBUG: SPX: CHANGING DESTINATION "+refer_soaddr+" >> "+dest_soaddr);
 			dest_addr=dest_soaddr.getAddress().toString();
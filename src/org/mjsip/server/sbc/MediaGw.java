@@ -22,16 +22,24 @@
 package org.mjsip.server.sbc;
 
 
-import java.util.HashSet;
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
 
+import org.mjsip.sdp.AttributeField;
 import org.mjsip.sdp.MediaDescriptor;
 import org.mjsip.sdp.SdpMessage;
 import org.mjsip.sdp.field.MediaField;
 import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMethods;
+import org.zoolu.metrics.Counter;
+import org.zoolu.metrics.Gauge;
+import org.zoolu.metrics.MetricRegistry;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.util.ExceptionPrinter;
+import org.zoolu.util.Parser;
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
 
 // logs
 
@@ -52,6 +60,13 @@ import org.zoolu.util.Logger;
  * <br> - a Vector of available media ports,
  * <br> - a MGW timeout value,
  * <br> - a SymmetricUdpRelayListener that captures SymmetricUdpRelay events.
+ * <p> The media state of each call is maintained by a {@link MediaSession} indexed by Call-ID.
+ * A MediaSession is removed when the call is terminated (BYE, CANCEL, or failure response to INVITE),
+ * when all its relays have terminated, or when it remains half-open for more than <i>session_timeout</i>.
+ * <p> If transcoding is enabled (<i>do_transcoding</i>), the audio offers are extended with the
+ * configured <i>transcoding_codecs</i> that have not been offered by the caller.
+ * If the callee selects one of these codecs, the answer is rewritten with a codec offered by the caller,
+ * and a {@link TranscodingUdpRelay} is created instead of a plain SymmetricUdpRelay.
  */
 public class MediaGw {
 	
@@ -70,11 +85,34 @@ public class MediaGw {
 	/** Media address */
 	//String media_addr=null;
 
-	/** Hashtable of pending Masquerades referred by call_id|leg|media (i.e., call_id|leg|media --> masq) */
-	Hashtable masq_table;
+	/** Media sessions referred by call_id (i.e., call_id --> MediaSession) */
+	Hashtable sessions;
 
-	/** Hashtable of established call_id. */
-	HashSet call_set;
+	/** Default packet time, when not specified through the 'ptime' attribute [millisecs] */
+	public static int DEFAULT_PACKET_TIME=20;
+
+	/** Media type that can be transcoded */
+	static final String TRANSCODING_MEDIA="audio";
+
+	/** Names of the gauges */
+	static final String[] GAUGES={ "media_sessions", "media_sessions_half_open", "media_sessions_transcoding", "media_sessions_state_bytes" };
+
+	/** Created media sessions */
+	static final Counter CREATED_SESSIONS=MetricRegistry.getDefault().counter("media_sessions_created_total","Media sessions created by the media gateway.");
+
+	/** Timer for purging expired media sessions */
+	Timer purge_timer=null;
+
+	/** Sources of the gauges, in the same order of {@link #GAUGES} */
+	Gauge.Source[] gauge_sources;
+
+	/** Timer listener */
+	TimerListener this_timer_listener=new TimerListener() {
+		@Override
+		public void onTimeout(Timer t) {
+			processTimeout(t);
+		}
+	};
 
 	/** Symmetric UDP relay listener */
 	SymmetricUdpRelayListener this_udp_relay_listener=new SymmetricUdpRelayListener() {
@@ -99,16 +137,53 @@ public class MediaGw {
 		this.sbc_profile=sbc_profile;
 		media_ports=new CircularEnumeration(sbc_profile.media_ports);
 		dumper=new LoggerWriter(System.out,LoggerLevel.INFO);
-		masq_table=new Hashtable();
-		call_set=new HashSet();
+		sessions=new Hashtable();
+		gauge_sources=new Gauge.Source[] {
+			new Gauge.Source() {
+				public long getValue() {  return getSessionCount();  }
+			},
+			new Gauge.Source() {
+				public long getValue() {  return getHalfOpenSessionCount();  }
+			},
+			new Gauge.Source() {
+				public long getValue() {  return getTranscodingSessionCount();  }
+			},
+			new Gauge.Source() {
+				public long getValue() {  return getStateSize();  }
+			}
+		};
+		String[] help={ "Current media sessions.", "Current media sessions without media relays.", "Current media sessions with at least one transcoded media.", "Approximate size of the state maintained for the current media sessions, in bytes." };
+		MetricRegistry metrics=MetricRegistry.getDefault();
+		for (int i=0; i<GAUGES.length; i++) metrics.gauge(GAUGES[i],help[i],gauge_sources[i]);
+	}
+
+
+	/** Stops the MediaGw, removing all media sessions and unregistering its gauges. */
+	public synchronized void halt() {
+		if (purge_timer!=null) {
+			purge_timer.halt();
+			purge_timer=null;
+		}
+		Vector all=new Vector(sessions.values());
+		for (int i=0; i<all.size(); i++) removeSession((MediaSession)all.elementAt(i));
+		MetricRegistry metrics=MetricRegistry.getDefault();
+		for (int i=0; i<GAUGES.length; i++) metrics.unregister(GAUGES[i],gauge_sources[i]);
 	}
 
 
 	/** Processes the sdp data */
 	public SipMessage processSessionDescriptor(SipMessage msg) {
+		return processSessionDescriptor(msg,new SdpMessage(msg.getStringBody()));
+	}
+
+
+	/** Processes the sdp data.
+	  * @param msg the SIP message
+	  * @param sdp the session descriptor already parsed from the message body
+	  * @return the mangled message */
+	public synchronized SipMessage processSessionDescriptor(SipMessage msg, SdpMessage sdp) {
 		log(LoggerLevel.DEBUG,"inside processSessionDescriptor()");
 		
-		SdpMessage sdp=new SdpMessage(msg.getStringBody());
 		String dest_addr=sdp.getConnection().getAddress();
 		// substitute 0.0.0.0 with 127.0.0.1
 		if (dest_addr.equals("0.0.0.0")) dest_addr="127.0.0.1";
@@ -122,7 +197,15 @@ public class MediaGw {
 		int[] masq_port=new int[media_descriptors.size()];                   
 			
 		String call_id=msg.getCallIdHeader().getCallId();
-		String leg=(msg.isRequest())? "caller" : "callee";
+		boolean caller=msg.isRequest();
+		MediaSession session=(MediaSession)sessions.get(call_id);
+		if (session==null) {
+			session=new MediaSession(call_id);
+			sessions.put(call_id,session);
+			CREATED_SESSIONS.inc();
+			if (purge_timer==null) startPurgeTimer();
+		}
+		session.touch();
 
 		//for (int i=0; i<media.length; i++)
 		for (int i=0; i<media_descriptors.size(); i++) {
@@ -130,39 +213,45 @@ public class MediaGw {
 			MediaDescriptor media_descriptor=(MediaDescriptor)media_descriptors.elementAt(i);
 			MediaField media_filed=media_descriptor.getMedia();
 			media[i]=media_filed.getMedia();
+			if (sbc_profile.do_transcoding && media[i].equals(TRANSCODING_MEDIA) && !session.isComplete()) {
+				media_descriptor=(caller)? processTranscodingOffer(session,media_descriptor) : processTranscodingAnswer(session,media_descriptor);
+				media_descriptors.setElementAt(media_descriptor,i);
+			}
 			int dest_port=media_filed.getPort();
 						
-			String key=call_id+"-"+leg+"-"+media[i];
-			log(LoggerLevel.INFO,"media-id: "+key);
-			if (masq_table.containsKey(key)) {
+			log(LoggerLevel.INFO,"media-id: "+call_id+"-"+(caller?"caller":"callee")+"-"+media[i]);
+			Masquerade masq=session.getMasquerade(caller,media[i]);
+			if (masq!=null) {
 				// get masq
-				Masquerade masq=(Masquerade)masq_table.get(key);
 				masq_addr=masq.getMasqSoaddr().getAddress().toString();
 				masq_port[i]=masq.getMasqSoaddr().getPort();
 			}
 			else {
 				// set masq
 				masq_port[i]=((Integer)media_ports.nextElement()).intValue();
-				Masquerade masq=new Masquerade(new SocketAddress(dest_addr,dest_port),new SocketAddress(masq_addr,masq_port[i]));
-				masq_table.put(key,masq);
+				masq=new Masquerade(new SocketAddress(dest_addr,dest_port),new SocketAddress(masq_addr,masq_port[i]));
+				session.setMasquerade(caller,media[i],masq);
 			}
 		}
 		// mangle sdp
 		for (int i=0; i<media.length; i++) log(LoggerLevel.INFO,"mangle body: media="+media[i]+" masq_port="+masq_port[i]);
-		msg=SipMangler.mangleBody(msg,masq_addr,media,masq_port);
+		msg=SipMangler.mangleBody(msg,sdp,masq_addr,media,masq_port);
 
 		// creates the actual media relay (SymmetricUdpRelay) when both media legs are available
 		if (media.length>0) {
-			if(masq_table.containsKey(call_id+"-caller"+"-"+media[0]) && masq_table.containsKey(call_id+"-callee"+"-"+media[0])) {
+			if (session.hasBothLegs(media[0])) {
 				log(LoggerLevel.INFO,"complete call");
-				if (!call_set.contains(call_id)) {
+				if (!session.isComplete()) {
 					log(LoggerLevel.INFO,"creating new MediaGW");
 					for (int i=0; i<media.length; i++) {
-						Masquerade masq_left=(Masquerade)masq_table.get(call_id+"-caller"+"-"+media[i]);
-						Masquerade masq_right=(Masquerade)masq_table.get(call_id+"-callee"+"-"+media[i]);
-						createSymmetricUdpRelay(masq_left,masq_right);
+						Masquerade masq_left=session.getMasquerade(true,media[i]);
+						Masquerade masq_right=session.getMasquerade(false,media[i]);
+						if (masq_left!=null && masq_right!=null) {
+							MediaSession.Transcoding transcoding=session.getTranscoding(media[i]);
+							if (transcoding!=null) session.addRelay(createTranscodingUdpRelay(masq_left,masq_right,transcoding));
+							else session.addRelay(createSymmetricUdpRelay(masq_left,masq_right));
+						}
 					}
-					call_set.add(call_id);
 				}
 				else {
 					log(LoggerLevel.INFO,"MediaGW exists");
@@ -177,6 +266,271 @@ public class MediaGw {
 	}
 
 
+	/** Processes a SIP message that may terminate a media session.
+	  * The media session is removed (and its relays halted) in case of BYE or CANCEL requests,
+	  * or in case of failure responses to INVITE requests for sessions that are not yet complete.
+	  * @param msg the SIP message */
+	public synchronized void processSessionTermination(SipMessage msg) {
+		if (!msg.hasCallIdHeader()) return;
+		// else
+		String call_id=msg.getCallIdHeader().getCallId();
+		MediaSession session=(MediaSession)sessions.get(call_id);
+		if (session==null) return;
+		// else
+		if (msg.isRequest()) {
+			if (msg.isBye() || msg.isCancel()) removeSession(session);
+		}
+		else {
+			int code=msg.getStatusLine().getCode();
+			if (code>=300 && msg.getCSeqHeader().getMethod().equalsIgnoreCase(SipMethods.INVITE) && !session.isComplete()) removeSession(session);
+		}
+	}
+
+
+	/** Gets the number of media sessions.
+	  * @return the number of sessions */
+	public synchronized int getSessionCount() {
+		return sessions.size();
+	}
+
+
+	/** Gets the number of half-open media sessions, i.e. sessions without media relays.
+	  * @return the number of half-open sessions */
+	public synchronized int getHalfOpenSessionCount() {
+		int count=0;
+		for (Enumeration e=sessions.elements(); e.hasMoreElements(); ) {
+			if (((MediaSession)e.nextElement()).isHalfOpen()) count++;
+		}
+		return count;
+	}
+
+
+	/** Gets the number of media sessions that are transcoded.
+	  * @return the number of transcoding sessions */
+	public synchronized int getTranscodingSessionCount() {
+		int count=0;
+		for (Enumeration e=sessions.elements(); e.hasMoreElements(); ) {
+			if (((MediaSession)e.nextElement()).isTranscoding()) count++;
+		}
+		return count;
+	}
+
+
+	/** Gets the total time spent for transcoding the media of all current sessions.
+	  * @return the time in nanoseconds */
+	public synchronized long getTranscodingTime() {
+		long time=0;
+		for (Enumeration e=sessions.elements(); e.hasMoreElements(); ) time+=((MediaSession)e.nextElement()).getTranscodingTime();
+		return time;
+	}
+
+
+	/** Gets the approximate size of the state maintained for all media sessions.
+	  * @return the size in bytes */
+	public synchronized long getStateSize() {
+		long size=0;
+		for (Enumeration e=sessions.elements(); e.hasMoreElements(); ) size+=((MediaSession)e.nextElement()).getStateSize();
+		return size;
+	}
+
+
+	/** Removes a media session and halts its relays. */
+	private void removeSession(MediaSession session) {
+		sessions.remove(session.getCallId());
+		session.halt();
+		log(LoggerLevel.INFO,"media session removed: "+session);
+	}
+
+
+	/** Starts the timer for purging expired media sessions. */
+	private void startPurgeTimer() {
+		long purge_time=sbc_profile.session_timeout/2;
+		if (purge_time<=0) return;
+		// else
+		purge_timer=new Timer(purge_time,this_timer_listener);
+		purge_timer.start();
+	}
+
+
+	/** When the purge Timer expires. */
+	private synchronized void processTimeout(Timer t) {
+		if (t!=purge_timer) return;
+		// else
+		long expire=System.currentTimeMillis()-sbc_profile.session_timeout;
+		Vector expired=new Vector();
+		for (Enumeration e=sessions.elements(); e.hasMoreElements(); ) {
+			MediaSession session=(MediaSession)e.nextElement();
+			if (session.isComplete()? !session.isRunning() : session.getLastActivityTime()<expire) expired.addElement(session);
+		}
+		for (int i=0; i<expired.size(); i++) removeSession((MediaSession)expired.elementAt(i));
+		purge_timer=null;
+		if (sessions.size()>0) startPurgeTimer();
+	}
+
+
+	/** Processes a media offer, adding the transcoding codecs that have not been offered by the caller.
+	  * Nothing is added if the caller has not offered any codec that can be transcoded.
+	  * @param session the media session
+	  * @param md the offered media descriptor
+	  * @return the new media descriptor */
+	private MediaDescriptor processTranscodingOffer(MediaSession session, MediaDescriptor md) {
+		MediaField mf=md.getMedia();
+		session.setOffer(mf.getMedia(),new MediaDescriptor(md));
+		session.setTranscoding(mf.getMedia(),null);
+		Vector formats=mf.getFormatList();
+		Vector offered_codecs=new Vector();
+		for (int i=0; i<formats.size(); i++) {
+			TranscodingCodec codec=getCodec(md,(String)formats.elementAt(i));
+			if (codec!=null) offered_codecs.addElement(codec);
+		}
+		if (offered_codecs.size()==0) return md;
+		// else
+		Vector attributes=new Vector();
+		AttributeField[] old_attributes=md.getAttributes();
+		for (int i=0; i<old_attributes.length; i++) attributes.addElement(old_attributes[i]);
+		int dynamic_pt=96;
+		for (int i=0; i<sbc_profile.transcoding_codecs.length; i++) {
+			TranscodingCodec codec=TranscodingCodec.getCodec(sbc_profile.transcoding_codecs[i]);
+			if (codec==null || offered_codecs.contains(codec)) continue;
+			// else
+			int pt=codec.getPayloadType();
+			if (pt<0) {
+				while (formats.contains(String.valueOf(dynamic_pt))) dynamic_pt++;
+				if (dynamic_pt>127) continue;
+				// else
+				pt=dynamic_pt;
+				attributes.addElement(new AttributeField("rtpmap",codec.getRtpmap(pt)));
+			}
+			else
+			if (formats.contains(String.valueOf(pt))) continue;
+			// else
+			formats.addElement(String.valueOf(pt));
+			offered_codecs.addElement(codec);
+		}
+		log(LoggerLevel.DEBUG,"transcoding offer: "+mf.getMedia()+" "+formats);
+		mf=new MediaField(mf.getMedia(),mf.getPort(),0,mf.getTransport(),formats);
+		return new MediaDescriptor(mf,md.getConnection(),(AttributeField[])attributes.toArray(new AttributeField[]{}));
+	}
+
+
+	/** Processes a media answer.
+	  * If the callee has selected a codec that has not been offered by the caller,
+	  * the answer is rewritten with the first transcodable codec offered by the caller,
+	  * and the transcoding is recorded in the session.
+	  * @param session the media session
+	  * @param md the answered media descriptor
+	  * @return the new media descriptor */
+	private MediaDescriptor processTranscodingAnswer(MediaSession session, MediaDescriptor md) {
+		MediaField mf=md.getMedia();
+		MediaDescriptor offer=session.getOffer(mf.getMedia());
+		Vector formats=mf.getFormatList();
+		if (offer==null || formats.size()==0) return md;
+		// else
+		String callee_format=(String)formats.elementAt(0);
+		TranscodingCodec callee_codec=getCodec(md,callee_format);
+		Vector offered_formats=offer.getMedia().getFormatList();
+		if (callee_codec==null || (offered_formats.contains(callee_format) && getCodec(offer,callee_format)==callee_codec)) return md;
+		// else
+		String caller_format=null;
+		TranscodingCodec caller_codec=null;
+		for (int i=0; i<offered_formats.size() && caller_codec==null; i++) {
+			caller_format=(String)offered_formats.elementAt(i);
+			caller_codec=getCodec(offer,caller_format);
+		}
+		if (caller_codec==null) return md;
+		// else
+		int caller_pt=Integer.parseInt(caller_format);
+		int callee_pt=Integer.parseInt(callee_format);
+		MediaSession.Transcoding transcoding=new MediaSession.Transcoding(caller_codec,caller_pt,getPacketTime(offer),callee_codec,callee_pt,getPacketTime(md));
+		session.setTranscoding(mf.getMedia(),transcoding);
+		log(LoggerLevel.INFO,"transcoding: "+transcoding);
+		// rewrite the answer
+		Vector attributes=new Vector();
+		AttributeField[] old_attributes=md.getAttributes();
+		for (int i=0; i<old_attributes.length; i++) {
+			String a_name=old_attributes[i].getAttributeName();
+			if (!a_name.equals("rtpmap") && !a_name.equals("fmtp")) attributes.addElement(old_attributes[i]);
+		}
+		AttributeField[] offered_attributes=offer.getAttributes();
+		for (int i=0; i<offered_attributes.length; i++) {
+			String a_name=offered_attributes[i].getAttributeName();
+			if ((a_name.equals("rtpmap") || a_name.equals("fmtp")) && caller_format.equals(new Parser(offered_attributes[i].getAttributeValue()).getString())) attributes.addElement(offered_attributes[i]);
+		}
+		Vector new_formats=new Vector();
+		new_formats.addElement(caller_format);
+		mf=new MediaField(mf.getMedia(),mf.getPort(),0,mf.getTransport(),new_formats);
+		return new MediaDescriptor(mf,md.getConnection(),(AttributeField[])attributes.toArray(new AttributeField[]{}));
+	}
+
+
+	/** Gets the transcodable codec of a given media format.
+	  * @param md the media descriptor
+	  * @param format the media format (payload type)
+	  * @return the codec, or <i>null</i> if the format does not correspond to a transcodable codec */
+	private static TranscodingCodec getCodec(MediaDescriptor md, String format) {
+		int pt;
+		try {
+			pt=Integer.parseInt(format);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		AttributeField[] rtpmaps=md.getAttributes("rtpmap");
+		for (int i=0; i<rtpmaps.length; i++) {
+			Parser par=new Parser(rtpmaps[i].getAttributeValue());
+			if (!format.equals(par.getString())) continue;
+			// else
+			char[] delim={'/'};
+			String name=par.skipWSP().getWord(delim);
+			par.skipChar();
+			String rate=par.getWord(delim);
+			TranscodingCodec codec=TranscodingCodec.getCodec(name);
+			if (codec==null || !rate.equals(String.valueOf(TranscodingCodec.SAMPLE_RATE))) return null;
+			// else
+			if (codec==TranscodingCodec.AMR) {
+				// only bandwidth-efficient mode is supported
+				AttributeField[] fmtps=md.getAttributes("fmtp");
+				for (int j=0; j<fmtps.length; j++) {
+					String value=fmtps[j].getAttributeValue();
+					if (format.equals(new Parser(value).getString()) && value.indexOf("octet-align=1")>=0) return null;
+				}
+			}
+			return codec;
+		}
+		return TranscodingCodec.getCodec(pt);
+	}
+
+
+	/** Gets the packet time of a media descriptor.
+	  * @return the value of the 'ptime' attribute, or {@link #DEFAULT_PACKET_TIME} */
+	private static int getPacketTime(MediaDescriptor md) {
+		AttributeField ptime=md.getAttribute("ptime");
+		if (ptime!=null) try {
+			int packet_time=Integer.parseInt(ptime.getAttributeValue().trim());
+			if (packet_time>0) return packet_time;
+		}
+		catch (NumberFormatException e) {}
+		return DEFAULT_PACKET_TIME;
+	}
+
+
+	/** Creates a new TranscodingUdpRelay */
+	protected SymmetricUdpRelay createTranscodingUdpRelay(Masquerade masq_left, Masquerade masq_right, MediaSession.Transcoding transcoding) {
+		try {
+			int left_port=masq_right.getMasqSoaddr().getPort();
+			int right_port=masq_left.getMasqSoaddr().getPort();
+			SymmetricUdpRelay symm_relay=new TranscodingUdpRelay(left_port,masq_left.getPeerSoaddr(),right_port,masq_right.getPeerSoaddr(),sbc_profile.relay_timeout,transcoding.createCallerToCallee(),transcoding.createCalleeToCaller(),this_udp_relay_listener);
+			log(LoggerLevel.DEBUG,"TMGW started: "+symm_relay);
+			dump("TMGW started: "+symm_relay);
+			return symm_relay;
+		}
+		catch (Exception e) {
+			log(LoggerLevel.INFO,e);
+			return null;
+		}
+	}
+
+
 	/** Creates a new SymmetricUdpRelay */
 	protected SymmetricUdpRelay createSymmetricUdpRelay(Masquerade masq_left, Masquerade masq_right) {
 		try {
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server.sbc;
+
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.mjsip.sdp.MediaDescriptor;
+
+
+/** MediaSession maintains the media state of a single call handled by a {@link MediaGw}.
+  * <p>
+  * It collects the Masquerades of both call legs (caller and callee), indexed by media type,
+  * and the SymmetricUdpRelays that have been created once both legs are available.
+  * <p>
+  * A MediaSession is <i>half-open</i> when at least one leg has been masqueraded
+  * but the media relays have not been created yet (e.g. an offer without answer).
+  * <p>
+  * When transcoding is enabled, it also keeps the media descriptors originally offered by the caller
+  * and, for each media that has to be transcoded, the codecs used by the two legs.
+  */
+public class MediaSession {
+
+	/** Approximate size of the per-session fixed state (in bytes) */
+	static final int SESSION_STATE_SIZE=160;
+
+	/** Approximate size of the per-masquerade state (in bytes) */
+	static final int MASQUERADE_STATE_SIZE=128;
+
+	/** Approximate size of the per-relay state (in bytes) */
+	static final int RELAY_STATE_SIZE=512;
+
+	/** Approximate size of the additional per-relay state when transcoding (in bytes) */
+	static final int TRANSCODING_STATE_SIZE=2*(RtpTranscoder.PCM_BUFFER_SIZE+RtpTranscoder.PAYLOAD_BUFFER_SIZE+1024);
+
+
+	/** Codecs and packet times used by the two legs of a transcoded media. */
+	public static class Transcoding {
+		/** Codec of the caller leg */
+		TranscodingCodec caller_codec;
+		/** Payload type of the caller leg */
+		int caller_payload_type;
+		/** Packet time of the caller leg [millisecs] */
+		int caller_packet_time;
+		/** Codec of the callee leg */
+		TranscodingCodec callee_codec;
+		/** Payload type of the callee leg */
+		int callee_payload_type;
+		/** Packet time of the callee leg [millisecs] */
+		int callee_packet_time;
+
+		/** Creates a new Transcoding. */
+		public Transcoding(TranscodingCodec caller_codec, int caller_payload_type, int caller_packet_time, TranscodingCodec callee_codec, int callee_payload_type, int callee_packet_time) {
+			this.caller_codec=caller_codec;
+			this.caller_payload_type=caller_payload_type;
+			this.caller_packet_time=caller_packet_time;
+			this.callee_codec=callee_codec;
+			this.callee_payload_type=callee_payload_type;
+			this.callee_packet_time=callee_packet_time;
+		}
+
+		/** Creates the transcoder of the packets from caller to callee. */
+		public RtpTranscoder createCallerToCallee() {
+			return new RtpTranscoder(caller_codec,caller_payload_type,callee_codec,callee_payload_type,callee_packet_time);
+		}
+
+		/** Creates the transcoder of the packets from callee to caller. */
+		public RtpTranscoder createCalleeToCaller() {
+			return new RtpTranscoder(callee_codec,callee_payload_type,caller_codec,caller_payload_type,caller_packet_time);
+		}
+
+		/** Gets a String representation of the Object */
+		public String toString() {
+			return caller_codec+"/"+caller_payload_type+"<-->"+callee_codec+"/"+callee_payload_type;
+		}
+	}
+
+
+	/** Call-ID */
+	String call_id;
+
+	/** Masquerades of the caller leg (media --> masq) */
+	Hashtable caller_masqs=new Hashtable();
+
+	/** Masquerades of the callee leg (media --> masq) */
+	Hashtable callee_masqs=new Hashtable();
+
+	/** Active media relays */
+	Vector relays=new Vector();
+
+	/** Media descriptors originally offered by the caller (media --> MediaDescriptor) */
+	Hashtable offers=new Hashtable();
+
+	/** Media that have to be transcoded (media --> Transcoding) */
+	Hashtable transcodings=new Hashtable();
+
+	/** Time of the last activity (in milliseconds) */
+	long last_activity;
+
+
+
+	/** Creates a new MediaSession.
+	  * @param call_id the Call-ID of the call */
+	public MediaSession(String call_id) {
+		this.call_id=call_id;
+		last_activity=System.currentTimeMillis();
+	}
+
+
+	/** Gets the Call-ID.
+	  * @return the Call-ID of the call */
+	public String getCallId() {
+		return call_id;
+	}
+
+
+	/** Gets the Masquerade of a given leg and media.
+	  * @param caller whether it is the caller leg (otherwise it is the callee leg)
+	  * @param media the media type (e.g. "audio")
+	  * @return the masquerade, or <i>null</i> if not present */
+	public Masquerade getMasquerade(boolean caller, String media) {
+		return (Masquerade)(caller? caller_masqs : callee_masqs).get(media);
+	}
+
+
+	/** Sets the Masquerade of a given leg and media.
+	  * @param caller whether it is the caller leg (otherwise it is the callee leg)
+	  * @param media the media type (e.g. "audio")
+	  * @param masq the masquerade */
+	public void setMasquerade(boolean caller, String media, Masquerade masq) {
+		(caller? caller_masqs : callee_masqs).put(media,masq);
+	}
+
+
+	/** Whether both legs have been masqueraded for the given media.
+	  * @param media the media type
+	  * @return true if both caller and callee masquerades are present */
+	public boolean hasBothLegs(String media) {
+		return caller_masqs.containsKey(media) && callee_masqs.containsKey(media);
+	}
+
+
+	/** Gets the media descriptor originally offered by the caller.
+	  * @param media the media type (e.g. "audio")
+	  * @return the media descriptor, or <i>null</i> if not present */
+	public MediaDescriptor getOffer(String media) {
+		return (MediaDescriptor)offers.get(media);
+	}
+
+
+	/** Sets the media descriptor originally offered by the caller.
+	  * @param media the media type (e.g. "audio")
+	  * @param media_descriptor the media descriptor */
+	public void setOffer(String media, MediaDescriptor media_descriptor) {
+		offers.put(media,media_descriptor);
+	}
+
+
+	/** Gets the codecs used for transcoding a given media.
+	  * @param media the media type (e.g. "audio")
+	  * @return the transcoding, or <i>null</i> if the media has not to be transcoded */
+	public Transcoding getTranscoding(String media) {
+		return (Transcoding)transcodings.get(media);
+	}
+
+
+	/** Sets the codecs used for transcoding a given media.
+	  * @param media the media type (e.g. "audio")
+	  * @param transcoding the transcoding, or <i>null</i> if the media has not to be transcoded */
+	public void setTranscoding(String media, Transcoding transcoding) {
+		if (transcoding!=null) transcodings.put(media,transcoding);
+		else transcodings.remove(media);
+	}
+
+
+	/** Whether at least one media is transcoded. */
+	public boolean isTranscoding() {
+		return transcodings.size()>0;
+	}
+
+
+	/** Gets the total time spent for transcoding the media of this session.
+	  * @return the time in nanoseconds */
+	public long getTranscodingTime() {
+		long time=0;
+		for (int i=0; i<relays.size(); i++) {
+			Object relay=relays.elementAt(i);
+			if (relay instanceof TranscodingUdpRelay) time+=((TranscodingUdpRelay)relay).getTranscodingTime();
+		}
+		return time;
+	}
+
+
+	/** Adds a media relay.
+	  * @param relay the relay */
+	public void addRelay(SymmetricUdpRelay relay) {
+		if (relay!=null) relays.addElement(relay);
+	}
+
+
+	/** Whether the media relays have been created. */
+	public boolean isComplete() {
+		return relays.size()>0;
+	}
+
+
+	/** Whether the session is half-open, i.e. no media relay has been created yet. */
+	public boolean isHalfOpen() {
+		return relays.size()==0;
+	}
+
+
+	/** Whether at least one media relay is still running. */
+	public boolean isRunning() {
+		for (int i=0; i<relays.size(); i++) {
+			if (((SymmetricUdpRelay)relays.elementAt(i)).isRunning()) return true;
+		}
+		return false;
+	}
+
+
+	/** Updates the time of the last activity. */
+	public void touch() {
+		last_activity=System.currentTimeMillis();
+	}
+
+
+	/** Gets the time of the last activity.
+	  * @return the time in milliseconds */
+	public long getLastActivityTime() {
+		return last_activity;
+	}
+
+
+	/** Stops all media relays. */
+	public void halt() {
+		for (int i=0; i<relays.size(); i++) ((SymmetricUdpRelay)relays.elementAt(i)).halt();
+	}
+
+
+	/** Gets the approximate size of the state maintained by this session.
+	  * @return the size in bytes */
+	public long getStateSize() {
+		return SESSION_STATE_SIZE+2*call_id.length()+MASQUERADE_STATE_SIZE*(caller_masqs.size()+callee_masqs.size())+RELAY_STATE_SIZE*relays.size()+TRANSCODING_STATE_SIZE*transcodings.size();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return call_id+(isHalfOpen()? " (half)" : " ("+relays.size()+" relays"+(isTranscoding()? ", transcoding" : "")+")");
+	}
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server.sbc;
+
+
+import java.util.Random;
+
+import org.mjsip.rtp.RtpPacket;
+import org.mjsip.rtp.RtpPayloadFormat;
+import org.zoolu.sound.codec.AMR;
+import org.zoolu.util.Encoder;
+import org.zoolu.util.Logger;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+
+
+/** RtpTranscoder converts an RTP stream from one codec to another, for one direction of a call.
+  * <p>
+  * The payload of each incoming packet is decoded to linear PCM and appended to an internal buffer.
+  * Outgoing packets are then formed with the packet time of the destination leg (re-framing),
+  * encoded, and given a new RTP header (SSRC, sequence number, and timestamp) of their own.
+  * Gaps in the incoming timestamps (e.g. lost packets or silence suppression) are reproduced
+  * in the outgoing stream: the PCM buffered before the gap is padded with silence up to a packet
+  * boundary and sent with the timestamps preceding the gap.
+  * <p>
+  * After each {@link #push(byte[],int,int)}, {@link #nextPacket(byte[],int)} has to be called until no more packets are available.
+  * If the PCM buffer is nevertheless full, the whole incoming packet is discarded.
+  * <p>
+  * Packets with a payload type different from the expected one (e.g. comfort noise
+  * or telephone events) are discarded.
+  */
+public class RtpTranscoder {
+	
+	/** Size of the PCM buffer [bytes] */
+	static final int PCM_BUFFER_SIZE=32768;
+
+	/** Size of the buffer for incoming payloads [bytes] */
+	static final int PAYLOAD_BUFFER_SIZE=1600;
+
+	/** Maximum timestamp gap that is reproduced in the outgoing stream [samples] */
+	static final long MAX_GAP=10*TranscodingCodec.SAMPLE_RATE;
+
+	/** RTP header length */
+	static final int RTPH_LEN=12;
+
+
+	/** Source codec */
+	TranscodingCodec src_codec;
+
+	/** Source payload type */
+	int src_payload_type;
+
+	/** Destination codec */
+	TranscodingCodec dest_codec;
+
+	/** Destination payload type */
+	int dest_payload_type;
+
+	/** Decoder of the source codec */
+	Encoder decoder;
+
+	/** Encoder of the destination codec */
+	Encoder encoder;
+
+	/** Source payload format (or null) */
+	RtpPayloadFormat src_format;
+
+	/** Destination payload format (or null) */
+	RtpPayloadFormat dest_format;
+
+	/** Number of samples per outgoing packet */
+	int packet_samples;
+
+	/** PCM buffer */
+	byte[] pcm=new byte[PCM_BUFFER_SIZE];
+
+	/** Number of bytes in the PCM buffer */
+	int pcm_len=0;
+
+	/** Working buffer for incoming payloads (longer payloads are truncated) */
+	byte[] payload=new byte[PAYLOAD_BUFFER_SIZE];
+
+	/** Working buffer for encoded frames */
+	byte[] frame=new byte[64];
+
+	/** RTP packet view, reused for incoming and outgoing packets */
+	RtpPacket rtp_packet=new RtpPacket();
+
+	/** Outgoing SSRC */
+	long ssrc;
+
+	/** Outgoing sequence number */
+	int sqn;
+
+	/** Outgoing timestamp */
+	long timestamp;
+
+	/** Expected timestamp of the next incoming packet, or -1 */
+	long expected_timestamp=-1;
+
+	/** Whether the next outgoing packet has to be marked */
+	boolean marker=true;
+
+	/** Timestamp gap not yet applied to the outgoing stream [samples] */
+	long pending_gap=0;
+
+	/** Number of PCM bytes to be sent before applying the pending gap */
+	int gap_position=0;
+
+	/** Whether the PCM buffer is full and incoming packets are being discarded */
+	boolean overflow=false;
+
+	/** Number of transcoded incoming packets */
+	long in_packets=0;
+
+	/** Number of outgoing packets */
+	long out_packets=0;
+
+	/** Number of discarded incoming packets */
+	long discarded_packets=0;
+
+	/** Total processing time [nanosecs] */
+	long processing_time=0;
+
+
+
+	/** Creates a new RtpTranscoder.
+	  * @param src_codec the codec of the incoming stream
+	  * @param src_payload_type the payload type of the incoming stream
+	  * @param dest_codec the codec of the outgoing stream
+	  * @param dest_payload_type the payload type of the outgoing stream
+	  * @param packet_time the packet time of the outgoing stream [millisecs] */
+	public RtpTranscoder(TranscodingCodec src_codec, int src_payload_type, TranscodingCodec dest_codec, int dest_payload_type, int packet_time) {
+		this.src_codec=src_codec;
+		this.src_payload_type=src_payload_type;
+		this.dest_codec=dest_codec;
+		this.dest_payload_type=dest_payload_type;
+		decoder=src_codec.createDecoder();
+		encoder=dest_codec.createEncoder();
+		src_format=src_codec.createRtpPayloadFormat();
+		dest_format=dest_codec.createRtpPayloadFormat();
+		int frame_samples=dest_codec.getFrameSamples();
+		packet_samples=packet_time*TranscodingCodec.SAMPLE_RATE/1000;
+		packet_samples=((packet_samples+frame_samples-1)/frame_samples)*frame_samples;
+		if (packet_samples<frame_samples) packet_samples=frame_samples;
+		Random random=new Random();
+		ssrc=random.nextInt()&0xffffffffL;
+		sqn=random.nextInt()&0xffff;
+		timestamp=random.nextInt()&0xffffffffL;
+	}
+
+
+	/** Processes an incoming RTP packet.
+	  * The resulting outgoing packets have to be retrieved through {@link #nextPacket(byte[],int)}.
+	  * @param buf the buffer containing the packet
+	  * @param off the offset within the buffer
+	  * @param len the packet length */
+	public void push(byte[] buf, int off, int len) {
+		long start=System.nanoTime();
+		rtp_packet.setPacketBuffer(buf,off,len);
+		if (len<RTPH_LEN || rtp_packet.getPayloadType()!=src_payload_type) {
+			discarded_packets++;
+			return;
+		}
+		// else
+		in_packets++;
+		int hdr_len=rtp_packet.getHeaderLength();
+		int pl_len=rtp_packet.getPayloadLength();
+		if (pl_len>payload.length) pl_len=payload.length;
+		System.arraycopy(buf,off+hdr_len,payload,0,pl_len);
+		if (src_format!=null) try {
+			pl_len=src_format.removeRtpPayloadFormat(payload,0,pl_len);
+		}
+		catch (Exception e) {
+			discarded_packets++;
+			return;
+		}
+		// avoid overflow of the PCM buffer (half buffer fits any decoded payload), by discarding the whole packet
+		if (pcm_len+2*packet_samples>PCM_BUFFER_SIZE/2) {
+			discarded_packets++;
+			if (!overflow) log(LoggerLevel.WARNING,this+": PCM buffer full ("+pcm_len+" bytes): incoming packets are discarded");
+			overflow=true;
+			return;
+		}
+		// else
+		overflow=false;
+		// reproduce timestamp gaps
+		long in_timestamp=rtp_packet.getTimestamp();
+		if (expected_timestamp>=0) {
+			long gap=(in_timestamp-expected_timestamp)&0xffffffffL;
+			if (gap>0 && gap<=MAX_GAP) addGap(gap);
+		}
+		int pcm_start=pcm_len;
+		if (src_codec==TranscodingCodec.AMR) {
+			// decode AMR frames one by one
+			for (int i=0; i<pl_len; ) {
+				int frame_size=AMR.frameSize((payload[i]>>3)&0x0f);
+				if (frame_size<=1 || i+frame_size>pl_len || pcm_len+320>PCM_BUFFER_SIZE) break;
+				// else
+				pcm_len+=decoder.encode(payload,i,frame_size,pcm,pcm_len);
+				i+=frame_size;
+			}
+		}
+		else pcm_len+=decoder.encode(payload,0,pl_len,pcm,pcm_len);
+		expected_timestamp=(in_timestamp+(pcm_len-pcm_start)/2)&0xffffffffL;
+		processing_time+=System.nanoTime()-start;
+	}
+
+
+	/** Adds a timestamp gap after the PCM currently buffered.
+	  * The buffered PCM is padded with silence up to a packet boundary, so that it is sent with the timestamps
+	  * preceding the gap; the rest of the gap is applied to the timestamp once the buffered PCM has been sent.
+	  * @param gap the gap [samples] */
+	private void addGap(long gap) {
+		int pad=(packet_samples-(pcm_len/2)%packet_samples)%packet_samples;
+		if (pad>gap) pad=(int)gap;
+		for (int i=pcm_len, end=pcm_len+2*pad; i<end; i++) pcm[i]=0;
+		pcm_len+=2*pad;
+		gap-=pad;
+		if (gap>0) {
+			pending_gap+=gap;
+			gap_position=pcm_len;
+		}
+	}
+
+
+	/** Gets the next outgoing RTP packet, if enough PCM data is available.
+	  * @param buf the buffer where the packet is written (it must fit the RTP header and the encoded payload)
+	  * @param off the offset within the buffer
+	  * @return the packet length, or 0 if no packet is available */
+	public int nextPacket(byte[] buf, int off) {
+		int pcm_size=2*packet_samples;
+		if (pcm_len<pcm_size) return 0;
+		// else
+		long start=System.nanoTime();
+		if (pending_gap>0 && gap_position<=0) {
+			timestamp=(timestamp+pending_gap)&0xffffffffL;
+			pending_gap=0;
+			marker=true;
+		}
+		int pl_len=0;
+		if (dest_codec==TranscodingCodec.AMR) {
+			// encode AMR frames one by one
+			for (int i=0; i<pcm_size; i+=320) {
+				int frame_size=encoder.encode(pcm,i,320,frame,0);
+				System.arraycopy(frame,0,buf,off+RTPH_LEN+pl_len,frame_size);
+				pl_len+=frame_size;
+			}
+		}
+		else pl_len=encoder.encode(pcm,0,pcm_size,buf,off+RTPH_LEN);
+		if (dest_format!=null) pl_len=dest_format.setRtpPayloadFormat(buf,off+RTPH_LEN,pl_len);
+		pcm_len-=pcm_size;
+		if (pcm_len>0) System.arraycopy(pcm,pcm_size,pcm,0,pcm_len);
+		gap_position-=pcm_size;
+		// RTP header
+		rtp_packet.setPacketBuffer(buf,off,RTPH_LEN);
+		rtp_packet.setHeader(dest_payload_type,ssrc,sqn,timestamp);
+		rtp_packet.setMarker(marker);
+		rtp_packet.setPayloadLength(pl_len);
+		marker=false;
+		sqn=(sqn+1)&0xffff;
+		timestamp=(timestamp+packet_samples)&0xffffffffL;
+		out_packets++;
+		processing_time+=System.nanoTime()-start;
+		return rtp_packet.getPacketLength();
+	}
+
+
+	/** Gets the maximum length of the outgoing packets.
+	  * @return the size of a buffer that fits any packet returned by {@link #nextPacket(byte[],int)} */
+	public int getMaxPacketLength() {
+		// no supported codec uses more than 16 bits per sample
+		return RTPH_LEN+2*packet_samples+16;
+	}
+
+
+	/** Gets the number of transcoded incoming packets. */
+	public long getInPacketCounter() {
+		return in_packets;
+	}
+
+
+	/** Gets the number of outgoing packets. */
+	public long getOutPacketCounter() {
+		return out_packets;
+	}
+
+
+	/** Gets the number of discarded incoming packets. */
+	public long getDiscardedPacketCounter() {
+		return discarded_packets;
+	}
+
+
+	/** Gets the total time spent for transcoding [nanosecs]. */
+	public long getProcessingTime() {
+		return processing_time;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return src_codec+"/"+src_payload_type+"-->"+dest_codec+"/"+dest_payload_type+" ("+packet_samples+" samples/pkt)";
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default Log */
+	private void log(LoggerLevel level, String str) {
+		Logger logger=SystemUtils.getDefaultLogger();
+		if (logger!=null) logger.log(level,"RtpTranscoder: "+str);  
+	}
+
+}
@@ -22,7 +22,6 @@
 package org.mjsip.server.sbc;
 
 
-import java.util.Hashtable;
 import java.util.Vector;
 
 import org.mjsip.sdp.SdpMessage;
@@ -39,7 +38,7 @@ import org.mjsip.sip.header.RouteHeader;
 import org.mjsip.sip.header.ViaHeader;
 import org.mjsip.sip.message.SipMessage;
 import org.mjsip.sip.message.SipMethods;
-import org.mjsip.sip.provider.SipKeepAlive;
+import org.mjsip.sip.provider.SipKeepAliveScheduler;
 import org.mjsip.sip.provider.SipStack;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.util.ExceptionPrinter;
@@ -94,8 +93,8 @@ public class SessionBorderController extends Proxy {
 	/** The media GW box */
 	MediaGw media_gw;
 
-	/** Sip keep-alive daemons for registered users. */
-	Hashtable keepalive_daemons=null;
+	/** Sip keep-alive scheduler for registered users. */
+	SipKeepAliveScheduler keepalive_scheduler=null;
 
 	/** Maximum time between two handovers (in milliseconds). */
 	//long handover_time=5000;
@@ -120,7 +119,7 @@ public class SessionBorderController extends Proxy {
 		// remove outbound proxy in case of the presence of a backend proxy
 		if (sbc_profile.backend_proxy!=null) sip_provider.setOutboundProxy(null);
 
-		if (sbc_profile.keepalive_time>0 && !sbc_profile.keepalive_aggressive) keepalive_daemons=new Hashtable();
+		if (sbc_profile.keepalive_time>0 && !sbc_profile.keepalive_aggressive) keepalive_scheduler=new SipKeepAliveScheduler(sip_provider,sbc_profile.keepalive_time);
 		if (sbc_profile.media_addr==null || sbc_profile.media_addr.equals("0.0.0.0")) sbc_profile.media_addr=sip_provider.getViaAddress();
 		
 		media_gw=new MediaGw(sbc_profile);
@@ -132,6 +131,22 @@ public class SessionBorderController extends Proxy {
 	}
 
 
+	/** Gets the media GW box.
+	  * @return the MediaGw used by this SBC */
+	public MediaGw getMediaGw() {
+		return media_gw;
+	}
+
+
+	/** Stops the SBC, i.e. the keep-alive scheduler, the MediaGw, and the SIP provider. */
+	public void halt() {
+		if (keepalive_scheduler!=null) keepalive_scheduler.halt();
+		media_gw.halt();
+		super.halt();
+		sip_provider.halt();
+	}
+
+
 	/** When a new request message is received for a local user. */
 	public void processRequestToLocalUser(SipMessage msg) {
 		log(LoggerLevel.DEBUG,"inside processRequestToLocalUser(msg)");
@@ -193,6 +208,8 @@ public class SessionBorderController extends Proxy {
 		}
 		// update the standard proxy headers
 		req=super.updateProxyingRequest(req);
+		// release the media session of terminated calls
+		if (req.isBye() || req.isCancel()) media_gw.processSessionTermination(req);
 		// mangle the sdp
 		if (req.hasBody()) req=mangleBody(req);
 		// mangle the Contact header field
@@ -206,6 +223,8 @@ public class SessionBorderController extends Proxy {
 	protected SipMessage updateProxyingResponse(SipMessage resp) {
 		log(LoggerLevel.DEBUG,"inside updateProxyingResponse(resp)");
 		resp=super.updateProxyingResponse(resp);
+		// release the media session of failed calls
+		if (resp.getStatusLine().getCode()>=300) media_gw.processSessionTermination(resp);
 		// mangle the sdp
 		if (resp.hasBody()) resp=mangleBody(resp);
 		// mangle Contact header field
@@ -213,8 +232,8 @@ public class SessionBorderController extends Proxy {
 			if (resp.getCSeqHeader().getMethod().equalsIgnoreCase(SipMethods.REGISTER)) resp=SipMangler.unmangleContact(resp);
 			else resp=SipMangler.mangleContact(resp,sip_provider.getViaAddress(),sip_provider.getPort());
 		}
-		// update the SIP keep alive daemons
-		if (keepalive_daemons!=null && resp.getCSeqHeader().getMethod().equalsIgnoreCase(SipMethods.REGISTER)) updateKeepAlive(resp);
+		// update the SIP keep alive targets
+		if (keepalive_scheduler!=null && resp.getCSeqHeader().getMethod().equalsIgnoreCase(SipMethods.REGISTER)) updateKeepAlive(resp);
 		return resp;
 	}
 
@@ -223,13 +242,13 @@ public class SessionBorderController extends Proxy {
 	  * This method is called only if the SBC works also as Registrar. */
 	protected SipMessage updateRegistration(SipMessage msg) {
 		SipMessage resp=super.updateRegistration(msg);
-		// update the SIP keep alive daemons
-		if (keepalive_daemons!=null) updateKeepAlive(resp);
+		// update the SIP keep alive targets
+		if (keepalive_scheduler!=null) updateKeepAlive(resp);
 		return resp;
 	}
 
 
-	//** Updates the SIP keep alive daemons. */
+	//** Updates the SIP keep alive targets. */
 	private SipMessage updateKeepAlive(SipMessage resp) {
 		if (resp.hasContactHeader()) {
 			Vector c_headers=resp.getContacts().getHeaders();
@@ -245,31 +264,13 @@ public class SessionBorderController extends Proxy {
 				SocketAddress soaddr=new SocketAddress(host,port);
 				int time=ch.getExpires();
 				if (time>0) {
-					SipKeepAlive keepalive;
-					String key=soaddr.toString();
-					if (keepalive_daemons.containsKey(key)) {
-						keepalive=(SipKeepAlive)keepalive_daemons.get(key);
-						if (!keepalive.isRunning()) {
-							keepalive_daemons.remove(key);
-							keepalive=new SipKeepAlive(sip_provider,soaddr,sbc_profile.keepalive_time);
-							keepalive_daemons.put(key,keepalive);
-							log(LoggerLevel.DEBUG,"KeepAlive: restart: "+soaddr+" ("+time+"secs)");
-						}
-						else log(LoggerLevel.DEBUG,"KeepAlive: update: "+soaddr+" ("+time+"secs)");
-					}
-					else {
-						keepalive=new SipKeepAlive(sip_provider,soaddr,sbc_profile.keepalive_time);
-						keepalive_daemons.put(key,keepalive);
-						log(LoggerLevel.DEBUG,"KeepAlive: start: "+soaddr+" ("+time+"secs)");
-					}
-					keepalive.setExpirationTime(((long)time)*1000);
+					if (keepalive_scheduler.contains(soaddr)) log(LoggerLevel.DEBUG,"KeepAlive: update: "+soaddr+" ("+time+"secs)");
+					else log(LoggerLevel.DEBUG,"KeepAlive: start: "+soaddr+" ("+time+"secs)");
+					keepalive_scheduler.add(soaddr,soaddr,((long)time)*1000);
 				}
 				else {
-					String key=soaddr.toString();
-					if (keepalive_daemons.containsKey(key)) {
-						SipKeepAlive keepalive=(SipKeepAlive)keepalive_daemons.get(key);
-						keepalive_daemons.remove(key);
-						keepalive.halt();
+					if (keepalive_scheduler.contains(soaddr)) {
+						keepalive_scheduler.remove(soaddr);
 						log(LoggerLevel.DEBUG,"KeepAlive: halt: "+soaddr);
 					}
 				}
@@ -291,7 +292,7 @@ public class SessionBorderController extends Proxy {
 			if (dest_addr.equals("0.0.0.0")) dest_addr="127.0.0.1";
 
 			// checking whether acts as media gw
-			if (doRelay(dest_addr)) msg=media_gw.processSessionDescriptor(msg);
+			if (doRelay(dest_addr)) msg=media_gw.processSessionDescriptor(msg,sdp);
 		}
 		return msg;
 	}
@@ -402,11 +403,12 @@ public class SessionBorderController extends Proxy {
 		ExtendedSipProvider extended_provider=new ExtendedSipProvider(file,sbc_profile.binding_timeout,keepalive_aggressive_time);
 
 		// create and start the SBC
-		new SessionBorderController(extended_provider,server_profile,sbc_profile);
+		SessionBorderController sbc=new SessionBorderController(extended_provider,server_profile,sbc_profile);
 
 		if (prompt_exit) {
 			System.out.println("press 'enter' to exit");
 			SystemUtils.readLine();
+			sbc.halt();
 			System.exit(0);
 		}
 	}
@@ -19,6 +19,9 @@ public class SessionBorderControllerProfile extends Configure {
 	/** Maximum time that the UDP relay remains active without receiving UDP datagrams (in milliseconds). */
 	public long relay_timeout=60000; // 1min
 
+	/** Maximum time that a media session without active relays (e.g. an offer without answer) is maintained (in milliseconds). */
+	public long session_timeout=180000; // 3min
+
 	/** Refresh time of address-binding cache (in milliseconds) */
 	public long binding_timeout=3600000;
 
@@ -47,6 +50,12 @@ public class SessionBorderControllerProfile extends Configure {
 	/** Whether injecting new media flows. */
 	public boolean do_active_interception=false;
 
+	/** Whether transcoding media flows between call legs that have no codec in common. */
+	public boolean do_transcoding=false;
+
+	/** Codecs that can be offered to the callee when transcoding (see {@link TranscodingCodec}). */
+	public String[] transcoding_codecs={ "PCMU", "PCMA", "GSM", "G726-32" };
+
 	/** Sink address for media traffic interception. */
 	public String sink_addr="127.0.0.1";
 
@@ -101,6 +110,7 @@ public class SessionBorderControllerProfile extends Configure {
 		else {  attribute=line; par=new Parser("");  }
 
 		if (attribute.equals("relay_timeout")) { relay_timeout=par.getInt(); return; }
+		if (attribute.equals("session_timeout")) { session_timeout=par.getInt(); return; }
 		if (attribute.equals("binding_timeout")) { binding_timeout=par.getInt(); return; }
 		if (attribute.equals("handover_time")) { handover_time=par.getInt(); return; }
 		if (attribute.equals("keepalive_time")) { keepalive_time=par.getInt(); return; }
@@ -110,6 +120,12 @@ public class SessionBorderControllerProfile extends Configure {
 		if (attribute.equals("interpacket_time")) { interpacket_time=par.getInt(); return; }
 		if (attribute.equals("do_interception")) { do_interception=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("do_active_interception")) { do_active_interception=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("do_transcoding")) { do_transcoding=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("transcoding_codecs")) {
+			char[] delim={' ',','};
+			transcoding_codecs=par.getWordArray(delim);
+			return;
+		}
 		if (attribute.equals("sink_addr")) { sink_addr=par.getString(); return; }
 		if (attribute.equals("sink_port")) { sink_port=par.getInt(); return; }
 		if (attribute.equals("media_addr")) { media_addr=par.getString(); return; }
@@ -339,7 +339,13 @@ public class SipMangler {
 		//printLog("inside mangleBody()",LoggerWriter.LEVEL_MEDIUM);
 		if (!msg.hasBody()) return msg;
 		//else
-		SdpMessage sdp=new SdpMessage(msg.getStringBody());
+		return mangleBody(msg,new SdpMessage(msg.getStringBody()),masq_addr,media,masq_port);
+	}
+
+
+	/** Mangles the body, using the given already parsed session descriptor.
+	  * Note that the passed SdpMessage is modified. */
+	public static SipMessage mangleBody(SipMessage msg, SdpMessage sdp, String masq_addr, String[] media, int[] masq_port) {
 		sdp=mangleSdpConnection(sdp,masq_addr);       
 		for (int i=0; i<media.length; i++) sdp=mangleSdpMediaPort(sdp,media[i],masq_port[i]);
 		msg.setSdpBody(sdp.toString());
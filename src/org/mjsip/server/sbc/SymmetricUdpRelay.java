@@ -23,6 +23,8 @@ package org.mjsip.server.sbc;
 
 
 
+import org.zoolu.metrics.Counter;
+import org.zoolu.metrics.MetricRegistry;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpPacket;
 import org.zoolu.net.UdpProvider;
@@ -43,6 +45,13 @@ import org.zoolu.util.TimerListener;
  */
 public class SymmetricUdpRelay {
 	
+	/** Received packets */
+	static final Counter RECEIVED_PACKETS=MetricRegistry.getDefault().counter("media_relay_packets_total","Packets received by the media relays.");
+
+	/** Received bytes */
+	static final Counter RECEIVED_BYTES=MetricRegistry.getDefault().counter("media_relay_bytes_total","Bytes (UDP payload) received by the media relays.");
+
+	
 	/** SymmetricUdpRelay listener */
 	protected SymmetricUdpRelayListener listener;
 	
@@ -215,6 +224,8 @@ public class SymmetricUdpRelay {
 	protected void processReceivedPacket(UdpProvider udp_service, UdpPacket packet) {
 		
 		//if (packet.getLength()<=2) return; // discard the packet
+		RECEIVED_PACKETS.inc();
+		RECEIVED_BYTES.add(packet.getLength());
 		
 		// postpone the expire time 
 		if (relay_time>0) expire_time=System.currentTimeMillis()+relay_time;
@@ -245,14 +256,24 @@ public class SymmetricUdpRelay {
 			}
 		}
 		// relay
-		if (udp!=null && dest_soaddr!=null) {
-			packet.setIpAddress(dest_soaddr.getAddress());
-			packet.setPort(dest_soaddr.getPort());
-			try {
-				udp.send(packet);
-			}
-			catch (java.io.IOException e) { }
+		if (udp!=null && dest_soaddr!=null) relayPacket(udp_service,udp,packet,dest_soaddr);
+	}
+
+
+	/** Relays a received packet.
+	  * By re-defining this method (by a class that extends SymmetricUdpRelay) it is possible to
+	  * process the packet before it is forwarded.
+	  * @param src_udp the UdpProvider that received the packet
+	  * @param dest_udp the UdpProvider that has to be used for sending the packet
+	  * @param packet the received packet
+	  * @param dest_soaddr the destination socket address */
+	protected void relayPacket(UdpProvider src_udp, UdpProvider dest_udp, UdpPacket packet, SocketAddress dest_soaddr) {
+		packet.setIpAddress(dest_soaddr.getAddress());
+		packet.setPort(dest_soaddr.getPort());
+		try {
+			dest_udp.send(packet);
 		}
+		catch (java.io.IOException e) { }
 	}
 
 
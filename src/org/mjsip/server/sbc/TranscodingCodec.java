@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server.sbc;
+
+
+import org.mjsip.media.AudioStreamer;
+import org.mjsip.rtp.AmrRtpPayloadFormat;
+import org.mjsip.rtp.RtpPayloadFormat;
+import org.zoolu.sound.codec.amr.AmrToPcmEncoder;
+import org.zoolu.sound.codec.amr.PcmToAmrEncoder;
+import org.zoolu.sound.codec.g711.G711Encoding;
+import org.zoolu.sound.codec.g711.G711ToPcmEncoder;
+import org.zoolu.sound.codec.g711.PcmToG711Encoder;
+import org.zoolu.sound.codec.g726.G726Encoding;
+import org.zoolu.sound.codec.g726.G726ToPcmEncoder;
+import org.zoolu.sound.codec.g726.PcmToG726Encoder;
+import org.zoolu.sound.codec.gsm.GsmToPcmEncoder;
+import org.zoolu.sound.codec.gsm.PcmToGsmEncoder;
+import org.zoolu.util.Encoder;
+
+
+/** TranscodingCodec describes an audio codec that can be transcoded by the {@link MediaGw}.
+  * <p>
+  * All codecs work at 8000 Hz, and are converted to and from 16-bit little-endian linear PCM
+  * through the {@link org.zoolu.sound.codec} implementations.
+  */
+public class TranscodingCodec {
+	
+	/** Sample rate [samples/sec] */
+	public static final int SAMPLE_RATE=8000;
+
+	/** G.711 u-law */
+	public static final TranscodingCodec PCMU=new TranscodingCodec("PCMU",0,1);
+
+	/** G.711 A-law */
+	public static final TranscodingCodec PCMA=new TranscodingCodec("PCMA",8,1);
+
+	/** GSM 06.10 */
+	public static final TranscodingCodec GSM=new TranscodingCodec("GSM",3,160);
+
+	/** G.726 at 24 kbit/s */
+	public static final TranscodingCodec G726_24=new TranscodingCodec("G726-24",-1,8);
+
+	/** G.726 at 32 kbit/s */
+	public static final TranscodingCodec G726_32=new TranscodingCodec("G726-32",-1,8);
+
+	/** G.726 at 40 kbit/s */
+	public static final TranscodingCodec G726_40=new TranscodingCodec("G726-40",-1,8);
+
+	/** AMR narrow band */
+	public static final TranscodingCodec AMR=new TranscodingCodec("AMR",-1,160);
+
+	/** All supported codecs */
+	static final TranscodingCodec[] CODECS={ PCMU, PCMA, GSM, G726_24, G726_32, G726_40, AMR };
+
+
+	/** Codec name, as used in SDP 'rtpmap' attributes */
+	String name;
+
+	/** Static payload type, or -1 if a dynamic payload type has to be used */
+	int payload_type;
+
+	/** Number of samples per codec frame */
+	int frame_samples;
+
+
+
+	/** Creates a new TranscodingCodec. */
+	private TranscodingCodec(String name, int payload_type, int frame_samples) {
+		this.name=name;
+		this.payload_type=payload_type;
+		this.frame_samples=frame_samples;
+	}
+
+
+	/** Gets the codec with the given name.
+	  * @param name the codec name (case insensitive)
+	  * @return the codec, or <i>null</i> if it is not supported */
+	public static TranscodingCodec getCodec(String name) {
+		if (name==null) return null;
+		// else
+		for (int i=0; i<CODECS.length; i++) if (CODECS[i].name.equalsIgnoreCase(name)) return CODECS[i];
+		return null;
+	}
+
+
+	/** Gets the codec with the given static payload type.
+	  * @param payload_type the payload type
+	  * @return the codec, or <i>null</i> if the payload type is not static or not supported */
+	public static TranscodingCodec getCodec(int payload_type) {
+		if (payload_type<0) return null;
+		// else
+		for (int i=0; i<CODECS.length; i++) if (CODECS[i].payload_type==payload_type) return CODECS[i];
+		return null;
+	}
+
+
+	/** Gets the codec name. */
+	public String getName() {
+		return name;
+	}
+
+
+	/** Gets the static payload type, or -1 if the codec uses a dynamic payload type. */
+	public int getPayloadType() {
+		return payload_type;
+	}
+
+
+	/** Gets the number of samples per codec frame. */
+	public int getFrameSamples() {
+		return frame_samples;
+	}
+
+
+	/** Gets the SDP 'rtpmap' value for a given payload type. */
+	public String getRtpmap(int payload_type) {
+		return payload_type+" "+name+"/"+SAMPLE_RATE;
+	}
+
+
+	/** Creates a new encoder from linear PCM to this codec. */
+	public Encoder createEncoder() {
+		if (this==PCMU) return new PcmToG711Encoder(G711Encoding.G711_ULAW);
+		if (this==PCMA) return new PcmToG711Encoder(G711Encoding.G711_ALAW);
+		if (this==GSM) return new PcmToGsmEncoder();
+		if (this==G726_24) return new PcmToG726Encoder(G726Encoding.G726_24);
+		if (this==G726_32) return new PcmToG726Encoder(G726Encoding.G726_32);
+		if (this==G726_40) return new PcmToG726Encoder(G726Encoding.G726_40);
+		// else
+		return new PcmToAmrEncoder();
+	}
+
+
+	/** Creates a new decoder from this codec to linear PCM. */
+	public Encoder createDecoder() {
+		if (this==PCMU) return new G711ToPcmEncoder(G711Encoding.G711_ULAW);
+		if (this==PCMA) return new G711ToPcmEncoder(G711Encoding.G711_ALAW);
+		if (this==GSM) return new GsmToPcmEncoder();
+		if (this==G726_24) return new G726ToPcmEncoder(G726Encoding.G726_24);
+		if (this==G726_32) return new G726ToPcmEncoder(G726Encoding.G726_32);
+		if (this==G726_40) return new G726ToPcmEncoder(G726Encoding.G726_40);
+		// else
+		return new AmrToPcmEncoder();
+	}
+
+
+	/** Creates the additional RTP payload format, if required by this codec.
+	  * @return the payload format, or <i>null</i> */
+	public RtpPayloadFormat createRtpPayloadFormat() {
+		if (this==AMR) return new AmrRtpPayloadFormat(AudioStreamer.RTP_BANDWIDTH_EFFICIENT_MODE);
+		// else
+		return null;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.server.sbc;
+
+
+import org.zoolu.net.SocketAddress;
+import org.zoolu.net.UdpPacket;
+import org.zoolu.net.UdpProvider;
+import org.zoolu.net.UdpSocket;
+import org.zoolu.util.Logger;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.Timer;
+
+
+/**
+  * TranscodingUdpRelay implements a symmetric bidirectional RTP relay that transcodes
+  * the media flows between two call legs that use different codecs.
+  * <p>
+  * Each direction is handled by a {@link RtpTranscoder}, within the thread of
+  * the UdpProvider that receives the packets; no additional thread is used.
+  */
+public class TranscodingUdpRelay extends SymmetricUdpRelay {
+	
+	/** Transcoder of the packets from left to right */
+	RtpTranscoder left_to_right;
+
+	/** Transcoder of the packets from right to left */
+	RtpTranscoder right_to_left;
+
+	/** Buffer for the packets sent to the right peer */
+	byte[] right_buffer;
+
+	/** Buffer for the packets sent to the left peer */
+	byte[] left_buffer;
+
+	/** UDP packet sent to the right peer (reused for all packets) */
+	UdpPacket right_packet;
+
+	/** UDP packet sent to the left peer (reused for all packets) */
+	UdpPacket left_packet;
+
+
+
+	/** Creates a new TranscodingUdpRelay.
+	  * @param left_to_right the transcoder of the packets from left to right
+	  * @param right_to_left the transcoder of the packets from right to left */
+	public TranscodingUdpRelay(int left_port, SocketAddress left_soaddr, int right_port, SocketAddress right_soaddr, long relay_time, RtpTranscoder left_to_right, RtpTranscoder right_to_left, SymmetricUdpRelayListener listener) {
+		super();
+		init(left_port,left_soaddr,right_port,right_soaddr,relay_time,left_to_right,right_to_left,listener);
+	}
+
+
+	/** Initializes the TranscodingUdpRelay. */
+	private void init(int left_port, SocketAddress left_soaddr, int right_port, SocketAddress right_soaddr, long relay_time, RtpTranscoder left_to_right, RtpTranscoder right_to_left, SymmetricUdpRelayListener listener) {
+		this.left_soaddr=left_soaddr;
+		this.right_soaddr=right_soaddr;
+		this.relay_time=relay_time;
+		this.listener=listener;
+		this.left_to_right=left_to_right;
+		this.right_to_left=right_to_left;
+		right_buffer=new byte[left_to_right.getMaxPacketLength()];
+		left_buffer=new byte[right_to_left.getMaxPacketLength()];
+		right_packet=new UdpPacket(right_buffer,0,right_buffer.length);
+		left_packet=new UdpPacket(left_buffer,0,left_buffer.length);
+
+		try {
+			left_udp=new UdpProvider(new UdpSocket(left_port),0,this_udp_listener);
+			log(LoggerLevel.INFO,"udp interfce: "+left_udp.toString()+" started");    
+			log(LoggerLevel.INFO,"transcoding: "+left_to_right);    
+	
+			right_udp=new UdpProvider(new UdpSocket(right_port),0,this_udp_listener);
+			log(LoggerLevel.INFO,"udp interfce: "+right_udp.toString()+" started");
+			log(LoggerLevel.INFO,"transcoding: "+right_to_left);    
+		}   
+		catch (Exception e) {
+			log(LoggerLevel.INFO,e);
+		}
+	
+		if (relay_time>0) {
+			long timer_time=relay_time/2;
+			expire_time=System.currentTimeMillis()+relay_time;
+			timer=new Timer(timer_time,this_timer_listener);
+			timer.start();
+		}
+		last_left_change=last_right_change=System.currentTimeMillis();
+	}
+
+
+	/** Relays a received packet, after transcoding it. */
+	protected void relayPacket(UdpProvider src_udp, UdpProvider dest_udp, UdpPacket packet, SocketAddress dest_soaddr) {
+		RtpTranscoder transcoder;
+		byte[] buf;
+		UdpPacket out_packet;
+		if (src_udp==left_udp) {
+			transcoder=left_to_right;
+			buf=right_buffer;
+			out_packet=right_packet;
+		}
+		else {
+			transcoder=right_to_left;
+			buf=left_buffer;
+			out_packet=left_packet;
+		}
+		transcoder.push(packet.getData(),packet.getOffset(),packet.getLength());
+		try {
+			for (int len; (len=transcoder.nextPacket(buf,0))>0; ) {
+				out_packet.setData(buf,0,len);
+				out_packet.setIpAddress(dest_soaddr.getAddress());
+				out_packet.setPort(dest_soaddr.getPort());
+				dest_udp.send(out_packet);
+			}
+		}
+		catch (java.io.IOException e) {
+			log(LoggerLevel.WARNING,"packet to "+dest_soaddr+" not sent: "+e);
+		}
+	}
+
+
+	/** Gets the number of packets that have been transcoded (both directions). */
+	public long getTranscodedPacketCounter() {
+		return left_to_right.getInPacketCounter()+right_to_left.getInPacketCounter();
+	}
+
+
+	/** Gets the total time spent for transcoding (both directions) [nanosecs]. */
+	public long getTranscodingTime() {
+		return left_to_right.getProcessingTime()+right_to_left.getProcessingTime();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return super.toString()+" ("+left_to_right.dest_codec+"/"+right_to_left.dest_codec+")";
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default Log */
+	private void log(LoggerLevel level, String str) {
+		Logger logger=SystemUtils.getDefaultLogger();
+		if (logger!=null) logger.log(level,"TranscodingUdpRelay: "+str);  
+	}
+
+}
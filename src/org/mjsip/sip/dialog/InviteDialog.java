@@ -1005,7 +1005,8 @@ public class InviteDialog extends Dialog {
 		else
 		// if response
 		if (msg.isResponse()) {
-			if (!verifyStatus(statusIs(D_CALL))) return;
+			// 2xx retransmissions may also arrive after a BYE has been sent (e.g. when the ACK has been lost)
+			if (!verifyStatus(statusIs(D_CALL)||statusIs(D_BYEING))) return;
 			int code=msg.getStatusLine().getCode();
 			verifyThat(code>=200 && code<300,"code 2xx was expected");
 			// keep sending ACK (if already sent) for any "200 OK" received
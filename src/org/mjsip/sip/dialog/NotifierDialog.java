@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.dialog;
+
+
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.header.EventHeader;
+import org.mjsip.sip.header.ExpiresHeader;
+import org.mjsip.sip.header.SubscriptionStateHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMessageFactory;
+import org.mjsip.sip.message.SipMethods;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.transaction.TransactionClient;
+import org.mjsip.sip.transaction.TransactionClientListener;
+import org.mjsip.sip.transaction.TransactionServer;
+import org.mjsip.sip.transaction.TransactionServerListener;
+import org.zoolu.util.LoggerLevel;
+
+
+/** NotifierDialog is the notifier side of an event subscription (RFC 6665).
+  * <p>
+  * It receives the initial SUBSCRIBE request and the following refresh SUBSCRIBE requests,
+  * and sends NOTIFY requests to the subscriber.
+  * <p>
+  * Each received SUBSCRIBE is passed to the listener through the method
+  * {@link NotifierDialogListener#onDlgSubscribe(NotifierDialog,NameAddress,NameAddress,String,String,SipMessage)},
+  * and must be answered by calling {@link #accept(int,NameAddress)}, {@link #pending(int,NameAddress)}, or {@link #refuse(int,String)}.
+  * <p>
+  * The subscription duration is not enforced by the dialog itself: the notifier is responsible for
+  * terminating the subscription (through {@link #terminate(String)}) when it expires.
+  */
+public class NotifierDialog extends Dialog {
+	
+	/** Dialog state INIT */
+	protected static final int D_INIT=0;
+	/** Dialog state WAITING (listening for a new SUBSCRIBE) */
+	protected static final int D_WAITING=1;
+	/** Dialog state SUBSCRIBED (SUBSCRIBE received, not answered yet) */
+	protected static final int D_SUBSCRIBED=2;
+	/** Dialog state PENDING */
+	protected static final int D_PENDING=3;
+	/** Dialog state ACTIVE */
+	protected static final int D_ACTIVE=4;
+	/** Dialog state TERMINATED */
+	protected static final int D_TERMINATED=9;
+
+
+	/** The event package */
+	String event=null;
+
+	/** The event id, or <i>null</i> */
+	String id=null;
+
+	/** The last SUBSCRIBE request */
+	SipMessage subscribe_req=null;
+
+	/** The SUBSCRIBE transaction not answered yet, if any */
+	TransactionServer subscribe_ts=null;
+
+	/** The final NOTIFY transaction (the one with "terminated" subscription state), if any */
+	TransactionClient final_notify_tc=null;
+
+	/** Subscription duration [secs] */
+	int expires=-1;
+
+	/** The NotifierDialog listener */
+	NotifierDialogListener listener;
+
+	/** Transaction server listener */
+	TransactionServerListener this_ts_listener=new TransactionServerListener() {
+		@Override
+		public void onTransRequest(TransactionServer ts, SipMessage req) {
+			processTransRequest(ts,req);
+		}
+	};
+
+	/** Transaction client listener */
+	TransactionClientListener this_tc_listener=new TransactionClientListener() {
+		@Override
+		public void onTransProvisionalResponse(TransactionClient tc, SipMessage resp) {
+		}
+		@Override
+		public void onTransSuccessResponse(TransactionClient tc, SipMessage resp) {
+			processTransSuccessResponse(tc,resp);
+		}
+		@Override
+		public void onTransFailureResponse(TransactionClient tc, SipMessage resp) {
+			processTransFailureResponse(tc,resp);
+		}
+		@Override
+		public void onTransTimeout(TransactionClient tc) {
+			processTransTimeout(tc);
+		}
+	};
+
+
+	/** Gets the dialog state. */
+	protected String getStatus() {
+		switch (status) {
+			case D_INIT       : return "D_INIT";
+			case D_WAITING    : return "D_WAITING";
+			case D_SUBSCRIBED : return "D_SUBSCRIBED";
+			case D_PENDING    : return "D_PENDING";
+			case D_ACTIVE     : return "D_ACTIVE";
+			case D_TERMINATED : return "D_TERMINATED";
+			default : return null;
+		}
+	}
+
+
+	/** Creates a new NotifierDialog.
+	  * Method {@link #listen()} can be used for waiting for a new SUBSCRIBE request.
+	  * @param sip_provider the SIP provider
+	  * @param listener the dialog listener */
+	public NotifierDialog(SipProvider sip_provider, NotifierDialogListener listener) {
+		super(sip_provider);
+		this.listener=listener;
+		changeStatus(D_INIT);
+	}
+
+
+	/** Creates a new NotifierDialog for an already received SUBSCRIBE request.
+	  * The listener is not called for this request, that can be answered directly through
+	  * {@link #accept(int,NameAddress)}, {@link #pending(int,NameAddress)}, or {@link #refuse(int,String)}.
+	  * @param sip_provider the SIP provider
+	  * @param subscribe the SUBSCRIBE request
+	  * @param listener the dialog listener */
+	public NotifierDialog(SipProvider sip_provider, SipMessage subscribe, NotifierDialogListener listener) {
+		super(sip_provider);
+		this.listener=listener;
+		changeStatus(D_INIT);
+		setSubscribe(new TransactionServer(sip_provider,subscribe,null),subscribe);
+	}
+
+
+	/** Whether the dialog is in "early" state. */
+	public boolean isEarly() {
+		return status<D_PENDING;
+	}
+
+	/** Whether the dialog is in "confirmed" state. */
+	public boolean isConfirmed() {
+		return status>=D_PENDING && status<D_TERMINATED;
+	}
+
+	/** Whether the dialog is in "terminated" state. */
+	public boolean isTerminated() {
+		return status==D_TERMINATED;
+	}
+
+	/** Whether the subscription is "pending". */
+	public boolean isSubscriptionPending() {
+		return status==D_PENDING;
+	}
+
+	/** Whether the subscription is "active". */
+	public boolean isSubscriptionActive() {
+		return status==D_ACTIVE;
+	}
+
+	/** Gets the event package. */
+	public String getEvent() {
+		return event;
+	}
+
+	/** Gets the event id. */
+	public String getId() {
+		return id;
+	}
+
+	/** Gets the subscription duration accepted for the last SUBSCRIBE.
+	  * @return the duration [secs], or -1 if no SUBSCRIBE has been accepted yet */
+	public int getExpires() {
+		return expires;
+	}
+
+	/** Gets the last SUBSCRIBE request. */
+	public SipMessage getSubscribeMessage() {
+		return subscribe_req;
+	}
+
+
+	/** Waits for a new SUBSCRIBE request. */
+	public void listen() {
+		log(LoggerLevel.DEBUG,"inside listen()");
+		if (!statusIs(D_INIT)) return;
+		// else
+		changeStatus(D_WAITING);
+		subscribe_ts=new TransactionServer(sip_provider,SipMethods.SUBSCRIBE,this_ts_listener);
+		subscribe_ts.listen();
+	}
+
+
+	/** Accepts the last SUBSCRIBE request (response 200).
+	  * @param expires the subscription duration [secs]
+	  * @param contact the local contact, or <i>null</i> */
+	public void accept(int expires, NameAddress contact) {
+		log(LoggerLevel.DEBUG,"inside accept(expires,contact)");
+		if (statusIs(D_SUBSCRIBED)) changeStatus(D_ACTIVE);
+		respond(200,null,expires,contact);
+	}
+
+
+	/** Accepts the last SUBSCRIBE request (response 200), leaving the subscription in "pending" state
+	  * (e.g. until it has been authorized).
+	  * @param expires the subscription duration [secs]
+	  * @param contact the local contact, or <i>null</i> */
+	public void pending(int expires, NameAddress contact) {
+		log(LoggerLevel.DEBUG,"inside pending(expires,contact)");
+		if (statusIs(D_SUBSCRIBED)) changeStatus(D_PENDING);
+		respond(200,null,expires,contact);
+	}
+
+
+	/** Refuses the last SUBSCRIBE request.
+	  * If it is the initial SUBSCRIBE the dialog is terminated.
+	  * @param code the response code (300-699)
+	  * @param reason the response reason, or <i>null</i> */
+	public void refuse(int code, String reason) {
+		log(LoggerLevel.DEBUG,"inside refuse("+code+","+reason+")");
+		respond(code,reason,-1,null);
+		if (statusIs(D_SUBSCRIBED)) terminate();
+	}
+
+
+	/** Sends a NOTIFY.
+	  * @param state the subscription state ("active", "pending", or "terminated")
+	  * @param expires the remaining subscription duration [secs], or -1 for not including it
+	  * @param content_type the type of the body, or <i>null</i>
+	  * @param body the body, or <i>null</i> */
+	public void notify(String state, int expires, String content_type, byte[] body) {
+		SubscriptionStateHeader ssh=new SubscriptionStateHeader(state);
+		if (expires>=0 && !ssh.isTerminated()) ssh.setExpires(expires);
+		notify(ssh,content_type,body);
+	}
+
+
+	/** Sends a NOTIFY.
+	  * @param ssh the Subscription-State header field
+	  * @param content_type the type of the body, or <i>null</i>
+	  * @param body the body, or <i>null</i> */
+	public void notify(SubscriptionStateHeader ssh, String content_type, byte[] body) {
+		log(LoggerLevel.DEBUG,"inside notify("+ssh.getValue()+",content_type,body)");
+		if (!isConfirmed() || final_notify_tc!=null) return;
+		// else
+		SipMessage req=SipMessageFactory.createNotifyRequest(this,event,id,content_type,body);
+		req.setSubscriptionStateHeader(ssh);
+		if (ssh.isActive()) changeStatus(D_ACTIVE);
+		else
+		if (ssh.isPending()) changeStatus(D_PENDING);
+		TransactionClient tc=new TransactionClient(sip_provider,req,this_tc_listener);
+		if (ssh.isTerminated()) final_notify_tc=tc;
+		tc.request();
+	}
+
+
+	/** Terminates the subscription, by sending a NOTIFY with "terminated" subscription state.
+	  * @param reason the termination reason (e.g. "timeout", "noresource", "deactivated"), or <i>null</i> */
+	public void terminate(String reason) {
+		log(LoggerLevel.DEBUG,"inside terminate("+reason+")");
+		if (isConfirmed()) {
+			SubscriptionStateHeader ssh=new SubscriptionStateHeader(SubscriptionStateHeader.TERMINATED);
+			if (reason!=null) ssh.setReason(reason);
+			notify(ssh,null,null);
+		}
+		else
+		if (statusIs(D_SUBSCRIBED)) refuse(480,null);
+		else terminate();
+	}
+
+
+	// ************************* Callback methods *************************
+
+	/** When a new SUBSCRIBE is received by the listening transaction server. */
+	private void processTransRequest(TransactionServer ts, SipMessage req) {
+		log(LoggerLevel.DEBUG,"inside processTransRequest(ts,req)");
+		if (ts!=subscribe_ts || !statusIs(D_WAITING)) return;
+		// else
+		setSubscribe(ts,req);
+		if (isTerminated()) return;
+		// else
+		if (listener!=null) listener.onDlgSubscribe(this,req.getToHeader().getNameAddress(),req.getFromHeader().getNameAddress(),event,id,req);
+	}
+
+
+	/** When a new request message is received for this dialog (i.e. a refresh SUBSCRIBE). */
+	@Override
+	protected void processReceivedMessage(SipProvider sip_provider, SipMessage msg) {
+		log(LoggerLevel.DEBUG,"inside processReceivedMessage(sip_provider,msg)");
+		if (isTerminated() || !msg.isRequest()) return;
+		// else
+		TransactionServer ts=new TransactionServer(sip_provider,msg,null);
+		if (!msg.isSubscribe()) {
+			ts.respondWith(SipMessageFactory.createResponse(msg,405,null,null));
+			return;
+		}
+		// else
+		if (!msg.hasEventHeader() || !matchesEvent(msg.getEventHeader())) {
+			ts.respondWith(SipMessageFactory.createResponse(msg,489,null,null));
+			return;
+		}
+		// else
+		if (msg.getCSeqHeader().getSequenceNumber()<=getRemoteCSeq()) {
+			log(LoggerLevel.INFO,"SUBSCRIBE is too late (CSeq too small): responded with 500");
+			ts.respondWith(SipMessageFactory.createResponse(msg,500,null,null));
+			return;
+		}
+		// else
+		if (subscribe_ts!=null) {
+			// a previous SUBSCRIBE is still pending
+			ts.respondWith(SipMessageFactory.createResponse(msg,500,null,null));
+			return;
+		}
+		// else
+		updateDialogInfo(false,msg);
+		subscribe_req=msg;
+		subscribe_ts=ts;
+		if (listener!=null) listener.onDlgSubscribe(this,msg.getToHeader().getNameAddress(),msg.getFromHeader().getNameAddress(),event,id,msg);
+	}
+
+
+	/** When a 2xx response is received for a NOTIFY. */
+	private void processTransSuccessResponse(TransactionClient tc, SipMessage resp) {
+		log(LoggerLevel.DEBUG,"inside processTransSuccessResponse(tc,resp)");
+		if (listener!=null) listener.onDlgNotificationSuccess(this,resp.getStatusLine().getCode(),resp.getStatusLine().getReason(),resp);
+		if (tc==final_notify_tc) terminate();
+	}
+
+
+	/** When a 300-699 response is received for a NOTIFY. */
+	private void processTransFailureResponse(TransactionClient tc, SipMessage resp) {
+		log(LoggerLevel.DEBUG,"inside processTransFailureResponse(tc,resp)");
+		int code=resp.getStatusLine().getCode();
+		if (listener!=null) listener.onDlgNotificationFailure(this,code,resp.getStatusLine().getReason(),resp);
+		// the subscription is removed in case of 481 or 408 (RFC 6665, section 4.2.2)
+		if (tc==final_notify_tc || code==481 || code==408) terminate();
+	}
+
+
+	/** When a NOTIFY transaction expires. */
+	private void processTransTimeout(TransactionClient tc) {
+		log(LoggerLevel.DEBUG,"inside processTransTimeout(tc)");
+		if (listener!=null) listener.onDlgNotifyTimeout(this);
+		terminate();
+	}
+
+
+	// ************************* Private methods *************************
+
+	/** Sets the initial SUBSCRIBE request. */
+	private void setSubscribe(TransactionServer ts, SipMessage req) {
+		subscribe_ts=ts;
+		subscribe_req=req;
+		if (!req.hasEventHeader()) {
+			respond(400,"Missing Event header field",-1,null);
+			terminate();
+			return;
+		}
+		// else
+		EventHeader eh=req.getEventHeader();
+		event=eh.getEvent();
+		id=eh.getId();
+		changeStatus(D_SUBSCRIBED);
+		updateDialogInfo(false,req);
+	}
+
+
+	/** Responds to the last SUBSCRIBE request. */
+	private void respond(int code, String reason, int expires, NameAddress contact) {
+		if (subscribe_ts==null) return;
+		// else
+		SipMessage resp=SipMessageFactory.createResponse(subscribe_req,code,reason,contact);
+		if (code>=200 && code<300) {
+			this.expires=expires;
+			resp.setExpiresHeader(new ExpiresHeader(expires));
+			updateDialogInfo(false,resp);
+		}
+		subscribe_ts.respondWith(resp);
+		subscribe_ts=null;
+	}
+
+
+	/** Whether an Event header field matches the subscribed event package and id. */
+	private boolean matchesEvent(EventHeader eh) {
+		if (!eh.getEvent().equals(event)) return false;
+		// else
+		String eh_id=eh.getId();
+		return (id==null)? eh_id==null : id.equals(eh_id);
+	}
+
+
+	/** Terminates the dialog. */
+	private void terminate() {
+		if (isTerminated()) return;
+		// else
+		if (subscribe_ts!=null) {
+			subscribe_ts.terminate();
+			subscribe_ts=null;
+		}
+		changeStatus(D_TERMINATED);
+		if (listener!=null) listener.onDlgSubscriptionTerminated(this);
+		listener=null;
+	}
+
+}
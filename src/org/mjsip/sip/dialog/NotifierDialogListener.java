@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.dialog;
+
+
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.message.SipMessage;
+
+
+/** A NotifierDialogListener listens for NotifierDialog events.
+  * It collects all NotifierDialog callback functions.
+  */
+public interface NotifierDialogListener {
+	
+	/** When an incoming SUBSCRIBE is received (either the initial SUBSCRIBE or a refresh).
+	  * Method {@link NotifierDialog#accept(int,NameAddress) accept()}, {@link NotifierDialog#pending(int,NameAddress) pending()},
+	  * or {@link NotifierDialog#refuse(int,String) refuse()} has to be called for responding to the request.
+	  * @param dialog the notifier dialog
+	  * @param target the subscribed resource
+	  * @param subscriber the subscriber
+	  * @param event the event package
+	  * @param id the event id, or <i>null</i>
+	  * @param msg the SUBSCRIBE message */ 
+	public void onDlgSubscribe(NotifierDialog dialog, NameAddress target, NameAddress subscriber, String event, String id, SipMessage msg);
+
+	/** When a 2xx successfull final response is received for a NOTIFY request. */ 
+	public void onDlgNotificationSuccess(NotifierDialog dialog, int code, String reason, SipMessage resp);
+
+	/** When a 300-699 response is received for a NOTIFY request. */ 
+	public void onDlgNotificationFailure(NotifierDialog dialog, int code, String reason, SipMessage resp);
+
+	/** When a NOTIFY transaction expires without a final response. */ 
+	public void onDlgNotifyTimeout(NotifierDialog dialog);
+
+	/** When the dialog is terminated. */ 
+	public void onDlgSubscriptionTerminated(NotifierDialog dialog);
+
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.dialog;
+
+
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.header.EventHeader;
+import org.mjsip.sip.header.ExpiresHeader;
+import org.mjsip.sip.header.SubscriptionStateHeader;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.message.SipMessageFactory;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.transaction.TransactionClient;
+import org.mjsip.sip.transaction.TransactionClientListener;
+import org.mjsip.sip.transaction.TransactionServer;
+import org.zoolu.util.LoggerLevel;
+
+
+/** SubscriberDialog is the subscriber side of an event subscription (RFC 6665).
+  * <p>
+  * It sends the initial SUBSCRIBE request, refreshes or removes the subscription with new SUBSCRIBE requests
+  * within the dialog, and receives the NOTIFY requests sent by the notifier.
+  * <p>
+  * NOTIFY requests received before the 2xx response to the initial SUBSCRIBE are accepted too,
+  * and create the dialog.
+  */
+public class SubscriberDialog extends Dialog {
+	
+	/** Dialog state INIT */
+	protected static final int D_INIT=0;
+	/** Dialog state SUBSCRIBING */
+	protected static final int D_SUBSCRIBING=1;
+	/** Dialog state ACCEPTED (2xx received, waiting for the first NOTIFY) */
+	protected static final int D_ACCEPTED=2;
+	/** Dialog state PENDING */
+	protected static final int D_PENDING=3;
+	/** Dialog state ACTIVE */
+	protected static final int D_ACTIVE=4;
+	/** Dialog state TERMINATED */
+	protected static final int D_TERMINATED=9;
+
+
+	/** The event package */
+	String event;
+
+	/** The event id, or <i>null</i> */
+	String id;
+
+	/** The last SUBSCRIBE request */
+	SipMessage subscribe_req=null;
+
+	/** The current SUBSCRIBE transaction */
+	TransactionClient subscribe_tc=null;
+
+	/** Subscription duration [secs] granted by the notifier */
+	int expires=-1;
+
+	/** The SubscriberDialog listener */
+	SubscriberDialogListener listener;
+
+	/** Transaction client listener */
+	TransactionClientListener this_tc_listener=new TransactionClientListener() {
+		@Override
+		public void onTransProvisionalResponse(TransactionClient tc, SipMessage resp) {
+		}
+		@Override
+		public void onTransSuccessResponse(TransactionClient tc, SipMessage resp) {
+			processTransSuccessResponse(tc,resp);
+		}
+		@Override
+		public void onTransFailureResponse(TransactionClient tc, SipMessage resp) {
+			processTransFailureResponse(tc,resp);
+		}
+		@Override
+		public void onTransTimeout(TransactionClient tc) {
+			processTransTimeout(tc);
+		}
+	};
+
+
+	/** Gets the dialog state. */
+	protected String getStatus() {
+		switch (status) {
+			case D_INIT        : return "D_INIT";
+			case D_SUBSCRIBING : return "D_SUBSCRIBING";
+			case D_ACCEPTED    : return "D_ACCEPTED";
+			case D_PENDING     : return "D_PENDING";
+			case D_ACTIVE      : return "D_ACTIVE";
+			case D_TERMINATED  : return "D_TERMINATED";
+			default : return null;
+		}
+	}
+
+
+	/** Creates a new SubscriberDialog.
+	  * @param sip_provider the SIP provider
+	  * @param event the event package (e.g. "presence")
+	  * @param id the event id, or <i>null</i>
+	  * @param listener the dialog listener */
+	public SubscriberDialog(SipProvider sip_provider, String event, String id, SubscriberDialogListener listener) {
+		super(sip_provider);
+		this.event=event;
+		this.id=id;
+		this.listener=listener;
+		changeStatus(D_INIT);
+	}
+
+
+	/** Whether the dialog is in "early" state. */
+	public boolean isEarly() {
+		return status<D_ACCEPTED;
+	}
+
+	/** Whether the dialog is in "confirmed" state. */
+	public boolean isConfirmed() {
+		return status>=D_ACCEPTED && status<D_TERMINATED;
+	}
+
+	/** Whether the dialog is in "terminated" state. */
+	public boolean isTerminated() {
+		return status==D_TERMINATED;
+	}
+
+	/** Whether the subscription is "pending". */
+	public boolean isSubscriptionPending() {
+		return status==D_PENDING;
+	}
+
+	/** Whether the subscription is "active". */
+	public boolean isSubscriptionActive() {
+		return status==D_ACTIVE;
+	}
+
+	/** Gets the event package. */
+	public String getEvent() {
+		return event;
+	}
+
+	/** Gets the event id. */
+	public String getId() {
+		return id;
+	}
+
+	/** Gets the subscription duration granted by the notifier.
+	  * @return the duration [secs], or -1 if not known yet */
+	public int getExpires() {
+		return expires;
+	}
+
+	/** Gets the last SUBSCRIBE request. */
+	public SipMessage getSubscribeMessage() {
+		return subscribe_req;
+	}
+
+
+	/** Sends a new SUBSCRIBE request (starting a new subscription).
+	  * @param target the resource to be subscribed (optionally with the display name)
+	  * @param subscriber the subscriber
+	  * @param contact the contact of the subscriber, or <i>null</i>
+	  * @param expires the requested subscription duration [secs] */
+	public void subscribe(NameAddress target, NameAddress subscriber, NameAddress contact, int expires) {
+		log(LoggerLevel.DEBUG,"inside subscribe(target,subscriber,contact,expires)");
+		SipMessage req=SipMessageFactory.createSubscribeRequest(target.getAddress(),target,subscriber,contact,sip_provider.pickCallId(),event,id,null,null);
+		req.setExpiresHeader(new ExpiresHeader(expires));
+		subscribe(req);
+	}
+
+
+	/** Sends a new SUBSCRIBE request (starting a new subscription).
+	  * @param req the SUBSCRIBE request */
+	public void subscribe(SipMessage req) {
+		log(LoggerLevel.DEBUG,"inside subscribe(req)");
+		if (!statusIs(D_INIT)) return;
+		// else
+		changeStatus(D_SUBSCRIBING);
+		subscribe_req=req;
+		updateDialogInfo(true,req);
+		subscribe_tc=new TransactionClient(sip_provider,req,this_tc_listener);
+		subscribe_tc.request();
+	}
+
+
+	/** Refreshes the subscription.
+	  * @param expires the requested subscription duration [secs], or 0 for removing the subscription */
+	public void reSubscribe(int expires) {
+		log(LoggerLevel.DEBUG,"inside reSubscribe(expires)");
+		if (!isConfirmed()) return;
+		// else
+		SipMessage req=SipMessageFactory.createSubscribeRequest(this,event,id,null,null);
+		req.setExpiresHeader(new ExpiresHeader(expires));
+		subscribe_req=req;
+		subscribe_tc=new TransactionClient(sip_provider,req,this_tc_listener);
+		subscribe_tc.request();
+	}
+
+
+	/** Removes the subscription.
+	  * The subscription terminates when the final NOTIFY is received. */
+	public void unsubscribe() {
+		reSubscribe(0);
+	}
+
+
+	// ************************* Callback methods *************************
+
+	/** When a new request message is received for this dialog (i.e. a NOTIFY). */
+	@Override
+	protected void processReceivedMessage(SipProvider sip_provider, SipMessage msg) {
+		log(LoggerLevel.DEBUG,"inside processReceivedMessage(sip_provider,msg)");
+		if (isTerminated() || !msg.isRequest()) return;
+		// else
+		TransactionServer ts=new TransactionServer(sip_provider,msg,null);
+		if (!msg.isNotify()) {
+			ts.respondWith(SipMessageFactory.createResponse(msg,405,null,null));
+			return;
+		}
+		// else
+		if (!msg.hasEventHeader() || !matchesEvent(msg.getEventHeader()) || !msg.hasSubscriptionStateHeader()) {
+			ts.respondWith(SipMessageFactory.createResponse(msg,489,null,null));
+			return;
+		}
+		// else
+		if (isConfirmed() && msg.getCSeqHeader().getSequenceNumber()<=getRemoteCSeq()) {
+			log(LoggerLevel.INFO,"NOTIFY is too late (CSeq too small): responded with 500");
+			ts.respondWith(SipMessageFactory.createResponse(msg,500,null,null));
+			return;
+		}
+		// else
+		updateDialogInfo(false,msg);
+		ts.respondWith(SipMessageFactory.createResponse(msg,200,null,null));
+		SubscriptionStateHeader ssh=msg.getSubscriptionStateHeader();
+		String state=ssh.getState();
+		if (ssh.hasExpires()) expires=ssh.getExpires();
+		if (ssh.isActive()) changeStatus(D_ACTIVE);
+		else
+		if (ssh.isPending()) changeStatus(D_PENDING);
+		NameAddress contact=(msg.hasContactHeader())? msg.getContactHeader().getNameAddress() : null;
+		String content_type=(msg.hasContentTypeHeader())? msg.getContentTypeHeader().getContentType() : null;
+		if (listener!=null) listener.onDlgNotify(this,getRemoteName(),msg.getFromHeader().getNameAddress(),contact,state,content_type,msg.getBody(),msg);
+		if (ssh.isTerminated()) terminate();
+	}
+
+
+	/** When a 2xx response is received for a SUBSCRIBE. */
+	private void processTransSuccessResponse(TransactionClient tc, SipMessage resp) {
+		log(LoggerLevel.DEBUG,"inside processTransSuccessResponse(tc,resp)");
+		if (tc!=subscribe_tc || isTerminated()) return;
+		// else
+		updateDialogInfo(true,resp);
+		if (resp.hasExpiresHeader()) expires=resp.getExpiresHeader().getDeltaSeconds();
+		if (statusIs(D_SUBSCRIBING)) changeStatus(D_ACCEPTED);
+		if (listener!=null) {
+			int code=resp.getStatusLine().getCode();
+			listener.onDlgSubscriptionSuccess(this,code,resp.getStatusLine().getReason(),resp);
+		}
+	}
+
+
+	/** When a 300-699 response is received for a SUBSCRIBE. */
+	private void processTransFailureResponse(TransactionClient tc, SipMessage resp) {
+		log(LoggerLevel.DEBUG,"inside processTransFailureResponse(tc,resp)");
+		if (tc!=subscribe_tc || isTerminated()) return;
+		// else
+		int code=resp.getStatusLine().getCode();
+		if (listener!=null) listener.onDlgSubscriptionFailure(this,code,resp.getStatusLine().getReason(),resp);
+		// the subscription is terminated if the initial SUBSCRIBE fails, or in case of 481 (RFC 6665, section 4.1.2.2)
+		if (statusIs(D_SUBSCRIBING) || code==481) terminate();
+	}
+
+
+	/** When a SUBSCRIBE transaction expires. */
+	private void processTransTimeout(TransactionClient tc) {
+		log(LoggerLevel.DEBUG,"inside processTransTimeout(tc)");
+		if (tc!=subscribe_tc || isTerminated()) return;
+		// else
+		if (listener!=null) listener.onDlgSubscribeTimeout(this);
+		if (statusIs(D_SUBSCRIBING)) terminate();
+	}
+
+
+	/** Whether an Event header field matches the subscribed event package and id. */
+	private boolean matchesEvent(EventHeader eh) {
+		if (!eh.getEvent().equals(event)) return false;
+		// else
+		String eh_id=eh.getId();
+		return (id==null)? eh_id==null : id.equals(eh_id);
+	}
+
+
+	/** Terminates the dialog. */
+	private void terminate() {
+		if (isTerminated()) return;
+		// else
+		changeStatus(D_TERMINATED);
+		if (listener!=null) listener.onDlgSubscriptionTerminated(this);
+		listener=null;
+	}
+
+}
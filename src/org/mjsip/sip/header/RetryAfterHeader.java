@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.header;
+
+
+import org.mjsip.sip.provider.SipParser;
+
+
+/** Retry-After Header.
+  * It indicates how long the service is expected to be unavailable (e.g. in a 503 response).
+  * Only the delta-seconds value is handled; possible comment and parameters are ignored.
+  */
+public class RetryAfterHeader extends Header {
+	
+	/** Creates a RetryAfterHeader with a given number of seconds. */
+	public RetryAfterHeader(int secs) {
+		super(SipHeaders.Retry_After,String.valueOf(secs));
+	}
+
+	/** Creates a new RetryAfterHeader equal to another RetryAfterHeader <i>hd</i>. */
+	public RetryAfterHeader(Header hd) {
+		super(hd);
+	}
+
+	/** Gets the delta-seconds value. */
+	public int getDeltaSeconds() {
+		return (new SipParser(value)).getInt();
+	}
+
+}
@@ -65,6 +65,9 @@ public class SipHeaders extends CoreSipHeaders {
 	/** String "Replaces" */
 	public static final String Replaces="Replaces"; 
 
+	/** String "Retry-After" */
+	public static final String Retry_After="Retry-After"; 
+
 	/** String "RSeq" for RSeq header field defined in RRC 3262 */
 	public static final String RSeq="RSeq";  
 
@@ -25,6 +25,7 @@ package org.mjsip.sip.message;
 
 
 
+import java.nio.charset.Charset;
 import java.util.Vector;
 
 import org.mjsip.sip.header.ContentDispositionHeader;
@@ -56,6 +57,9 @@ public abstract class BasicSipMessage {
 	/** Whether printing debugging information on standard error output. */
 	public static boolean DEBUG=false;
 
+	/** Charset of the message header, when formatted into or parsed from bytes (SIP messages are UTF-8 encoded) */
+	static final Charset HEADER_CHARSET=Charset.forName("UTF-8");
+
 
 	/** UDP */
 	public static final String PROTO_UDP="udp"; 
@@ -253,7 +257,7 @@ public abstract class BasicSipMessage {
 			if (siph_len<0) throw new MalformedSipMessageException("No SIP header delimiter found.");
 			// else
 			siph_len+=delim.length;
-			String siph_str=new String(buf,off,siph_len);
+			String siph_str=new String(buf,off,siph_len,HEADER_CHARSET);
 	
 			// parse first line
 			SipParser par=new SipParser(siph_str);
@@ -302,7 +306,7 @@ public abstract class BasicSipMessage {
 	/** Gets the array of bytes of this message.
 	  * @return an array of bytes containing this message */
 	public byte[] getBytes() {
-		byte[] data=getMessageHeader().toString().getBytes();
+		byte[] data=getMessageHeader().toString().getBytes(HEADER_CHARSET);
 		if (body!=null) {
 			byte[] siph=data;
 			data=new byte[siph.length+body.length];
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.provider;
+
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** LoopbackNetwork is an in-memory network that links several {@link LoopbackTransport}s
+  * (and the {@link SipProvider}s that use them) within the same JVM.
+  * <p>
+  * Each transport is attached to the network with a local address and port,
+  * and messages are delivered to the transport attached with the destination address and port,
+  * without passing through any socket.
+  * It can be used for running complete call flows (e.g. UA&lt;--&gt;proxy&lt;--&gt;UA) at full speed
+  * within one process, for example for deterministic, network-free benchmarks.
+  * <p>
+  * The network can emulate a given one-way latency, a packet loss probability, and a reordering probability.
+  * Losses and reorderings are decided by pseudo-random generators initialized with the network seed,
+  * so that the same pattern is reproduced at each run, as long as each transport sends its messages from one thread.
+  */
+public class LoopbackNetwork {
+	
+	/** Default seed of the pseudo-random generators */
+	public static final long DEFAULT_SEED=1234567890L;
+
+	/** Maximum time a reordered message is held waiting for a following message [millisecs] */
+	public static long REORDER_TIME=10;
+
+
+	/** Attached transports (address:port --> LoopbackTransport) */
+	ConcurrentHashMap transports=new ConcurrentHashMap();
+
+	/** One-way latency [nanosecs] */
+	volatile long latency=0;
+
+	/** Packet loss probability */
+	volatile double loss=0;
+
+	/** Reordering probability */
+	volatile double reordering=0;
+
+	/** Seed of the pseudo-random generators */
+	long seed;
+
+	/** Number of sent messages */
+	AtomicLong sent=new AtomicLong();
+
+	/** Number of delivered messages */
+	AtomicLong delivered=new AtomicLong();
+
+	/** Number of lost messages */
+	AtomicLong lost=new AtomicLong();
+
+	/** Number of reordered messages */
+	AtomicLong reordered=new AtomicLong();
+
+	/** Number of messages sent to unknown destinations */
+	AtomicLong unreachable=new AtomicLong();
+
+	/** Number of delivered messages that could not be parsed or processed */
+	AtomicLong errors=new AtomicLong();
+
+
+
+	/** Creates a new LoopbackNetwork, with no latency, no loss, and no reordering. */
+	public LoopbackNetwork() {
+		this(DEFAULT_SEED);
+	}
+
+
+	/** Creates a new LoopbackNetwork, with no latency, no loss, and no reordering.
+	  * @param seed the seed of the pseudo-random generators used for losses and reorderings */
+	public LoopbackNetwork(long seed) {
+		this.seed=seed;
+	}
+
+
+	/** Sets the one-way latency.
+	  * @param latency the latency [microsecs] */
+	public void setLatency(long latency) {
+		this.latency=latency*1000L;
+	}
+
+
+	/** Gets the one-way latency.
+	  * @return the latency [microsecs] */
+	public long getLatency() {
+		return latency/1000L;
+	}
+
+
+	/** Sets the packet loss probability.
+	  * @param loss the probability that a message is lost (between 0 and 1) */
+	public void setLoss(double loss) {
+		this.loss=loss;
+	}
+
+
+	/** Gets the packet loss probability. */
+	public double getLoss() {
+		return loss;
+	}
+
+
+	/** Sets the reordering probability.
+	  * @param reordering the probability that a message is delivered after the following one (between 0 and 1) */
+	public void setReordering(double reordering) {
+		this.reordering=reordering;
+	}
+
+
+	/** Gets the reordering probability. */
+	public double getReordering() {
+		return reordering;
+	}
+
+
+	/** Gets the seed of the pseudo-random generators. */
+	public long getSeed() {
+		return seed;
+	}
+
+
+	/** Gets the transport attached with a given address and port.
+	  * @param addr the address
+	  * @param port the port
+	  * @return the transport, or <i>null</i> if not present */
+	public LoopbackTransport getTransport(String addr, int port) {
+		return (LoopbackTransport)transports.get(getKey(addr,port));
+	}
+
+
+	/** Gets the number of attached transports. */
+	public int size() {
+		return transports.size();
+	}
+
+
+	/** Gets the number of sent messages. */
+	public long getSent() {
+		return sent.get();
+	}
+
+
+	/** Gets the number of delivered messages. */
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+
+	/** Gets the number of lost messages. */
+	public long getLost() {
+		return lost.get();
+	}
+
+
+	/** Gets the number of reordered messages. */
+	public long getReordered() {
+		return reordered.get();
+	}
+
+
+	/** Gets the number of messages sent to unknown destinations. */
+	public long getUnreachable() {
+		return unreachable.get();
+	}
+
+
+	/** Gets the number of delivered messages that could not be parsed or processed. */
+	public long getErrors() {
+		return errors.get();
+	}
+
+
+	/** Resets all counters. */
+	public void resetCounters() {
+		sent.set(0);
+		delivered.set(0);
+		lost.set(0);
+		reordered.set(0);
+		unreachable.set(0);
+		errors.set(0);
+	}
+
+
+	/** Halts all attached transports. */
+	public void halt() {
+		Object[] list=transports.values().toArray();
+		for (int i=0; i<list.length; i++) ((LoopbackTransport)list[i]).halt();
+	}
+
+
+	/** Attaches a transport.
+	  * @throws IllegalArgumentException if the address and port are already in use */
+	void attach(LoopbackTransport transport) {
+		String key=getKey(transport.getLocalAddress(),transport.getLocalPort());
+		if (transports.putIfAbsent(key,transport)!=null) throw new IllegalArgumentException("Address already in use: "+key);
+	}
+
+
+	/** Detaches a transport. */
+	void detach(LoopbackTransport transport) {
+		transports.remove(getKey(transport.getLocalAddress(),transport.getLocalPort()),transport);
+	}
+
+
+	/** Gets the key of a given address and port. */
+	static String getKey(String addr, int port) {
+		return addr+":"+port;
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "loopback ("+transports.size()+" transports, latency="+getLatency()+"us, loss="+loss+", reordering="+reordering+"): sent="+sent+", delivered="+delivered+", lost="+lost+", reordered="+reordered+", unreachable="+unreachable+", errors="+errors;
+	}
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.provider;
+
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mjsip.sip.message.SipMessage;
+import org.zoolu.net.IpAddress;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** LoopbackTransport provides an in-memory transport service for SIP, attached to a {@link LoopbackNetwork}.
+  * <p>
+  * Sent messages are formatted as for a datagram transport, and are put in the lock-free queue
+  * of the destination transport, together with their delivery time (current time plus the network latency).
+  * Each transport has one receiver thread that parses and passes to the listener the messages
+  * when their delivery time is reached.
+  * <p>
+  * By default it reports "udp" as transport protocol, so that the SipProvider (and the transaction layer, e.g. for retransmissions)
+  * behaves as with a {@link UdpTransport}.
+  * <p>
+  * For example, a SipProvider attached to a loopback network can be created as follows:
+  * <pre>
+  * new SipProvider("10.0.0.1",5060,new SipTransport[]{ new LoopbackTransport(network,"10.0.0.1",5060) });
+  * </pre>
+  * Note that the address is resolved by the SipProvider before sending, so that numeric addresses should be used.
+  */
+public class LoopbackTransport implements SipTransport, Runnable {
+
+	/** A message in transit. */
+	static class Packet {
+		/** Message data */
+		byte[] data;
+		/** Source address */
+		String src_addr;
+		/** Source port */
+		int src_port;
+		/** Delivery time [nanosecs] */
+		long time;
+
+		/** Creates a new Packet. */
+		Packet(byte[] data, String src_addr, int src_port, long time) {
+			this.data=data;
+			this.src_addr=src_addr;
+			this.src_port=src_port;
+			this.time=time;
+		}
+	}
+
+
+	/** Loopback network */
+	LoopbackNetwork network;
+
+	/** Local address */
+	String addr;
+
+	/** Local port */
+	int port;
+
+	/** Emulated transport protocol */
+	String proto;
+
+	/** SipTransport listener */
+	SipTransportListener listener=null;
+
+	/** Incoming messages (lock-free queue of Packets, ordered by delivery time) */
+	ConcurrentLinkedQueue queue=new ConcurrentLinkedQueue();
+
+	/** Pseudo-random generator for losses (used by the sending threads) */
+	Random loss_random;
+
+	/** Pseudo-random generator for reorderings (used by the receiver thread) */
+	Random reorder_random;
+
+	/** Receiver thread */
+	volatile Thread thread=null;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates a new LoopbackTransport, emulating UDP.
+	  * @param network the loopback network
+	  * @param addr the local address
+	  * @param port the local port
+	  * @throws IllegalArgumentException if the address and port are already in use */
+	public LoopbackTransport(LoopbackNetwork network, String addr, int port) {
+		this(network,addr,port,UdpTransport.PROTO_UDP);
+	}
+
+
+	/** Creates a new LoopbackTransport.
+	  * @param network the loopback network
+	  * @param addr the local address
+	  * @param port the local port
+	  * @param proto the emulated transport protocol (e.g. "udp")
+	  * @throws IllegalArgumentException if the address and port are already in use */
+	public LoopbackTransport(LoopbackNetwork network, String addr, int port, String proto) {
+		this.network=network;
+		this.addr=addr;
+		this.port=port;
+		this.proto=proto;
+		long seed=network.getSeed()^LoopbackNetwork.getKey(addr,port).hashCode();
+		loss_random=new Random(seed);
+		reorder_random=new Random(~seed);
+		network.attach(this);
+		thread=ThreadFactory.start(this,"LoopbackTransport "+addr+":"+port,true);
+	}
+
+
+	/** Gets the loopback network. */
+	public LoopbackNetwork getNetwork() {
+		return network;
+	}
+
+
+	/** Gets the local address. */
+	public String getLocalAddress() {
+		return addr;
+	}
+
+
+	/** Gets the number of messages waiting to be delivered. */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+
+	@Override
+	public String getProtocol() {
+		return proto;
+	}
+
+
+	@Override
+	public int getLocalPort() {
+		return port;
+	}
+
+
+	@Override
+	public void setListener(SipTransportListener listener) {
+		this.listener=listener;
+	}
+
+
+	@Override
+	public ConnectionId sendMessage(SipMessage msg, IpAddress dest_ipaddr, int dest_port, int ttl) throws IOException {
+		if (stop) return null;
+		// else
+		network.sent.incrementAndGet();
+		LoopbackTransport dest=network.getTransport(dest_ipaddr.toString(),dest_port);
+		if (dest==null) {
+			network.unreachable.incrementAndGet();
+			return null;
+		}
+		// else
+		double loss=network.loss;
+		if (loss>0 && loss_random.nextDouble()<loss) {
+			network.lost.incrementAndGet();
+			return null;
+		}
+		// else
+		dest.enqueue(new Packet(msg.getBytes(),addr,port,System.nanoTime()+network.latency));
+		return null;
+	}
+
+
+	@Override
+	public void halt() {
+		if (stop) return;
+		// else
+		stop=true;
+		network.detach(this);
+		Thread t=thread;
+		if (t!=null) LockSupport.unpark(t);
+	}
+
+
+	@Override
+	public String toString() {
+		return "loopback:"+addr+":"+port+"/"+proto;
+	}
+
+
+	/** Puts a message in the incoming queue. */
+	private void enqueue(Packet packet) {
+		queue.offer(packet);
+		Thread t=thread;
+		if (t!=null) LockSupport.unpark(t);
+	}
+
+
+	/** Passes a message to the listener. */
+	private void deliver(Packet packet) {
+		network.delivered.incrementAndGet();
+		SipTransportListener listener=this.listener;
+		if (listener==null) return;
+		// else
+		try {
+			SipMessage msg=new SipMessage(packet.data,0,packet.data.length);
+			msg.setRemoteAddress(packet.src_addr);
+			msg.setRemotePort(packet.src_port);
+			msg.setTransportProtocol(proto);
+			listener.onReceivedMessage(this,msg);
+		}
+		catch (Exception e) {
+			network.errors.incrementAndGet();
+			log(LoggerLevel.WARNING,"error processing a message from "+packet.src_addr+":"+packet.src_port+": "+e);
+		}
+	}
+
+
+	/** Receiver thread. */
+	public void run() {
+		Packet held=null;
+		long held_time=0;
+		while (!stop) {
+			long now=System.nanoTime();
+			Packet packet=(Packet)queue.peek();
+			if (packet!=null && packet.time-now<=0) {
+				queue.poll();
+				double reordering=network.reordering;
+				if (held==null && reordering>0 && reorder_random.nextDouble()<reordering) {
+					// hold it until the next message is delivered
+					held=packet;
+					held_time=now+LoopbackNetwork.REORDER_TIME*1000000L;
+					continue;
+				}
+				// else
+				deliver(packet);
+				if (held!=null) {
+					network.reordered.incrementAndGet();
+					deliver(held);
+					held=null;
+				}
+				continue;
+			}
+			// else
+			if (held!=null && held_time-now<=0) {
+				// no following message: deliver it as it is
+				deliver(held);
+				held=null;
+				continue;
+			}
+			// else
+			long wait=-1;
+			if (packet!=null) wait=packet.time-now;
+			if (held!=null && (wait<0 || held_time-now<wait)) wait=held_time-now;
+			if (wait<0) LockSupport.park(this);
+			else LockSupport.parkNanos(this,wait);
+		}
+		queue.clear();
+		thread=null;
+		SipTransportListener listener=this.listener;
+		this.listener=null;
+		if (listener!=null) listener.onTransportTerminated(this,null);
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default log. */
+	private void log(LoggerLevel level, String str) {
+		SystemUtils.log(level,this,str);
+	}
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ *
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.provider;
+
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mjsip.sip.message.SipMessage;
+import org.zoolu.net.SocketAddress;
+import org.zoolu.util.ThreadFactory;
+
+
+/** SipKeepAliveScheduler keeps up the connections toward many target SIP nodes
+  * (e.g. NATed UAs) using one single thread.
+  * <p>
+  * It replaces a set of {@link SipKeepAlive} daemons (one thread per target) when
+  * the number of targets is large.
+  * <p>
+  * The keep-alive period is divided into time slots of {@link #SLOT_TIME} milliseconds,
+  * and new targets are assigned to the slots in round-robin. At each slot only the targets
+  * assigned to that slot are refreshed, so that keep-alive tokens are evenly spread
+  * over the period, avoiding bursts.
+  * <p>
+  * Each target is referred by a key (e.g. the reference SocketAddress of a binding)
+  * and can have an expiration time, after which it is automatically removed.
+  */
+public class SipKeepAliveScheduler implements Runnable {
+
+	/** Duration of a time slot [millisecs] */
+	public static long SLOT_TIME=20;
+
+
+	/** A keep-alive target. */
+	static class Target {
+		/** Destination socket address */
+		volatile SocketAddress soaddr;
+		/** Expiration date [millisecs], or 0 for no expiration */
+		volatile long expire;
+		/** Time slot */
+		int slot;
+
+		/** Creates a new Target. */
+		Target(SocketAddress soaddr, long expire, int slot) {
+			this.soaddr=soaddr;
+			this.expire=expire;
+			this.slot=slot;
+		}
+	}
+
+
+	/** SipProvider */
+	SipProvider sip_provider;
+
+	/** Sip token */
+	SipMessage sip_token;
+
+	/** Time between two keep-alive tokens toward the same target [millisecs] */
+	long delta_time;
+
+	/** Targets (key --> Target) */
+	ConcurrentHashMap targets=new ConcurrentHashMap();
+
+	/** Targets assigned to each time slot */
+	Set[] slots;
+
+	/** Next slot to be assigned */
+	AtomicInteger next_slot=new AtomicInteger(0);
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates a new SipKeepAliveScheduler.
+	  * @param sip_provider the SIP provider used to send keep-alive tokens
+	  * @param delta_time the time between two keep-alive tokens toward the same target [millisecs] */
+	public SipKeepAliveScheduler(SipProvider sip_provider, long delta_time) {
+		this.sip_provider=sip_provider;
+		this.delta_time=delta_time;
+		sip_token=new SipKeepAlive.SipToken(new String(UdpKeepAlive.DEFAULT_TOKEN));
+		int n=(int)(delta_time/SLOT_TIME);
+		if (n<1) n=1;
+		slots=new Set[n];
+		for (int i=0; i<n; i++) slots[i]=ConcurrentHashMap.newKeySet();
+		ThreadFactory.start(this,"SipKeepAliveScheduler",true);
+	}
+
+
+	/** Gets the time (in milliseconds) between two keep-alive tokens. */
+	public long getDeltaTime() {
+		return delta_time;
+	}
+
+
+	/** Gets the number of targets. */
+	public int size() {
+		return targets.size();
+	}
+
+
+	/** Whether there is a target with the given key. */
+	public boolean contains(Object key) {
+		return targets.containsKey(key);
+	}
+
+
+	/** Gets the destination SocketAddress of the given target.
+	  * @return the socket address, or <i>null</i> if the target is not present */
+	public SocketAddress getDestSoAddress(Object key) {
+		Target target=(Target)targets.get(key);
+		return target!=null? target.soaddr : null;
+	}
+
+
+	/** Adds a new target, or updates the destination and the expiration time of an already present target.
+	  * @param key the key of the target
+	  * @param soaddr the destination socket address
+	  * @param time the expiration time (in milliseconds), or 0 for no expiration */
+	public void add(Object key, SocketAddress soaddr, long time) {
+		long expire=(time>0)? System.currentTimeMillis()+time : 0;
+		Target target=(Target)targets.get(key);
+		if (target==null) {
+			int slot=(next_slot.getAndIncrement()&0x7fffffff)%slots.length;
+			target=new Target(soaddr,expire,slot);
+			Target prev=(Target)targets.putIfAbsent(key,target);
+			if (prev==null) {
+				slots[slot].add(key);
+				return;
+			}
+			// else
+			target=prev;
+		}
+		target.soaddr=soaddr;
+		target.expire=expire;
+	}
+
+
+	/** Removes a target.
+	  * @param key the key of the target */
+	public void remove(Object key) {
+		Target target=(Target)targets.remove(key);
+		if (target!=null) slots[target.slot].remove(key);
+	}
+
+
+	/** Stops sending keep-alive tokens and removes all targets. */
+	public void halt() {
+		stop=true;
+	}
+
+
+	/** Whether it is running. */
+	public boolean isRunning() {
+		return !stop;
+	}
+
+
+	/** Sends keep-alive tokens toward all targets of a given slot. */
+	private void processSlot(int slot, long now) {
+		for (Iterator i=slots[slot].iterator(); i.hasNext(); ) {
+			Object key=i.next();
+			Target target=(Target)targets.get(key);
+			if (target==null || target.slot!=slot) {
+				i.remove();
+				continue;
+			}
+			// else
+			if (target.expire>0 && now>target.expire) {
+				targets.remove(key,target);
+				i.remove();
+				continue;
+			}
+			// else
+			SocketAddress soaddr=target.soaddr;
+			sip_provider.sendRawMessage(sip_token,sip_provider.getDefaultTransport(),soaddr.getAddress().toString(),soaddr.getPort(),127);
+		}
+	}
+
+
+	/** Main thread. */
+	public void run() {
+		long slot_nanosecs=SLOT_TIME*1000000L;
+		long next_time=System.nanoTime();
+		int slot=0;
+		try {
+			while (!stop) {
+				processSlot(slot,System.currentTimeMillis());
+				slot=(slot+1)%slots.length;
+				next_time+=slot_nanosecs;
+				long wait=next_time-System.nanoTime();
+				if (wait>0) Thread.sleep(wait/1000000,(int)(wait%1000000));
+				else
+				if (-wait>delta_time*1000000L) next_time=System.nanoTime();
+			}
+		}
+		catch (InterruptedException e) {}
+		targets.clear();
+		for (int i=0; i<slots.length; i++) slots[i].clear();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "sip:"+sip_provider.getViaAddress()+":"+sip_provider.getPort()+"-->"+targets.size()+" targets ("+delta_time+"ms)";
+	}
+
+}
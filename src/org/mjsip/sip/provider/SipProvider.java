@@ -36,6 +36,10 @@ import org.mjsip.sip.address.SipURI;
 import org.mjsip.sip.address.UnexpectedUriSchemeException;
 import org.mjsip.sip.header.ViaHeader;
 import org.mjsip.sip.message.SipMessage;
+import org.zoolu.metrics.Counter;
+import org.zoolu.metrics.Histogram;
+import org.zoolu.metrics.MetricFamily;
+import org.zoolu.metrics.MetricRegistry;
 import org.zoolu.net.IpAddress;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.util.Configurable;
@@ -127,6 +131,25 @@ public class SipProvider {
 
 	/** Message end delimiter */
 	private static final String MESSAGE_END_DELIMITER="-----End-of-message-----\r\n";
+
+
+	// ***************************** Metrics *****************************
+
+	/** Received requests, by method */
+	static final MetricFamily RECEIVED_REQUESTS=MetricRegistry.getDefault().counters("sip_requests_received_total","Received SIP requests, by method.","method");
+
+	/** Received responses, by status code */
+	static final MetricFamily RECEIVED_RESPONSES=MetricRegistry.getDefault().counters("sip_responses_received_total","Received SIP responses, by status code.","code");
+
+	/** Sent requests, by method */
+	static final MetricFamily SENT_REQUESTS=MetricRegistry.getDefault().counters("sip_requests_sent_total","Sent SIP requests (including retransmissions), by method.","method");
+
+	/** Sent responses, by status code */
+	static final MetricFamily SENT_RESPONSES=MetricRegistry.getDefault().counters("sip_responses_sent_total","Sent SIP responses (including retransmissions), by status code.","code");
+
+	/** Processing time of received messages */
+	static final Histogram PROCESSING_TIME=MetricRegistry.getDefault().histogram("sip_message_processing_seconds","Time spent by the SipProvider and its listeners processing a received SIP message.");
+
 	
 	SipTransportListener this_transport_listener=new SipTransportListener() {
 		@Override
@@ -622,6 +645,14 @@ public class SipProvider {
 		else return false; 
 	}
 
+	/** Gets the transport service of a given transport protocol.
+	  * @param proto the transport protocol (e.g. "udp")
+	  * @return the transport, or <i>null</i> if the protocol is not supported */
+	public SipTransport getTransport(String proto) {
+		if (sip_transports!=null) return (SipTransport)sip_transports.get(proto.toLowerCase());
+		else return null; 
+	}
+
 	/** Whether it has TLS or DTLS transport protocol. */
 	public boolean hasSecureTransport() {
 		return hasTransport(PROTO_TLS) || hasTransport(PROTO_DTLS); 
@@ -1163,6 +1194,10 @@ public class SipProvider {
 		// else
 		try {
 			ConnectionId connection_id=sip_transport.sendMessage(msg,dest_ipaddr,dest_port,ttl);
+			// metrics
+			if (msg.isRequest()) ((Counter)SENT_REQUESTS.get(msg.getRequestLine().getMethod())).inc();
+			else
+			if (msg.isResponse()) ((Counter)SENT_RESPONSES.get(msg.getStatusLine().getCode())).inc();
 			// logs
 			logMessage(proto,dest_ipaddr.toString(),dest_port,msg.getLength(),msg,"sent");
 
@@ -1205,6 +1240,7 @@ public class SipProvider {
 	
 	/** When a new SIP message is received. */
 	protected void processReceivedMessage(SipTransport transport, SipMessage msg) {
+		long start_time=System.nanoTime();
 		try {
 			// logs
 			logMessage(msg.getTransportProtocol(),msg.getRemoteAddress(),msg.getRemotePort(),msg.getLength(),msg,"received");
@@ -1221,6 +1257,9 @@ public class SipProvider {
 				return;
 			}
 			log(LoggerLevel.INFO,"received new SIP message");
+			if (msg.isRequest()) ((Counter)RECEIVED_REQUESTS.get(msg.getRequestLine().getMethod())).inc();
+			else
+			if (msg.isResponse()) ((Counter)RECEIVED_RESPONSES.get(msg.getStatusLine().getCode())).inc();
 			log(LoggerLevel.TRACE,"received message:\r\n"+MESSAGE_BEGIN_DELIMITER+msg.toString()+MESSAGE_END_DELIMITER);
 			
 			// if a request, handle "received" and "rport" parameters
@@ -1283,6 +1322,7 @@ public class SipProvider {
 				log(LoggerLevel.INFO,"no listener found matching that message: message discarded.");
 				log(LoggerLevel.DEBUG,"active listeners: "+sip_listeners.size());
 			}
+			PROCESSING_TIME.recordSince(start_time);
 		}
 		catch (Exception exception) {
 			log(LoggerLevel.WARNING,"Error handling a new incoming message");
@@ -1341,6 +1381,14 @@ public class SipProvider {
 			log(LoggerLevel.DEBUG,"message passed to dialog: "+key);
 			return (SipProviderListener)sip_listeners.get(key);
 		}
+		// try to look for an early subscriber dialog (a NOTIFY may arrive before the 2xx response to the SUBSCRIBE)
+		if (msg.isNotify()) {
+			key=new DialogId(msg.getCallIdHeader().getCallId(),msg.getToHeader().getTag(),null);
+			if (sip_listeners.containsKey(key)) {
+				log(LoggerLevel.DEBUG,"message passed to early dialog: "+key);
+				return (SipProviderListener)sip_listeners.get(key);
+			}
+		}
 		// try to look for a UAS
 		key=new MethodId(msg);
 		if (sip_listeners.containsKey(key)) {
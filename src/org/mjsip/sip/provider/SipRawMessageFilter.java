@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.sip.provider;
+
+
+import org.zoolu.net.IpAddress;
+
+
+/** Filter of raw SIP messages received by a SipTransport.
+  * <p>
+  * It is called with the received bytes before they are parsed as {@link org.mjsip.sip.message.SipMessage},
+  * and may consume the message (e.g. forwarding it without parsing it).
+  * The buffer is valid only during the call.
+  */
+public interface SipRawMessageFilter {
+	
+	/** When a new raw SIP message is received.
+	  * @param transport the transport that received the message
+	  * @param buf the buffer containing the message
+	  * @param off the offset within the buffer
+	  * @param len the length of the message
+	  * @param remote_ipaddr the IP address of the sender
+	  * @param remote_port the port of the sender
+	  * @return <i>true</i> if the message has been consumed by the filter; <i>false</i> if it has to be processed as usual */
+	public boolean onReceivedRawMessage(SipTransport transport, byte[] buf, int off, int len, IpAddress remote_ipaddr, int remote_port);
+
+}
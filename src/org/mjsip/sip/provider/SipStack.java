@@ -31,6 +31,7 @@ import org.zoolu.util.LoggerRotationWriter;
 import org.zoolu.util.LoggerWriter;
 import org.zoolu.util.Logger;
 import org.zoolu.util.Parser;
+import org.zoolu.util.ThreadFactory;
 import org.zoolu.util.Timer;
 
 
@@ -139,6 +140,10 @@ public class SipStack extends Configure {
 	 * In 'non-daemon' mode, the program ends only when all active timers have expired
 	 * or explicitly halted. */
 	public static boolean timer_daemon_mode=true;
+	/** Whether all blocking loops of the stack (socket receivers, TCP connections, keep-alive daemons,
+	 * RTP senders and receivers, relays, etc.) run as virtual threads.
+	 * It requires Java 21 or later; with older JVMs platform threads are used. */
+	public static boolean virtual_threads=false;
 	/** Whether at UAS side automatically sending (by default) a 100 Trying on INVITE. */
 	public static boolean auto_trying=true;
 	/** Whether 1xx responses create an "early dialog" for methods that create dialog. */
@@ -262,6 +267,7 @@ public class SipStack extends Configure {
 		// general configurations
 		if (attribute.equals("max_forwards"))   { max_forwards=par.getInt(); return; }
 		if (attribute.equals("timer_daemon_mode"))   { timer_daemon_mode=(par.getString().toLowerCase().startsWith("y")); return; }
+		if (attribute.equals("virtual_threads"))   { virtual_threads=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("auto_trying"))    { auto_trying=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("early_dialog"))   { early_dialog=(par.getString().toLowerCase().startsWith("y")); return; }
 		if (attribute.equals("default_expires")){ default_expires=par.getInt(); return; }
@@ -328,6 +334,9 @@ public class SipStack extends Configure {
 		// timers
 		Timer.DEFAULT_DAEMON_MODE=timer_daemon_mode;
 
+		// threads
+		if (!ThreadFactory.setVirtualThreads(virtual_threads)) printOut("WARNING: virtual threads are not supported by this JVM; platform threads will be used.");
+
 		// logs
 		if (debug_level>0) {
 			if (log_rotation_time!=null) {
@@ -27,6 +27,7 @@ package org.mjsip.sip.provider;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.mjsip.sip.message.SipMessage;
 import org.zoolu.net.IpAddress;
@@ -44,6 +45,11 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 	/** Table of active connections (Hashtable of <code>ConnectionId</code>,<code>SipTransportConnection</code>) */
 	protected Hashtable connections;
 
+	/** Lock of the table of connections.
+	  * A lock is used instead of a monitor, since connections are opened and messages are sent while holding it,
+	  * and blocking I/O within a monitor would pin a virtual thread to its carrier thread */
+	protected ReentrantLock connections_lock=new ReentrantLock();
+
 	/** SipTransport listener */
 	protected SipTransportListener listener=null;
 	
@@ -127,7 +133,8 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 	public ConnectionId sendMessage(SipMessage msg, IpAddress dest_ipaddr, int dest_port, int ttl) throws IOException {
 		ConnectionId connection_id=new ConnectionId(getProtocol(),dest_ipaddr,dest_port);
 		// BEGIN SYNCHRONIZATION
-		synchronized (connections) {
+		connections_lock.lock();
+		try {
 			
 			if (connections.containsKey(connection_id))
 			try {
@@ -172,6 +179,9 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 				return null;
 			}
 		}
+		finally {
+			connections_lock.unlock();
+		}
 		// END SYNCHRONIZATION      
 	}
 
@@ -187,7 +197,8 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 		}
 		// else
 		// BEGIN SYNCHRONIZATION
-		synchronized (connections) {
+		connections_lock.lock();
+		try {
 			
 			if (!connections.containsKey(connection_id)) {
 				throw new IOException("no active connection found matching connection-id "+connection_id);
@@ -199,6 +210,9 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 			sendMessage(conn,msg);
 			return conn;
 		}
+		finally {
+			connections_lock.unlock();
+		}
 		// END SYNCHRONIZATION      
 	}
 
@@ -260,7 +274,8 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 	public void addConnection(SipTransportConnection conn) {
 		ConnectionId connection_id=new ConnectionId(conn);
 		// BEGIN SYNCHRONIZATION
-		synchronized (connections) {
+		connections_lock.lock();
+		try {
 			
 			if (connections.containsKey(connection_id)) {
 				// remove the previous connection
@@ -293,6 +308,9 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 				log(LoggerLevel.TRACE,"connection-id="+id+": "+((SipTransportConnection)connections.get(id)).toString());
 			}
 		}
+		finally {
+			connections_lock.unlock();
+		}
 		// END SYNCHRONIZATION      
 	}
 
@@ -300,7 +318,8 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 	/** Removes a transport connection */ 
 	public void removeConnection(ConnectionId connection_id) {
 		// BEGIN SYNCHRONIZATION
-		synchronized (connections) {
+		connections_lock.lock();
+		try {
 			
 			if (connections.containsKey(connection_id)) {
 				SipTransportConnection conn=(SipTransportConnection)connections.get(connection_id);
@@ -314,6 +333,9 @@ public abstract class SipTransportCO implements SipTransport/*, SipTransportConn
 				}
 			}
 		}
+		finally {
+			connections_lock.unlock();
+		}
 		// END SYNCHRONIZATION
 	}
 
@@ -25,6 +25,7 @@ package org.mjsip.sip.provider;
 import org.zoolu.net.SocketAddress;
 import org.zoolu.net.UdpPacket;
 import org.zoolu.net.UdpSocket;
+import org.zoolu.util.ThreadFactory;
 
 
 /** UdpKeepAlive keeps up the connection toward a target node
@@ -34,7 +35,7 @@ import org.zoolu.net.UdpSocket;
   * <p>
   * It can be used for both signaling (SIP) or data plane (RTP/UDP). 
   */
-public class UdpKeepAlive extends Thread {
+public class UdpKeepAlive implements Runnable {
 	
 	/** Default udp keep-alive token */
 	public static final byte[] DEFAULT_TOKEN={ (byte)'\r',(byte)'\n' };
@@ -56,6 +57,8 @@ public class UdpKeepAlive extends Thread {
 
 	/** Whether it is running */
 	protected boolean stop=false;
+	/** Thread running the keep-alive, or <i>null</i> if not started yet */
+	protected Thread thread=null;
 
 
 	/** Creates a new UdpKeepAlive daemon */
@@ -98,6 +101,19 @@ public class UdpKeepAlive extends Thread {
 	}
 
 
+	/** Starts the keep-alive thread. It has no effect if the thread has been already started. */
+	public synchronized void start() {
+		if (thread==null) thread=ThreadFactory.start(this,"UdpKeepAlive");
+	}
+
+
+	/** Gets the thread running the keep-alive, or <i>null</i> if not started yet.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
+
+
 	/** Whether the UDP relay is running */
 	public boolean isRunning() {
 		return !stop;
@@ -56,6 +56,9 @@ public class UdpTransport implements SipTransport {
 	/** SipTransport listener */
 	SipTransportListener listener=null;   
 
+	/** Filter of raw received messages */
+	SipRawMessageFilter raw_filter=null;   
+
 
 	/** Creates a new UDP transport.
 	 * @param socket the UDP socket */
@@ -120,6 +123,13 @@ public class UdpTransport implements SipTransport {
 		this.listener=listener;
 	}
 
+	/** Sets a filter of raw received messages.
+	 * The filter is called before parsing the received datagrams as SIP messages.
+	 * @param raw_filter the filter, or <i>null</i> for removing it */
+	public void setRawMessageFilter(SipRawMessageFilter raw_filter) {
+		this.raw_filter=raw_filter;
+	}
+
 	@Override
 	public ConnectionId sendMessage(SipMessage msg, IpAddress dest_ipaddr, int dest_port, int ttl) throws IOException {
 		if (udp_provider!=null) {
@@ -133,6 +143,17 @@ public class UdpTransport implements SipTransport {
 		return null;
 	}
 
+	/** Sends raw data (e.g. an already formatted SIP message).
+	 * @param buf the buffer containing the data
+	 * @param off the offset within the buffer
+	 * @param len the length of the data
+	 * @param dest_ipaddr the destination IP address
+	 * @param dest_port the destination port
+	 * @throws IOException */
+	public void sendRawData(byte[] buf, int off, int len, IpAddress dest_ipaddr, int dest_port) throws IOException {
+		if (udp_provider!=null) udp_provider.send(new UdpPacket(buf,off,len,dest_ipaddr,dest_port));
+	}
+
 
 	@Override
 	public void halt() {
@@ -160,6 +181,8 @@ public class UdpTransport implements SipTransport {
 			// do something..
 		}
 		else {
+			if (raw_filter!=null && raw_filter.onReceivedRawMessage(this,packet.getData(),packet.getOffset(),packet.getLength(),packet.getIpAddress(),packet.getPort())) return;
+			// else
 			SipMessage msg=new SipMessage(packet.getData(),packet.getOffset(),packet.getLength());
 			msg.setRemoteAddress(packet.getIpAddress().toString());
 			msg.setRemotePort(packet.getPort());
@@ -120,8 +120,12 @@ public class AckTransactionServer extends Transaction {
 		});
 		//transaction_id=null; // it is not required since no SipProviderListener is implemented 
 		// (CHANGE-040905) now timeouts are started when method respond() is called
+		transaction_to=new Timer(transaction_to.getTime(),this_timer_listener);
 		transaction_to.start();
-		if (connection_id==null) retransmission_to.start();
+		if (connection_id==null) {
+			retransmission_to=new Timer(retransmission_to.getTime(),this_timer_listener);
+			retransmission_to.start();
+		}
 
 		sip_provider.sendMessage(response); 
 	}  
@@ -163,6 +167,7 @@ public class AckTransactionServer extends Transaction {
 			}  
 			if (to.equals(transaction_to) && statusIs(STATE_PROCEEDING)) {
 				log(LoggerLevel.INFO,"Transaction timeout expired");
+				countTimeout();
 				doTerminate();
 				//retransmission_to=null;
 				//transaction_to=null;
@@ -126,6 +126,7 @@ public class InviteTransactionClient extends TransactionClient {
 			}
 			if (code>=300 && code<700 && (statusIs(STATE_TRYING) || statusIs(STATE_PROCEEDING) || statusIs(STATE_COMPLETED))) {
 				if (statusIs(STATE_TRYING) || statusIs(STATE_PROCEEDING)) {
+					recordDuration();
 					retransmission_to.halt();
 					transaction_to.halt();
 					ack=SipMessageFactory.createNon2xxAckRequest(request,msg);
@@ -149,6 +150,7 @@ public class InviteTransactionClient extends TransactionClient {
 				return;
 			}
 			if (code>=200 && code<300 && (statusIs(STATE_TRYING) || statusIs(STATE_PROCEEDING))) {
+				recordDuration();
 				doTerminate();
 				if (invite_tc_listener!=null) invite_tc_listener.onTransSuccessResponse(this,msg);
 				invite_tc_listener=null;
@@ -173,6 +175,7 @@ public class InviteTransactionClient extends TransactionClient {
 			} 
 			if (to.equals(transaction_to)) {
 				log(LoggerLevel.INFO,"Transaction timeout expired");
+				countTimeout();
 				doTerminate();
 				if (invite_tc_listener!=null) invite_tc_listener.onTransTimeout(this);
 				invite_tc_listener=null;
@@ -248,6 +248,7 @@ public class InviteTransactionServer extends TransactionServer {
 			}
 			if (to.equals(end_to) && statusIs(STATE_COMPLETED)) {
 				log(LoggerLevel.INFO,"End timeout expired");
+				countTimeout();
 				doTerminate();
 				invite_ts_listener=null;
 			}  
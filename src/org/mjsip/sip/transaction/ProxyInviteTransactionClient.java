@@ -62,6 +62,7 @@ public class ProxyInviteTransactionClient extends InviteTransactionClient {
 	protected void processTimeout(Timer to) {
 		try {
 			log(LoggerLevel.INFO,"Proxy-transaction timeout expired");
+			countTimeout();
 			doTerminate();
 			if (transaction_listener!=null) transaction_listener.onTransTimeout(this);
 			transaction_listener=null;
@@ -31,6 +31,10 @@ import org.mjsip.sip.provider.SipProvider;
 import org.mjsip.sip.provider.SipProviderListener;
 import org.mjsip.sip.provider.TransactionId;
 import org.mjsip.sip.provider.TransactionServerId;
+import org.zoolu.metrics.Counter;
+import org.zoolu.metrics.Histogram;
+import org.zoolu.metrics.MetricFamily;
+import org.zoolu.metrics.MetricRegistry;
 import org.zoolu.util.ExceptionPrinter;
 import org.zoolu.util.LoggerLevel;
 import org.zoolu.util.SystemUtils;
@@ -54,6 +58,23 @@ public abstract class Transaction {
 	/** Transactions counter */
 	protected static int transaction_counter=0;
 
+	/** Created transactions, by type */
+	static final MetricFamily CREATED_TRANSACTIONS=MetricRegistry.getDefault().counters("sip_transactions_created_total","Created SIP transactions, by type.","type");
+
+	/** Transactions terminated by timeout, by type */
+	static final MetricFamily TIMEOUT_TRANSACTIONS=MetricRegistry.getDefault().counters("sip_transactions_timeout_total","SIP transactions terminated by timeout, by type.","type");
+
+	/** Duration of client transactions, by method */
+	static final MetricFamily TRANSACTION_DURATION=MetricRegistry.getDefault().histograms("sip_transaction_duration_seconds","Time between the creation of SIP client transactions and the reception of the final response, by method.","method");
+
+	/** Created and timeout counters of each transaction class (Class --> Counter[2]) */
+	static final ClassValue TYPE_COUNTERS=new ClassValue() {
+		protected Object computeValue(Class type) {
+			String name=type.getSimpleName();
+			return new Counter[]{ (Counter)CREATED_TRANSACTIONS.get(name), (Counter)TIMEOUT_TRANSACTIONS.get(name) };
+		}
+	};
+
 	// all transaction states:
 	
 	/** State Waiting (used only by server transactions) - When transaction is just created. */
@@ -106,6 +127,9 @@ public abstract class Transaction {
 
 	/** Transaction connection id */
 	ConnectionId connection_id;
+
+	/** Creation time [nanosecs] */
+	long creation_time;
 	
 
 	/** Creates a new Transaction */
@@ -116,6 +140,8 @@ public abstract class Transaction {
 		this.connection_id=null;
 		this.transaction_sqn=transaction_counter++;
 		this.status=STATE_IDLE;
+		creation_time=System.nanoTime();
+		((Counter[])TYPE_COUNTERS.get(getClass()))[0].inc();
 	}
 
 	/** Changes the internal status */
@@ -184,6 +210,18 @@ public abstract class Transaction {
 
 	/** Terminates the transaction. */
 	public abstract void terminate();
+
+
+	/** Records the duration of the transaction, from its creation to now (when the final response is received). */
+	protected void recordDuration() {
+		((Histogram)TRANSACTION_DURATION.get(getTransactionMethod())).recordSince(creation_time);
+	}
+
+
+	/** Counts the termination of the transaction due to a timeout. */
+	protected void countTimeout() {
+		((Counter[])TYPE_COUNTERS.get(getClass()))[1].inc();
+	}
 	
 
 	
@@ -133,6 +133,7 @@ public class TransactionClient extends Transaction {
 				return;
 			}
 			if (code>=200 && code<700 && (statusIs(STATE_TRYING) || statusIs(STATE_PROCEEDING))) {
+				recordDuration();
 				retransmission_to.halt();
 				transaction_to.halt();
 				changeStatus(STATE_COMPLETED);
@@ -170,6 +171,7 @@ public class TransactionClient extends Transaction {
 			} 
 			if (to.equals(transaction_to)) {
 				log(LoggerLevel.INFO,"Transaction timeout expired");
+				countTimeout();
 				doTerminate();
 				if (transaction_listener!=null) transaction_listener.onTransTimeout(this);
 				transaction_listener=null;
@@ -0,0 +1,347 @@
+package org.mjsip.ua;
+
+
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+import org.mjsip.media.Codec;
+import org.mjsip.media.ConferenceMixer;
+import org.mjsip.media.ConferenceMixerListener;
+import org.mjsip.media.MediaClock;
+import org.mjsip.media.MediaDesc;
+import org.mjsip.media.MediaSpec;
+import org.mjsip.media.RtpStreamReceiver;
+import org.mjsip.media.RtpStreamSender;
+import org.mjsip.sdp.MediaDescriptor;
+import org.mjsip.sdp.OfferAnswerModel;
+import org.mjsip.sdp.SdpMessage;
+import org.mjsip.sdp.field.ConnectionField;
+import org.mjsip.sip.address.NameAddress;
+import org.mjsip.sip.address.SipURI;
+import org.mjsip.sip.call.Call;
+import org.mjsip.sip.call.CallListenerAdapter;
+import org.mjsip.sip.call.CallState;
+import org.mjsip.sip.call.Messaging;
+import org.mjsip.sip.call.SipUser;
+import org.mjsip.sip.message.SipMessage;
+import org.mjsip.sip.provider.SipProvider;
+import org.mjsip.sip.provider.SipStack;
+import org.zoolu.net.IpAddress;
+import org.zoolu.net.UdpSocket;
+import org.zoolu.sound.codec.g711.G711Encoding;
+import org.zoolu.sound.codec.g711.G711ToPcmEncoder;
+import org.zoolu.sound.codec.g711.PcmToG711Encoder;
+import org.zoolu.sound.codec.gsm.GsmToPcmEncoder;
+import org.zoolu.sound.codec.gsm.PcmToGsmEncoder;
+import org.zoolu.util.Flags;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.LoggerWriter;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.Timer;
+import org.zoolu.util.TimerListener;
+
+
+/** Simple UAS that accepts incoming calls and joins them into audio conference rooms.
+ * <p>
+ * The room is selected by the 'room' parameter of the request URI, or, if not present, by the user part of the URI.
+ * The audio of each room is mixed by a {@link ConferenceMixer}; all mixers are driven by one shared {@link MediaClock}.
+ * Each participant can use a different codec (PCMU, PCMA, or GSM).
+ */
+public class ConferenceUAS {
+	
+	/** URI room parameter */
+	public static String PARAM_ROOM="room";
+	
+	/** Default room */
+	public static String DEFAULT_ROOM="conference";
+
+	/** Maximum call duration in seconds */
+	static int max_call_time=3600;
+
+	/** Whether serving multiple calls */
+	static boolean server=true;
+	
+	/** Media address */
+	static String media_addr=IpAddress.getLocalHostAddress().toString();
+
+	/** First media port */
+	static int first_media_port=4000;
+
+	/** Last media port */
+	static int last_media_port=4999;
+
+	static MediaDesc media_desc=MediaDesc.parseMediaDesc("audio "+first_media_port+" RTP/AVP { audio 0 PCMU 8000 160, audio 8 PCMA 8000 160, audio 3 GSM 8000 33 }");
+
+	/** Media ports */
+	static MediaSessionManager media_ports=null;
+
+	/** Media clock shared by all mixers */
+	static MediaClock media_clock=null;
+
+	/** Conference rooms (room name --> ConferenceMixer) */
+	static Hashtable rooms=new Hashtable();
+
+	/** Conference members (call --> Member) */
+	static Hashtable members=new Hashtable();
+
+
+	/** The media state of a call joined to a room. */
+	static class Member {
+		/** Mixer of the room */
+		ConferenceMixer mixer;
+		/** Participant within the mixer */
+		ConferenceMixer.Participant participant;
+		/** Local media port */
+		int port;
+		/** Media socket */
+		UdpSocket udp_socket;
+		/** RTP receiver */
+		RtpStreamReceiver rtp_receiver;
+		/** RTP sender */
+		RtpStreamSender rtp_sender;
+
+		/** Stops the media streams and leaves the room. */
+		void halt() {
+			mixer.remove(participant);
+			if (rtp_sender!=null) rtp_sender.halt();
+			if (rtp_receiver!=null) rtp_receiver.halt();
+			if (udp_socket!=null) udp_socket.close();
+			media_ports.releasePort(port);
+		}
+	}
+
+
+	/** Conference mixer listener */
+	static ConferenceMixerListener this_mixer_listener=new ConferenceMixerListener() {
+		@Override
+		public void onActiveSpeakerChanged(ConferenceMixer mixer, ConferenceMixer.Participant speaker) {
+			SystemUtils.log(LoggerLevel.INFO,"CONFERENCE: room '"+mixer.getName()+"': active speaker: "+speaker);
+		}
+	};
+
+
+	/** Creates the codec with the given name.
+	  * @return the codec, or <i>null</i> if not supported */
+	static Codec createCodec(String name) {
+		if (name.equalsIgnoreCase("PCMU")) return new Codec(new PcmToG711Encoder(G711Encoding.G711_ULAW),new G711ToPcmEncoder(G711Encoding.G711_ULAW));
+		if (name.equalsIgnoreCase("PCMA")) return new Codec(new PcmToG711Encoder(G711Encoding.G711_ALAW),new G711ToPcmEncoder(G711Encoding.G711_ALAW));
+		if (name.equalsIgnoreCase("GSM")) return new Codec(new PcmToGsmEncoder(),new GsmToPcmEncoder());
+		// else
+		return null;
+	}
+
+
+	/** Gets the conference room with the given name, creating it if not present. */
+	static synchronized ConferenceMixer getRoom(String name) {
+		ConferenceMixer mixer=(ConferenceMixer)rooms.get(name);
+		if (mixer==null) {
+			mixer=new ConferenceMixer(name,media_clock,this_mixer_listener);
+			rooms.put(name,mixer);
+			SystemUtils.log(LoggerLevel.INFO,"CONFERENCE: room '"+name+"' created");
+		}
+		return mixer;
+	}
+
+
+	/** Removes a member from its room, and the room when empty. */
+	static synchronized void leaveRoom(Member member) {
+		member.halt();
+		ConferenceMixer mixer=member.mixer;
+		if (mixer.size()==0) {
+			mixer.halt();
+			rooms.remove(mixer.getName());
+			SystemUtils.log(LoggerLevel.INFO,"CONFERENCE: room '"+mixer.getName()+"' closed");
+		}
+	}
+
+	
+	/** Processes a new call invite. */
+	static private void processCallInvite(final UAS uas, final SipProvider sip_provider, final Call call, final NameAddress callee, final NameAddress caller, String sdp, final SipMessage invite) {		
+		SystemUtils.log(LoggerLevel.INFO,"CONFERENCE: processCallInvite()");
+		if (server) uas.listen();
+		String room=callee.getAddress().getParameter(PARAM_ROOM);
+		if (room==null && callee.getAddress().isSipURI()) room=new SipURI(callee.getAddress()).getUserName();
+		if (room==null) room=DEFAULT_ROOM;
+		int media_port=media_ports.allocatePort();
+		if (media_port<0) {
+			SystemUtils.log(LoggerLevel.WARNING,"CONFERENCE: no media port available");
+			call.refuse();
+			return;
+		}
+		// else
+		SdpMessage remote_sdp=new SdpMessage(sdp);
+		ConnectionField remote_cf=remote_sdp.getConnection();
+		SdpMessage local_start_sdp=new SdpMessage();
+		local_start_sdp.setConnection(new ConnectionField(null,media_addr));
+		synchronized (media_desc) {
+			media_desc.setPort(media_port);
+			local_start_sdp.addMediaDescriptor(media_desc.toMediaDescriptor());
+		}
+		final SdpMessage local_sdp=OfferAnswerModel.makeSessionDescriptorProduct(local_start_sdp,remote_sdp);
+		
+		// select the codec
+		MediaSpec ms=null;
+		MediaDescriptor local_md=local_sdp.getMediaDescriptor(media_desc.getMedia());
+		if (local_md!=null) {
+			Vector formats=local_md.getMedia().getFormatList();
+			MediaSpec[] specs=media_desc.getMediaSpecs();
+			for (int i=0; i<specs.length && ms==null && formats.size()>0; i++) {
+				if (String.valueOf(specs[i].getAVP()).equals(formats.elementAt(0))) ms=specs[i];
+			}
+		}
+		Member member=null;
+		if (ms!=null) {
+			MediaDescriptor remote_md=remote_sdp.getMediaDescriptor(media_desc.getMedia());
+			ConnectionField cf=remote_md.getConnection();
+			String remote_addr=(cf!=null?cf:remote_cf).getAddress();
+			int remote_port=remote_md.getMedia().getPort();
+			SystemUtils.log(LoggerLevel.DEBUG,"CONFERENCE: room '"+room+"': codec: "+ms.getCodec());
+			member=new Member();
+			member.port=media_port;
+			synchronized (ConferenceUAS.class) {
+				member.mixer=getRoom(room);
+				member.participant=member.mixer.add(caller,createCodec(ms.getCodec()));
+			}
+			try {
+				member.udp_socket=new UdpSocket(media_port);
+				member.rtp_receiver=new RtpStreamReceiver(member.participant.getOutputStream(),null,member.udp_socket);
+				member.rtp_sender=new RtpStreamSender(member.participant.getInputStream(),false,ms.getAVP(),ms.getSampleRate(),ms.getChannels(),ConferenceMixer.FRAME_TIME,ms.getPacketSize(),null,member.udp_socket,remote_addr,remote_port,null);
+				member.rtp_receiver.start();
+				member.rtp_sender.start();
+				members.put(call,member);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+				leaveRoom(member);
+				member=null;
+			}
+		}
+		else media_ports.releasePort(media_port);
+		if (member==null) {
+			call.refuse();
+			return;
+		}
+		// else
+		new Timer(max_call_time*1000L,new TimerListener() {
+			@Override
+			public void onTimeout(Timer t) {
+				if (call.getState().equals(CallState.C_ACTIVE)) call.hangup();
+				processCallBye(uas,sip_provider,call,null);
+			}			
+		}).start();			
+		call.setLocalSessionDescriptor(local_sdp.toString());
+		CallListenerAdapter.accept(call);
+		SystemUtils.log(LoggerLevel.INFO,"CONFERENCE: "+caller+" joined room "+member.mixer);
+	}
+	
+	/** Processes a new call bye. */
+	static private void processCallBye(final UAS uas, final SipProvider sip_provider, final Call call, final SipMessage bye) {
+		SystemUtils.log(LoggerLevel.INFO,"CONFERENCE: processCallBye()");
+		Member member=(Member)members.remove(call);
+		if (member!=null) leaveRoom(member);
+		if (!server && members.size()==0) {
+			uas.halt();
+		}		
+	}
+
+
+	/** Measures the mixing capacity, by mixing synthetic PCMU streams without any network I/O.
+	  * @param n_rooms number of rooms
+	  * @param n_participants number of participants per room
+	  * @param n_frames number of frames to be mixed */
+	static void runBenchmark(int n_rooms, int n_participants, int n_frames) {
+		ConferenceMixer[] mixers=new ConferenceMixer[n_rooms];
+		ConferenceMixer.Participant[][] participants=new ConferenceMixer.Participant[n_rooms][n_participants];
+		for (int r=0; r<n_rooms; r++) {
+			mixers[r]=new ConferenceMixer("room"+r,null,null);
+			for (int p=0; p<n_participants; p++) participants[r][p]=mixers[r].add("p"+p,createCodec("PCMU"));
+		}
+		byte[] frame=new byte[ConferenceMixer.FRAME_SAMPLES];
+		new Random(0).nextBytes(frame);
+		byte[] buf=new byte[ConferenceMixer.FRAME_SAMPLES];
+		try {
+			long start=0;
+			for (int f=-n_frames/10; f<n_frames; f++) {
+				// the first tenth of the frames is used for warm-up
+				if (f==0) start=System.nanoTime();
+				for (int r=0; r<n_rooms; r++) {
+					for (int p=0; p<n_participants; p++) participants[r][p].getOutputStream().write(frame,0,frame.length);
+					mixers[r].mix();
+					for (int p=0; p<n_participants; p++) participants[r][p].getInputStream().read(buf,0,buf.length);
+				}
+			}
+			long time=System.nanoTime()-start;
+			long frame_time=time/n_frames;
+			long frame_period=ConferenceMixer.FRAME_TIME*1000000L;
+			System.out.println("rooms: "+n_rooms+", participants per room: "+n_participants);
+			System.out.println("time per frame (all rooms): "+(frame_time/1000)+" us");
+			System.out.println("time per room: "+(frame_time/n_rooms/1000)+" us, per participant: "+(frame_time/n_rooms/n_participants)+" ns");
+			System.out.println("load of one core: "+(frame_time*1000/frame_period/10.0)+"%");
+			System.out.println("estimated capacity of one core: "+(frame_period*n_rooms/frame_time)+" rooms of "+n_participants+" participants, i.e. "+(frame_period*n_rooms*n_participants/frame_time)+" participants");
+		}
+		catch (java.io.IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int sip_port=flags.getInteger("-p",SipStack.default_port,"<port>","SIP port");
+		media_addr=flags.getString("--addr",media_addr,"<address>","media IP address");
+		String[] media_port_interval=flags.getStringTuple("-m",2,null,"<port1> <port2>","media port interval (i.e. all ports between port1 and port2)");
+		String uri=flags.getString("-r",null,"<uri>","registers the given user URI");
+		String outbound_proxy=flags.getString("-o",null,"<uri>","outbound proxy");
+		int keepalive_time=flags.getInteger("-t",0,"<secs>","keep-alive time [secs]");
+		server=!flags.getBoolean("--single","serves only the first conference call");
+		int clock_workers=flags.getInteger("--clock",MediaClock.DEFAULT_WORKERS,"<n>","number of media clock threads used for mixing all rooms");
+		String[] bench=flags.getStringTuple("--bench",2,null,"<rooms> <participants>","measures the mixing capacity with the given number of rooms and participants per room, and exits");
+		boolean prompt_exit=flags.getBoolean("--prompt","prompt for exit");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(ConferenceUAS.class.getName()));
+			return;
+		}
+		
+		if (bench!=null) {
+			runBenchmark(Integer.parseInt(bench[0]),Integer.parseInt(bench[1]),5000);
+			return;
+		}
+		// else
+		SystemUtils.setDefaultLogger(new LoggerWriter(System.out,LoggerLevel.DEBUG));
+		
+		if (media_port_interval!=null) {
+			first_media_port=Integer.parseInt(media_port_interval[0]);
+			last_media_port=Integer.parseInt(media_port_interval[1]);
+		}
+		media_ports=new MediaSessionManager(first_media_port,last_media_port);
+		media_clock=new MediaClock(clock_workers>0? clock_workers : 1);
+
+		SipUser sip_user=uri!=null? new SipUser(new NameAddress(uri)):null;
+		UAS uas=new UAS(sip_port,sip_user,outbound_proxy!=null?new SipURI(outbound_proxy):null,keepalive_time) {
+			@Override
+			public void processCallInvite(Call call, NameAddress callee, NameAddress caller, String sdp, SipMessage invite) {
+				ConferenceUAS.processCallInvite(this,sip_provider,call,callee,caller,sdp,invite);
+			}
+			@Override
+			public void processCallBye(Call call, SipMessage bye) {
+				ConferenceUAS.processCallBye(this,sip_provider,call,bye);
+			}
+			@Override
+			protected void processReceivedMessage(Messaging mg, NameAddress sender, NameAddress recipient, String subject, String content_type, byte[] content, SipMessage message) {
+				// do nothing
+			}			
+		};
+		
+		if (prompt_exit) {
+			System.out.println("press 'enter' to exit");
+			SystemUtils.readLine();
+			uas.halt();
+		}
+		
+	}
+
+}
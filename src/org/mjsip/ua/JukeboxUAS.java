@@ -2,12 +2,10 @@ package org.mjsip.ua;
 
 
 import java.io.File;
-import java.util.Hashtable;
 import java.util.Vector;
 
-import javax.sound.sampled.AudioInputStream;
-
-import org.mjsip.media.AudioFile;
+import org.mjsip.media.MediaCache;
+import org.mjsip.media.MediaClock;
 import org.mjsip.media.MediaDesc;
 import org.mjsip.media.MediaSpec;
 import org.mjsip.media.RtpStreamSender;
@@ -66,13 +64,16 @@ public class JukeboxUAS {
 	/** Last media port */
 	static int last_media_port=first_media_port;
 
-	/** Last media port */
-	static int media_port=first_media_port;
-
 	static MediaDesc media_desc=MediaDesc.parseMediaDesc("audio "+first_media_port+" RTP/AVP { audio 0 PCMU 8000 160 }");
 
-	/** Media flows */
-	static Hashtable media_flows=new Hashtable();
+	/** Media sessions */
+	static MediaSessionManager media_sessions=null;
+
+	/** Cache of the pre-encoded audio files */
+	static MediaCache media_cache=null;
+
+	/** Media clock shared by all RTP senders */
+	static MediaClock media_clock=null;
 
 	
 	/** Processes a new call invite. */
@@ -81,17 +82,27 @@ public class JukeboxUAS {
 		if (server) uas.listen();
 		String audio_file=callee.getAddress().getParameter(PARAM_RESOURCE);
 		if (audio_file!=null) audio_file=media_path+"/"+audio_file;
-		if (!new File(media_path+"/"+audio_file).isFile()) {
+		if (audio_file==null || !new File(audio_file).isFile()) {
 			SystemUtils.log(LoggerLevel.WARNING,"JUKEBOX: audio file '"+audio_file+"' not found");
 			audio_file=default_audio_file;
 		}
+		int media_port=media_sessions.allocatePort();
+		if (media_port<0) {
+			SystemUtils.log(LoggerLevel.WARNING,"JUKEBOX: no media port available");
+			call.refuse();
+			return;
+		}
+		// else
 		SdpMessage remote_sdp=new SdpMessage(sdp);
 		ConnectionField remote_cf=remote_sdp.getConnection();
 		SdpMessage local_start_sdp=new SdpMessage();
 		local_start_sdp.setConnection(new ConnectionField(null,media_addr));
-		media_desc.setPort(media_port);
-		local_start_sdp.addMediaDescriptor(media_desc.toMediaDescriptor());
+		synchronized (media_desc) {
+			media_desc.setPort(media_port);
+			local_start_sdp.addMediaDescriptor(media_desc.toMediaDescriptor());
+		}
 		final SdpMessage local_sdp=OfferAnswerModel.makeSessionDescriptorProduct(local_start_sdp,remote_sdp);
+		boolean accepted=false;
 		
 		Vector media=local_sdp.getMediaDescriptors();
 		if (media!=null && media.size()>0 && audio_file!=null) {
@@ -101,15 +112,14 @@ public class JukeboxUAS {
 			int remote_port=remote_md.getMedia().getPort();
 			MediaSpec ms=media_desc.getMediaSpecs()[0];
 			SystemUtils.log(LoggerLevel.DEBUG,"JUKEBOX: media: "+media_desc.getMedia());
-			AudioInputStream audio_input_stream;
 			try {
-				audio_input_stream=AudioFile.getAudioFileInputStream(audio_file,SimpleAudioSystem.DEFAULT_AUDIO_FORMAT);
-				RtpStreamSender rtp_sender=new RtpStreamSender(audio_input_stream,true,ms.getAVP(),ms.getSampleRate(),ms.getChannels(),20,ms.getPacketSize(),null,media_port,remote_addr,remote_port,null);
+				MediaCache.Media audio=media_cache.get(audio_file,SimpleAudioSystem.DEFAULT_AUDIO_FORMAT,ms.getPacketSize());
+				RtpStreamSender rtp_sender=new RtpStreamSender(audio.getInputStream(),true,ms.getAVP(),ms.getSampleRate(),ms.getChannels(),20,ms.getPacketSize(),null,media_port,remote_addr,remote_port,null);
+				rtp_sender.setMediaClock(media_clock);
+				media_sessions.add(call,media_port,rtp_sender);
 				rtp_sender.start();
 				SystemUtils.log(LoggerLevel.DEBUG,"JUKEBOX: rtp stream: started");
-				media_port++;
-				if (media_port>last_media_port) media_port=first_media_port;
-				media_flows.put(call,rtp_sender);
+				accepted=true;
 				new Timer(max_call_time*1000L,new TimerListener() {
 					@Override
 					public void onTimeout(Timer t) {
@@ -122,19 +132,18 @@ public class JukeboxUAS {
 			}
 			catch (Exception e) {
 				e.printStackTrace();
-				call.refuse();
 			}
-		}			
+		}
+		if (!accepted) {
+			if (!media_sessions.remove(call)) media_sessions.releasePort(media_port);
+			call.refuse();
+		}
 	}
 	
 	/** Processes a new call bye. */
 	static private void processCallBye(final UAS uas, final SipProvider sip_provider, final Call call, final SipMessage bye) {
 		SystemUtils.log(LoggerLevel.INFO,"JUKEBOX: processCallBye()");
-		RtpStreamSender rtp_sender=(RtpStreamSender)media_flows.get(call);
-		if (rtp_sender!=null) {
-			((RtpStreamSender)rtp_sender).halt();
-			media_flows.remove(call);
-		}
+		media_sessions.remove(call);
 		if (!server) {
 			uas.halt();
 		}		
@@ -154,6 +163,9 @@ public class JukeboxUAS {
 		int keepalive_time=flags.getInteger("-t",0,"<secs>","keep-alive time [secs]");
 		force_reverse_route=flags.getBoolean("--rroute","forces reverse route when replying with a request");
 		server=flags.getBoolean("-s","serves multiple calls");
+		long cache_size=flags.getLong("--cache-size",MediaCache.DEFAULT_MAX_SIZE/1024/1024,"<MB>","maximum size of the cache of pre-encoded audio files [MB]")*1024*1024;
+		String cache_dir=flags.getString("--cache-dir",null,"<dir>","keeps pre-encoded audio files in memory-mapped files within the given directory");
+		int clock_workers=flags.getInteger("--clock",MediaClock.DEFAULT_WORKERS,"<n>","number of media clock threads used for pacing all RTP streams (0 for one thread per stream)");
 		boolean prompt_exit=flags.getBoolean("--prompt","prompt for exit");
 		
 		if (help) {
@@ -166,8 +178,11 @@ public class JukeboxUAS {
 		if (media_port_interval!=null) {
 			first_media_port=Integer.parseInt(media_port_interval[0]);
 			last_media_port=Integer.parseInt(media_port_interval[1]);
-			if (first_media_port<=0 || last_media_port<first_media_port) throw new RuntimeException("Invalid media port range: "+first_media_port+"-"+last_media_port);
 		}
+		media_sessions=new MediaSessionManager(first_media_port,last_media_port);
+		media_cache=new MediaCache(cache_size,cache_dir);
+
+		if (clock_workers>0) media_clock=new MediaClock(clock_workers);
 
 		SipUser sip_user=uri!=null? new SipUser(new NameAddress(uri)):null;
 		UAS uas=new UAS(sip_port,sip_user,outbound_proxy!=null?new SipURI(outbound_proxy):null,keepalive_time) {
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.mjsip.ua;
+
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mjsip.media.RtpStreamSender;
+
+
+/** MediaSessionManager keeps the media sessions of a UA that serves many calls at the same time.
+  * <p>
+  * It allocates the local media ports from a given port range, skipping the ports
+  * that are still in use, and maintains the RTP stream of each call.
+  * It is thread-safe.
+  */
+public class MediaSessionManager {
+	
+	/** First media port */
+	int first_port;
+
+	/** Last media port */
+	int last_port;
+
+	/** Ports in use (indexed by port-first_port) */
+	BitSet used_ports;
+
+	/** Next port to be tried */
+	int next_port;
+
+	/** Active sessions (call --> Session) */
+	ConcurrentHashMap sessions=new ConcurrentHashMap();
+
+
+	/** A media session. */
+	static class Session {
+		/** Local port */
+		int port;
+		/** RTP sender */
+		RtpStreamSender rtp_sender;
+
+		/** Creates a new Session. */
+		Session(int port, RtpStreamSender rtp_sender) {
+			this.port=port;
+			this.rtp_sender=rtp_sender;
+		}
+	}
+
+
+
+	/** Creates a new MediaSessionManager.
+	  * @param first_port the first media port
+	  * @param last_port the last media port */
+	public MediaSessionManager(int first_port, int last_port) {
+		if (first_port<=0 || last_port<first_port) throw new RuntimeException("Invalid media port range: "+first_port+"-"+last_port);
+		this.first_port=first_port;
+		this.last_port=last_port;
+		used_ports=new BitSet(last_port-first_port+1);
+		next_port=first_port;
+	}
+
+
+	/** Allocates a free media port.
+	  * Ports are assigned in round-robin, so that a just released port is not immediately reused.
+	  * @return the port, or -1 if all ports are in use */
+	public synchronized int allocatePort() {
+		int n=last_port-first_port+1;
+		for (int i=0; i<n; i++) {
+			int port=next_port;
+			next_port=(port<last_port)? port+1 : first_port;
+			if (!used_ports.get(port-first_port)) {
+				used_ports.set(port-first_port);
+				return port;
+			}
+		}
+		return -1;
+	}
+
+
+	/** Releases a media port.
+	  * @param port the port */
+	public synchronized void releasePort(int port) {
+		if (port>=first_port && port<=last_port) used_ports.clear(port-first_port);
+	}
+
+
+	/** Adds the media session of a call.
+	  * @param call the call (or any other key identifying the session)
+	  * @param port the local media port, previously allocated by {@link #allocatePort()}
+	  * @param rtp_sender the RTP sender */
+	public void add(Object call, int port, RtpStreamSender rtp_sender) {
+		Session prev=(Session)sessions.put(call,new Session(port,rtp_sender));
+		if (prev!=null) close(prev);
+	}
+
+
+	/** Gets the RTP sender of a call.
+	  * @return the sender, or <i>null</i> if the session is not present */
+	public RtpStreamSender getSender(Object call) {
+		Session session=(Session)sessions.get(call);
+		return session!=null? session.rtp_sender : null;
+	}
+
+
+	/** Removes the media session of a call, stopping the RTP stream and releasing the media port.
+	  * @param call the call
+	  * @return true if the session was present */
+	public boolean remove(Object call) {
+		Session session=(Session)sessions.remove(call);
+		if (session==null) return false;
+		// else
+		close(session);
+		return true;
+	}
+
+
+	/** Stops the RTP stream and releases the port of a session. */
+	private void close(Session session) {
+		if (session.rtp_sender!=null) session.rtp_sender.halt();
+		releasePort(session.port);
+	}
+
+
+	/** Gets the number of active sessions. */
+	public int size() {
+		return sessions.size();
+	}
+
+
+	/** Gets the number of free media ports. */
+	public synchronized int getFreePorts() {
+		return last_port-first_port+1-used_ports.cardinality();
+	}
+
+
+	/** Removes all sessions. */
+	public void clear() {
+		for (Iterator i=sessions.keySet().iterator(); i.hasNext(); ) remove(i.next());
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "MediaSessionManager: "+sessions.size()+" sessions, ports "+first_port+"-"+last_port;
+	}
+
+}
@@ -25,6 +25,7 @@ package org.mjsip.ua;
 
 import java.io.PrintStream;
 
+import org.mjsip.rtp.RtpBufferPool;
 import org.mjsip.sip.address.NameAddress;
 import org.mjsip.sip.address.SipURI;
 import org.mjsip.sip.provider.SipProvider;
@@ -120,6 +121,7 @@ public class UA {
 		String auth_passwd=flags.getString("--auth-passwd",null,"<passwd>","passwd used for authentication");
 
 		int debug_level=flags.getInteger("--debug-level",-1,"<level>","debug level (level=0 means no log)");
+		int rtp_leak_check=flags.getInteger("--rtp-leak-check",0,"<secs>","periodically logs the RTP buffers still not returned to the pool the given time after their stream terminated (debug)");
 		String log_path=flags.getString("--log-path",null,"<path>","log folder");
 
 		no_gui=flags.getBoolean("--no-gui",no_gui,"do not use graphical user interface");
@@ -138,6 +140,7 @@ public class UA {
 			SipStack.init(config_file);
 			if (debug_level>=0) SipStack.debug_level=debug_level;
 			if (log_path!=null) SipStack.log_path=log_path;
+			if (rtp_leak_check>0) RtpBufferPool.startLeakCheck(rtp_leak_check*1000L,rtp_leak_check*1000L);
 
 			// init sip_provider
 			if (config_file!=null) sip_provider=new SipProvider(config_file);
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/** Counter is a monotonically increasing metric (e.g. number of received messages).
+  * <p>
+  * Updates are lock-free and do not contend among threads (the counter is striped),
+  * so it can be updated in the message processing path with negligible overhead.
+  */
+public class Counter extends Metric {
+	
+	/** Value */
+	LongAdder value=new LongAdder();
+
+
+
+	/** Creates a new Counter.
+	  * @param label the label, in Prometheus text format, or empty string */
+	Counter(String label) {
+		super(label);
+	}
+
+
+	/** Increments the counter. */
+	public void inc() {
+		value.increment();
+	}
+
+
+	/** Adds a value to the counter.
+	  * @param n the value to be added (non-negative) */
+	public void add(long n) {
+		value.add(n);
+	}
+
+
+	/** Gets the current value. */
+	public long get() {
+		return value.sum();
+	}
+
+
+	@Override
+	void write(String name, StringBuilder sb) {
+		writeSample(sb,name,label,null,String.valueOf(value.sum()));
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return String.valueOf(value.sum());
+	}
+
+}
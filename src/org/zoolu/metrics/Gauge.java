@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/** Gauge is a metric that can go up and down (e.g. number of active sessions).
+  * <p>
+  * The value can be either set by the instrumented code, or read from a {@link Gauge.Source}
+  * only when the metrics are exported (e.g. the size of a table), so that nothing has to be done
+  * in the processing path.
+  */
+public class Gauge extends Metric {
+	
+	/** Source of the value of a gauge, read when the metrics are exported. */
+	public interface Source {
+		/** Gets the current value. */
+		public long getValue();
+	}
+
+
+	/** Value */
+	AtomicLong value=new AtomicLong(0);
+
+	/** Source of the value, or <i>null</i> */
+	volatile Source source=null;
+
+
+
+	/** Creates a new Gauge.
+	  * @param label the label, in Prometheus text format, or empty string */
+	Gauge(String label) {
+		super(label);
+	}
+
+
+	/** Sets the source of the value.
+	  * @param source the source, or <i>null</i> for using the value set through {@link #set(long)}, {@link #inc()}, {@link #dec()}, and {@link #add(long)} */
+	public synchronized void setSource(Source source) {
+		this.source=source;
+	}
+
+
+	/** Removes the source of the value, only if it has not been replaced by another source.
+	  * @param source the source to be removed
+	  * @return whether the source has been removed */
+	public synchronized boolean removeSource(Source source) {
+		if (source==null || this.source!=source) return false;
+		// else
+		this.source=null;
+		return true;
+	}
+
+
+	/** Sets the value. */
+	public void set(long n) {
+		value.set(n);
+	}
+
+
+	/** Increments the value. */
+	public void inc() {
+		value.incrementAndGet();
+	}
+
+
+	/** Decrements the value. */
+	public void dec() {
+		value.decrementAndGet();
+	}
+
+
+	/** Adds a value (possibly negative). */
+	public void add(long n) {
+		value.addAndGet(n);
+	}
+
+
+	/** Gets the current value. */
+	public long get() {
+		Source source=this.source;
+		return (source!=null)? source.getValue() : value.get();
+	}
+
+
+	@Override
+	void write(String name, StringBuilder sb) {
+		writeSample(sb,name,label,null,String.valueOf(get()));
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return String.valueOf(get());
+	}
+
+}
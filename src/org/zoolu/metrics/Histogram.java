@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/** Histogram records the distribution of non-negative integer values (e.g. latencies in nanoseconds).
+  * <p>
+  * Values are counted in log-linear buckets, as in HDR histograms: each power of two is divided into
+  * {@link #SUB_BUCKETS} sub-buckets of equal width, so that any value is recorded with a relative error
+  * lower than 1/{@link #SUB_BUCKETS}, over the entire range of long integers and with a fixed memory footprint.
+  * Recording a value costs a couple of atomic increments, without locks or allocations.
+  * <p>
+  * When exported in Prometheus format, values are multiplied by the given unit (e.g. 1e-9 for exporting
+  * nanoseconds as seconds), and cumulative buckets are reported for the powers of two between the given
+  * lowest and highest values.
+  */
+public class Histogram extends Metric {
+	
+	/** Number of bits of the sub-bucket index */
+	static final int SUB_BITS=3;
+
+	/** Number of sub-buckets per power of two */
+	public static final int SUB_BUCKETS=1<<SUB_BITS;
+
+	/** Total number of buckets */
+	static final int BUCKETS=(64-SUB_BITS+1)<<SUB_BITS;
+
+
+	/** Counts of the buckets */
+	AtomicLongArray counts=new AtomicLongArray(BUCKETS);
+
+	/** Sum of the recorded values */
+	LongAdder sum=new LongAdder();
+
+	/** Unit of the exported values */
+	double unit;
+
+	/** Exponent of the lowest exported bucket bound */
+	int lowest_exp;
+
+	/** Exponent of the highest exported bucket bound */
+	int highest_exp;
+
+
+
+	/** Creates a new Histogram.
+	  * @param label the label, in Prometheus text format, or empty string
+	  * @param unit the unit of the exported values (e.g. 1e-9 for recording nanoseconds and exporting seconds)
+	  * @param lowest the lowest value of the exported bucket bounds (rounded to a power of two)
+	  * @param highest the highest value of the exported bucket bounds (rounded to a power of two) */
+	Histogram(String label, double unit, long lowest, long highest) {
+		super(label);
+		this.unit=unit;
+		lowest_exp=63-Long.numberOfLeadingZeros(Math.max(lowest,1));
+		highest_exp=Math.max(lowest_exp,63-Long.numberOfLeadingZeros(Math.max(highest,1)));
+	}
+
+
+	/** Gets the index of the bucket of a value. */
+	static int indexOf(long value) {
+		if (value<SUB_BUCKETS) return (int)value;
+		// else
+		int exp=63-Long.numberOfLeadingZeros(value);
+		return ((exp-SUB_BITS+1)<<SUB_BITS)+(int)((value>>>(exp-SUB_BITS))&(SUB_BUCKETS-1));
+	}
+
+
+	/** Gets the lowest value of a bucket. */
+	static long lowestValueOf(int index) {
+		if (index<SUB_BUCKETS) return index;
+		// else
+		int exp=(index>>>SUB_BITS)+SUB_BITS-1;
+		return ((long)(SUB_BUCKETS+(index&(SUB_BUCKETS-1))))<<(exp-SUB_BITS);
+	}
+
+
+	/** Gets the highest value of a bucket. */
+	static long highestValueOf(int index) {
+		if (index<SUB_BUCKETS) return index;
+		// else
+		int exp=(index>>>SUB_BITS)+SUB_BITS-1;
+		return lowestValueOf(index)+(1L<<(exp-SUB_BITS))-1;
+	}
+
+
+	/** Records a value.
+	  * @param value the value (negative values are recorded as 0) */
+	public void record(long value) {
+		if (value<0) value=0;
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+	}
+
+
+	/** Records the time elapsed since a given time.
+	  * @param start_time the start time, as returned by {@link System#nanoTime()} */
+	public void recordSince(long start_time) {
+		record(System.nanoTime()-start_time);
+	}
+
+
+	/** Gets the number of recorded values. */
+	public long getCount() {
+		long count=0;
+		for (int i=0; i<BUCKETS; i++) count+=counts.get(i);
+		return count;
+	}
+
+
+	/** Gets the sum of the recorded values. */
+	public long getSum() {
+		return sum.sum();
+	}
+
+
+	/** Gets the value at a given percentile.
+	  * @param percentile the percentile (between 0 and 100)
+	  * @return the value (approximated to the middle of its bucket), or 0 if no value has been recorded */
+	public long getPercentile(double percentile) {
+		long[] snapshot=new long[BUCKETS];
+		long count=0;
+		for (int i=0; i<BUCKETS; i++) count+=snapshot[i]=counts.get(i);
+		if (count==0) return 0;
+		// else
+		long rank=(long)Math.ceil(count*Math.min(Math.max(percentile,0),100)/100);
+		if (rank<1) rank=1;
+		long n=0;
+		for (int i=0; i<BUCKETS; i++) {
+			n+=snapshot[i];
+			if (n>=rank) return lowestValueOf(i)+(highestValueOf(i)-lowestValueOf(i))/2;
+		}
+		return highestValueOf(BUCKETS-1);
+	}
+
+
+	@Override
+	void write(String name, StringBuilder sb) {
+		String bucket_name=name+"_bucket";
+		long count=0;
+		int i=0;
+		for (int exp=lowest_exp; exp<=highest_exp; exp++) {
+			// bucket bound: 2^exp, i.e. all buckets below index of 2^exp
+			int end=indexOf(1L<<exp);
+			for (; i<end; i++) count+=counts.get(i);
+			writeSample(sb,bucket_name,label,"le=\""+(unit*(1L<<exp))+"\"",String.valueOf(count));
+		}
+		for (; i<BUCKETS; i++) count+=counts.get(i);
+		writeSample(sb,bucket_name,label,"le=\"+Inf\"",String.valueOf(count));
+		writeSample(sb,name+"_sum",label,null,String.valueOf(unit*sum.sum()));
+		writeSample(sb,name+"_count",label,null,String.valueOf(count));
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "count="+getCount()+", p50="+getPercentile(50)+", p99="+getPercentile(99);
+	}
+
+}
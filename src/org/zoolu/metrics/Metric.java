@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+/** Metric is a single time series of a {@link MetricFamily}, identified by the value of the label of the family (if any).
+  * <p>
+  * Metrics are created by the family and are never removed, so that they can be referred
+  * by the instrumented code once, and then updated without any further lookup.
+  */
+public abstract class Metric {
+	
+	/** Label, in Prometheus text format (e.g. <code>method="INVITE"</code>), or empty string */
+	String label;
+
+
+
+	/** Creates a new Metric.
+	  * @param label the label, in Prometheus text format, or empty string */
+	protected Metric(String label) {
+		this.label=label;
+	}
+
+
+	/** Gets the label.
+	  * @return the label in Prometheus text format (e.g. <code>method="INVITE"</code>), or empty string */
+	public String getLabel() {
+		return label;
+	}
+
+
+	/** Writes the samples of this metric in Prometheus text format.
+	  * @param name the metric name
+	  * @param sb the buffer where the samples are appended */
+	abstract void write(String name, StringBuilder sb);
+
+
+	/** Writes a sample in Prometheus text format.
+	  * @param sb the buffer where the sample is appended
+	  * @param name the sample name
+	  * @param label the label, or empty string
+	  * @param extra_label an additional label (e.g. the bucket bound), or <i>null</i>
+	  * @param value the sample value */
+	static void writeSample(StringBuilder sb, String name, String label, String extra_label, String value) {
+		sb.append(name);
+		if (label.length()>0 || extra_label!=null) {
+			sb.append('{').append(label);
+			if (extra_label!=null) {
+				if (label.length()>0) sb.append(',');
+				sb.append(extra_label);
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+}
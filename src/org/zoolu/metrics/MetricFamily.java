@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/** MetricFamily is a set of metrics of the same type and name, that differ for the value of one label
+  * (e.g. the number of received requests for each method).
+  * A family without label has one single metric.
+  * <p>
+  * Metrics are created the first time they are requested; the number of metrics of a family is limited
+  * to {@link #MAX_METRICS}, and further label values are all counted in the metric with label value {@link #OTHER},
+  * so that label values taken from received messages cannot make the family grow without bound.
+  */
+public class MetricFamily {
+	
+	/** Type counter */
+	public static final String COUNTER="counter";
+
+	/** Type gauge */
+	public static final String GAUGE="gauge";
+
+	/** Type histogram */
+	public static final String HISTOGRAM="histogram";
+
+	/** Label value used when the maximum number of metrics is reached */
+	public static final String OTHER="other";
+
+	/** Maximum number of metrics of a family */
+	public static int MAX_METRICS=256;
+
+	/** Maximum integer label value of the metrics that are cached by integer value */
+	static final int MAX_INT_VALUE=1000;
+
+
+	/** Name */
+	String name;
+
+	/** Help text */
+	String help;
+
+	/** Type */
+	String type;
+
+	/** Label name, or <i>null</i> */
+	String label_name;
+
+	/** Unit of the exported values (histograms only) */
+	double unit;
+
+	/** Lowest exported bucket bound (histograms only) */
+	long lowest;
+
+	/** Highest exported bucket bound (histograms only) */
+	long highest;
+
+	/** Metrics (label value --> Metric) */
+	ConcurrentHashMap metrics=new ConcurrentHashMap();
+
+	/** Metrics referred by integer label value (e.g. response codes) */
+	AtomicReferenceArray int_metrics=new AtomicReferenceArray(MAX_INT_VALUE);
+
+
+
+	/** Creates a new MetricFamily.
+	  * @param name the metric name
+	  * @param help the help text
+	  * @param type the type ({@link #COUNTER}, {@link #GAUGE}, or {@link #HISTOGRAM})
+	  * @param label_name the label name, or <i>null</i> */
+	public MetricFamily(String name, String help, String type, String label_name) {
+		this(name,help,type,label_name,1,0,0);
+	}
+
+
+	/** Creates a new MetricFamily.
+	  * @param name the metric name
+	  * @param help the help text
+	  * @param type the type ({@link #COUNTER}, {@link #GAUGE}, or {@link #HISTOGRAM})
+	  * @param label_name the label name, or <i>null</i>
+	  * @param unit the unit of the exported values (histograms only)
+	  * @param lowest the lowest exported bucket bound (histograms only)
+	  * @param highest the highest exported bucket bound (histograms only) */
+	public MetricFamily(String name, String help, String type, String label_name, double unit, long lowest, long highest) {
+		this.name=name;
+		this.help=help;
+		this.type=type;
+		this.label_name=label_name;
+		this.unit=unit;
+		this.lowest=lowest;
+		this.highest=highest;
+	}
+
+
+	/** Gets the name. */
+	public String getName() {
+		return name;
+	}
+
+
+	/** Gets the type. */
+	public String getType() {
+		return type;
+	}
+
+
+	/** Gets the label name.
+	  * @return the label name, or <i>null</i> if the family has no label */
+	public String getLabelName() {
+		return label_name;
+	}
+
+
+	/** Gets the metric of a family without label. */
+	public Metric get() {
+		return get("");
+	}
+
+
+	/** Gets the metric with a given label value.
+	  * @param value the label value
+	  * @return the metric (created if not present) */
+	public Metric get(String value) {
+		Metric metric=(Metric)metrics.get(value);
+		if (metric!=null) return metric;
+		// else
+		if (metrics.size()>=MAX_METRICS && !value.equals(OTHER)) return get(OTHER);
+		// else
+		metric=createMetric(value);
+		Metric prev=(Metric)metrics.putIfAbsent(value,metric);
+		return (prev!=null)? prev : metric;
+	}
+
+
+	/** Gets the metric with a given integer label value (e.g. a response code), without allocations.
+	  * @param value the label value
+	  * @return the metric (created if not present) */
+	public Metric get(int value) {
+		if (value<0 || value>=MAX_INT_VALUE) return get(String.valueOf(value));
+		// else
+		Metric metric=(Metric)int_metrics.get(value);
+		if (metric==null) {
+			metric=get(String.valueOf(value));
+			int_metrics.set(value,metric);
+		}
+		return metric;
+	}
+
+
+	/** Creates a new metric. */
+	private Metric createMetric(String value) {
+		String label=(label_name!=null)? label_name+"=\""+escape(value)+"\"" : "";
+		if (type.equals(COUNTER)) return new Counter(label);
+		// else
+		if (type.equals(GAUGE)) return new Gauge(label);
+		// else
+		return new Histogram(label,unit,lowest,highest);
+	}
+
+
+	/** Escapes a label value. */
+	private static String escape(String value) {
+		if (value.indexOf('\\')<0 && value.indexOf('"')<0 && value.indexOf('\n')<0) return value;
+		// else
+		StringBuilder sb=new StringBuilder();
+		for (int i=0; i<value.length(); i++) {
+			char c=value.charAt(i);
+			if (c=='\\') sb.append("\\\\");
+			else
+			if (c=='"') sb.append("\\\"");
+			else
+			if (c=='\n') sb.append("\\n");
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+
+	/** Writes all metrics of this family in Prometheus text format.
+	  * @param sb the buffer where the metrics are appended */
+	public void write(StringBuilder sb) {
+		if (metrics.size()==0) return;
+		// else
+		sb.append("# HELP ").append(name).append(' ').append(help.replace("\\","\\\\").replace("\n","\\n")).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		Object[] values=metrics.keySet().toArray();
+		Arrays.sort(values);
+		for (int i=0; i<values.length; i++) ((Metric)metrics.get(values[i])).write(name,sb);
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/** MetricRegistry collects the metric families of an application, and exports them in Prometheus text format.
+  * <p>
+  * The instrumented code gets its metrics from the registry once (typically in static fields),
+  * and then updates them directly; the registry is accessed again only when the metrics are exported.
+  * A family registered twice with the same name is returned as it is.
+  * Gauges whose value is read from an object should be unregistered when the object is halted,
+  * for not keeping it reachable.
+  * <p>
+  * Latency histograms record nanoseconds and export seconds.
+  */
+public class MetricRegistry {
+	
+	/** Lowest bucket bound of latency histograms [nanosecs] */
+	public static long LATENCY_LOWEST=1000L;
+
+	/** Highest bucket bound of latency histograms [nanosecs] */
+	public static long LATENCY_HIGHEST=16000000000L;
+
+	/** Default registry */
+	static final MetricRegistry DEFAULT_REGISTRY=new MetricRegistry();
+
+
+	/** Metric families (name --> MetricFamily) */
+	ConcurrentHashMap families=new ConcurrentHashMap();
+
+
+
+	/** Creates a new MetricRegistry. */
+	public MetricRegistry() {
+	}
+
+
+	/** Gets the default registry, used by all stack and server components. */
+	public static MetricRegistry getDefault() {
+		return DEFAULT_REGISTRY;
+	}
+
+
+	/** Registers a metric family.
+	  * @param family the family
+	  * @return the registered family with the same name (either the given one, or one that was already present) */
+	public MetricFamily register(MetricFamily family) {
+		MetricFamily prev=(MetricFamily)families.putIfAbsent(family.getName(),family);
+		if (prev==null) return family;
+		// else
+		if (!prev.getType().equals(family.getType())) throw new IllegalArgumentException("Metric '"+family.getName()+"' already registered as "+prev.getType());
+		return prev;
+	}
+
+
+	/** Gets a metric family.
+	  * @param name the metric name
+	  * @return the family, or <i>null</i> if not present */
+	public MetricFamily getFamily(String name) {
+		return (MetricFamily)families.get(name);
+	}
+
+
+	/** Gets a counter without label.
+	  * @param name the metric name
+	  * @param help the help text */
+	public Counter counter(String name, String help) {
+		return (Counter)counters(name,help,null).get();
+	}
+
+
+	/** Gets a family of counters.
+	  * @param name the metric name
+	  * @param help the help text
+	  * @param label_name the label name */
+	public MetricFamily counters(String name, String help, String label_name) {
+		return register(new MetricFamily(name,help,MetricFamily.COUNTER,label_name));
+	}
+
+
+	/** Gets a gauge without label.
+	  * @param name the metric name
+	  * @param help the help text */
+	public Gauge gauge(String name, String help) {
+		return (Gauge)gauges(name,help,null).get();
+	}
+
+
+	/** Gets a gauge without label, whose value is read from the given source.
+	  * @param name the metric name
+	  * @param help the help text
+	  * @param source the source of the value (it replaces the source of a gauge already present) */
+	public Gauge gauge(String name, String help, Gauge.Source source) {
+		Gauge gauge=gauge(name,help);
+		gauge.setSource(source);
+		return gauge;
+	}
+
+
+	/** Unregisters a gauge without label whose value is read from the given source.
+	  * Nothing is done if the source has been replaced in the meantime (e.g. by another instance of the instrumented class),
+	  * so that an object can unregister its gauges without removing the ones of the object that replaced it.
+	  * @param name the metric name
+	  * @param source the source of the value
+	  * @return whether the gauge has been unregistered */
+	public boolean unregister(String name, Gauge.Source source) {
+		MetricFamily family=getFamily(name);
+		if (family==null || !family.getType().equals(MetricFamily.GAUGE)) return false;
+		// else
+		if (!((Gauge)family.get()).removeSource(source)) return false;
+		// else
+		return families.remove(name,family);
+	}
+
+
+	/** Gets a family of gauges.
+	  * @param name the metric name
+	  * @param help the help text
+	  * @param label_name the label name */
+	public MetricFamily gauges(String name, String help, String label_name) {
+		return register(new MetricFamily(name,help,MetricFamily.GAUGE,label_name));
+	}
+
+
+	/** Gets a latency histogram without label.
+	  * @param name the metric name
+	  * @param help the help text */
+	public Histogram histogram(String name, String help) {
+		return (Histogram)histograms(name,help,null).get();
+	}
+
+
+	/** Gets a family of latency histograms.
+	  * @param name the metric name
+	  * @param help the help text
+	  * @param label_name the label name */
+	public MetricFamily histograms(String name, String help, String label_name) {
+		return register(new MetricFamily(name,help,MetricFamily.HISTOGRAM,label_name,1e-9,LATENCY_LOWEST,LATENCY_HIGHEST));
+	}
+
+
+	/** Writes all metrics in Prometheus text format.
+	  * @param sb the buffer where the metrics are appended */
+	public void write(StringBuilder sb) {
+		Object[] names=families.keySet().toArray();
+		Arrays.sort(names);
+		for (int i=0; i<names.length; i++) ((MetricFamily)families.get(names[i])).write(sb);
+	}
+
+
+	/** Gets all metrics in Prometheus text format. */
+	public String toPrometheusText() {
+		StringBuilder sb=new StringBuilder();
+		write(sb);
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.metrics;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.zoolu.util.Logger;
+import org.zoolu.util.LoggerLevel;
+import org.zoolu.util.SystemUtils;
+import org.zoolu.util.ThreadFactory;
+
+
+/** MetricsServer is a minimal embedded HTTP server that exports the metrics of a {@link MetricRegistry}
+  * in Prometheus text format.
+  * <p>
+  * It answers to "GET /metrics" requests (any other path gets 404), and closes the connection after each response.
+  * Requests are served one at a time by a single thread, that is sufficient for periodic scrapes.
+  */
+public class MetricsServer implements Runnable {
+	
+	/** Path of the metrics */
+	public static final String PATH="/metrics";
+
+	/** Content type of the Prometheus text format */
+	static final String CONTENT_TYPE="text/plain; version=0.0.4; charset=utf-8";
+
+	/** Maximum length of a request header */
+	static final int MAX_REQUEST_LENGTH=8192;
+
+	/** Socket timeout [millisecs] */
+	static final int SOCKET_TIMEOUT=5000;
+
+
+	/** Registry */
+	MetricRegistry registry;
+
+	/** Server socket */
+	ServerSocket server_socket;
+
+	/** Whether it has been halted */
+	volatile boolean stop=false;
+
+
+
+	/** Creates a new MetricsServer.
+	  * @param registry the registry of the exported metrics
+	  * @param port the TCP port
+	  * @param binding_addr the local address, or <i>null</i> for all interfaces */
+	public MetricsServer(MetricRegistry registry, int port, String binding_addr) throws IOException {
+		this.registry=registry;
+		server_socket=(binding_addr!=null)? new ServerSocket(port,50,InetAddress.getByName(binding_addr)) : new ServerSocket(port);
+		ThreadFactory.start(this,"MetricsServer",true);
+		log(LoggerLevel.INFO,"metrics exported on http://"+((binding_addr!=null)? binding_addr : "0.0.0.0")+":"+server_socket.getLocalPort()+PATH);
+	}
+
+
+	/** Gets the TCP port. */
+	public int getPort() {
+		return server_socket.getLocalPort();
+	}
+
+
+	/** Stops the server. */
+	public void halt() {
+		stop=true;
+		try {  server_socket.close();  } catch (IOException e) {}
+	}
+
+
+	/** Main thread. */
+	public void run() {
+		while (!stop) {
+			try {
+				Socket socket=server_socket.accept();
+				try {
+					socket.setSoTimeout(SOCKET_TIMEOUT);
+					processRequest(socket);
+				}
+				catch (IOException e) {
+					log(LoggerLevel.DEBUG,"Error serving "+socket.getRemoteSocketAddress()+": "+e);
+				}
+				finally {
+					try {  socket.close();  } catch (IOException e) {}
+				}
+			}
+			catch (IOException e) {
+				if (!stop) log(LoggerLevel.WARNING,"Error accepting connections: "+e);
+			}
+		}
+	}
+
+
+	/** Reads a request and sends the response. */
+	private void processRequest(Socket socket) throws IOException {
+		InputStream is=socket.getInputStream();
+		byte[] buf=new byte[MAX_REQUEST_LENGTH];
+		int len=0;
+		// read the request header
+		while (len<4 || buf[len-4]!='\r' || buf[len-3]!='\n' || buf[len-2]!='\r' || buf[len-1]!='\n') {
+			if (len==buf.length) {
+				sendResponse(socket,"413 Request Entity Too Large",null);
+				return;
+			}
+			int b=is.read();
+			if (b<0) return;
+			// else
+			buf[len++]=(byte)b;
+		}
+		String request_line=new String(buf,0,len,"ISO-8859-1");
+		request_line=request_line.substring(0,request_line.indexOf('\r'));
+		String[] tokens=request_line.split(" ");
+		if (tokens.length<2 || !tokens[0].equals("GET")) {
+			sendResponse(socket,"405 Method Not Allowed",null);
+			return;
+		}
+		// else
+		String path=tokens[1];
+		int query=path.indexOf('?');
+		if (query>=0) path=path.substring(0,query);
+		if (!path.equals(PATH)) {
+			sendResponse(socket,"404 Not Found",null);
+			return;
+		}
+		// else
+		sendResponse(socket,"200 OK",registry.toPrometheusText().getBytes("UTF-8"));
+	}
+
+
+	/** Sends a response.
+	  * @param socket the connection
+	  * @param status the status code and reason phrase
+	  * @param body the metrics, or <i>null</i> for an error response */
+	private void sendResponse(Socket socket, String status, byte[] body) throws IOException {
+		OutputStream os=socket.getOutputStream();
+		StringBuilder sb=new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		if (body!=null) sb.append("Content-Type: ").append(CONTENT_TYPE).append("\r\n");
+		sb.append("Content-Length: ").append((body!=null)? body.length : 0).append("\r\n");
+		sb.append("Connection: close\r\n\r\n");
+		os.write(sb.toString().getBytes("ISO-8859-1"));
+		if (body!=null) os.write(body);
+		os.flush();
+	}
+
+
+	/** Gets a String representation of the Object */
+	public String toString() {
+		return "http://"+server_socket.getInetAddress().getHostAddress()+":"+server_socket.getLocalPort()+PATH;
+	}
+
+
+	// ****************************** Logs *****************************
+
+	/** Adds a new string to the default Log. */
+	private void log(LoggerLevel level, String str) {
+		Logger logger=SystemUtils.getDefaultLogger();
+		if (logger!=null) logger.log(level,"MetricsServer: "+str);
+	}
+
+}
@@ -132,7 +132,7 @@ public class SocketAddress {
 
 	/** Returns a hash code value for the object. */
 	public int hashCode() {
-		return toString().hashCode();
+		return (ipaddr!=null? ipaddr.hashCode()*31 : 0)+port;
 	}
 
 	/** Returns a String representation of this object. */
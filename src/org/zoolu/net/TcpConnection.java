@@ -32,10 +32,12 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 
+import org.zoolu.util.ThreadFactory;
+
 
 /** TcpConnection provides a TCP connection oriented transport service.
   */
-public class TcpConnection extends Thread {
+public class TcpConnection implements Runnable {
 	
 	/** The reading buffer size */
 	static final int BUFFER_SIZE=65535;
@@ -66,6 +68,8 @@ public class TcpConnection extends Thread {
 
 	/** Whether it is running */
 	boolean is_running; 
+	/** Thread running the receiver, or <i>null</i> if not started yet */
+	Thread thread=null;
 
 	/** TcpConnection listener */
 	TcpConnectionListener listener;
@@ -108,6 +112,19 @@ public class TcpConnection extends Thread {
 	}
 
 
+	/** Starts the receiver thread. It has no effect if the thread has been already started. */
+	public synchronized void start() {
+		if (thread==null) thread=ThreadFactory.start(this,"TcpConnection-"+socket.getLocalPort()+"-"+socket.getPort());
+	}
+
+
+	/** Gets the thread running the receiver, or <i>null</i> if not started yet.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
+
+
 	/** Whether the service is running. */
 	public boolean isRunning() {
 		return is_running;
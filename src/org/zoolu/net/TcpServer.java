@@ -28,11 +28,13 @@ import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 
+import org.zoolu.util.ThreadFactory;
+
 
 
 /** TcpServer implements a TCP server wainting for incoming connection.
   */
-public class TcpServer extends Thread {
+public class TcpServer implements Runnable {
 	
 	/** Default value for the maximum time that the tcp server can remain active after been halted (in milliseconds) */
 	public static final int DEFAULT_SOCKET_TIMEOUT=5000; // 5sec 
@@ -63,6 +65,8 @@ public class TcpServer extends Thread {
 
 	/** Whether it is running */
 	boolean is_running; 
+	/** Thread running the server, or <i>null</i> if not started yet */
+	Thread thread=null;
 
 	/** TcpServer listener */
 	TcpServerListener listener;
@@ -117,6 +121,19 @@ public class TcpServer extends Thread {
 	}
 
 
+	/** Starts the server thread. It has no effect if the thread has been already started. */
+	public synchronized void start() {
+		if (thread==null) thread=ThreadFactory.start(this,"TcpServer-"+server_port);
+	}
+
+
+	/** Gets the thread running the server, or <i>null</i> if not started yet.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
+
+
 	/** Gets server port */
 	public int getPort() {
 		return server_port;
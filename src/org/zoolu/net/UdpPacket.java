@@ -106,6 +106,12 @@ public class UdpPacket {
 		return packet.getPort();
 	}
 
+	/** Whether the remote address and port of this datagram are equal to the given socket address.
+	  * Differently from {@link #getIpAddress()}, it does not create new objects. */
+	public boolean hasSoAddress(SocketAddress soaddr) {
+		return soaddr!=null && packet.getPort()==soaddr.getPort() && packet.getAddress().equals(soaddr.getAddress().getInetAddress());
+	}
+
 	/** Sets the IP address of the machine to which this datagram is being sent. */
 	public void setIpAddress(IpAddress ipaddr) {
 		packet.setAddress(ipaddr.getInetAddress());
@@ -27,6 +27,8 @@ package org.zoolu.net;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 
+import org.zoolu.util.ThreadFactory;
+
 
 /** UdpProvider provides an UDP send/receive service.
   * On the receiver side it waits for UDP datagrams and passes them
@@ -38,7 +40,7 @@ import java.io.InterruptedIOException;
   * <p> Method onServiceTerminated(UdpProvider) is fired when the the UdpProvider stops 
   * receiving packets.
   */
-public class UdpProvider extends Thread {
+public class UdpProvider implements Runnable {
 	
 	/** The reading buffer size */
 	public static final int BUFFER_SIZE=65535;
@@ -66,6 +68,8 @@ public class UdpProvider extends Thread {
 
 	/** Whether it is running */
 	protected boolean is_running; 
+	/** Thread running the receiver, or <i>null</i> if not started yet */
+	protected Thread thread=null;
 
 
 	  
@@ -95,6 +99,19 @@ public class UdpProvider extends Thread {
 	}
 
 
+	/** Starts the receiver thread. It has no effect if the thread has been already started. */
+	public synchronized void start() {
+		if (thread==null) thread=ThreadFactory.start(this,"UdpProvider-"+socket.getLocalPort());
+	}
+
+
+	/** Gets the thread running the receiver, or <i>null</i> if not started yet.
+	  * It can be used for joining, interrupting, or checking whether the thread is alive. */
+	public synchronized Thread getThread() {
+		return thread;
+	}
+
+
 	/** Gets the UdpSocket. */ 
 	public UdpSocket getUdpSocket() {
 		return socket;
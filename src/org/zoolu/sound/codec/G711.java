@@ -12,6 +12,12 @@ package org.zoolu.sound.codec;
   * <p>
   * Acknowledgement to Sun Microsystems, Inc. for having released the original
   * ANSI-C source code to the public domain.
+  * <p>
+  * Besides the per-sample conversion methods, it provides bulk methods that convert
+  * whole arrays of samples through precomputed tables: linear PCM is encoded with its
+  * 14 most significant bits (i.e. the G.711 input resolution), while decoding and
+  * u-law/A-law transcoding use 256-entry tables.
+  * 16-bit linear PCM samples can be either little-endian or big-endian.
   */
 public class G711 {
 	
@@ -64,6 +70,40 @@ public class G711 {
 	  	120,	121,	122,	123,	124,	125,	126,	127  };
   
   
+	/** 14-bit linear PCM to u-law table */
+	static final byte[] LINEAR14_TO_ULAW=new byte[1<<14];
+
+	/** 14-bit linear PCM to A-law table */
+	static final byte[] LINEAR14_TO_ALAW=new byte[1<<14];
+
+	/** u-law to 16-bit linear PCM table */
+	static final short[] ULAW_TO_LINEAR=new short[256];
+
+	/** A-law to 16-bit linear PCM table */
+	static final short[] ALAW_TO_LINEAR=new short[256];
+
+	/** u-law to A-law table */
+	static final byte[] ULAW_TO_ALAW=new byte[256];
+
+	/** A-law to u-law table */
+	static final byte[] ALAW_TO_ULAW=new byte[256];
+
+	static {
+		for (int i=0; i<(1<<14); i++) {
+			// index is the 14-bit sample in 2's complement
+			int linear=((short)(i<<2));
+			LINEAR14_TO_ULAW[i]=(byte)linear2ulaw(linear);
+			LINEAR14_TO_ALAW[i]=(byte)linear2alaw(linear);
+		}
+		for (int i=0; i<256; i++) {
+			ULAW_TO_LINEAR[i]=(short)ulaw2linear(i);
+			ALAW_TO_LINEAR[i]=(short)alaw2linear(i);
+			ULAW_TO_ALAW[i]=(byte)ulaw2alaw(i);
+			ALAW_TO_ULAW[i]=(byte)alaw2ulaw(i);
+		}
+	}
+
+  
 	static int search(int val,	int[] table) {
 		for (int i=0; i<table.length; i++) if (val<=table[i]) return i;
 		return table.length;
@@ -241,6 +281,158 @@ public class G711 {
   	   return ((uval&0x80)!=0)? (0xD5^(_u2a[0xFF^uval]-1)) : (0x55^(_u2a[0x7F^uval]-1));
 	}
 
+
+
+	/** Converts an array of 16-bit linear PCM samples to u-law.
+	  * @param pcm buffer containing the 16-bit linear PCM samples
+	  * @param pcm_off offset within the PCM buffer
+	  * @param ulaw buffer where the u-law samples are written
+	  * @param ulaw_off offset within the u-law buffer
+	  * @param n the number of samples
+	  * @param big_endian whether the PCM samples are big-endian (otherwise little-endian) */
+	public static void linear2ulaw(byte[] pcm, int pcm_off, byte[] ulaw, int ulaw_off, int n, boolean big_endian) {
+		encode(LINEAR14_TO_ULAW,pcm,pcm_off,ulaw,ulaw_off,n,big_endian);
+	}
+
+
+	/** Converts an array of 16-bit linear PCM samples to A-law.
+	  * @param pcm buffer containing the 16-bit linear PCM samples
+	  * @param pcm_off offset within the PCM buffer
+	  * @param alaw buffer where the A-law samples are written
+	  * @param alaw_off offset within the A-law buffer
+	  * @param n the number of samples
+	  * @param big_endian whether the PCM samples are big-endian (otherwise little-endian) */
+	public static void linear2alaw(byte[] pcm, int pcm_off, byte[] alaw, int alaw_off, int n, boolean big_endian) {
+		encode(LINEAR14_TO_ALAW,pcm,pcm_off,alaw,alaw_off,n,big_endian);
+	}
+
+
+	/** Converts an array of u-law samples to 16-bit linear PCM.
+	  * @param ulaw buffer containing the u-law samples
+	  * @param ulaw_off offset within the u-law buffer
+	  * @param pcm buffer where the 16-bit linear PCM samples are written
+	  * @param pcm_off offset within the PCM buffer
+	  * @param n the number of samples
+	  * @param big_endian whether the PCM samples have to be big-endian (otherwise little-endian) */
+	public static void ulaw2linear(byte[] ulaw, int ulaw_off, byte[] pcm, int pcm_off, int n, boolean big_endian) {
+		decode(ULAW_TO_LINEAR,ulaw,ulaw_off,pcm,pcm_off,n,big_endian);
+	}
+
+
+	/** Converts an array of A-law samples to 16-bit linear PCM.
+	  * @param alaw buffer containing the A-law samples
+	  * @param alaw_off offset within the A-law buffer
+	  * @param pcm buffer where the 16-bit linear PCM samples are written
+	  * @param pcm_off offset within the PCM buffer
+	  * @param n the number of samples
+	  * @param big_endian whether the PCM samples have to be big-endian (otherwise little-endian) */
+	public static void alaw2linear(byte[] alaw, int alaw_off, byte[] pcm, int pcm_off, int n, boolean big_endian) {
+		decode(ALAW_TO_LINEAR,alaw,alaw_off,pcm,pcm_off,n,big_endian);
+	}
+
+
+	/** Converts an array of 16-bit linear PCM samples to u-law.
+	  * @param pcm the linear PCM samples
+	  * @param pcm_off offset within the PCM array
+	  * @param ulaw buffer where the u-law samples are written
+	  * @param ulaw_off offset within the u-law buffer
+	  * @param n the number of samples */
+	public static void linear2ulaw(short[] pcm, int pcm_off, byte[] ulaw, int ulaw_off, int n) {
+		for (int i=0; i<n; i++) ulaw[ulaw_off+i]=LINEAR14_TO_ULAW[(pcm[pcm_off+i]>>2)&0x3fff];
+	}
+
+
+	/** Converts an array of 16-bit linear PCM samples to A-law.
+	  * @param pcm the linear PCM samples
+	  * @param pcm_off offset within the PCM array
+	  * @param alaw buffer where the A-law samples are written
+	  * @param alaw_off offset within the A-law buffer
+	  * @param n the number of samples */
+	public static void linear2alaw(short[] pcm, int pcm_off, byte[] alaw, int alaw_off, int n) {
+		for (int i=0; i<n; i++) alaw[alaw_off+i]=LINEAR14_TO_ALAW[(pcm[pcm_off+i]>>2)&0x3fff];
+	}
+
+
+	/** Converts an array of u-law samples to 16-bit linear PCM.
+	  * @param ulaw buffer containing the u-law samples
+	  * @param ulaw_off offset within the u-law buffer
+	  * @param pcm array where the linear PCM samples are written
+	  * @param pcm_off offset within the PCM array
+	  * @param n the number of samples */
+	public static void ulaw2linear(byte[] ulaw, int ulaw_off, short[] pcm, int pcm_off, int n) {
+		for (int i=0; i<n; i++) pcm[pcm_off+i]=ULAW_TO_LINEAR[ulaw[ulaw_off+i]&0xff];
+	}
+
+
+	/** Converts an array of A-law samples to 16-bit linear PCM.
+	  * @param alaw buffer containing the A-law samples
+	  * @param alaw_off offset within the A-law buffer
+	  * @param pcm array where the linear PCM samples are written
+	  * @param pcm_off offset within the PCM array
+	  * @param n the number of samples */
+	public static void alaw2linear(byte[] alaw, int alaw_off, short[] pcm, int pcm_off, int n) {
+		for (int i=0; i<n; i++) pcm[pcm_off+i]=ALAW_TO_LINEAR[alaw[alaw_off+i]&0xff];
+	}
+
+
+	/** Converts an array of A-law samples to u-law.
+	  * The input and output buffers may be the same.
+	  * @param alaw buffer containing the A-law samples
+	  * @param alaw_off offset within the A-law buffer
+	  * @param ulaw buffer where the u-law samples are written
+	  * @param ulaw_off offset within the u-law buffer
+	  * @param n the number of samples */
+	public static void alaw2ulaw(byte[] alaw, int alaw_off, byte[] ulaw, int ulaw_off, int n) {
+		for (int i=0; i<n; i++) ulaw[ulaw_off+i]=ALAW_TO_ULAW[alaw[alaw_off+i]&0xff];
+	}
+
+
+	/** Converts an array of u-law samples to A-law.
+	  * The input and output buffers may be the same.
+	  * @param ulaw buffer containing the u-law samples
+	  * @param ulaw_off offset within the u-law buffer
+	  * @param alaw buffer where the A-law samples are written
+	  * @param alaw_off offset within the A-law buffer
+	  * @param n the number of samples */
+	public static void ulaw2alaw(byte[] ulaw, int ulaw_off, byte[] alaw, int alaw_off, int n) {
+		for (int i=0; i<n; i++) alaw[alaw_off+i]=ULAW_TO_ALAW[ulaw[ulaw_off+i]&0xff];
+	}
+
+
+	/** Encodes 16-bit linear PCM samples using a 14-bit lookup table. */
+	private static void encode(byte[] table, byte[] pcm, int pcm_off, byte[] out, int out_off, int n, boolean big_endian) {
+		int j=pcm_off;
+		int end=out_off+n;
+		if (big_endian) {
+			// 14 MSBs: 8 bits of the high byte and 6 bits of the low byte
+			for (int i=out_off; i<end; i++, j+=2) out[i]=table[((pcm[j]&0xff)<<6)|((pcm[j+1]&0xff)>>>2)];
+		}
+		else {
+			for (int i=out_off; i<end; i++, j+=2) out[i]=table[((pcm[j+1]&0xff)<<6)|((pcm[j]&0xff)>>>2)];
+		}
+	}
+
+
+	/** Decodes samples to 16-bit linear PCM using a lookup table. */
+	private static void decode(short[] table, byte[] in, int in_off, byte[] pcm, int pcm_off, int n, boolean big_endian) {
+		int j=pcm_off;
+		int end=in_off+n;
+		if (big_endian) {
+			for (int i=in_off; i<end; i++) {
+				short linear=table[in[i]&0xff];
+				pcm[j++]=(byte)(linear>>8);
+				pcm[j++]=(byte)linear;
+			}
+		}
+		else {
+			for (int i=in_off; i<end; i++) {
+				short linear=table[in[i]&0xff];
+				pcm[j++]=(byte)linear;
+				pcm[j++]=(byte)(linear>>8);
+			}
+		}
+	}
+
 	
 	/** PCM ecoder/decoder tests. */
 	/*public static void main(String[] args) {
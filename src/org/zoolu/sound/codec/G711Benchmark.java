@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2005 Luca Veltri - University of Parma - Italy
+ * 
+ * This source code is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sound.codec;
+
+
+import java.util.Random;
+
+import org.zoolu.util.Flags;
+
+
+/** G711Benchmark measures the number of samples per second converted by the table-driven
+  * bulk methods of {@link G711}, compared with the per-sample methods.
+  * <p>
+  * Conversions are performed on 20ms frames (160 samples) of little-endian 16-bit PCM.
+  * The per-sample loops are written as the G.711 encoders and conversion streams were before
+  * the bulk methods were available.
+  */
+public class G711Benchmark {
+	
+	/** Samples per frame */
+	static final int FRAME_SAMPLES=160;
+
+	/** Conversions */
+	static final String[] CONVERSIONS={ "linear2ulaw", "linear2alaw", "ulaw2linear", "alaw2linear", "ulaw2alaw", "alaw2ulaw" };
+
+
+	/** Input 16-bit PCM frame */
+	static byte[] pcm=new byte[2*FRAME_SAMPLES];
+
+	/** Input G.711 frame */
+	static byte[] law=new byte[FRAME_SAMPLES];
+
+	/** Output buffer */
+	static byte[] out=new byte[2*FRAME_SAMPLES];
+
+	/** Sum of the output values, that prevents the JIT from removing the loops */
+	static long sink=0;
+
+
+	/** Converts one frame using the per-sample methods. */
+	static void convertPerSample(int conversion) {
+		switch (conversion) {
+			case 0 :
+			case 1 : {
+				boolean ulaw=(conversion==0);
+				for (int i=0, j=0; i<FRAME_SAMPLES; i++, j+=2) {
+					int linear=(short)((pcm[j+1]<<8)|(pcm[j]&0xff));
+					out[i]=(byte)(ulaw? G711.linear2ulaw(linear) : G711.linear2alaw(linear));
+				}
+				break;
+			}
+			case 2 :
+			case 3 : {
+				boolean ulaw=(conversion==2);
+				for (int i=0, j=0; i<FRAME_SAMPLES; i++) {
+					int linear=ulaw? G711.ulaw2linear(law[i]&0xff) : G711.alaw2linear(law[i]&0xff);
+					out[j++]=(byte)linear;
+					out[j++]=(byte)(linear>>8);
+				}
+				break;
+			}
+			case 4 : for (int i=0; i<FRAME_SAMPLES; i++) out[i]=(byte)G711.ulaw2alaw(law[i]); break;
+			case 5 : for (int i=0; i<FRAME_SAMPLES; i++) out[i]=(byte)G711.alaw2ulaw(law[i]); break;
+		}
+		sink+=out[FRAME_SAMPLES-1];
+	}
+
+
+	/** Converts one frame using the bulk methods. */
+	static void convertBulk(int conversion) {
+		switch (conversion) {
+			case 0 : G711.linear2ulaw(pcm,0,out,0,FRAME_SAMPLES,false); break;
+			case 1 : G711.linear2alaw(pcm,0,out,0,FRAME_SAMPLES,false); break;
+			case 2 : G711.ulaw2linear(law,0,out,0,FRAME_SAMPLES,false); break;
+			case 3 : G711.alaw2linear(law,0,out,0,FRAME_SAMPLES,false); break;
+			case 4 : G711.ulaw2alaw(law,0,out,0,FRAME_SAMPLES); break;
+			case 5 : G711.alaw2ulaw(law,0,out,0,FRAME_SAMPLES); break;
+		}
+		sink+=out[FRAME_SAMPLES-1];
+	}
+
+
+	/** Measures a conversion.
+	  * @return the number of samples per second */
+	static long run(int conversion, boolean bulk, int n) {
+		long start=0;
+		for (int f=-n/10; f<n; f++) {
+			// the first tenth of the frames is used for warm-up
+			if (f==0) start=System.nanoTime();
+			if (bulk) convertBulk(conversion);
+			else convertPerSample(conversion);
+		}
+		long time=System.nanoTime()-start;
+		return time>0? (long)n*FRAME_SAMPLES*1000000000L/time : 0;
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n=flags.getInteger("-n",200000,"<n>","number of 20ms frames per conversion");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(G711Benchmark.class.getName()));
+			return;
+		}
+		// else
+		Random random=new Random(0);
+		random.nextBytes(pcm);
+		random.nextBytes(law);
+		System.out.println("conversion     per-sample [Msamples/s]   bulk [Msamples/s]");
+		for (int c=0; c<CONVERSIONS.length; c++) {
+			long per_sample=run(c,false,n);
+			long bulk=run(c,true,n);
+			StringBuilder sb=new StringBuilder(CONVERSIONS[c]);
+			while (sb.length()<15) sb.append(' ');
+			sb.append(per_sample/1000000);
+			while (sb.length()<41) sb.append(' ');
+			sb.append(bulk/1000000).append(" (").append(per_sample>0? bulk*10/per_sample/10.0 : 0).append("x)");
+			System.out.println(sb.toString());
+		}
+		if (sink==1) System.out.println();
+	}
+
+}
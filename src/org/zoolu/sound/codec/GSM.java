@@ -0,0 +1,814 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * THE PUBLICATION, REDISTRIBUTION OR MODIFY, COMPLETE OR PARTIAL OF CONTENTS, 
+ * CAN BE MADE ONLY AFTER AUTHORIZATION BY THE AFOREMENTIONED COPYRIGHT HOLDER.
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sound.codec;
+
+
+
+import org.zoolu.util.BitReader;
+import org.zoolu.util.BitWriter;
+
+
+
+/** GSM 06.10 full-rate speech codec (RPE-LTP).
+  * <p>
+  * Each 20ms frame of 160 linear 16-bit samples (at 8000 Hz) is encoded into a 33-byte frame,
+  * with the bit ordering defined for RTP payload by RFC 3551.
+  * The encoder and the decoder keep their state in a {@link GsmState}, that must be
+  * reused for all frames of the same stream; no memory is allocated while processing a frame.
+  * <p>
+  * This implementation follows the fixed-point arithmetic of the ETSI GSM 06.10
+  * reference, as implemented by the C library written by Jutta Degener and
+  * Carsten Bormann, Technische Universitaet Berlin, so that it produces the same bitstream.
+  * <p>
+  * Acknowledgement to Jutta Degener and Carsten Bormann for having released the original
+  * C source code.
+  */
+public abstract class GSM {
+	
+	// ##### C-to-Java conversion: #####
+	// word (short) becomes int, and it is explicitly truncated where the C code stores into a word
+	// longword (long) becomes int
+
+
+	/** Number of samples per frame */
+	public static final int FRAME_SAMPLES=160;
+
+	/** Size of an encoded frame [bytes] */
+	public static final int FRAME_SIZE=33;
+
+	/** Frame signature (the first 4 bits of each frame) */
+	static final int MAGIC=0xD;
+
+	/** Minimum word value */
+	static final int MIN_WORD=-32768;
+
+	/** Maximum word value */
+	static final int MAX_WORD=32767;
+
+	/** Number of bits of the coded LARs */
+	static final int[] LAR_BITS={ 6, 6, 5, 5, 4, 4, 3, 3 };
+
+	/** Table 4.1: quantization of the LARs, A[] */
+	static final int[] A={ 20480, 20480, 20480, 20480, 13964, 15360, 8534, 9036 };
+	/** Table 4.1: quantization of the LARs, B[] */
+	static final int[] B={ 0, 0, 2048, -2560, 94, -1792, -341, -1144 };
+	/** Table 4.1: quantization of the LARs, MIC[] */
+	static final int[] MIC={ -32, -32, -16, -16, -8, -8, -4, -4 };
+	/** Table 4.1: quantization of the LARs, MAC[] */
+	static final int[] MAC={ 31, 31, 15, 15, 7, 7, 3, 3 };
+	/** Table 4.2: decoding of the LARs, INVA[]=1/A[] */
+	static final int[] INVA={ 13107, 13107, 13107, 13107, 19223, 17476, 31454, 29708 };
+	/** Table 4.3a: decision levels of the LTP gain quantizer */
+	static final int[] DLB={ 6554, 16384, 26214, 32767 };
+	/** Table 4.3b: quantization levels of the LTP gain quantizer */
+	static final int[] QLB={ 3277, 11469, 21299, 32767 };
+	/** Table 4.4: coefficients of the weighting filter */
+	static final int[] H={ -134, -374, 0, 2054, 5741, 8192, 5741, 2054, 0, -374, -134 };
+	/** Table 4.5: normalized inverse mantissa used to compute xM/xmax */
+	static final int[] NRFAC={ 29128, 26215, 23832, 21846, 20165, 18725, 17476, 16384 };
+	/** Table 4.6: normalized direct mantissa used to compute xM/xmax */
+	static final int[] FAC={ 18431, 20479, 22527, 24575, 26623, 28671, 30719, 32767 };
+
+
+
+	// ************************ Basic arithmetic ************************
+
+	/** Saturated addition. */
+	private static int add(int a, int b) {
+		int sum=a+b;
+		return (sum<MIN_WORD)? MIN_WORD : (sum>MAX_WORD)? MAX_WORD : sum;
+	}
+
+	/** Saturated subtraction. */
+	private static int sub(int a, int b) {
+		int diff=a-b;
+		return (diff<MIN_WORD)? MIN_WORD : (diff>MAX_WORD)? MAX_WORD : diff;
+	}
+
+	/** Saturated addition of two longwords. */
+	private static int addL(int a, int b) {
+		long sum=(long)a+b;
+		return (sum<Integer.MIN_VALUE)? Integer.MIN_VALUE : (sum>Integer.MAX_VALUE)? Integer.MAX_VALUE : (int)sum;
+	}
+
+	/** Multiplication with rounding (GSM_MULT_R). */
+	private static int multR(int a, int b) {
+		return (short)((a*b+16384)>>15);
+	}
+
+	/** Multiplication without rounding (GSM_MULT). */
+	private static int mult(int a, int b) {
+		return (short)((a*b)>>15);
+	}
+
+	/** Saturated multiplication without rounding (gsm_mult). */
+	private static int multSat(int a, int b) {
+		if (a==MIN_WORD && b==MIN_WORD) return MAX_WORD;
+		// else
+		return (a*b)>>15;
+	}
+
+	/** Saturated multiplication with rounding. */
+	private static int multRSat(int a, int b) {
+		if (a==MIN_WORD && b==MIN_WORD) return MAX_WORD;
+		// else
+		return (short)((a*b+16384)>>15);
+	}
+
+	/** Saturated absolute value. */
+	private static int abs(int a) {
+		return (a<0)? ((a==MIN_WORD)? MAX_WORD : -a) : a;
+	}
+
+	/** Number of left shifts needed to normalize a longword. */
+	private static int norm(int a) {
+		if (a<0) {
+			if (a<=-1073741824) return 0;
+			// else
+			a=~a;
+		}
+		return Integer.numberOfLeadingZeros(a)-1;
+	}
+
+	/** Fractional integer division, with 0&lt;=num&lt;=denum. */
+	private static int div(int num, int denum) {
+		if (num==0) return 0;
+		// else
+		int L_num=num;
+		int div=0;
+		for (int k=0; k<15; k++) {
+			div<<=1;
+			L_num<<=1;
+			if (L_num>=denum) {
+				L_num-=denum;
+				div++;
+			}
+		}
+		return div;
+	}
+
+	/** Arithmetic shift left. */
+	private static int asl(int a, int n) {
+		if (n>=16) return 0;
+		if (n<=-16) return (a<0)? -1 : 0;
+		if (n<0) return asr(a,-n);
+		// else
+		return (short)(a<<n);
+	}
+
+	/** Arithmetic shift right. */
+	private static int asr(int a, int n) {
+		if (n>=16) return (a<0)? -1 : 0;
+		if (n<=-16) return 0;
+		if (n<0) return (short)(a<<-n);
+		// else
+		return a>>n;
+	}
+
+
+
+	// **************************** Encoder ****************************
+
+	/** Encodes a frame of 160 samples.
+	  * @param state the encoder state
+	  * @param s the linear samples
+	  * @param off the offset of the first sample
+	  * @param c the buffer for the encoded frame (33 bytes)
+	  * @param c_off the offset within the buffer */
+	public static void encode(GsmState state, short[] s, int off, byte[] c, int c_off) {
+		int[] so=state.so;
+		for (int k=0; k<FRAME_SAMPLES; k++) so[k]=s[off+k];
+		coder(state);
+		pack(state,c,c_off);
+	}
+
+
+	/** Encodes a frame of 160 samples taken from 16-bit PCM data.
+	  * @param state the encoder state
+	  * @param pcm the PCM data (320 bytes)
+	  * @param off the offset of the PCM data
+	  * @param big_endian whether the PCM samples are big-endian
+	  * @param c the buffer for the encoded frame (33 bytes)
+	  * @param c_off the offset within the buffer */
+	public static void encode(GsmState state, byte[] pcm, int off, boolean big_endian, byte[] c, int c_off) {
+		int[] so=state.so;
+		if (big_endian) for (int k=0; k<FRAME_SAMPLES; k++, off+=2) so[k]=(short)((pcm[off]<<8)|(pcm[off+1]&0xff));
+		else for (int k=0; k<FRAME_SAMPLES; k++, off+=2) so[k]=(short)((pcm[off+1]<<8)|(pcm[off]&0xff));
+		coder(state);
+		pack(state,c,c_off);
+	}
+
+
+	/** Encodes the samples contained in state.so into the frame parameters. */
+	private static void coder(GsmState st) {
+		int[] so=st.so;
+		int[] dp0=st.dp0;
+		int[] e=st.e;
+		preprocess(st,so);
+		lpcAnalysis(st,so,st.LARc);
+		shortTermAnalysisFilter(st,st.LARc,so);
+		// dp=dp0+120, dpp=dp; e+5 is the residual signal
+		int dp=120;
+		for (int k=0; k<4; k++) {
+			longTermPredictor(st,so,k*40,dp0,dp,e,5,k);
+			rpeEncoding(st,e,5,k);
+			// update of the reconstructed short term residual signal (dpp is stored in place of dp)
+			for (int i=0; i<40; i++) dp0[dp+i]=add(e[5+i],dp0[dp+i]);
+			dp+=40;
+		}
+		System.arraycopy(dp0,160,dp0,0,120);
+	}
+
+
+	/** 4.2.1-4.2.3 Downscaling, offset compensation, and preemphasis (in place). */
+	private static void preprocess(GsmState st, int[] s) {
+		int z1=st.z1;
+		int L_z2=st.L_z2;
+		int mp=st.mp;
+		for (int k=0; k<FRAME_SAMPLES; k++) {
+			// 4.2.1 downscaling of the input signal
+			int SO=(s[k]>>3)<<2;
+			// 4.2.2 offset compensation
+			int s1=SO-z1;
+			z1=SO;
+			int L_s2=s1<<15;
+			int msp=(short)(L_z2>>15);
+			int lsp=(short)(L_z2-(msp<<15));
+			L_s2+=multR(lsp,32735);
+			int L_temp=msp*32735;
+			L_z2=addL(L_temp,L_s2);
+			// compute sof[k] with rounding
+			L_temp=addL(L_z2,16384);
+			// 4.2.3 preemphasis
+			msp=multR(mp,-28180);
+			mp=(short)(L_temp>>15);
+			s[k]=add(mp,msp);
+		}
+		st.z1=z1;
+		st.L_z2=L_z2;
+		st.mp=mp;
+	}
+
+
+	/** 4.2.4-4.2.7 LPC analysis. */
+	private static void lpcAnalysis(GsmState st, int[] s, int[] LARc) {
+		autocorrelation(s,st.L_ACF);
+		reflectionCoefficients(st,st.L_ACF,LARc);
+		transformationToLogAreaRatios(LARc);
+		quantizationAndCoding(LARc);
+	}
+
+
+	/** 4.2.4 Autocorrelation of s[0..159]. */
+	private static void autocorrelation(int[] s, int[] L_ACF) {
+		// dynamic scaling of the array s[0..159]
+		int smax=0;
+		for (int k=0; k<FRAME_SAMPLES; k++) {
+			int temp=abs(s[k]);
+			if (temp>smax) smax=temp;
+		}
+		int scalauto=(smax==0)? 0 : 4-norm(smax<<16);
+		if (scalauto>0) {
+			int factor=16384>>(scalauto-1);
+			for (int k=0; k<FRAME_SAMPLES; k++) s[k]=multR(s[k],factor);
+		}
+		// compute the L_ACF[..]
+		for (int k=0; k<=8; k++) {
+			int L_sum=0;
+			for (int i=k; i<FRAME_SAMPLES; i++) L_sum+=s[i]*s[i-k];
+			L_ACF[k]=L_sum<<1;
+		}
+		// rescaling of the array s[0..159]
+		if (scalauto>0) {
+			for (int k=0; k<FRAME_SAMPLES; k++) s[k]=(short)(s[k]<<scalauto);
+		}
+	}
+
+
+	/** 4.2.5 Schur recursion with 16 bits arithmetic. */
+	private static void reflectionCoefficients(GsmState st, int[] L_ACF, int[] r) {
+		if (L_ACF[0]==0) {
+			for (int i=0; i<8; i++) r[i]=0;
+			return;
+		}
+		// else
+		int[] ACF=st.ACF, P=st.P, K=st.K;
+		int temp=norm(L_ACF[0]);
+		for (int i=0; i<=8; i++) ACF[i]=(short)((L_ACF[i]<<temp)>>16);
+		// initialize array P[..] and K[..] for the recursion
+		for (int i=1; i<=7; i++) K[i]=ACF[i];
+		for (int i=0; i<=8; i++) P[i]=ACF[i];
+		// compute reflection coefficients
+		for (int n=1; n<=8; n++) {
+			temp=abs(P[1]);
+			if (P[0]<temp) {
+				for (int i=n; i<=8; i++) r[i-1]=0;
+				return;
+			}
+			// else
+			int rn=div(temp,P[0]);
+			if (P[1]>0) rn=-rn;
+			r[n-1]=rn;
+			if (n==8) return;
+			// else
+			// Schur recursion
+			temp=multR(P[1],rn);
+			P[0]=add(P[0],temp);
+			for (int m=1; m<=8-n; m++) {
+				temp=multR(K[m],rn);
+				P[m]=add(P[m+1],temp);
+				temp=multR(P[m+1],rn);
+				K[m]=add(K[m],temp);
+			}
+		}
+	}
+
+
+	/** 4.2.6 Transformation of the reflection coefficients to Log-Area Ratios. */
+	private static void transformationToLogAreaRatios(int[] r) {
+		for (int i=0; i<8; i++) {
+			int temp=abs(r[i]);
+			if (temp<22118) temp>>=1;
+			else
+			if (temp<31130) temp-=11059;
+			else temp=(temp-26112)<<2;
+			r[i]=(r[i]<0)? -temp : temp;
+		}
+	}
+
+
+	/** 4.2.7 Quantization and coding of the Log-Area Ratios. */
+	private static void quantizationAndCoding(int[] LAR) {
+		for (int i=0; i<8; i++) {
+			int temp=mult(A[i],LAR[i]);
+			temp=add(temp,B[i]);
+			temp=add(temp,256);
+			temp=temp>>9;
+			LAR[i]=(temp>MAC[i])? MAC[i]-MIC[i] : (temp<MIC[i])? 0 : temp-MIC[i];
+		}
+	}
+
+
+	/** 4.2.8-4.2.10 Short term analysis filtering (in place). */
+	private static void shortTermAnalysisFilter(GsmState st, int[] LARc, int[] s) {
+		int[] LARpp_j=st.LARpp[st.j];
+		st.j^=1;
+		int[] LARpp_j_1=st.LARpp[st.j];
+		int[] LARp=st.LARp;
+		decodingOfTheCodedLogAreaRatios(LARc,LARpp_j);
+		coefficients_0_12(LARpp_j_1,LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermAnalysisFiltering(st,LARp,13,s,0);
+		coefficients_13_26(LARpp_j_1,LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermAnalysisFiltering(st,LARp,14,s,13);
+		coefficients_27_39(LARpp_j_1,LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermAnalysisFiltering(st,LARp,13,s,27);
+		coefficients_40_159(LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermAnalysisFiltering(st,LARp,120,s,40);
+	}
+
+
+	/** Lattice analysis filter. */
+	private static void shortTermAnalysisFiltering(GsmState st, int[] rp, int k_n, int[] s, int off) {
+		int[] u=st.u;
+		for (int end=off+k_n; off<end; off++) {
+			int di=s[off];
+			int sav=di;
+			for (int i=0; i<8; i++) {
+				int ui=u[i];
+				int rpi=rp[i];
+				u[i]=sav;
+				sav=add(ui,multR(rpi,di));
+				di=add(di,multR(rpi,ui));
+			}
+			s[off]=di;
+		}
+	}
+
+
+	/** 4.2.11-4.2.12 Long term prediction of a sub-segment.
+	  * @param d the short term residual signal (d[d_off..d_off+39])
+	  * @param dp the reconstructed short term residual signal (dp[dp_off-120..dp_off-1]); the estimated signal dpp is stored in dp[dp_off..dp_off+39]
+	  * @param e the long term residual signal (e[e_off..e_off+39])
+	  * @param k the sub-segment index */
+	private static void longTermPredictor(GsmState st, int[] d, int d_off, int[] dp, int dp_off, int[] e, int e_off, int k) {
+		calculationOfTheLtpParameters(st,d,d_off,dp,dp_off,k);
+		// long term analysis filtering
+		int bp=QLB[st.bc[k]];
+		int Nc=st.Nc[k];
+		for (int i=0; i<40; i++) {
+			int dpp=multR(bp,dp[dp_off+i-Nc]);
+			dp[dp_off+i]=dpp;
+			e[e_off+i]=sub(d[d_off+i],dpp);
+		}
+	}
+
+
+	/** 4.2.11 Calculation of the LTP parameters. */
+	private static void calculationOfTheLtpParameters(GsmState st, int[] d, int d_off, int[] dp, int dp_off, int k) {
+		int[] wt=st.wt;
+		// search of the optimum scaling of d[0..39]
+		int dmax=0;
+		for (int i=0; i<40; i++) {
+			int temp=abs(d[d_off+i]);
+			if (temp>dmax) dmax=temp;
+		}
+		int temp=(dmax==0)? 0 : norm(dmax<<16);
+		int scal=(temp>6)? 0 : 6-temp;
+		// initialization of a working array wt
+		for (int i=0; i<40; i++) wt[i]=d[d_off+i]>>scal;
+		// search for the maximum cross-correlation and coding of the LTP lag
+		int L_max=0;
+		int Nc=40;
+		for (int lambda=40; lambda<=120; lambda++) {
+			int L_result=0;
+			int base=dp_off-lambda;
+			for (int i=0; i<40; i++) L_result+=wt[i]*dp[base+i];
+			if (L_result>L_max) {
+				Nc=lambda;
+				L_max=L_result;
+			}
+		}
+		st.Nc[k]=Nc;
+		L_max<<=1;
+		// rescaling of L_max
+		L_max=L_max>>(6-scal);
+		// compute the power of the reconstructed short term residual signal dp[..]
+		int L_power=0;
+		for (int i=0; i<40; i++) {
+			int L_temp=dp[dp_off+i-Nc]>>3;
+			L_power+=L_temp*L_temp;
+		}
+		L_power<<=1;
+		// normalization of L_max and L_power
+		if (L_max<=0) {
+			st.bc[k]=0;
+			return;
+		}
+		// else
+		if (L_max>=L_power) {
+			st.bc[k]=3;
+			return;
+		}
+		// else
+		temp=norm(L_power);
+		int R=(short)((L_max<<temp)>>16);
+		int S=(short)((L_power<<temp)>>16);
+		// coding of the LTP gain
+		int bc;
+		for (bc=0; bc<=2; bc++) if (R<=multSat(S,DLB[bc])) break;
+		st.bc[k]=bc;
+	}
+
+
+	/** 4.2.13-4.2.18 RPE encoding of a sub-segment.
+	  * On return, e[e_off..e_off+39] contains the reconstructed long term residual signal. */
+	private static void rpeEncoding(GsmState st, int[] e, int e_off, int k) {
+		int[] x=st.x;
+		int[] xM=st.xM;
+		weightingFilter(e,e_off,x);
+		// RPE grid selection
+		int EM=0;
+		int Mc=0;
+		for (int m=0; m<=3; m++) {
+			int L_result=0;
+			for (int i=0; i<=12; i++) {
+				int L_temp=x[m+3*i]>>2;
+				L_result+=L_temp*L_temp;
+			}
+			L_result<<=1;
+			if (L_result>EM) {
+				Mc=m;
+				EM=L_result;
+			}
+		}
+		for (int i=0; i<=12; i++) xM[i]=x[Mc+3*i];
+		st.Mc[k]=Mc;
+		// APCM quantization
+		int xmax=0;
+		for (int i=0; i<=12; i++) {
+			int temp=abs(xM[i]);
+			if (temp>xmax) xmax=temp;
+		}
+		int exp=0;
+		int temp=xmax>>9;
+		boolean itest=false;
+		for (int i=0; i<=5; i++) {
+			itest|=(temp<=0);
+			temp>>=1;
+			if (!itest) exp++;
+		}
+		int xmaxc=add(xmax>>(exp+5),exp<<3);
+		st.xmaxc[k]=xmaxc;
+		// quantizing and coding of the xM[0..12] RPE sequence
+		exp=xmaxcToExp(xmaxc);
+		int mant=xmaxcToMant(xmaxc);
+		int temp1=6-exp;
+		int temp2=NRFAC[mant];
+		int[] xMc=st.xMc;
+		int xMc_off=k*13;
+		for (int i=0; i<=12; i++) {
+			temp=(short)(xM[i]<<temp1);
+			temp=mult(temp,temp2);
+			temp=temp>>12;
+			xMc[xMc_off+i]=temp+4;
+		}
+		// APCM inverse quantization and RPE grid positioning
+		apcmInverseQuantization(xMc,xMc_off,mant,exp,st.xMp);
+		rpeGridPositioning(Mc,st.xMp,e,e_off);
+	}
+
+
+	/** 4.2.14 Weighting filter: x[0..39] from e[e_off-5..e_off+44] (the samples outside e[e_off..e_off+39] must be zero). */
+	private static void weightingFilter(int[] e, int e_off, int[] x) {
+		int base=e_off-5;
+		for (int k=0; k<40; k++) {
+			int L_result=4096;
+			for (int i=0; i<=10; i++) L_result+=e[base+k+i]*H[i];
+			L_result=L_result>>13;
+			x[k]=(L_result<MIN_WORD)? MIN_WORD : (L_result>MAX_WORD)? MAX_WORD : L_result;
+		}
+	}
+
+
+	/** Packs the frame parameters into a 33-byte frame. */
+	private static void pack(GsmState st, byte[] c, int c_off) {
+		BitWriter w=st.bit_writer;
+		w.init(c,c_off);
+		w.write(MAGIC,4);
+		for (int i=0; i<8; i++) w.write(st.LARc[i],LAR_BITS[i]);
+		for (int k=0; k<4; k++) {
+			w.write(st.Nc[k],7);
+			w.write(st.bc[k],2);
+			w.write(st.Mc[k],2);
+			w.write(st.xmaxc[k],6);
+			for (int i=k*13, end=i+13; i<end; i++) w.write(st.xMc[i],3);
+		}
+	}
+
+
+
+	// **************************** Decoder ****************************
+
+	/** Decodes a frame into 160 samples.
+	  * @param state the decoder state
+	  * @param c the encoded frame (33 bytes)
+	  * @param c_off the offset of the frame
+	  * @param s the buffer for the linear samples
+	  * @param off the offset within the buffer
+	  * @return the number of decoded samples (160), or -1 if the frame is not a valid GSM frame */
+	public static int decode(GsmState state, byte[] c, int c_off, short[] s, int off) {
+		if (!unpack(state,c,c_off)) return -1;
+		// else
+		decoder(state);
+		int[] so=state.so;
+		for (int k=0; k<FRAME_SAMPLES; k++) s[off+k]=(short)so[k];
+		return FRAME_SAMPLES;
+	}
+
+
+	/** Decodes a frame into 160 samples of 16-bit PCM data.
+	  * @param state the decoder state
+	  * @param c the encoded frame (33 bytes)
+	  * @param c_off the offset of the frame
+	  * @param pcm the buffer for the PCM data (320 bytes)
+	  * @param off the offset within the buffer
+	  * @param big_endian whether the PCM samples are big-endian
+	  * @return the number of decoded samples (160), or -1 if the frame is not a valid GSM frame */
+	public static int decode(GsmState state, byte[] c, int c_off, byte[] pcm, int off, boolean big_endian) {
+		if (!unpack(state,c,c_off)) return -1;
+		// else
+		decoder(state);
+		int[] so=state.so;
+		if (big_endian) for (int k=0; k<FRAME_SAMPLES; k++) {
+			pcm[off++]=(byte)(so[k]>>8);
+			pcm[off++]=(byte)so[k];
+		}
+		else for (int k=0; k<FRAME_SAMPLES; k++) {
+			pcm[off++]=(byte)so[k];
+			pcm[off++]=(byte)(so[k]>>8);
+		}
+		return FRAME_SAMPLES;
+	}
+
+
+	/** Unpacks a 33-byte frame into the frame parameters.
+	  * @return false if the frame signature is not valid */
+	private static boolean unpack(GsmState st, byte[] c, int c_off) {
+		BitReader r=st.bit_reader;
+		r.init(c,c_off,FRAME_SIZE);
+		if (r.read(4)!=MAGIC) return false;
+		// else
+		for (int i=0; i<8; i++) st.LARc[i]=r.read(LAR_BITS[i]);
+		for (int k=0; k<4; k++) {
+			st.Nc[k]=r.read(7);
+			st.bc[k]=r.read(2);
+			st.Mc[k]=r.read(2);
+			st.xmaxc[k]=r.read(6);
+			for (int i=k*13, end=i+13; i<end; i++) st.xMc[i]=r.read(3);
+		}
+		return true;
+	}
+
+
+	/** Decodes the frame parameters into state.so. */
+	private static void decoder(GsmState st) {
+		int[] drp=st.dp0; // drp=dp0+120
+		int[] wt=st.so;
+		int[] erp=st.erp;
+		for (int j=0; j<=3; j++) {
+			// RPE decoding
+			int xmaxcr=st.xmaxc[j];
+			int exp=xmaxcToExp(xmaxcr);
+			int mant=xmaxcToMant(xmaxcr);
+			apcmInverseQuantization(st.xMc,j*13,mant,exp,st.xMp);
+			rpeGridPositioning(st.Mc[j],st.xMp,erp,0);
+			longTermSynthesisFiltering(st,st.Nc[j],st.bc[j],erp,drp);
+			for (int k=0; k<40; k++) wt[j*40+k]=drp[120+k];
+		}
+		shortTermSynthesisFilter(st,st.LARc,wt);
+		postprocessing(st,wt);
+	}
+
+
+	/** 4.3.2 Long term synthesis filtering. */
+	private static void longTermSynthesisFiltering(GsmState st, int Ncr, int bcr, int[] erp, int[] dp0) {
+		// check the limits of Nr
+		int Nr=(Ncr<40 || Ncr>120)? st.nrp : Ncr;
+		st.nrp=Nr;
+		// decoding of the LTP gain bcr
+		int brp=QLB[bcr];
+		// computation of the reconstructed short term residual signal drp[0..39]
+		for (int k=0; k<40; k++) {
+			int drpp=multR(brp,dp0[120+k-Nr]);
+			dp0[120+k]=add(erp[k],drpp);
+		}
+		// update of the reconstructed short term residual signal drp[-1..-120]
+		System.arraycopy(dp0,40,dp0,0,120);
+	}
+
+
+	/** 4.3.3-4.3.4 Short term synthesis filtering (in place). */
+	private static void shortTermSynthesisFilter(GsmState st, int[] LARcr, int[] s) {
+		int[] LARpp_j=st.LARpp[st.j];
+		st.j^=1;
+		int[] LARpp_j_1=st.LARpp[st.j];
+		int[] LARp=st.LARp;
+		decodingOfTheCodedLogAreaRatios(LARcr,LARpp_j);
+		coefficients_0_12(LARpp_j_1,LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermSynthesisFiltering(st,LARp,13,s,0);
+		coefficients_13_26(LARpp_j_1,LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermSynthesisFiltering(st,LARp,14,s,13);
+		coefficients_27_39(LARpp_j_1,LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermSynthesisFiltering(st,LARp,13,s,27);
+		coefficients_40_159(LARpp_j,LARp);
+		larpToRp(LARp);
+		shortTermSynthesisFiltering(st,LARp,120,s,40);
+	}
+
+
+	/** Lattice synthesis filter. */
+	private static void shortTermSynthesisFiltering(GsmState st, int[] rrp, int k_n, int[] s, int off) {
+		int[] v=st.v;
+		for (int end=off+k_n; off<end; off++) {
+			int sri=s[off];
+			for (int i=7; i>=0; i--) {
+				int tmp1=rrp[i];
+				int tmp2=multRSat(tmp1,v[i]);
+				sri=sub(sri,tmp2);
+				tmp1=multRSat(tmp1,sri);
+				v[i+1]=add(v[i],tmp1);
+			}
+			s[off]=v[0]=sri;
+		}
+	}
+
+
+	/** 4.3.5 Deemphasis, truncation, and upscaling (in place). */
+	private static void postprocessing(GsmState st, int[] s) {
+		int msr=st.msr;
+		for (int k=0; k<FRAME_SAMPLES; k++) {
+			int tmp=multR(msr,28180);
+			msr=add(s[k],tmp);
+			s[k]=(short)(add(msr,msr)&0xFFF8);
+		}
+		st.msr=msr;
+	}
+
+
+
+	// ************************* Common routines *************************
+
+	/** 4.2.9 Decoding of the coded Log-Area Ratios. */
+	private static void decodingOfTheCodedLogAreaRatios(int[] LARc, int[] LARpp) {
+		for (int i=0; i<8; i++) {
+			int temp1=(short)(add(LARc[i],MIC[i])<<10);
+			temp1=sub(temp1,B[i]<<1);
+			temp1=multR(INVA[i],temp1);
+			LARpp[i]=add(temp1,temp1);
+		}
+	}
+
+
+	/** 4.2.9.1 Interpolation of the LARpp[1..8] for k_start=0 to k_end=12. */
+	private static void coefficients_0_12(int[] LARpp_j_1, int[] LARpp_j, int[] LARp) {
+		for (int i=0; i<8; i++) {
+			LARp[i]=add(LARpp_j_1[i]>>2,LARpp_j[i]>>2);
+			LARp[i]=add(LARp[i],LARpp_j_1[i]>>1);
+		}
+	}
+
+
+	/** 4.2.9.1 Interpolation of the LARpp[1..8] for k_start=13 to k_end=26. */
+	private static void coefficients_13_26(int[] LARpp_j_1, int[] LARpp_j, int[] LARp) {
+		for (int i=0; i<8; i++) LARp[i]=add(LARpp_j_1[i]>>1,LARpp_j[i]>>1);
+	}
+
+
+	/** 4.2.9.1 Interpolation of the LARpp[1..8] for k_start=27 to k_end=39. */
+	private static void coefficients_27_39(int[] LARpp_j_1, int[] LARpp_j, int[] LARp) {
+		for (int i=0; i<8; i++) {
+			LARp[i]=add(LARpp_j_1[i]>>2,LARpp_j[i]>>2);
+			LARp[i]=add(LARp[i],LARpp_j[i]>>1);
+		}
+	}
+
+
+	/** 4.2.9.1 Interpolation of the LARpp[1..8] for k_start=40 to k_end=159. */
+	private static void coefficients_40_159(int[] LARpp_j, int[] LARp) {
+		for (int i=0; i<8; i++) LARp[i]=LARpp_j[i];
+	}
+
+
+	/** 4.2.9.2 Computation of the reflection coefficients rp[1..8] from the interpolated LARp[1..8] (in place). */
+	private static void larpToRp(int[] LARp) {
+		for (int i=0; i<8; i++) {
+			int temp=LARp[i];
+			boolean negative=temp<0;
+			if (negative) temp=(temp==MIN_WORD)? MAX_WORD : -temp;
+			temp=(temp<11059)? temp<<1 : (temp<20070)? temp+11059 : add(temp>>2,26112);
+			LARp[i]=(short)(negative? -temp : temp);
+		}
+	}
+
+
+	/** 4.2.15 Exponent of the decoded version of xmaxc. */
+	private static int xmaxcToExp(int xmaxc) {
+		if (xmaxc==0) return -4;
+		// else
+		int exp=(xmaxc>15)? (xmaxc>>3)-1 : 0;
+		int mant=xmaxc-(exp<<3);
+		while (mant<=7) {
+			mant=mant<<1|1;
+			exp--;
+		}
+		return exp;
+	}
+
+
+	/** 4.2.15 Mantissa of the decoded version of xmaxc. */
+	private static int xmaxcToMant(int xmaxc) {
+		if (xmaxc==0) return 7;
+		// else
+		int exp=(xmaxc>15)? (xmaxc>>3)-1 : 0;
+		int mant=xmaxc-(exp<<3);
+		while (mant<=7) mant=mant<<1|1;
+		return mant-8;
+	}
+
+
+	/** 4.2.16 APCM inverse quantization of xMc[off..off+12] into xMp[0..12]. */
+	private static void apcmInverseQuantization(int[] xMc, int off, int mant, int exp, int[] xMp) {
+		int temp1=FAC[mant];
+		int temp2=sub(6,exp);
+		int temp3=asl(1,sub(temp2,1));
+		for (int i=0; i<13; i++) {
+			int temp=((xMc[off+i]<<1)-7)<<12;
+			temp=multR(temp1,temp);
+			temp=add(temp,temp3);
+			xMp[i]=asr(temp,temp2);
+		}
+	}
+
+
+	/** 4.2.17 RPE grid positioning: ep[off..off+39] from xMp[0..12]. */
+	private static void rpeGridPositioning(int Mc, int[] xMp, int[] ep, int off) {
+		for (int i=0; i<40; i++) ep[off+i]=0;
+		for (int i=0; i<13; i++) ep[off+Mc+3*i]=xMp[i];
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * THE PUBLICATION, REDISTRIBUTION OR MODIFY, COMPLETE OR PARTIAL OF CONTENTS, 
+ * CAN BE MADE ONLY AFTER AUTHORIZATION BY THE AFOREMENTIONED COPYRIGHT HOLDER.
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sound.codec;
+
+
+
+import org.zoolu.util.BitReader;
+import org.zoolu.util.BitWriter;
+
+
+
+/** State of a GSM 06.10 encoder or decoder.
+  * <p>
+  * Besides the state of the filters, it also contains all working buffers used
+  * for processing a frame, so that encoding and decoding do not allocate any memory.
+  * <p>
+  * A GsmState can be reused for many consecutive frames of the same stream,
+  * and can be reset in order to be reused for a new stream.
+  */
+public class GsmState {
+	
+	// ***** filter state *****
+
+	/** Reconstructed short term residual signal: dp0[0..119] contains the previous 120 samples, dp0[120..279] the current frame */
+	/*short*/int[] dp0=new int[280];
+
+	/** Offset compensation, previous input sample */
+	/*short*/int z1;
+	/** Offset compensation, filter memory */
+	/*long*/int L_z2;
+	/** Preemphasis, previous sample */
+	/*short*/int mp;
+
+	/** Short term analysis filter memory */
+	/*short*/int[] u=new int[8];
+	/** Decoded LARs of the current and previous frame */
+	/*short*/int[][] LARpp=new int[2][8];
+	/** Index of the current LARs within LARpp */
+	int j;
+
+	/** Long term synthesis, last valid LTP lag */
+	/*short*/int nrp;
+	/** Short term synthesis filter memory */
+	/*short*/int[] v=new int[9];
+	/** Deemphasis, previous sample */
+	/*short*/int msr;
+
+	
+	// ***** frame parameters *****
+
+	/** Coded Log-Area Ratios */
+	int[] LARc=new int[8];
+	/** LTP lags */
+	int[] Nc=new int[4];
+	/** LTP gains */
+	int[] bc=new int[4];
+	/** RPE grid positions */
+	int[] Mc=new int[4];
+	/** Block amplitudes */
+	int[] xmaxc=new int[4];
+	/** RPE pulses */
+	int[] xMc=new int[52];
+
+
+	// ***** working buffers *****
+
+	/** Preprocessed signal / synthesis input */
+	int[] so=new int[160];
+	/** Residual signal e[-5..44] */
+	int[] e=new int[50];
+	/** Weighted residual signal */
+	int[] x=new int[40];
+	/** Selected RPE sequence */
+	int[] xM=new int[13];
+	/** Decoded RPE sequence */
+	int[] xMp=new int[13];
+	/** Decoded residual signal */
+	int[] erp=new int[40];
+	/** Interpolated LARs */
+	int[] LARp=new int[8];
+	/** Autocorrelation */
+	/*long*/int[] L_ACF=new int[9];
+	/** Schur recursion arrays */
+	int[] ACF=new int[9], P=new int[9], K=new int[9];
+	/** LTP weighted signal */
+	int[] wt=new int[40];
+	/** Bit writer used for packing frames */
+	BitWriter bit_writer=new BitWriter();
+	/** Bit reader used for unpacking frames */
+	BitReader bit_reader=new BitReader();
+
+
+
+	/** Creates a new GsmState. */
+	public GsmState() {
+		reset();
+	}
+
+
+	/** Resets the state, in order to process a new stream. */
+	public void reset() {
+		for (int i=0; i<dp0.length; i++) dp0[i]=0;
+		z1=0;
+		L_z2=0;
+		mp=0;
+		for (int i=0; i<u.length; i++) u[i]=0;
+		for (int i=0; i<8; i++) LARpp[0][i]=LARpp[1][i]=0;
+		j=0;
+		nrp=40;
+		for (int i=0; i<v.length; i++) v[i]=0;
+		msr=0;
+		for (int i=0; i<e.length; i++) e[i]=0;
+	}
+
+}
@@ -24,8 +24,8 @@ import org.zoolu.sound.codec.G711;
   */
 class G711ToPcmAudioInputStream extends BufferedAudioInputStream {
 	
-	/** Auxiliar buffer size */
-	static final int AUX_BUFFER_SIZE=1;
+	/** Auxiliar buffer size (in samples) */
+	static final int AUX_BUFFER_SIZE=160;
 
 	/** Auxiliar buffer */
 	byte[] aux_buffer;
@@ -33,6 +33,9 @@ class G711ToPcmAudioInputStream extends BufferedAudioInputStream {
 	/** G711 encoding */
 	AudioFormat.Encoding g711_encoding;
 
+	/** Whether the encoding is ULAW */
+	boolean ulaw;
+
 
 	/** Creates a new G711ToPcmAudioInputStream. */
 	public G711ToPcmAudioInputStream(AudioInputStream input_stream/*, AudioFormat source_format*/) {
@@ -44,6 +47,7 @@ class G711ToPcmAudioInputStream extends BufferedAudioInputStream {
 			System.err.println("ERROR: G711ToPcmAudioInputStream: unknown G711 encoding type: "+g711_encoding.toString());  
 		}
 		
+		ulaw=(g711_encoding==G711Encoding.G711_ULAW);
 		aux_buffer=new byte[AUX_BUFFER_SIZE];
 	}
 
@@ -54,14 +58,11 @@ class G711ToPcmAudioInputStream extends BufferedAudioInputStream {
 	protected int innerRead(byte[] buffer) {
 		try {
 			int aux_len=input_stream.read(aux_buffer);
-			for (int i=0; i<aux_len; i++) {
-				int linear=0;
-				if (g711_encoding==G711Encoding.G711_ULAW) linear=G711.ulaw2linear(aux_buffer[i]);
-				else linear=G711.alaw2linear(aux_buffer[i]);
-				int i2=i*2;
-				buffer[i2]=(byte)(linear&0xFF);
-				buffer[i2+1]=(byte)(linear>>8);
-			}
+			if (aux_len<0) return 0;
+			// else
+			// little-endian output samples
+			if (ulaw) G711.ulaw2linear(aux_buffer,0,buffer,0,aux_len,false);
+			else G711.alaw2linear(aux_buffer,0,buffer,0,aux_len,false);
 			return aux_len*2;
 		}
 		catch (java.io.IOException e) {
@@ -25,26 +25,23 @@ public class G711ToPcmEncoder implements Encoder {
 	/** G711 encoding (PCM ULAW or ALAW) */
 	AudioFormat.Encoding g711_encoding;
 
+	/** Whether the encoding is ULAW */
+	boolean ulaw;
+
 
 	/** Creates a new G711ToPcmEncoder */
 	public G711ToPcmEncoder(AudioFormat.Encoding g711_encoding) {
 		this.g711_encoding=g711_encoding;
+		ulaw=(g711_encoding==G711Encoding.G711_ULAW);
 	}
 
 
 	/** Encodes the input chunk in_buff and returns the encoded chuck into out_buff.
 	  * It returns the actual size of the output data. */
 	public int encode(byte[] in_buff, int in_offset, int in_len, byte[] out_buff, int out_offset) {
-		int in_end=in_offset+in_len;
-		int j=out_offset;      
-		for (int i=in_offset; i<in_end; i++) {
-			int linear=0;
-			if (g711_encoding==G711Encoding.G711_ULAW) linear=G711.ulaw2linear(in_buff[i]);
-			else linear=G711.alaw2linear(in_buff[i]);
-			// convert signed int to little-endian byte array
-			out_buff[j++]=(byte)(linear&0xFF);
-			out_buff[j++]=(byte)(linear>>8);
-		}
+		// little-endian output samples
+		if (ulaw) G711.ulaw2linear(in_buff,in_offset,out_buff,out_offset,in_len,false);
+		else G711.alaw2linear(in_buff,in_offset,out_buff,out_offset,in_len,false);
 		return in_len*2;
 	}
 
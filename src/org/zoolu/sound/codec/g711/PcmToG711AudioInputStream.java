@@ -24,15 +24,24 @@ import org.zoolu.sound.codec.G711;
   */
 class PcmToG711AudioInputStream extends BufferedAudioInputStream {
 	
-	/** Buffer size */
-	static final int BUFFER_SIZE=1;
+	/** Buffer size (in samples) */
+	static final int BUFFER_SIZE=160;
 
 	/** Auxiliar buffer */
 	byte[] aux_buffer;
 
+	/** Number of bytes of an incomplete PCM sample left at the beginning of the auxiliar buffer */
+	int pending=0;
+
 	/** G711 encoding */
 	AudioFormat.Encoding g711_encoding;
 
+	/** Whether the encoding is ULAW */
+	boolean ulaw;
+
+	/** Whether the PCM samples are big-endian */
+	boolean big_endian;
+
 
 	/** Creates a new PcmToG711AudioInputStream. */
 	public PcmToG711AudioInputStream(AudioInputStream input_stream, AudioFormat target_format) {
@@ -44,6 +53,8 @@ class PcmToG711AudioInputStream extends BufferedAudioInputStream {
 			System.err.println("ERROR: PcmToG711AudioInputStream: unknown G711 encoding type: "+g711_encoding.toString());  
 		}
 
+		ulaw=(g711_encoding==G711Encoding.G711_ULAW);
+		big_endian=input_stream.getFormat().isBigEndian();
 		aux_buffer=new byte[2*BUFFER_SIZE];
 	}
 
@@ -53,14 +64,16 @@ class PcmToG711AudioInputStream extends BufferedAudioInputStream {
 	  * @return the number of bytes that have been read */
 	protected int innerRead(byte[] buffer) {
 		try {
-			int aux_len=input_stream.read(aux_buffer);
+			int aux_len=input_stream.read(aux_buffer,pending,aux_buffer.length-pending);
+			if (aux_len<0) return 0;
+			// else
+			aux_len+=pending;
 			int aux_len_div2=aux_len/2;
-			for (int i=0; i<aux_len_div2; i++) {
-				int i2=i*2;
-				int linear=org.zoolu.sound.codec.G726.signedIntLittleEndian(aux_buffer[i2+1],aux_buffer[i2]);
-				if (g711_encoding==G711Encoding.G711_ULAW) buffer[i]=(byte)G711.linear2ulaw(linear);
-				else buffer[i]=(byte)G711.linear2alaw(linear);
-			}
+			if (ulaw) G711.linear2ulaw(aux_buffer,0,buffer,0,aux_len_div2,big_endian);
+			else G711.linear2alaw(aux_buffer,0,buffer,0,aux_len_div2,big_endian);
+			// keep a possible incomplete sample
+			pending=aux_len&1;
+			if (pending>0) aux_buffer[0]=aux_buffer[aux_len-1];
 			return aux_len_div2;
 		}
 		catch (java.io.IOException e) {
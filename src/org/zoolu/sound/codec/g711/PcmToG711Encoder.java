@@ -25,10 +25,14 @@ public class PcmToG711Encoder implements Encoder {
 	/** G711 encoding (PCM ULAW or ALAW) */
 	AudioFormat.Encoding g711_encoding;
 
+	/** Whether the encoding is ULAW */
+	boolean ulaw;
+
 
 	/** Creates a new PcmToG711Encoder. */
 	public PcmToG711Encoder(AudioFormat.Encoding g711_encoding) {
 		this.g711_encoding=g711_encoding;
+		ulaw=(g711_encoding==G711Encoding.G711_ULAW);
 	}
 
 
@@ -36,15 +40,9 @@ public class PcmToG711Encoder implements Encoder {
 	  * It returns the actual size of the output data. */
 	public int encode(byte[] in_buff, int in_offset, int in_len, byte[] out_buff, int out_offset) {
 		int out_len=in_len/2;
-		int out_end=out_offset+out_len;
-		int j=in_offset;
-		for (int i=out_offset; i<out_end; i++,j+=2) {
-			// convert little-endian byte array to signed int
-			//int linear=org.zoolu.ext.sound.codec.G726.signedIntLittleEndian(in_buff[j+1],in_buff[j]);
-			int linear=((in_buff[j+1]&0xFF)<<8)+(in_buff[j]&0xFF);
-			if (g711_encoding==G711Encoding.G711_ULAW) out_buff[i]=(byte)G711.linear2ulaw(linear);
-			else out_buff[i]=(byte)G711.linear2alaw(linear);
-		}
+		// little-endian input samples
+		if (ulaw) G711.linear2ulaw(in_buff,in_offset,out_buff,out_offset,out_len,false);
+		else G711.linear2alaw(in_buff,in_offset,out_buff,out_offset,out_len,false);
 		return out_len;
 	}
 
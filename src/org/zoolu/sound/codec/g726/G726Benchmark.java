@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * THE PUBLICATION, REDISTRIBUTION OR MODIFY, COMPLETE OR PARTIAL OF CONTENTS, 
+ * CAN BE MADE ONLY AFTER AUTHORIZATION BY THE AFOREMENTIONED COPYRIGHT HOLDER.
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sound.codec.g726;
+
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.zoolu.sound.codec.G726;
+import org.zoolu.sound.codec.G726State;
+import org.zoolu.sound.codec.G726_24;
+import org.zoolu.sound.codec.G726_32;
+import org.zoolu.sound.codec.G726_40;
+import org.zoolu.util.Flags;
+
+
+
+/** G726Benchmark checks and measures the G726 block encoder and decoder.
+  * <p>
+  * It performs the following steps:
+  * <ul>
+  * <li>if a directory with the ITU-T G.726 test sequences is given, it checks the encoder and decoder
+  * against the reference sequences (normal and overload, u-law and A-law, at 24, 32, and 40 kbit/s);
+  * the sequences are binary files with one sample or code per byte, named as in the ITU-T distribution
+  * (e.g. nrm.m, ovr.a, rn32fm.i, rn32fm.o, ov40fa.i, ov40fa.o);</li>
+  * <li>it checks that the block {@link PcmToG726Encoder} and {@link G726ToPcmEncoder} produce
+  * the same output as the per-sample encoding and decoding methods;</li>
+  * <li>it measures the number of 20ms frames per second that are encoded and decoded by a single thread,
+  * and the corresponding number of full-duplex channels per core.</li>
+  * </ul>
+  */
+public class G726Benchmark {
+	
+	/** Samples per 20ms frame */
+	static final int FRAME_SAMPLES=160;
+
+	/** G726 bit rates [kbit/s] */
+	static final int[] RATES={ 24, 32, 40 };
+
+	/** G726 encodings */
+	static final AudioFormat.Encoding[] ENCODINGS={ G726Encoding.G726_24, G726Encoding.G726_32, G726Encoding.G726_40 };
+
+
+	/** Sum of the output values, that prevents the JIT from removing the loops */
+	static long sink=0;
+
+
+	/** Encodes a sample using the per-sample method of the given rate. */
+	static int encode(int rate, int sample, int in_coding, G726State state) {
+		switch (rate) {
+			case 24 : return G726_24.encode(sample,in_coding,state);
+			case 32 : return G726_32.encode(sample,in_coding,state);
+			default : return G726_40.encode(sample,in_coding,state);
+		}
+	}
+
+
+	/** Decodes a code using the per-sample method of the given rate. */
+	static int decode(int rate, int code, int out_coding, G726State state) {
+		switch (rate) {
+			case 24 : return G726_24.decode(code,out_coding,state);
+			case 32 : return G726_32.decode(code,out_coding,state);
+			default : return G726_40.decode(code,out_coding,state);
+		}
+	}
+
+
+	/** Reads a whole file.
+	  * @return the file content, or null if the file does not exist */
+	static byte[] readFile(File file) throws IOException {
+		if (!file.exists()) return null;
+		// else
+		byte[] data=new byte[(int)file.length()];
+		FileInputStream is=new FileInputStream(file);
+		try {
+			int len=0;
+			while (len<data.length) {
+				int n=is.read(data,len,data.length-len);
+				if (n<0) break;
+				len+=n;
+			}
+		}
+		finally {
+			is.close();
+		}
+		return data;
+	}
+
+
+	/** Compares a processed sequence with the reference one.
+	  * @return the number of mismatches, or -1 if the sequences are not available */
+	static int checkSequence(File dir, String in_file, String ref_file, int rate, boolean encode, int coding) throws IOException {
+		byte[] in=readFile(new File(dir,in_file));
+		byte[] ref=readFile(new File(dir,ref_file));
+		if (in==null || ref==null) return -1;
+		// else
+		G726State state=new G726State();
+		int n=Math.min(in.length,ref.length);
+		int mismatches=0;
+		for (int i=0; i<n; i++) {
+			int value=encode? encode(rate,in[i]&0xff,coding,state) : decode(rate,in[i]&0xff,coding,state);
+			if ((value&0xff)!=(ref[i]&0xff)) mismatches++;
+		}
+		return mismatches;
+	}
+
+
+	/** Checks the encoder and decoder against the ITU-T test sequences.
+	  * @return whether all the available sequences match */
+	static boolean checkVectors(File dir) throws IOException {
+		boolean passed=true;
+		String[] laws={ "m", "a" };
+		int[] codings={ G726.AUDIO_ENCODING_ULAW, G726.AUDIO_ENCODING_ALAW };
+		for (int r=0; r<RATES.length; r++) {
+			for (int l=0; l<laws.length; l++) {
+				String law=laws[l];
+				String[][] tests={
+					{ "nrm."+law, "rn"+RATES[r]+"f"+law+".i" },
+					{ "ovr."+law, "ov"+RATES[r]+"f"+law+".i" },
+					{ "rn"+RATES[r]+"f"+law+".i", "rn"+RATES[r]+"f"+law+".o" },
+					{ "ov"+RATES[r]+"f"+law+".i", "ov"+RATES[r]+"f"+law+".o" }
+				};
+				for (int t=0; t<tests.length; t++) {
+					boolean encode=(t<2);
+					int mismatches=checkSequence(dir,tests[t][0],tests[t][1],RATES[r],encode,codings[l]);
+					String result=(mismatches<0)? "not available" : (mismatches==0)? "passed" : "FAILED ("+mismatches+" mismatches)";
+					System.out.println((encode? "encode " : "decode ")+tests[t][0]+" -> "+tests[t][1]+": "+result);
+					if (mismatches>0) passed=false;
+				}
+			}
+		}
+		return passed;
+	}
+
+
+	/** Checks the block encoder and decoder against the per-sample methods.
+	  * @return whether the outputs are identical */
+	static boolean checkBlocks(byte[] pcm, int frames) {
+		boolean passed=true;
+		byte[] code=new byte[FRAME_SAMPLES*5/8];
+		byte[] out=new byte[FRAME_SAMPLES*2];
+		for (int r=0; r<RATES.length; r++) {
+			int rate=RATES[r];
+			int code_size=rate/8;
+			PcmToG726Encoder encoder=new PcmToG726Encoder(ENCODINGS[r]);
+			G726ToPcmEncoder decoder=new G726ToPcmEncoder(ENCODINGS[r]);
+			G726State enc_state=new G726State();
+			G726State dec_state=new G726State();
+			int mismatches=0;
+			for (int f=0; f<frames; f++) {
+				int off=(f*FRAME_SAMPLES*2)%(pcm.length-FRAME_SAMPLES*2+1);
+				int code_len=encoder.encode(pcm,off,FRAME_SAMPLES*2,code,0);
+				int pcm_len=decoder.encode(code,0,code_len,out,0);
+				if (code_len!=FRAME_SAMPLES*code_size/8 || pcm_len!=FRAME_SAMPLES*2) {
+					mismatches++;
+					continue;
+				}
+				// else
+				for (int i=0; i<FRAME_SAMPLES; i++) {
+					int sample=(short)((pcm[off+2*i+1]<<8)|(pcm[off+2*i]&0xff));
+					int value=encode(rate,sample,G726.AUDIO_ENCODING_LINEAR,enc_state);
+					int bit_off=i*code_size;
+					int packed=0;
+					for (int b=0; b<code_size; b++) {
+						int bit=bit_off+b;
+						packed=(packed<<1)|((code[bit/8]>>(7-bit%8))&1);
+					}
+					int decoded=(short)decode(rate,packed,G726.AUDIO_ENCODING_LINEAR,dec_state);
+					int out_sample=(short)((out[2*i+1]<<8)|(out[2*i]&0xff));
+					if (packed!=value || decoded!=out_sample) mismatches++;
+				}
+			}
+			System.out.println("G726_"+rate+" block encoder/decoder: "+((mismatches==0)? "passed" : "FAILED ("+mismatches+" mismatches)"));
+			if (mismatches>0) passed=false;
+		}
+		return passed;
+	}
+
+
+	/** Measures the encoding and decoding of 20ms frames.
+	  * @return the number of frames encoded and decoded per second */
+	static long run(int r, byte[] pcm, int n) {
+		PcmToG726Encoder encoder=new PcmToG726Encoder(ENCODINGS[r]);
+		G726ToPcmEncoder decoder=new G726ToPcmEncoder(ENCODINGS[r]);
+		byte[] code=new byte[FRAME_SAMPLES*5/8];
+		byte[] out=new byte[FRAME_SAMPLES*2];
+		int frames=pcm.length/(FRAME_SAMPLES*2);
+		long start=0;
+		for (int f=-n/10; f<n; f++) {
+			// the first tenth of the frames is used for warm-up
+			if (f==0) start=System.nanoTime();
+			int off=((f+n)%frames)*FRAME_SAMPLES*2;
+			int code_len=encoder.encode(pcm,off,FRAME_SAMPLES*2,code,0);
+			decoder.encode(code,0,code_len,out,0);
+			sink+=out[0];
+		}
+		long time=System.nanoTime()-start;
+		return time>0? (long)n*1000000000L/time : 0;
+	}
+
+
+	/** Creates a speech-like test signal, i.e. a mix of tones with varying amplitude and some noise. */
+	static byte[] createSignal(int samples) {
+		Random random=new Random(0);
+		byte[] pcm=new byte[samples*2];
+		for (int i=0; i<samples; i++) {
+			double t=i/8000.0;
+			double envelope=0.5+0.5*Math.sin(2*Math.PI*3*t);
+			double value=envelope*(6000*Math.sin(2*Math.PI*440*t)+3000*Math.sin(2*Math.PI*1270*t))+random.nextGaussian()*500;
+			int sample=(int)Math.max(-32768,Math.min(32767,value));
+			pcm[2*i]=(byte)sample;
+			pcm[2*i+1]=(byte)(sample>>8);
+		}
+		return pcm;
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n=flags.getInteger("-n",50000,"<n>","number of 20ms frames per bit rate");
+		String vectors=flags.getString("--vectors",null,"<dir>","directory with the ITU-T G.726 test sequences (one sample per byte)");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(G726Benchmark.class.getName()));
+			return;
+		}
+		// else
+		boolean passed=true;
+		if (vectors!=null) {
+			try {
+				passed=checkVectors(new File(vectors));
+			}
+			catch (IOException e) {
+				System.out.println("Error reading the test sequences: "+e);
+				passed=false;
+			}
+		}
+		byte[] pcm=createSignal(FRAME_SAMPLES*500);
+		passed&=checkBlocks(pcm,500);
+		if (!passed) {
+			System.out.println("Conformance check failed");
+			System.exit(1);
+		}
+		// else
+		for (int r=0; r<RATES.length; r++) {
+			long frames_per_second=run(r,pcm,n);
+			// a full-duplex channel encodes and decodes 50 frames per second
+			System.out.println("G726_"+RATES[r]+": "+frames_per_second+" frames/s, "+(frames_per_second/50)+" channels per core");
+		}
+		if (sink==1) System.out.println();
+	}
+
+}
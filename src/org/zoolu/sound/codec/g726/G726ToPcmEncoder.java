@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * THE PUBLICATION, REDISTRIBUTION OR MODIFY, COMPLETE OR PARTIAL OF CONTENTS, 
+ * CAN BE MADE ONLY AFTER AUTHORIZATION BY THE AFOREMENTIONED COPYRIGHT HOLDER.
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sound.codec.g726;
+
+
+
+import javax.sound.sampled.AudioFormat;
+
+import org.zoolu.sound.codec.G726;
+import org.zoolu.sound.codec.G726State;
+import org.zoolu.sound.codec.G726_24;
+import org.zoolu.sound.codec.G726_32;
+import org.zoolu.sound.codec.G726_40;
+import org.zoolu.util.Encoder;
+
+
+
+/** G726-to-PCM Encoder.
+  * <p>
+  * It decodes blocks of G726 data (e.g. 20ms frames) into 16-bit little-endian linear PCM samples,
+  * directly into the caller's output buffer, without any allocation.
+  * The decoder state is kept between consecutive blocks, and can be reset
+  * for reusing the decoder for a new stream.
+  * <p>
+  * For G726_24 and G726_40 the input length should be a multiple of 3 and 5 bytes respectively (8 codes);
+  * remaining bytes are ignored.
+  */
+public class G726ToPcmEncoder implements Encoder {
+	
+	/** G726 encoding (G726_24, G726_32, or G726_40) */
+	AudioFormat.Encoding g726_encoding;
+
+	/** Number of bits per code */
+	int code_size;
+
+	/** Decoder state */
+	G726State state;
+
+
+	/** Creates a new G726ToPcmEncoder. */
+	public G726ToPcmEncoder(AudioFormat.Encoding g726_encoding) {
+		this(g726_encoding,new G726State());
+	}
+
+
+	/** Creates a new G726ToPcmEncoder.
+	  * @param g726_encoding the G726 encoding (G726_24, G726_32, or G726_40)
+	  * @param state the decoder state */
+	public G726ToPcmEncoder(AudioFormat.Encoding g726_encoding, G726State state) {
+		this.g726_encoding=g726_encoding;
+		this.state=state;
+		if (g726_encoding==G726Encoding.G726_24) code_size=3;
+		else
+		if (g726_encoding==G726Encoding.G726_32) code_size=4;
+		else
+		if (g726_encoding==G726Encoding.G726_40) code_size=5;
+		else throw new IllegalArgumentException("Unknown G726 encoding: "+g726_encoding);
+	}
+
+
+	/** Gets the decoder state. */
+	public G726State getState() {
+		return state;
+	}
+
+
+	/** Resets the decoder state, in order to decode a new stream. */
+	public void reset() {
+		state.reset();
+	}
+
+
+	/** Encodes the input chunk in_buff and returns the encoded chuck into out_buff.
+	  * It returns the actual size of the output data. */
+	public int encode(byte[] in_buff, int in_offset, int in_len, byte[] out_buff, int out_offset) {
+		switch (code_size) {
+			case 3 : return G726_24.decode(in_buff,in_offset,in_len,G726.AUDIO_ENCODING_LINEAR,out_buff,out_offset,state);
+			case 4 : return G726_32.decode(in_buff,in_offset,in_len,G726.AUDIO_ENCODING_LINEAR,out_buff,out_offset,state);
+			default : return G726_40.decode(in_buff,in_offset,in_len,G726.AUDIO_ENCODING_LINEAR,out_buff,out_offset,state);
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * THE PUBLICATION, REDISTRIBUTION OR MODIFY, COMPLETE OR PARTIAL OF CONTENTS, 
+ * CAN BE MADE ONLY AFTER AUTHORIZATION BY THE AFOREMENTIONED COPYRIGHT HOLDER.
+ *
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.sound.codec.gsm;
+
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.zoolu.metrics.Histogram;
+import org.zoolu.metrics.MetricRegistry;
+import org.zoolu.sound.codec.GSM;
+import org.zoolu.sound.codec.GsmState;
+import org.zoolu.util.BitReader;
+import org.zoolu.util.BitWriter;
+import org.zoolu.util.Flags;
+
+
+
+/** GsmBenchmark checks and measures the GSM 06.10 codec.
+  * <p>
+  * If a directory with the ETSI GSM 06.10 test sequences is given, the encoder and the decoder
+  * are checked against them: for each sequence SeqNN, the samples of SeqNN.inp are encoded and compared
+  * with the parameters of SeqNN.cod, and the parameters of SeqNN.cod are decoded and compared with the
+  * samples of SeqNN.out. All the files contain 16-bit words, with 76 parameters per frame in the .cod files.
+  * <p>
+  * Then the time spent for encoding and decoding each frame is measured, and its percentiles are reported.
+  */
+public class GsmBenchmark {
+	
+	/** Number of parameters per frame */
+	static final int FRAME_PARAMS=76;
+
+	/** Number of bits of each parameter (LARc[8], then Nc, bc, Mc, xmaxc, xMc[13] for each of the 4 subframes) */
+	static final int[] PARAM_BITS=new int[FRAME_PARAMS];
+
+	static {
+		int[] lar_bits={ 6, 6, 5, 5, 4, 4, 3, 3 };
+		int k=0;
+		for (int i=0; i<lar_bits.length; i++) PARAM_BITS[k++]=lar_bits[i];
+		for (int j=0; j<4; j++) {
+			PARAM_BITS[k++]=7;
+			PARAM_BITS[k++]=2;
+			PARAM_BITS[k++]=2;
+			PARAM_BITS[k++]=6;
+			for (int i=0; i<13; i++) PARAM_BITS[k++]=3;
+		}
+	}
+
+	/** Frame signature (the first 4 bits of each frame) */
+	static final int MAGIC=0xD;
+
+
+	/** Sum of the output values, that prevents the JIT from removing the loops */
+	static long sink=0;
+
+
+	/** Reads a file of 16-bit words.
+	  * @return the words, or null if the file does not exist */
+	static short[] readWords(File file, boolean big_endian) throws IOException {
+		if (!file.exists()) return null;
+		// else
+		byte[] data=new byte[(int)file.length()];
+		FileInputStream is=new FileInputStream(file);
+		try {
+			int len=0;
+			while (len<data.length) {
+				int n=is.read(data,len,data.length-len);
+				if (n<0) break;
+				len+=n;
+			}
+		}
+		finally {
+			is.close();
+		}
+		short[] words=new short[data.length/2];
+		for (int i=0; i<words.length; i++) {
+			if (big_endian) words[i]=(short)((data[2*i]<<8)|(data[2*i+1]&0xff));
+			else words[i]=(short)((data[2*i+1]<<8)|(data[2*i]&0xff));
+		}
+		return words;
+	}
+
+
+	/** Unpacks the parameters of an encoded frame. */
+	static void unpack(byte[] c, int c_off, int[] params) {
+		BitReader reader=new BitReader(c,c_off,GSM.FRAME_SIZE);
+		reader.skip(4);
+		for (int i=0; i<FRAME_PARAMS; i++) params[i]=reader.read(PARAM_BITS[i]);
+	}
+
+
+	/** Packs the parameters of a frame. */
+	static void pack(short[] params, int p_off, byte[] c, int c_off) {
+		BitWriter writer=new BitWriter(c,c_off);
+		writer.write(MAGIC,4);
+		for (int i=0; i<FRAME_PARAMS; i++) writer.write(params[p_off+i]&((1<<PARAM_BITS[i])-1),PARAM_BITS[i]);
+	}
+
+
+	/** Checks a test sequence.
+	  * @return the number of mismatching frames, or -1 if the sequence is not available */
+	static int checkSequence(File dir, String name, boolean big_endian) throws IOException {
+		short[] inp=readWords(new File(dir,name+".inp"),big_endian);
+		short[] cod=readWords(new File(dir,name+".cod"),big_endian);
+		short[] out=readWords(new File(dir,name+".out"),big_endian);
+		if (cod==null || (inp==null && out==null)) return -1;
+		// else
+		int frames=cod.length/FRAME_PARAMS;
+		byte[] c=new byte[GSM.FRAME_SIZE];
+		int[] params=new int[FRAME_PARAMS];
+		short[] s=new short[GSM.FRAME_SAMPLES];
+		int mismatches=0;
+		if (inp!=null) {
+			GsmState state=new GsmState();
+			for (int f=0; f<frames && (f+1)*GSM.FRAME_SAMPLES<=inp.length; f++) {
+				GSM.encode(state,inp,f*GSM.FRAME_SAMPLES,c,0);
+				unpack(c,0,params);
+				for (int i=0; i<FRAME_PARAMS; i++) {
+					if (params[i]!=cod[f*FRAME_PARAMS+i]) {
+						mismatches++;
+						break;
+					}
+				}
+			}
+		}
+		if (out!=null) {
+			GsmState state=new GsmState();
+			for (int f=0; f<frames && (f+1)*GSM.FRAME_SAMPLES<=out.length; f++) {
+				pack(cod,f*FRAME_PARAMS,c,0);
+				GSM.decode(state,c,0,s,0);
+				for (int i=0; i<GSM.FRAME_SAMPLES; i++) {
+					if (s[i]!=out[f*GSM.FRAME_SAMPLES+i]) {
+						mismatches++;
+						break;
+					}
+				}
+			}
+		}
+		return mismatches;
+	}
+
+
+	/** Creates a speech-like test signal, i.e. a mix of tones with varying amplitude and some noise. */
+	static short[] createSignal(int samples) {
+		Random random=new Random(0);
+		short[] s=new short[samples];
+		for (int i=0; i<samples; i++) {
+			double t=i/8000.0;
+			double envelope=0.5+0.5*Math.sin(2*Math.PI*3*t);
+			double value=envelope*(6000*Math.sin(2*Math.PI*440*t)+3000*Math.sin(2*Math.PI*1270*t))+random.nextGaussian()*500;
+			s[i]=(short)Math.max(-32768,Math.min(32767,value));
+		}
+		return s;
+	}
+
+
+	/** Measures the time spent for encoding and decoding each frame. */
+	static void run(short[] signal, int n) {
+		MetricRegistry registry=new MetricRegistry();
+		Histogram encode_time=registry.histogram("gsm_encode_time","time spent for encoding a frame");
+		Histogram decode_time=registry.histogram("gsm_decode_time","time spent for decoding a frame");
+		GsmState enc_state=new GsmState();
+		GsmState dec_state=new GsmState();
+		byte[] c=new byte[GSM.FRAME_SIZE];
+		short[] s=new short[GSM.FRAME_SAMPLES];
+		int frames=signal.length/GSM.FRAME_SAMPLES;
+		long start=0;
+		for (int f=-n/10; f<n; f++) {
+			// the first tenth of the frames is used for warm-up
+			if (f==0) start=System.nanoTime();
+			int off=((f+n)%frames)*GSM.FRAME_SAMPLES;
+			long t0=System.nanoTime();
+			GSM.encode(enc_state,signal,off,c,0);
+			long t1=System.nanoTime();
+			GSM.decode(dec_state,c,0,s,0);
+			long t2=System.nanoTime();
+			if (f>=0) {
+				encode_time.record(t1-t0);
+				decode_time.record(t2-t1);
+			}
+			sink+=s[0];
+		}
+		long time=System.nanoTime()-start;
+		System.out.println("encode [ns/frame]: mean "+encode_time.getSum()/n+", p50 "+encode_time.getPercentile(50)+", p99 "+encode_time.getPercentile(99)+", p99.9 "+encode_time.getPercentile(99.9));
+		System.out.println("decode [ns/frame]: mean "+decode_time.getSum()/n+", p50 "+decode_time.getPercentile(50)+", p99 "+decode_time.getPercentile(99)+", p99.9 "+decode_time.getPercentile(99.9));
+		// a full-duplex channel encodes and decodes 50 frames per second
+		if (time>0) System.out.println("channels per core: "+((long)n*1000000000L/time/50));
+	}
+
+
+	/** The main method. */
+	public static void main(String[] args) {
+		Flags flags=new Flags(args);
+		boolean help=flags.getBoolean("-h","prints this help message");
+		int n=flags.getInteger("-n",100000,"<n>","number of frames to be timed");
+		boolean big_endian=flags.getBoolean("--big-endian","the test sequences are big-endian (default is little-endian)");
+		String vectors=flags.getString("--vectors",null,"<dir>","directory with the ETSI GSM 06.10 test sequences (Seq01 to Seq05)");
+		
+		if (help) {
+			System.out.println(flags.toUsageString(GsmBenchmark.class.getName()));
+			return;
+		}
+		// else
+		if (vectors!=null) {
+			boolean passed=true;
+			try {
+				for (int i=1; i<=5; i++) {
+					String name="Seq0"+i;
+					int mismatches=checkSequence(new File(vectors),name,big_endian);
+					System.out.println(name+": "+((mismatches<0)? "not available" : (mismatches==0)? "passed" : "FAILED ("+mismatches+" mismatching frames)"));
+					if (mismatches>0) passed=false;
+				}
+			}
+			catch (IOException e) {
+				System.out.println("Error reading the test sequences: "+e);
+				passed=false;
+			}
+			if (!passed) {
+				System.out.println("Conformance check failed");
+				System.exit(1);
+			}
+		}
+		run(createSignal(GSM.FRAME_SAMPLES*500),n);
+		if (sink==1) System.out.println();
+	}
+
+}
@@ -12,47 +12,63 @@ package org.zoolu.sound.codec.gsm;
 
 
 
+import org.zoolu.sound.codec.GSM;
+import org.zoolu.sound.codec.GsmState;
 import org.zoolu.util.Encoder;
 
 
 
-/** GSM-to-PCM Encoder. */
+/** GSM-to-PCM Encoder.
+  * <p>
+  * It decodes 33-byte GSM 06.10 frames into 160 16-bit little-endian linear PCM samples each,
+  * directly into the caller's output buffer, without any allocation.
+  * The decoder state is kept between consecutive frames, and can be reset
+  * for reusing the decoder for a new stream.
+  * <p>
+  * Remaining bytes of an incomplete frame are ignored; invalid frames are decoded as silence.
+  */
 public class GsmToPcmEncoder implements Encoder {
 	
-	/** GSMDecoder costructor */
-	java.lang.reflect.Constructor gsm_decoder_constructor=null;
+	/** Decoder state */
+	GsmState state;
 
-	/** GSMDecoder */
-	//Object gsm_decoder=null;
 
-	/** GSMDecoder decode() method */
-	java.lang.reflect.Method gsm_decoder_decode=null;
-	
-	/** Creates a new GsmToPcmEncoder */
+	/** Creates a new GsmToPcmEncoder. */
 	public GsmToPcmEncoder() {
-		try {
-			// begin of java reflection for org.tritonus.lowlevel.gsm.GSMDecoder.decode()
-			Class gsm_decoder_class=Class.forName("org.tritonus.lowlevel.gsm.GSMDecoder");
-			gsm_decoder_constructor=gsm_decoder_class.getConstructor((Class[])null);
-			//gsm_decoder=gsm_decoder_constructor.newInstance((Object[])null);
-			gsm_decoder_decode=gsm_decoder_class.getMethod("decode",new Class[]{ byte[].class, int.class, byte[].class, int.class, boolean.class });
-			// end of java reflection
-		}
-		catch (Exception e) {  e.printStackTrace();  }
+		this(new GsmState());
 	}
 
+
+	/** Creates a new GsmToPcmEncoder.
+	  * @param state the decoder state */
+	public GsmToPcmEncoder(GsmState state) {
+		this.state=state;
+	}
+
+
+	/** Gets the decoder state. */
+	public GsmState getState() {
+		return state;
+	}
+
+
+	/** Resets the decoder state, in order to decode a new stream. */
+	public void reset() {
+		state.reset();
+	}
+
+
 	/** Encodes the input chunk in_buff and returns the encoded chuck into out_buff.
 	  * It returns the actual size of the output data. */
 	public int encode(byte[] in_buff, int in_offset, int in_len, byte[] out_buff, int out_offset) {
-		int out_len=160;
-		boolean big_endian=false;
-		try {
-			//(new org.tritonus.lowlevel.gsm.GSMDecoder()).decode(in_buff,in_offset,out_buff,out_offset,big_endian);   
-			gsm_decoder_decode.invoke(gsm_decoder_constructor.newInstance((Object[])null),new Object[]{ in_buff, new Integer(in_offset), out_buff, new Integer(out_offset), new Boolean(big_endian) });
-			//gsm_decoder_decode.invoke(gsm_decoder,new Object[]{ in_buff, new Integer(in_offset), out_buff, new Integer(out_offset), new Boolean(big_endian) });
-			return out_len;
+		int out_len=0;
+		for (int end=in_offset+in_len-GSM.FRAME_SIZE; in_offset<=end; in_offset+=GSM.FRAME_SIZE) {
+			if (GSM.decode(state,in_buff,in_offset,out_buff,out_offset+out_len,false)<0) {
+				for (int i=0; i<2*GSM.FRAME_SAMPLES; i++) out_buff[out_offset+out_len+i]=0;
+			}
+			out_len+=2*GSM.FRAME_SAMPLES;
 		}
-		catch (Exception e) {}
-		return 0;
+		return out_len;
 	}
+
 }
@@ -12,53 +12,61 @@ package org.zoolu.sound.codec.gsm;
 
 
 
+import org.zoolu.sound.codec.GSM;
+import org.zoolu.sound.codec.GsmState;
 import org.zoolu.util.Encoder;
 
 
 
-/** PCM-to-GSM Encoder. */
+/** PCM-to-GSM Encoder.
+  * <p>
+  * It encodes blocks of 160 16-bit little-endian linear PCM samples (20ms at 8000 Hz) into 33-byte GSM 06.10 frames,
+  * directly into the caller's output buffer, without any allocation.
+  * The encoder state is kept between consecutive frames, and can be reset
+  * for reusing the encoder for a new stream.
+  * <p>
+  * The input length should be a multiple of 320 bytes; remaining bytes are ignored.
+  */
 public class PcmToGsmEncoder implements Encoder {
 	
-	/** Encoder constructor */
-	java.lang.reflect.Constructor gsm_encoder_constructor=null;
+	/** Encoder state */
+	GsmState state;
 
-	/** Encoder */
-	//Object gsm_encoder=null;
 
-	/** Encoder encode() method */
-	java.lang.reflect.Method gsm_encoder_encode=null;
-
-	/** Creates a new PcmToGsmEncoder */
+	/** Creates a new PcmToGsmEncoder. */
 	public PcmToGsmEncoder() {
-		try {
-			// begin of java reflection for org.tritonus.lowlevel.gsm.Encoder.encode()
-			Class gsm_encoder_class=Class.forName("org.tritonus.lowlevel.gsm.Encoder");
-			gsm_encoder_constructor=gsm_encoder_class.getConstructor((Class[])null);
-			//gsm_encoder=gsm_encoder_constructor.newInstance((Object[])null);
-			gsm_encoder_encode=gsm_encoder_class.getMethod("encode",new Class[]{ short[].class, byte[].class });
-			// end of java reflection
-		}
-		catch (Exception e) {  e.printStackTrace();  }
+		this(new GsmState());
+	}
+
+
+	/** Creates a new PcmToGsmEncoder.
+	  * @param state the encoder state */
+	public PcmToGsmEncoder(GsmState state) {
+		this.state=state;
+	}
+
+
+	/** Gets the encoder state. */
+	public GsmState getState() {
+		return state;
+	}
+
+
+	/** Resets the encoder state, in order to encode a new stream. */
+	public void reset() {
+		state.reset();
 	}
 
+
 	/** Encodes the input chunk in_buff and returns the encoded chuck into out_buff.
 	  * It returns the actual size of the output data. */
 	public int encode(byte[] in_buff, int in_offset, int in_len, byte[] out_buff, int out_offset) {
-		int out_len=33;
-		short[] asBuffer=new short[in_len/2];
-		int j=in_offset;
-		for (int i=0; i<asBuffer.length; i++,j+=2) asBuffer[i]=(short)org.zoolu.sound.codec.G726.signedIntLittleEndian(in_buff[j+1],in_buff[j]);
-		byte[] abFrame=new byte[out_len];
-		try {
-			//(new org.tritonus.lowlevel.gsm.Encoder()).encode(asBuffer,abFrame);
-			gsm_encoder_encode.invoke(gsm_encoder_constructor.newInstance((Object[])null),new Object[]{ asBuffer, abFrame });
-			//gsm_encoder_encode.invoke(gsm_encoder,new Object[]{ asBuffer, abFrame });
-			int k=out_offset;
-			for (int i=0; i<out_len; i++) out_buff[k++]=abFrame[i];
-			return out_len;
+		int out_len=0;
+		for (int end=in_offset+in_len-2*GSM.FRAME_SAMPLES; in_offset<=end; in_offset+=2*GSM.FRAME_SAMPLES) {
+			GSM.encode(state,in_buff,in_offset,false,out_buff,out_offset+out_len);
+			out_len+=GSM.FRAME_SIZE;
 		}
-		catch (Exception e) {}
-		return 0;
+		return out_len;
 	}
 
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.util;
+
+
+
+
+/** Reads bit fields, MSB first, from a byte array.
+  * <p>
+  * Bits are extracted with shifts and masks on a <code>long</code> word, without any allocation,
+  * and the same reader can be re-initialized on a new buffer for each packet.
+  * <p>
+  * It can be used in place of {@link BitString} and {@link BitStringBuffer} for parsing
+  * bit-oriented payload formats.
+  */
+public class BitReader {
+	
+	/** Buffer */
+	byte[] buf;
+
+	/** Current bit position within the buffer */
+	int pos;
+
+	/** End bit position */
+	int end;
+
+
+
+	/** Creates an empty BitReader. */
+	public BitReader() {
+		init(new byte[0],0,0);
+	}
+
+
+	/** Creates a new BitReader.
+	  * @param buf the buffer containing the data
+	  * @param off the offset within the buffer
+	  * @param len the data length, in bytes */
+	public BitReader(byte[] buf, int off, int len) {
+		init(buf,off,len);
+	}
+
+
+	/** Initializes the reader on a new buffer.
+	  * @param buf the buffer containing the data
+	  * @param off the offset within the buffer
+	  * @param len the data length, in bytes */
+	public void init(byte[] buf, int off, int len) {
+		this.buf=buf;
+		pos=off<<3;
+		end=(off+len)<<3;
+	}
+
+
+	/** Gets the number of bits that are still available. */
+	public int available() {
+		return end-pos;
+	}
+
+
+	/** Skips a given number of bits.
+	  * @param n the number of bits */
+	public void skip(int n) {
+		if (n>end-pos) throw new IndexOutOfBoundsException("Only "+(end-pos)+" bits available");
+		// else
+		pos+=n;
+	}
+
+
+	/** Reads a bit field.
+	  * @param n the number of bits (from 0 to 32)
+	  * @return the unsigned value of the field, right aligned */
+	public int read(int n) {
+		if (n>end-pos) throw new IndexOutOfBoundsException("Only "+(end-pos)+" bits available");
+		// else
+		if (n==0) return 0;
+		// else
+		int index=pos>>>3;
+		int bit_off=pos&7;
+		int nbytes=(bit_off+n+7)>>>3;
+		long word=0;
+		for (int i=0; i<nbytes; i++) word=(word<<8)|(buf[index+i]&0xff);
+		pos+=n;
+		return (int)((word>>>((nbytes<<3)-bit_off-n))&((1L<<n)-1));
+	}
+
+
+	/** Reads a bit field into a byte array.
+	  * Bits are written MSB first; the last byte is padded with zero bits.
+	  * @param dst the destination buffer
+	  * @param off the offset within the destination buffer
+	  * @param n the number of bits
+	  * @return the number of written bytes */
+	public int readBytes(byte[] dst, int off, int n) {
+		if (n>end-pos) throw new IndexOutOfBoundsException("Only "+(end-pos)+" bits available");
+		// else
+		int len=n>>>3;
+		int tail=n&7;
+		int index=pos>>>3;
+		int shift=pos&7;
+		if (shift==0) {
+			System.arraycopy(buf,index,dst,off,len);
+		}
+		else {
+			for (int i=0; i<len; i++, index++) dst[off+i]=(byte)((buf[index]<<shift)|((buf[index+1]&0xff)>>>(8-shift)));
+		}
+		pos+=len<<3;
+		if (tail>0) {
+			dst[off+len]=(byte)(read(tail)<<(8-tail));
+			len++;
+		}
+		return len;
+	}
+
+}
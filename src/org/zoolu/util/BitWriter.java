@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.util;
+
+
+
+
+/** Writes bit fields, MSB first, into a byte array.
+  * <p>
+  * Bits are inserted with shifts and masks on a <code>long</code> word, without any allocation,
+  * and the same writer can be re-initialized on a new buffer for each packet.
+  * Unused bits of the last written byte are always set to zero.
+  * <p>
+  * It can be used in place of {@link BitString} and {@link BitStringBuffer} for building
+  * bit-oriented payload formats.
+  */
+public class BitWriter {
+	
+	/** Buffer */
+	byte[] buf;
+
+	/** Start bit position */
+	int start;
+
+	/** Current bit position within the buffer */
+	int pos;
+
+
+
+	/** Creates an empty BitWriter. */
+	public BitWriter() {
+		init(new byte[0],0);
+	}
+
+
+	/** Creates a new BitWriter.
+	  * @param buf the buffer where data are written
+	  * @param off the offset within the buffer */
+	public BitWriter(byte[] buf, int off) {
+		init(buf,off);
+	}
+
+
+	/** Initializes the writer on a new buffer.
+	  * @param buf the buffer where data are written
+	  * @param off the offset within the buffer */
+	public void init(byte[] buf, int off) {
+		this.buf=buf;
+		start=pos=off<<3;
+	}
+
+
+	/** Gets the number of written bits. */
+	public int getBitLength() {
+		return pos-start;
+	}
+
+
+	/** Gets the number of written bytes, including the last partially written byte. */
+	public int getByteLength() {
+		return (pos-start+7)>>>3;
+	}
+
+
+	/** Writes a bit field.
+	  * @param value the value of the field, right aligned
+	  * @param n the number of bits (from 0 to 32) */
+	public void write(int value, int n) {
+		if (n==0) return;
+		// else
+		int index=pos>>>3;
+		int bit_off=pos&7;
+		int nbytes=(bit_off+n+7)>>>3;
+		long word=((value&((1L<<n)-1))<<((nbytes<<3)-bit_off-n));
+		if (bit_off>0) word|=((long)(buf[index]&(0xff00>>>bit_off)))<<((nbytes-1)<<3);
+		for (int i=nbytes-1; i>=0; i--) {
+			buf[index+i]=(byte)word;
+			word>>>=8;
+		}
+		pos+=n;
+	}
+
+
+	/** Writes a bit field taken from a byte array.
+	  * Bits are read MSB first.
+	  * @param src the source buffer
+	  * @param off the offset within the source buffer
+	  * @param n the number of bits */
+	public void writeBytes(byte[] src, int off, int n) {
+		int len=n>>>3;
+		int tail=n&7;
+		if ((pos&7)==0) {
+			System.arraycopy(src,off,buf,pos>>>3,len);
+			pos+=len<<3;
+		}
+		else {
+			for (int i=0; i<len; i++) write(src[off+i],8);
+		}
+		if (tail>0) write((src[off+len]&0xff)>>>(8-tail),tail);
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 Luca Veltri - University of Parma - Italy
+ * 
+ * This file is part of MjSip (http://www.mjsip.org)
+ * 
+ * MjSip is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * MjSip is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with MjSip; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ * 
+ * Author(s):
+ * Luca Veltri (luca.veltri@unipr.it)
+ */
+
+package org.zoolu.util;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/** ThreadFactory creates the threads used by all blocking loops of the stack
+  * (socket receivers, TCP servers and connections, keep-alive daemons, RTP senders and receivers, relays, etc.).
+  * <p>
+  * Threads can be either platform threads (default) or virtual threads.
+  * Virtual threads are available only when running on a JVM that supports them (Java 21 or later);
+  * since the stack is compiled for older Java versions, they are created through reflection.
+  * If virtual threads are not supported, platform threads are always used.
+  * <p>
+  * Virtual threads are always daemon threads. In order to preserve the semantic of non-daemon threads
+  * (i.e. the JVM doesn't exit while they are running), a platform keeper thread is kept alive
+  * while at least one non-daemon virtual thread is running.
+  * <p>
+  * Code run by virtual threads should not block (on socket I/O, sleep, or wait) while holding a monitor,
+  * since this pins the virtual thread to its carrier thread; use {@link java.util.concurrent.locks.ReentrantLock} instead.
+  * <p>
+  * It also implements {@link java.util.concurrent.ThreadFactory}, so that it can be passed to executors.
+  */
+public class ThreadFactory implements java.util.concurrent.ThreadFactory {
+	
+	/** Whether virtual threads are used */
+	static volatile boolean VIRTUAL_THREADS=false;
+
+	/** Method Thread.ofVirtual(), or <i>null</i> if virtual threads are not supported */
+	static Method OF_VIRTUAL=null;
+
+	/** Method Thread.Builder.name(String) */
+	static Method BUILDER_NAME=null;
+
+	/** Method Thread.Builder.unstarted(Runnable) */
+	static Method BUILDER_UNSTARTED=null;
+
+	static {
+		try {
+			OF_VIRTUAL=Thread.class.getMethod("ofVirtual");
+			Class builder_class=Class.forName("java.lang.Thread$Builder");
+			BUILDER_NAME=builder_class.getMethod("name",String.class);
+			BUILDER_UNSTARTED=builder_class.getMethod("unstarted",Runnable.class);
+		}
+		catch (Exception e) {
+			OF_VIRTUAL=null;
+		}
+	}
+
+	/** Lock for the non-daemon virtual threads counter */
+	static final Object KEEPER_LOCK=new Object();
+
+	/** Number of running non-daemon virtual threads */
+	static int non_daemon_count=0;
+
+	/** Thread that keeps the JVM alive while non-daemon virtual threads are running */
+	static Thread keeper=null;
+
+
+	/** Name prefix of the threads created by this factory */
+	String name_prefix;
+
+	/** Whether threads created by this factory are daemon threads */
+	boolean daemon;
+
+	/** Counter of threads created by this factory */
+	AtomicInteger thread_count=new AtomicInteger(0);
+
+
+
+	/** Creates a new ThreadFactory.
+	  * @param name_prefix name prefix of the created threads
+	  * @param daemon whether created threads are daemon threads */
+	public ThreadFactory(String name_prefix, boolean daemon) {
+		this.name_prefix=name_prefix;
+		this.daemon=daemon;
+	}
+
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		return newThread(runnable,name_prefix+"-"+thread_count.incrementAndGet(),daemon);
+	}
+
+
+	// *************************** Static methods **************************
+
+	/** Whether virtual threads are supported by the running JVM. */
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL!=null;
+	}
+
+
+	/** Sets whether virtual threads have to be used for new threads.
+	  * @param virtual_threads whether using virtual threads
+	  * @return true if the requested mode has been set, false if virtual threads are not supported */
+	public static boolean setVirtualThreads(boolean virtual_threads) {
+		if (virtual_threads && !isVirtualThreadSupported()) {
+			VIRTUAL_THREADS=false;
+			return false;
+		}
+		// else
+		VIRTUAL_THREADS=virtual_threads;
+		return true;
+	}
+
+
+	/** Whether virtual threads are used for new threads. */
+	public static boolean isVirtualThreads() {
+		return VIRTUAL_THREADS;
+	}
+
+
+	/** Creates a new (unstarted) non-daemon thread.
+	  * @param runnable the object whose <i>run</i> method is invoked
+	  * @param name the name of the thread
+	  * @return the new thread */
+	public static Thread newThread(Runnable runnable, String name) {
+		return newThread(runnable,name,false);
+	}
+
+
+	/** Creates a new (unstarted) thread.
+	  * @param runnable the object whose <i>run</i> method is invoked
+	  * @param name the name of the thread
+	  * @param daemon whether it is a daemon thread
+	  * @return the new thread; a non-daemon virtual thread must be started, otherwise the JVM doesn't exit */
+	public static Thread newThread(Runnable runnable, String name, boolean daemon) {
+		if (VIRTUAL_THREADS) try {
+			if (!daemon) runnable=new NonDaemonRunnable(runnable);
+			Object builder=BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null),name);
+			return (Thread)BUILDER_UNSTARTED.invoke(builder,runnable);
+		}
+		catch (Exception e) {
+			SystemUtils.log(LoggerLevel.WARNING,ThreadFactory.class,"virtual thread creation failed: "+e);
+		}
+		// else
+		Thread thread=new Thread(runnable,name);
+		thread.setDaemon(daemon);
+		return thread;
+	}
+
+
+	/** Creates and starts a new non-daemon thread.
+	  * @param runnable the object whose <i>run</i> method is invoked
+	  * @param name the name of the thread
+	  * @return the started thread */
+	public static Thread start(Runnable runnable, String name) {
+		return start(runnable,name,false);
+	}
+
+
+	/** Creates and starts a new thread.
+	  * @param runnable the object whose <i>run</i> method is invoked
+	  * @param name the name of the thread
+	  * @param daemon whether it is a daemon thread
+	  * @return the started thread */
+	public static Thread start(Runnable runnable, String name, boolean daemon) {
+		Thread thread=newThread(runnable,name,daemon);
+		thread.start();
+		return thread;
+	}
+
+
+	/** Gets the number of running non-daemon virtual threads. */
+	public static int getNonDaemonVirtualThreadCount() {
+		synchronized (KEEPER_LOCK) {
+			return non_daemon_count;
+		}
+	}
+
+
+	/** Runnable wrapper that keeps the keeper thread alive while running. */
+	static class NonDaemonRunnable implements Runnable {
+		
+		/** The actual runnable */
+		Runnable runnable;
+
+		/** Creates a new NonDaemonRunnable. */
+		NonDaemonRunnable(Runnable runnable) {
+			this.runnable=runnable;
+			synchronized (KEEPER_LOCK) {
+				non_daemon_count++;
+				if (keeper==null) {
+					keeper=new Thread(new Runnable() {
+						public void run() {
+							synchronized (KEEPER_LOCK) {
+								while (non_daemon_count>0) try { KEEPER_LOCK.wait(); } catch (InterruptedException e) {}
+								keeper=null;
+							}
+						}
+					},"ThreadFactory-keeper");
+					keeper.setDaemon(false);
+					keeper.start();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				runnable.run();
+			}
+			finally {
+				synchronized (KEEPER_LOCK) {
+					non_daemon_count--;
+					if (non_daemon_count==0) KEEPER_LOCK.notifyAll();
+				}
+			}
+		}
+	}
+
+}